@@ -10,10 +10,14 @@ import jssc.SerialPortEvent;
 import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
 import jssc.SerialPortList;
+import jssc.SerialPortTimeoutException;
 import clearcontrol.core.log.LoggingFeature;
 import gnu.trove.list.array.TByteArrayList;
 
-public class Serial implements SerialInterface, LoggingFeature
+public class Serial implements
+                    SerialInterface,
+                    SerialTransportInterface,
+                    LoggingFeature
 {
   public final static int cFLOWCONTROL_NONE =
                                             SerialPort.FLOWCONTROL_NONE;
@@ -418,6 +422,42 @@ public class Serial implements SerialInterface, LoggingFeature
     }
   }
 
+  @Override
+  public int read(byte[] pBuffer,
+                  int pTimeOutInMilliseconds) throws SerialPortException
+  {
+    int lNumberOfBytesRead = 0;
+    int lAvailable = mSerialPort.getInputBufferBytesCount();
+    if (lAvailable == 0)
+    {
+      try
+      {
+        pBuffer[0] = mSerialPort.readBytes(1, pTimeOutInMilliseconds)[0];
+      }
+      catch (final SerialPortTimeoutException e)
+      {
+        return 0;
+      }
+      lNumberOfBytesRead = 1;
+      lAvailable = mSerialPort.getInputBufferBytesCount();
+    }
+
+    final int lNumberOfBytesToRead = Math.min(lAvailable,
+                                              pBuffer.length
+                                                          - lNumberOfBytesRead);
+    if (lNumberOfBytesToRead > 0)
+    {
+      final byte[] lBytes = mSerialPort.readBytes(lNumberOfBytesToRead);
+      System.arraycopy(lBytes,
+                       0,
+                       pBuffer,
+                       lNumberOfBytesRead,
+                       lNumberOfBytesToRead);
+      lNumberOfBytesRead += lNumberOfBytesToRead;
+    }
+    return lNumberOfBytesRead;
+  }
+
   public byte[] readTextMessage()
   {
 
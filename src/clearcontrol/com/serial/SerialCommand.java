@@ -0,0 +1,198 @@
+package clearcontrol.com.serial;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serial command: a message to send, and how its reply is framed. A reply is
+ * either terminated by a given character (the terminator is not part of the
+ * reply), or has a fixed length. Commands without reply can be followed by a
+ * delay, for devices that need some time to process a command before the next
+ * one is sent.
+ *
+ * @author royer
+ */
+public class SerialCommand
+{
+  private static final long cDefaultTimeOutInMilliseconds = 10 * 1000;
+
+  private final String mName;
+  private final byte[] mMessage;
+  private volatile Character mReplyTerminator;
+  private volatile int mReplyLength;
+  private volatile long mTimeOutInNanoseconds =
+                                              TimeUnit.MILLISECONDS.toNanos(cDefaultTimeOutInMilliseconds);
+  private volatile long mDelayAfterWriteInNanoseconds;
+  private volatile boolean mPurgeAfterReply;
+
+  /**
+   * Instantiates a command without reply
+   *
+   * @param pName
+   *          name used to collect per-command statistics
+   * @param pMessage
+   *          message to send
+   */
+  public SerialCommand(String pName, byte[] pMessage)
+  {
+    super();
+    mName = pName == null ? "" : pName;
+    mMessage = pMessage;
+  }
+
+  /**
+   * Returns the command name
+   *
+   * @return command name
+   */
+  public String getName()
+  {
+    return mName;
+  }
+
+  /**
+   * Returns the message to send
+   *
+   * @return message
+   */
+  public byte[] getMessage()
+  {
+    return mMessage;
+  }
+
+  /**
+   * Sets the character terminating replies to this command, null for none.
+   *
+   * @param pReplyTerminator
+   *          reply terminator
+   */
+  public void setReplyTerminator(Character pReplyTerminator)
+  {
+    mReplyTerminator = pReplyTerminator;
+  }
+
+  /**
+   * Returns the character terminating replies to this command, null if none.
+   *
+   * @return reply terminator
+   */
+  public Character getReplyTerminator()
+  {
+    return mReplyTerminator;
+  }
+
+  /**
+   * Sets the length of fixed length replies to this command, 0 for none.
+   *
+   * @param pReplyLength
+   *          reply length in bytes
+   */
+  public void setReplyLength(int pReplyLength)
+  {
+    mReplyLength = pReplyLength;
+  }
+
+  /**
+   * Returns the length of fixed length replies to this command
+   *
+   * @return reply length in bytes
+   */
+  public int getReplyLength()
+  {
+    return mReplyLength;
+  }
+
+  /**
+   * Returns true if this command expects a reply.
+   *
+   * @return true if a reply is expected
+   */
+  public boolean hasReply()
+  {
+    return mReplyTerminator != null || mReplyLength > 0;
+  }
+
+  /**
+   * Sets the time out for receiving a reply
+   *
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time unit
+   */
+  public void setTimeOut(long pTimeOut, TimeUnit pTimeUnit)
+  {
+    mTimeOutInNanoseconds = pTimeUnit.toNanos(pTimeOut);
+  }
+
+  /**
+   * Returns the time out for receiving a reply
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return time out
+   */
+  public long getTimeOut(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mTimeOutInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sets the delay observed after sending a command without reply
+   *
+   * @param pDelay
+   *          delay
+   * @param pTimeUnit
+   *          time unit
+   */
+  public void setDelayAfterWrite(long pDelay, TimeUnit pTimeUnit)
+  {
+    mDelayAfterWriteInNanoseconds = pTimeUnit.toNanos(pDelay);
+  }
+
+  /**
+   * Returns the delay observed after sending a command without reply
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return delay
+   */
+  public long getDelayAfterWrite(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mDelayAfterWriteInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sets whether the transport is purged once this command has completed.
+   * Commands that purge are never pipelined with other commands.
+   *
+   * @param pPurgeAfterReply
+   *          true for purging
+   */
+  public void setPurgeAfterReply(boolean pPurgeAfterReply)
+  {
+    mPurgeAfterReply = pPurgeAfterReply;
+  }
+
+  /**
+   * Returns whether the transport is purged once this command has completed.
+   *
+   * @return true for purging
+   */
+  public boolean isPurgeAfterReply()
+  {
+    return mPurgeAfterReply;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SerialCommand [mName=%s, mReplyTerminator=%s, mReplyLength=%d]",
+                         mName,
+                         mReplyTerminator == null ? null
+                                                  : (int) mReplyTerminator.charValue(),
+                         mReplyLength);
+  }
+
+}
@@ -0,0 +1,642 @@
+package clearcontrol.com.serial;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jssc.SerialPortException;
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.timing.WaitingSignal;
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * Asynchronous serial command engine. Commands are submitted to a request
+ * queue and executed in order by a single I/O thread, each command returns a
+ * future for its reply. Replies are framed by terminator or length as soon as
+ * their bytes are received: there is no fixed wait between a command and its
+ * reply.
+ *
+ * For devices that accept it, several commands can be outstanding at once
+ * (pipelining): commands are then written without waiting for the replies of
+ * the previous ones, and replies are matched to commands in order. Commands
+ * that purge the transport are never pipelined.
+ *
+ * When a reply times out, the transport is purged and all outstanding commands
+ * fail, since their replies can no longer be matched reliably. Replies that
+ * arrive late are drained: received bytes are discarded until the line has been
+ * quiet for a while, so that they are not taken for the replies of the next
+ * commands.
+ *
+ * Round trip time and latency statistics are kept per command name, as well as
+ * the bus utilization: the fraction of time during which commands are in
+ * flight.
+ *
+ * @author royer
+ */
+public class SerialCommandEngine implements
+                                 AsynchronousExecutorFeature,
+                                 LoggingFeature
+{
+  private static final int cIdleTimeOutInMilliseconds = 100;
+  private static final long cDefaultLateReplyQuietTimeInMilliseconds = 50;
+  private static final long cMaxLateReplyDrainTimeInMilliseconds = 1000;
+  private static final byte[] cNoReply = new byte[0];
+
+  private final SerialTransportInterface mTransport;
+  private volatile int mMaxNumberOfOutstandingCommands = 1;
+  private volatile long mLateReplyQuietTimeInNanoseconds =
+                                                         TimeUnit.MILLISECONDS.toNanos(cDefaultLateReplyQuietTimeInMilliseconds);
+  private final AtomicLong mNumberOfDiscardedBytes = new AtomicLong();
+
+  private final LinkedBlockingQueue<PendingCommand> mRequestQueue =
+                                                                  new LinkedBlockingQueue<>();
+  private final PendingCommand mWakeUp = new PendingCommand(null);
+
+  // only accessed by the I/O thread:
+  private final ArrayDeque<PendingCommand> mOutstandingCommands =
+                                                                new ArrayDeque<>();
+  private final byte[] mReadBuffer = new byte[4096];
+  private byte[] mReplyBuffer = new byte[4096];
+  private int mReplyBufferLength;
+
+  private final ConcurrentHashMap<String, SerialCommandStatistics> mStatisticsMap =
+                                                                                 new ConcurrentHashMap<>();
+
+  private final AtomicLong mBusyTimeInNanoseconds = new AtomicLong();
+  private volatile long mBusySinceInNanoseconds;
+  private volatile boolean mIsBusy;
+  private volatile long mStatisticsStartTimeInNanoseconds =
+                                                          System.nanoTime();
+
+  private volatile boolean mIsRunning;
+  private volatile Future<?> mIOLoopFuture;
+
+  /**
+   * Instantiates a serial command engine for a given transport
+   *
+   * @param pTransport
+   *          transport
+   */
+  public SerialCommandEngine(SerialTransportInterface pTransport)
+  {
+    super();
+    mTransport = pTransport;
+  }
+
+  /**
+   * Sets the max number of commands waiting for their reply at any time, 1 (the
+   * default) disables pipelining.
+   *
+   * @param pMaxNumberOfOutstandingCommands
+   *          max number of outstanding commands
+   */
+  public void setMaxNumberOfOutstandingCommands(int pMaxNumberOfOutstandingCommands)
+  {
+    mMaxNumberOfOutstandingCommands = Math.max(1,
+                                               pMaxNumberOfOutstandingCommands);
+  }
+
+  /**
+   * Returns the max number of commands waiting for their reply at any time
+   *
+   * @return max number of outstanding commands
+   */
+  public int getMaxNumberOfOutstandingCommands()
+  {
+    return mMaxNumberOfOutstandingCommands;
+  }
+
+  /**
+   * Sets how long the line must be quiet after a time out before the next
+   * commands are written. Bytes received in the meantime - late replies - are
+   * discarded.
+   *
+   * @param pQuietTime
+   *          quiet time
+   * @param pTimeUnit
+   *          time unit
+   */
+  public void setLateReplyQuietTime(long pQuietTime, TimeUnit pTimeUnit)
+  {
+    mLateReplyQuietTimeInNanoseconds = pTimeUnit.toNanos(pQuietTime);
+  }
+
+  /**
+   * Returns the number of received bytes discarded after time outs
+   *
+   * @return number of discarded bytes
+   */
+  public long getNumberOfDiscardedBytes()
+  {
+    return mNumberOfDiscardedBytes.get();
+  }
+
+  /**
+   * Starts the I/O thread
+   */
+  public synchronized void start()
+  {
+    if (mIsRunning)
+      return;
+    mIsRunning = true;
+    mIOLoopFuture = executeAsynchronously(this::ioLoop);
+  }
+
+  /**
+   * Stops the I/O thread, commands not yet completed fail.
+   */
+  public synchronized void stop()
+  {
+    if (!mIsRunning)
+      return;
+    mIsRunning = false;
+    mRequestQueue.offer(mWakeUp);
+    try
+    {
+      mIOLoopFuture.get();
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (final ExecutionException e)
+    {
+      severe("Serial command engine I/O loop failed: %s", e);
+    }
+    failQueuedCommands();
+  }
+
+  /**
+   * Returns true if the I/O thread is running
+   *
+   * @return true if running
+   */
+  public boolean isRunning()
+  {
+    return mIsRunning;
+  }
+
+  /**
+   * Submits a command for execution. The returned future completes with the
+   * reply, an empty array for commands without reply, or fails with a
+   * SerialException.
+   *
+   * @param pCommand
+   *          command
+   * @return future reply
+   */
+  public Future<byte[]> submit(SerialCommand pCommand)
+  {
+    final PendingCommand lPendingCommand =
+                                         new PendingCommand(pCommand);
+    if (!mIsRunning)
+    {
+      lPendingCommand.completeExceptionally(new SerialException("Serial command engine is not running"));
+      return lPendingCommand;
+    }
+
+    mRequestQueue.add(lPendingCommand);
+
+    // the engine might have been stopped in between:
+    if (!mIsRunning && mRequestQueue.remove(lPendingCommand))
+      lPendingCommand.completeExceptionally(new SerialException("Serial command engine is not running"));
+
+    return lPendingCommand;
+  }
+
+  /**
+   * Executes a command and waits for its reply.
+   *
+   * @param pCommand
+   *          command
+   * @return reply, an empty array for commands without reply
+   * @throws SerialException
+   *           if the command failed
+   */
+  public byte[] execute(SerialCommand pCommand) throws SerialException
+  {
+    try
+    {
+      return submit(pCommand).get();
+    }
+    catch (final ExecutionException e)
+    {
+      if (e.getCause() instanceof SerialException)
+        throw (SerialException) e.getCause();
+      throw new SerialException("Serial command failed: " + pCommand,
+                                e.getCause());
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new SerialException("Interrupted while waiting for reply to "
+                                + pCommand, e);
+    }
+  }
+
+  /**
+   * Returns the statistics of the commands of a given name, or null if no
+   * command of that name has been executed.
+   *
+   * @param pCommandName
+   *          command name
+   * @return statistics or null
+   */
+  public SerialCommandStatistics getStatistics(String pCommandName)
+  {
+    return mStatisticsMap.get(pCommandName);
+  }
+
+  /**
+   * Returns the fraction of time during which commands were in flight, since
+   * the statistics were last cleared.
+   *
+   * @return bus utilization within [0,1]
+   */
+  public double getBusUtilization()
+  {
+    final long lNow = System.nanoTime();
+    long lBusyTime = mBusyTimeInNanoseconds.get();
+    if (mIsBusy)
+      lBusyTime += lNow - mBusySinceInNanoseconds;
+    final long lElapsedTime = lNow - mStatisticsStartTimeInNanoseconds;
+    if (lElapsedTime <= 0)
+      return 0;
+    return Math.min(1, ((double) lBusyTime) / lElapsedTime);
+  }
+
+  /**
+   * Clears all statistics
+   */
+  public void clearStatistics()
+  {
+    mStatisticsMap.clear();
+    mBusyTimeInNanoseconds.set(0);
+    mStatisticsStartTimeInNanoseconds = System.nanoTime();
+  }
+
+  private void ioLoop()
+  {
+    try
+    {
+      while (mIsRunning)
+      {
+        writeCommands();
+        if (!mOutstandingCommands.isEmpty())
+          readReplies();
+      }
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch (final Throwable e)
+    {
+      severe("Serial command engine I/O loop failed: %s", e);
+      e.printStackTrace();
+    }
+    finally
+    {
+      // the engine stops with its I/O loop, queued commands would never be
+      // processed:
+      mIsRunning = false;
+      failOutstandingCommands(new SerialException("Serial command engine stopped"));
+      failQueuedCommands();
+    }
+  }
+
+  private void writeCommands() throws InterruptedException
+  {
+    while (mIsRunning)
+    {
+      final PendingCommand lPendingCommand;
+      if (mOutstandingCommands.isEmpty())
+      {
+        lPendingCommand =
+                        mRequestQueue.poll(cIdleTimeOutInMilliseconds,
+                                           TimeUnit.MILLISECONDS);
+      }
+      else
+      {
+        // pipelining: the next command is written only if it can be:
+        final PendingCommand lNextPendingCommand = mRequestQueue.peek();
+        if (lNextPendingCommand == null
+            || !canBePipelined(lNextPendingCommand))
+          return;
+        lPendingCommand = mRequestQueue.poll();
+      }
+
+      if (lPendingCommand == null || lPendingCommand == mWakeUp)
+        return;
+
+      try
+      {
+        write(lPendingCommand);
+      }
+      catch (final Throwable e)
+      {
+        // the command in hand is neither queued nor outstanding anymore:
+        if (!lPendingCommand.isDone())
+          fail(lPendingCommand,
+               new SerialException("Could not write command "
+                                   + lPendingCommand.mCommand, e));
+        throw e;
+      }
+    }
+  }
+
+  private boolean canBePipelined(PendingCommand pPendingCommand)
+  {
+    if (pPendingCommand == mWakeUp)
+      return true;
+    return mOutstandingCommands.size() < mMaxNumberOfOutstandingCommands
+           && !pPendingCommand.mCommand.isPurgeAfterReply()
+           && !mOutstandingCommands.peekFirst().mCommand.isPurgeAfterReply();
+  }
+
+  private void write(PendingCommand pPendingCommand)
+  {
+    if (pPendingCommand.isDone())
+      return;
+
+    final SerialCommand lCommand = pPendingCommand.mCommand;
+    pPendingCommand.mWriteTimeInNanoseconds = System.nanoTime();
+    markBusy(pPendingCommand.mWriteTimeInNanoseconds);
+    try
+    {
+      mTransport.write(lCommand.getMessage());
+    }
+    catch (final SerialPortException e)
+    {
+      fail(pPendingCommand,
+           new SerialException("Could not write command " + lCommand,
+                               e));
+      markIdle();
+      return;
+    }
+
+    if (lCommand.hasReply())
+    {
+      pPendingCommand.mDeadlineInNanoseconds =
+                                             pPendingCommand.mWriteTimeInNanoseconds
+                                               + lCommand.getTimeOut(TimeUnit.NANOSECONDS);
+      mOutstandingCommands.addLast(pPendingCommand);
+    }
+    else
+    {
+      final long lDelay =
+                        lCommand.getDelayAfterWrite(TimeUnit.NANOSECONDS);
+      if (lDelay > 0)
+        WaitingSignal.parkUntil(pPendingCommand.mWriteTimeInNanoseconds
+                                + lDelay);
+      complete(pPendingCommand, cNoReply);
+      markIdle();
+    }
+  }
+
+  private void readReplies()
+  {
+    final PendingCommand lHead = mOutstandingCommands.peekFirst();
+    final long lRemainingTime = lHead.mDeadlineInNanoseconds
+                                - System.nanoTime();
+    if (lRemainingTime <= 0)
+    {
+      timeOut();
+      return;
+    }
+
+    // waits at most until the deadline of the oldest command, and not too long
+    // so that newly submitted commands can be pipelined:
+    final int lTimeOutInMilliseconds =
+                                     (int) Math.max(1,
+                                                    Math.min(TimeUnit.NANOSECONDS.toMillis(lRemainingTime),
+                                                             cIdleTimeOutInMilliseconds));
+    try
+    {
+      final int lNumberOfBytesRead =
+                                   mTransport.read(mReadBuffer,
+                                                   lTimeOutInMilliseconds);
+      appendToReplyBuffer(mReadBuffer, lNumberOfBytesRead);
+    }
+    catch (final SerialPortException e)
+    {
+      purge();
+      failOutstandingCommands(new SerialException("Could not read reply",
+                                                  e));
+      return;
+    }
+
+    frameReplies();
+  }
+
+  private void frameReplies()
+  {
+    while (!mOutstandingCommands.isEmpty())
+    {
+      final PendingCommand lHead = mOutstandingCommands.peekFirst();
+      final SerialCommand lCommand = lHead.mCommand;
+
+      final int lReplyLength;
+      final int lConsumedLength;
+      final Character lTerminator = lCommand.getReplyTerminator();
+      if (lTerminator != null)
+      {
+        final int lTerminatorIndex =
+                                   indexOf((byte) lTerminator.charValue());
+        if (lTerminatorIndex < 0)
+          return;
+        lReplyLength = lTerminatorIndex;
+        lConsumedLength = lTerminatorIndex + 1;
+      }
+      else
+      {
+        if (mReplyBufferLength < lCommand.getReplyLength())
+          return;
+        lReplyLength = lCommand.getReplyLength();
+        lConsumedLength = lReplyLength;
+      }
+
+      final byte[] lReply = Arrays.copyOf(mReplyBuffer, lReplyLength);
+      mReplyBufferLength -= lConsumedLength;
+      System.arraycopy(mReplyBuffer,
+                       lConsumedLength,
+                       mReplyBuffer,
+                       0,
+                       mReplyBufferLength);
+
+      mOutstandingCommands.pollFirst();
+      complete(lHead, lReply);
+      markIdle();
+    }
+  }
+
+  private void timeOut()
+  {
+    final PendingCommand lHead = mOutstandingCommands.pollFirst();
+    warning("Time out waiting for reply to %s", lHead.mCommand);
+    fail(lHead,
+         new SerialException("Time out waiting for reply to "
+                             + lHead.mCommand));
+
+    // the replies of the other outstanding commands can't be matched reliably
+    // anymore:
+    purge();
+    failOutstandingCommands(new SerialException("Reply lost after time out of "
+                                                + lHead.mCommand));
+    drainLateReplies();
+  }
+
+  private void drainLateReplies()
+  {
+    final long lQuietTime = mLateReplyQuietTimeInNanoseconds;
+    final long lStart = System.nanoTime();
+    final long lDeadline = lStart
+                           + TimeUnit.MILLISECONDS.toNanos(cMaxLateReplyDrainTimeInMilliseconds);
+    long lQuietSince = lStart;
+    long lNow = lStart;
+    while (mIsRunning && lNow - lQuietSince < lQuietTime)
+    {
+      if (lNow - lDeadline >= 0)
+      {
+        warning("Serial line still busy %d ms after time out",
+                cMaxLateReplyDrainTimeInMilliseconds);
+        break;
+      }
+      final int lTimeOutInMilliseconds =
+                                       (int) Math.max(1,
+                                                      TimeUnit.NANOSECONDS.toMillis(lQuietTime
+                                                                                    - (lNow - lQuietSince)));
+      try
+      {
+        final int lNumberOfBytesRead =
+                                     mTransport.read(mReadBuffer,
+                                                     lTimeOutInMilliseconds);
+        lNow = System.nanoTime();
+        if (lNumberOfBytesRead > 0)
+        {
+          mNumberOfDiscardedBytes.addAndGet(lNumberOfBytesRead);
+          lQuietSince = lNow;
+        }
+      }
+      catch (final SerialPortException e)
+      {
+        warning("Could not drain late replies: %s", e);
+        break;
+      }
+    }
+    mReplyBufferLength = 0;
+  }
+
+  private void complete(PendingCommand pPendingCommand, byte[] pReply)
+  {
+    final long lNow = System.nanoTime();
+    getOrCreateStatistics(pPendingCommand.mCommand.getName()).addCommand(lNow - pPendingCommand.mSubmissionTimeInNanoseconds,
+                                                                         lNow - pPendingCommand.mWriteTimeInNanoseconds);
+    if (pPendingCommand.mCommand.isPurgeAfterReply())
+      purge();
+    pPendingCommand.complete(pReply);
+  }
+
+  private void fail(PendingCommand pPendingCommand,
+                    SerialException pException)
+  {
+    getOrCreateStatistics(pPendingCommand.mCommand.getName()).addFailure();
+    pPendingCommand.completeExceptionally(pException);
+  }
+
+  private void failOutstandingCommands(SerialException pException)
+  {
+    PendingCommand lPendingCommand;
+    while ((lPendingCommand = mOutstandingCommands.pollFirst()) != null)
+      fail(lPendingCommand, pException);
+    markIdle();
+  }
+
+  private void markBusy(long pNow)
+  {
+    if (!mIsBusy)
+    {
+      mBusySinceInNanoseconds = pNow;
+      mIsBusy = true;
+    }
+  }
+
+  private void markIdle()
+  {
+    if (mIsBusy && mOutstandingCommands.isEmpty())
+    {
+      mBusyTimeInNanoseconds.addAndGet(System.nanoTime()
+                                       - mBusySinceInNanoseconds);
+      mIsBusy = false;
+    }
+  }
+
+  private void failQueuedCommands()
+  {
+    PendingCommand lPendingCommand;
+    while ((lPendingCommand = mRequestQueue.poll()) != null)
+      if (lPendingCommand != mWakeUp)
+        fail(lPendingCommand,
+             new SerialException("Serial command engine stopped"));
+  }
+
+  private void purge()
+  {
+    mReplyBufferLength = 0;
+    try
+    {
+      mTransport.purge();
+    }
+    catch (final SerialPortException e)
+    {
+      warning("Could not purge serial transport: %s", e);
+    }
+  }
+
+  private void appendToReplyBuffer(byte[] pBytes, int pLength)
+  {
+    if (mReplyBufferLength + pLength > mReplyBuffer.length)
+      mReplyBuffer = Arrays.copyOf(mReplyBuffer,
+                                   2 * (mReplyBufferLength + pLength));
+    System.arraycopy(pBytes,
+                     0,
+                     mReplyBuffer,
+                     mReplyBufferLength,
+                     pLength);
+    mReplyBufferLength += pLength;
+  }
+
+  private int indexOf(byte pByte)
+  {
+    for (int i = 0; i < mReplyBufferLength; i++)
+      if (mReplyBuffer[i] == pByte)
+        return i;
+    return -1;
+  }
+
+  private SerialCommandStatistics getOrCreateStatistics(String pCommandName)
+  {
+    return mStatisticsMap.computeIfAbsent(pCommandName,
+                                          (n) -> new SerialCommandStatistics());
+  }
+
+  private static class PendingCommand extends CompletableFuture<byte[]>
+  {
+    final SerialCommand mCommand;
+    final long mSubmissionTimeInNanoseconds = System.nanoTime();
+    volatile long mWriteTimeInNanoseconds;
+    volatile long mDeadlineInNanoseconds;
+
+    PendingCommand(SerialCommand pCommand)
+    {
+      mCommand = pCommand;
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+package clearcontrol.com.serial;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency statistics of the serial commands of a given name. The round trip
+ * time is measured from the moment the command is written until its reply is
+ * received, the latency includes the time spent waiting in the request queue.
+ *
+ * @author royer
+ */
+public class SerialCommandStatistics
+{
+  private long mNumberOfCommands;
+  private long mNumberOfFailures;
+  private long mTotalRoundTripTimeInNanoseconds;
+  private long mMinRoundTripTimeInNanoseconds = Long.MAX_VALUE;
+  private long mMaxRoundTripTimeInNanoseconds;
+  private long mTotalLatencyInNanoseconds;
+
+  synchronized void addCommand(long pLatencyInNanoseconds,
+                               long pRoundTripTimeInNanoseconds)
+  {
+    mNumberOfCommands++;
+    mTotalLatencyInNanoseconds += pLatencyInNanoseconds;
+    mTotalRoundTripTimeInNanoseconds += pRoundTripTimeInNanoseconds;
+    mMinRoundTripTimeInNanoseconds =
+                                   Math.min(mMinRoundTripTimeInNanoseconds,
+                                            pRoundTripTimeInNanoseconds);
+    mMaxRoundTripTimeInNanoseconds =
+                                   Math.max(mMaxRoundTripTimeInNanoseconds,
+                                            pRoundTripTimeInNanoseconds);
+  }
+
+  synchronized void addFailure()
+  {
+    mNumberOfFailures++;
+  }
+
+  /**
+   * Returns the number of completed commands
+   *
+   * @return number of completed commands
+   */
+  public synchronized long getNumberOfCommands()
+  {
+    return mNumberOfCommands;
+  }
+
+  /**
+   * Returns the number of failed commands (time outs and transport errors)
+   *
+   * @return number of failed commands
+   */
+  public synchronized long getNumberOfFailures()
+  {
+    return mNumberOfFailures;
+  }
+
+  /**
+   * Returns the average round trip time
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return average round trip time
+   */
+  public synchronized double getAverageRoundTripTime(TimeUnit pTimeUnit)
+  {
+    if (mNumberOfCommands == 0)
+      return 0;
+    return toDouble(mTotalRoundTripTimeInNanoseconds, pTimeUnit)
+           / mNumberOfCommands;
+  }
+
+  /**
+   * Returns the minimal round trip time
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return minimal round trip time
+   */
+  public synchronized double getMinRoundTripTime(TimeUnit pTimeUnit)
+  {
+    if (mNumberOfCommands == 0)
+      return 0;
+    return toDouble(mMinRoundTripTimeInNanoseconds, pTimeUnit);
+  }
+
+  /**
+   * Returns the maximal round trip time
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return maximal round trip time
+   */
+  public synchronized double getMaxRoundTripTime(TimeUnit pTimeUnit)
+  {
+    return toDouble(mMaxRoundTripTimeInNanoseconds, pTimeUnit);
+  }
+
+  /**
+   * Returns the average latency, including queueing
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return average latency
+   */
+  public synchronized double getAverageLatency(TimeUnit pTimeUnit)
+  {
+    if (mNumberOfCommands == 0)
+      return 0;
+    return toDouble(mTotalLatencyInNanoseconds, pTimeUnit)
+           / mNumberOfCommands;
+  }
+
+  private static double toDouble(long pNanoseconds, TimeUnit pTimeUnit)
+  {
+    return ((double) pNanoseconds) / pTimeUnit.toNanos(1);
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return String.format("SerialCommandStatistics [commands=%d, failures=%d, round trip (ms): avg=%g min=%g max=%g, latency (ms): avg=%g]",
+                         mNumberOfCommands,
+                         mNumberOfFailures,
+                         getAverageRoundTripTime(TimeUnit.NANOSECONDS)
+                                            * 1e-6,
+                         getMinRoundTripTime(TimeUnit.NANOSECONDS) * 1e-6,
+                         getMaxRoundTripTime(TimeUnit.NANOSECONDS) * 1e-6,
+                         getAverageLatency(TimeUnit.NANOSECONDS) * 1e-6);
+  }
+
+}
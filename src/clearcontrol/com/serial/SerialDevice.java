@@ -1,27 +1,55 @@
 package clearcontrol.com.serial;
 
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import jssc.SerialPortException;
 import clearcontrol.com.serial.adapters.SerialBinaryDeviceAdapter;
+import clearcontrol.com.serial.adapters.SerialDeviceAdapter;
 import clearcontrol.com.serial.adapters.SerialTextDeviceAdapter;
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
 import clearcontrol.core.device.VirtualDevice;
+import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.bundle.VariableBundle;
 
 /**
- * Serial communication device
+ * Serial communication device. Serial variables are read and written through a
+ * serial command engine: commands are executed in order by a single I/O thread
+ * and replies are framed by terminator or length, without fixed waits.
+ * 
+ * Values read from the device are cached for as long as their adapter allows
+ * (see SerialDeviceAdapter.getMaxStalenessInMilliseconds()), and setting a
+ * variable invalidates its cached value. Cached values can be kept fresh by a
+ * background refresher that sends the get commands of all stale variables
+ * together.
  *
  * @author royer
  */
 public class SerialDevice extends VirtualDevice
-                          implements OpenCloseDeviceInterface
+                          implements
+                          OpenCloseDeviceInterface,
+                          AsynchronousSchedulerFeature,
+                          LoggingFeature
 {
 
   private final Serial mSerial;
   private final String mPortName;
   private final VariableBundle mVariableBundle;
+  private final SerialCommandEngine mCommandEngine;
 
-  private final Object mDeviceLock = new Object();
+  private final CopyOnWriteArrayList<CachedSerialVariable<?>> mCachedVariableList =
+                                                                                 new CopyOnWriteArrayList<>();
+  private final AtomicLong mNumberOfCacheHits = new AtomicLong();
+  private final AtomicLong mNumberOfCacheMisses = new AtomicLong();
+  private volatile long mRefreshPeriodInMilliseconds;
+  private volatile WaitingScheduledFuture<?> mRefreshFuture;
 
   /**
    * Instanciates a serila communication device
@@ -41,6 +69,7 @@ public class SerialDevice extends VirtualDevice
     mPortName = pPortName;
     mSerial = new Serial(pBaudRate);
     getSerial().setNotifyEvents(false);
+    mCommandEngine = new SerialCommandEngine(mSerial);
 
     mVariableBundle = new VariableBundle(String.format("$s($s)",
                                                        pDeviceName,
@@ -48,20 +77,130 @@ public class SerialDevice extends VirtualDevice
 
   }
 
+  /**
+   * Instanciates a serial communication device that communicates through a
+   * given transport instead of a serial port - for example a stand-in for a
+   * serial device. The device is opened by starting its command engine.
+   * 
+   * @param pDeviceName
+   *          device name
+   * @param pTransport
+   *          transport
+   */
+  public SerialDevice(final String pDeviceName,
+                      final SerialTransportInterface pTransport)
+  {
+    super(pDeviceName);
+    mPortName = null;
+    mSerial = new Serial(0);
+    mCommandEngine = new SerialCommandEngine(pTransport);
+
+    mVariableBundle = new VariableBundle(pDeviceName);
+  }
+
   public Serial getSerial()
   {
     return mSerial;
   }
 
+  /**
+   * Returns the serial command engine of this device
+   * 
+   * @return serial command engine
+   */
+  public SerialCommandEngine getCommandEngine()
+  {
+    return mCommandEngine;
+  }
+
+  /**
+   * Sets the max number of commands sent to the device without waiting for
+   * the previous replies. Only devices that process commands in order and
+   * buffer them should use more than one (the default).
+   * 
+   * @param pMaxNumberOfOutstandingCommands
+   *          max number of outstanding commands
+   */
+  public void setMaxNumberOfOutstandingCommands(int pMaxNumberOfOutstandingCommands)
+  {
+    mCommandEngine.setMaxNumberOfOutstandingCommands(pMaxNumberOfOutstandingCommands);
+  }
+
+  /**
+   * Sets the period at which cached values are refreshed in the background, 0
+   * disables the refresher. Only the values that are older than half their max
+   * staleness are refreshed, and their get commands are sent together.
+   * 
+   * @param pRefreshPeriod
+   *          refresh period
+   * @param pTimeUnit
+   *          time unit
+   */
+  public void setCacheRefreshPeriod(long pRefreshPeriod,
+                                    TimeUnit pTimeUnit)
+  {
+    mRefreshPeriodInMilliseconds = pTimeUnit.toMillis(pRefreshPeriod);
+    if (mCommandEngine.isRunning())
+      startRefresher();
+  }
+
+  /**
+   * Returns the number of gets of caching variables served from the cache
+   * 
+   * @return number of cache hits
+   */
+  public long getNumberOfCacheHits()
+  {
+    return mNumberOfCacheHits.get();
+  }
+
+  /**
+   * Returns the number of gets of caching variables that had to read the
+   * device
+   * 
+   * @return number of cache misses
+   */
+  public long getNumberOfCacheMisses()
+  {
+    return mNumberOfCacheMisses.get();
+  }
+
+  /**
+   * Returns the fraction of gets of caching variables served from the cache
+   * 
+   * @return cache hit rate within [0,1]
+   */
+  public double getCacheHitRate()
+  {
+    final long lHits = getNumberOfCacheHits();
+    final long lTotal = lHits + getNumberOfCacheMisses();
+    return lTotal == 0 ? 0 : ((double) lHits) / lTotal;
+  }
+
+  /**
+   * Returns the fraction of time during which the serial bus was busy with
+   * commands, since the device was opened or the statistics last cleared.
+   * 
+   * @return bus utilization within [0,1]
+   */
+  public double getBusUtilization()
+  {
+    return mCommandEngine.getBusUtilization();
+  }
+
   public void removeAllVariables()
   {
     mVariableBundle.removeAllListeners();
     mVariableBundle.removeAllVariables();
+    mCachedVariableList.clear();
   }
 
   public <O> Variable<O> addSerialVariable(final String pVariableName,
                                            final SerialBinaryDeviceAdapter<O> pSerialBinaryDevice)
   {
+    final SerialVariableCache<O> lCache =
+                                        newCache(pVariableName,
+                                                 pSerialBinaryDevice);
     final Variable<O> lObjectVariable = new Variable<O>(pVariableName)
     {
 
@@ -70,43 +209,15 @@ public class SerialDevice extends VirtualDevice
       {
         try
         {
-          final byte[] cGetValueCommand =
-                                        pSerialBinaryDevice.getGetValueCommandMessage();
-
-          if (cGetValueCommand != null)
-          {
-            synchronized (mDeviceLock)
-            {
-              getSerial().setBinaryMode(true);
-              getSerial().setMessageLength(pSerialBinaryDevice.getGetValueReturnMessageLength());
-              getSerial().write(cGetValueCommand);
-              sleep(pSerialBinaryDevice.getGetValueReturnWaitTimeInMilliseconds());
-              if (pSerialBinaryDevice.hasResponseForGet()
-                  && pSerialBinaryDevice.getGetValueReturnMessageLength() > 0)
-              {
-                final byte[] lAnswerMessage =
-                                            getSerial().readBinaryMessage();
-
-                if (pSerialBinaryDevice.purgeAfterGet())
-                {
-                  mSerial.purge();
-                }
-
-                final O lParsedValue =
-                                     pSerialBinaryDevice.parseValue(lAnswerMessage);
-                if (lParsedValue != null)
-                  return super.getEventHook(lParsedValue);
-                else
-                  return super.getEventHook(pCurrentValue);
-              }
-
-            }
-          }
+          final O lValue = readValue(getName(),
+                                     pSerialBinaryDevice,
+                                     lCache);
+          if (lValue != null)
+            return super.getEventHook(lValue);
         }
-        catch (final SerialPortException e)
+        catch (final SerialException e)
         {
           // TODO handle error
-          return super.getEventHook(pCurrentValue);
         }
         return super.getEventHook(pCurrentValue);
       }
@@ -123,35 +234,36 @@ public class SerialDevice extends VirtualDevice
                                                                                              pNewValue);
           if (lSetValueCommandMessage != null)
           {
-            synchronized (mDeviceLock)
+            final boolean lHasResponse =
+                                       pSerialBinaryDevice.hasResponseForSet()
+                                         && pSerialBinaryDevice.getSetValueReturnMessageLength() > 0;
+            final SerialCommand lCommand =
+                                         newCommand(getName(),
+                                                    lSetValueCommandMessage,
+                                                    lHasResponse,
+                                                    null,
+                                                    pSerialBinaryDevice.getSetValueReturnMessageLength(),
+                                                    pSerialBinaryDevice.getSetValueReturnWaitTimeInMilliseconds(),
+                                                    pSerialBinaryDevice.purgeAfterSet());
+
+            final byte[] lAnswerMessage =
+                                        mCommandEngine.execute(lCommand);
+            if (lHasResponse)
             {
-              getSerial().setBinaryMode(true);
-              getSerial().setMessageLength(pSerialBinaryDevice.getSetValueReturnMessageLength());
-              getSerial().write(lSetValueCommandMessage);
-              sleep(pSerialBinaryDevice.getSetValueReturnWaitTimeInMilliseconds());
-              if (pSerialBinaryDevice.hasResponseForSet()
-                  && pSerialBinaryDevice.getSetValueReturnMessageLength() > 0)
-              {
-                final byte[] lAnswerMessage =
-                                            getSerial().readBinaryMessage();
-                if (lAnswerMessage != null)
-                {
-                  pSerialBinaryDevice.checkAcknowledgementSetValueReturnMessage(lAnswerMessage);
-                }
-              }
-
-              if (pSerialBinaryDevice.purgeAfterSet())
-              {
-                mSerial.purge();
-              }
+              pSerialBinaryDevice.checkAcknowledgementSetValueReturnMessage(lAnswerMessage);
             }
           }
         }
-        catch (final SerialPortException e)
+        catch (final SerialException e)
         {
           // TODO handle error
           return super.setEventHook(pOldValue, pNewValue);
         }
+        finally
+        {
+          // even a failed set might have changed the device's value:
+          lCache.invalidate();
+        }
         return super.setEventHook(pOldValue, pNewValue);
       }
 
@@ -164,6 +276,9 @@ public class SerialDevice extends VirtualDevice
   public <O> Variable<O> addSerialVariable(final String pVariableName,
                                            final SerialTextDeviceAdapter<O> pSerialTextDeviceAdapter)
   {
+    final SerialVariableCache<O> lCache =
+                                        newCache(pVariableName,
+                                                 pSerialTextDeviceAdapter);
     final Variable<O> lObjectVariable = new Variable<O>(pVariableName)
     {
 
@@ -172,39 +287,18 @@ public class SerialDevice extends VirtualDevice
       {
         try
         {
-          final byte[] cGetValueCommand =
-                                        pSerialTextDeviceAdapter.getGetValueCommandMessage();
-
-          if (cGetValueCommand != null && getSerial().isConnected())
+          if (isConnected())
           {
-            synchronized (mDeviceLock)
-            {
-              getSerial().setBinaryMode(false);
-              getSerial().setLineTerminationCharacter(pSerialTextDeviceAdapter.getGetValueReturnMessageTerminationCharacter());
-              getSerial().write(cGetValueCommand);
-              sleep(pSerialTextDeviceAdapter.getGetValueReturnWaitTimeInMilliseconds());
-              if (pSerialTextDeviceAdapter.hasResponseForGet())
-              {
-                final byte[] lAnswerMessage =
-                                            getSerial().readTextMessage();
-
-                if (pSerialTextDeviceAdapter.purgeAfterGet())
-                {
-                  mSerial.purge();
-                }
-
-                final O lParsedValue =
-                                     pSerialTextDeviceAdapter.parseValue(lAnswerMessage);
-                if (lParsedValue != null)
-                  return super.getEventHook(lParsedValue);
-                else
-                  return super.getEventHook(pCurrentValue);
-              }
-
-            }
+            final O lValue = readValue(getName(),
+                                       pSerialTextDeviceAdapter,
+                                       lCache);
+            if (lValue != null)
+              return super.getEventHook(lValue);
+            else if (pSerialTextDeviceAdapter.hasResponseForGet())
+              return super.getEventHook(pCurrentValue);
           }
         }
-        catch (final SerialPortException e)
+        catch (final SerialException e)
         {
           // TODO handle error
           return pCurrentValue;
@@ -223,36 +317,37 @@ public class SerialDevice extends VirtualDevice
           final byte[] lSetValueCommandMessage =
                                                pSerialTextDeviceAdapter.getSetValueCommandMessage(pOldValue,
                                                                                                   pNewValue);
-          if (lSetValueCommandMessage != null
-              && getSerial().isConnected())
+          if (lSetValueCommandMessage != null && isConnected())
           {
-            synchronized (mDeviceLock)
+            final boolean lHasResponse =
+                                       pSerialTextDeviceAdapter.hasResponseForSet()
+                                         && pSerialTextDeviceAdapter.getSetValueReturnMessageTerminationCharacter() != null;
+            final SerialCommand lCommand =
+                                         newCommand(getName(),
+                                                    lSetValueCommandMessage,
+                                                    lHasResponse,
+                                                    pSerialTextDeviceAdapter.getSetValueReturnMessageTerminationCharacter(),
+                                                    0,
+                                                    pSerialTextDeviceAdapter.getSetValueReturnWaitTimeInMilliseconds(),
+                                                    pSerialTextDeviceAdapter.purgeAfterSet());
+
+            final byte[] lAnswerMessage =
+                                        mCommandEngine.execute(lCommand);
+            if (lHasResponse)
             {
-              getSerial().setBinaryMode(false);
-              getSerial().setLineTerminationCharacter(pSerialTextDeviceAdapter.getSetValueReturnMessageTerminationCharacter());
-              getSerial().write(lSetValueCommandMessage);
-              sleep(pSerialTextDeviceAdapter.getSetValueReturnWaitTimeInMilliseconds());
-              if (pSerialTextDeviceAdapter.hasResponseForSet())
-              {
-                final byte[] lAnswerMessage =
-                                            getSerial().readTextMessage();
-                if (lAnswerMessage != null)
-                {
-                  pSerialTextDeviceAdapter.checkAcknowledgementSetValueReturnMessage(lAnswerMessage);
-                }
-              }
-
-              if (pSerialTextDeviceAdapter.purgeAfterSet())
-              {
-                mSerial.purge();
-              }
+              pSerialTextDeviceAdapter.checkAcknowledgementSetValueReturnMessage(lAnswerMessage);
             }
           }
         }
-        catch (final SerialPortException e)
+        catch (final SerialException e)
         {
           // TODO handle error
         }
+        finally
+        {
+          // even a failed set might have changed the device's value:
+          lCache.invalidate();
+        }
         return super.setEventHook(pOldValue, pNewValue);
       }
 
@@ -262,6 +357,228 @@ public class SerialDevice extends VirtualDevice
     return lObjectVariable;
   }
 
+  private boolean isConnected()
+  {
+    // the command engine runs while the device is open:
+    return mCommandEngine.isRunning();
+  }
+
+  private <O> SerialVariableCache<O> newCache(String pVariableName,
+                                             SerialDeviceAdapter<O> pAdapter)
+  {
+    final SerialVariableCache<O> lCache =
+                                        new SerialVariableCache<>(pAdapter.getMaxStalenessInMilliseconds(),
+                                                                  TimeUnit.MILLISECONDS);
+    if (lCache.isEnabled())
+      mCachedVariableList.add(new CachedSerialVariable<O>(pVariableName,
+                                                          pAdapter,
+                                                          lCache));
+    return lCache;
+  }
+
+  private <O> O readValue(String pVariableName,
+                          SerialDeviceAdapter<O> pAdapter,
+                          SerialVariableCache<O> pCache) throws SerialException
+  {
+    if (!pCache.isEnabled())
+      return readValue(pVariableName, pAdapter);
+
+    O lValue = pCache.getIfFresh();
+    if (lValue != null)
+    {
+      mNumberOfCacheHits.incrementAndGet();
+      return lValue;
+    }
+
+    // concurrent gets of the same variable wait for a single read:
+    synchronized (pCache)
+    {
+      lValue = pCache.getIfFresh();
+      if (lValue != null)
+      {
+        mNumberOfCacheHits.incrementAndGet();
+        return lValue;
+      }
+      final SerialCommand lCommand = newGetCommand(pVariableName,
+                                                   pAdapter);
+      if (lCommand == null)
+        return null;
+      mNumberOfCacheMisses.incrementAndGet();
+
+      final long lGeneration = pCache.getGeneration();
+      final byte[] lAnswerMessage = mCommandEngine.execute(lCommand);
+      if (!lCommand.hasReply() || !pAdapter.hasResponseForGet())
+        return null;
+
+      lValue = pAdapter.parseValue(lAnswerMessage);
+      pCache.update(lValue, lGeneration);
+      return lValue;
+    }
+  }
+
+  private <O> O readValue(String pVariableName,
+                          SerialDeviceAdapter<O> pAdapter) throws SerialException
+  {
+    final SerialCommand lCommand = newGetCommand(pVariableName,
+                                                 pAdapter);
+    if (lCommand == null)
+      return null;
+
+    final byte[] lAnswerMessage = mCommandEngine.execute(lCommand);
+    if (!lCommand.hasReply() || !pAdapter.hasResponseForGet())
+      return null;
+
+    return pAdapter.parseValue(lAnswerMessage);
+  }
+
+  private static <O> SerialCommand newGetCommand(String pName,
+                                                 SerialDeviceAdapter<O> pAdapter)
+  {
+    final byte[] lGetValueCommand = pAdapter.getGetValueCommandMessage();
+    if (lGetValueCommand == null)
+      return null;
+
+    Character lTerminator = null;
+    int lLength = 0;
+    if (pAdapter instanceof SerialTextDeviceAdapter)
+      lTerminator =
+                  ((SerialTextDeviceAdapter<O>) pAdapter).getGetValueReturnMessageTerminationCharacter();
+    else if (pAdapter instanceof SerialBinaryDeviceAdapter)
+      lLength =
+              ((SerialBinaryDeviceAdapter<O>) pAdapter).getGetValueReturnMessageLength();
+
+    return newCommand(pName,
+                      lGetValueCommand,
+                      pAdapter.hasResponseForGet(),
+                      lTerminator,
+                      lLength,
+                      pAdapter.getGetValueReturnWaitTimeInMilliseconds(),
+                      pAdapter.purgeAfterGet());
+  }
+
+  private void startRefresher()
+  {
+    stopRefresher();
+    final long lPeriod = mRefreshPeriodInMilliseconds;
+    if (lPeriod > 0)
+      mRefreshFuture = scheduleAtFixedRate(this::refreshCachedValues,
+                                           lPeriod,
+                                           TimeUnit.MILLISECONDS);
+  }
+
+  private void stopRefresher()
+  {
+    final WaitingScheduledFuture<?> lRefreshFuture = mRefreshFuture;
+    if (lRefreshFuture != null)
+      lRefreshFuture.cancel(false);
+    mRefreshFuture = null;
+  }
+
+  /**
+   * Refreshes the cached values that are older than half their max staleness.
+   * All get commands are submitted at once, and are pipelined if the device
+   * allows it.
+   */
+  public void refreshCachedValues()
+  {
+    if (!mCommandEngine.isRunning())
+      return;
+
+    final ArrayList<CachedSerialVariable<?>> lRefreshingList =
+                                                            new ArrayList<>();
+    for (final CachedSerialVariable<?> lCachedVariable : mCachedVariableList)
+      if (lCachedVariable.submitRefresh())
+        lRefreshingList.add(lCachedVariable);
+
+    for (final CachedSerialVariable<?> lCachedVariable : lRefreshingList)
+      lCachedVariable.completeRefresh();
+  }
+
+  private final class CachedSerialVariable<O>
+  {
+    private final String mName;
+    private final SerialDeviceAdapter<O> mAdapter;
+    private final SerialVariableCache<O> mCache;
+
+    private long mRefreshGeneration;
+    private Future<byte[]> mRefreshReply;
+
+    CachedSerialVariable(String pName,
+                         SerialDeviceAdapter<O> pAdapter,
+                         SerialVariableCache<O> pCache)
+    {
+      mName = pName;
+      mAdapter = pAdapter;
+      mCache = pCache;
+    }
+
+    boolean submitRefresh()
+    {
+      if (mCache.getAge(TimeUnit.NANOSECONDS) < mCache.getMaxStaleness(TimeUnit.NANOSECONDS)
+                                                / 2)
+        return false;
+
+      final SerialCommand lCommand = newGetCommand(mName, mAdapter);
+      if (lCommand == null || !lCommand.hasReply())
+        return false;
+
+      mRefreshGeneration = mCache.getGeneration();
+      mRefreshReply = mCommandEngine.submit(lCommand);
+      return true;
+    }
+
+    void completeRefresh()
+    {
+      try
+      {
+        mCache.update(mAdapter.parseValue(mRefreshReply.get()),
+                      mRefreshGeneration);
+      }
+      catch (final ExecutionException e)
+      {
+        // failures are counted in the command statistics, the next get reads
+        // the device
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      catch (final RuntimeException e)
+      {
+        warning("Could not parse refreshed value of %s: %s", mName, e);
+      }
+      finally
+      {
+        mRefreshReply = null;
+      }
+    }
+  }
+
+  private static SerialCommand newCommand(String pName,
+                                          byte[] pMessage,
+                                          boolean pHasResponse,
+                                          Character pTerminator,
+                                          int pLength,
+                                          long pWaitTimeInMilliseconds,
+                                          boolean pPurge)
+  {
+    final SerialCommand lCommand = new SerialCommand(pName, pMessage);
+    if (pHasResponse && (pTerminator != null || pLength > 0))
+    {
+      // replies are framed, there is no need to wait:
+      lCommand.setReplyTerminator(pTerminator);
+      lCommand.setReplyLength(pLength);
+    }
+    else
+    {
+      // without reply, the device is given the time to process the command:
+      lCommand.setDelayAfterWrite(pWaitTimeInMilliseconds,
+                                  TimeUnit.MILLISECONDS);
+    }
+    lCommand.setPurgeAfterReply(pPurge);
+    return lCommand;
+  }
+
   protected void sleep(final long pSleepTimeInMilliseconds)
   {
     if (pSleepTimeInMilliseconds > 0)
@@ -291,8 +608,18 @@ public class SerialDevice extends VirtualDevice
   {
     try
     {
-      final boolean lConnected = getSerial().connect(mPortName);
-      getSerial().purge();
+      final boolean lConnected = mPortName == null
+                                 || getSerial().connect(mPortName);
+      if (mPortName != null)
+        getSerial().purge();
+      if (lConnected)
+      {
+        mCommandEngine.start();
+        mCommandEngine.clearStatistics();
+        mNumberOfCacheHits.set(0);
+        mNumberOfCacheMisses.set(0);
+        startRefresher();
+      }
       return lConnected;
     }
     catch (final SerialPortException e)
@@ -307,6 +634,12 @@ public class SerialDevice extends VirtualDevice
   {
     try
     {
+      stopRefresher();
+      if (mCommandEngine.isRunning())
+        info("Cache hit rate: %.1f%%, bus utilization: %.1f%%",
+             100 * getCacheHitRate(),
+             100 * getBusUtilization());
+      mCommandEngine.stop();
       getSerial().close();
       return true;
     }
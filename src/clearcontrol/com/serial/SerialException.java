@@ -8,4 +8,9 @@ public class SerialException extends Exception
     super(pString);
   }
 
+  public SerialException(final String pString, final Throwable pCause)
+  {
+    super(pString, pCause);
+  }
+
 }
@@ -0,0 +1,47 @@
+package clearcontrol.com.serial;
+
+import jssc.SerialPortException;
+
+/**
+ * Byte transport used by the serial command engine: a serial port, or any
+ * stand-in for one (for example a loopback device for testing).
+ *
+ * @author royer
+ */
+public interface SerialTransportInterface
+{
+
+  /**
+   * Writes bytes
+   *
+   * @param pBytes
+   *          bytes to write
+   * @throws SerialPortException
+   *           if the bytes could not be written
+   */
+  public void write(final byte[] pBytes) throws SerialPortException;
+
+  /**
+   * Reads the bytes that are available, waiting for at least one byte to be
+   * available for at most the given time out.
+   *
+   * @param pBuffer
+   *          buffer to read bytes into, from index 0
+   * @param pTimeOutInMilliseconds
+   *          time out in milliseconds
+   * @return number of bytes read, 0 if the time out elapsed
+   * @throws SerialPortException
+   *           if the bytes could not be read
+   */
+  public int read(byte[] pBuffer,
+                  int pTimeOutInMilliseconds) throws SerialPortException;
+
+  /**
+   * Discards all bytes received and not yet read, and all bytes not yet sent.
+   *
+   * @throws SerialPortException
+   *           if the transport could not be purged
+   */
+  public void purge() throws SerialPortException;
+
+}
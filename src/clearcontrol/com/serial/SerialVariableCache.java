@@ -0,0 +1,142 @@
+package clearcontrol.com.serial;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache for the value of a serial variable. A cached value is
+ * served as long as it is not older than the max staleness, a max staleness of
+ * zero disables caching. Setting the variable invalidates the cache: values
+ * read before the invalidation are then discarded, even if their reply arrives
+ * after it.
+ *
+ * @param <O>
+ *          value type
+ * @author royer
+ */
+public class SerialVariableCache<O>
+{
+  private final long mMaxStalenessInNanoseconds;
+  private volatile Entry<O> mEntry;
+  private volatile long mGeneration;
+
+  private static final class Entry<O>
+  {
+    final O mValue;
+    final long mTimeStampInNanoseconds;
+
+    Entry(O pValue, long pTimeStampInNanoseconds)
+    {
+      mValue = pValue;
+      mTimeStampInNanoseconds = pTimeStampInNanoseconds;
+    }
+  }
+
+  /**
+   * Instantiates a cache with a given max staleness
+   *
+   * @param pMaxStaleness
+   *          max staleness, 0 disables caching
+   * @param pTimeUnit
+   *          time unit
+   */
+  public SerialVariableCache(long pMaxStaleness, TimeUnit pTimeUnit)
+  {
+    super();
+    mMaxStalenessInNanoseconds = pTimeUnit.toNanos(Math.max(0,
+                                                            pMaxStaleness));
+  }
+
+  /**
+   * Returns true if caching is enabled (non zero max staleness)
+   *
+   * @return true if enabled
+   */
+  public boolean isEnabled()
+  {
+    return mMaxStalenessInNanoseconds > 0;
+  }
+
+  /**
+   * Returns the max staleness
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return max staleness
+   */
+  public long getMaxStaleness(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mMaxStalenessInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the cached value if it is not older than the max staleness, null
+   * otherwise.
+   *
+   * @return cached value or null
+   */
+  public O getIfFresh()
+  {
+    final Entry<O> lEntry = mEntry;
+    if (lEntry == null || System.nanoTime()
+                          - lEntry.mTimeStampInNanoseconds > mMaxStalenessInNanoseconds)
+      return null;
+    return lEntry.mValue;
+  }
+
+  /**
+   * Returns the age of the cached value, Long.MAX_VALUE if there is none.
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return age
+   */
+  public long getAge(TimeUnit pTimeUnit)
+  {
+    final Entry<O> lEntry = mEntry;
+    if (lEntry == null)
+      return Long.MAX_VALUE;
+    return pTimeUnit.convert(System.nanoTime()
+                             - lEntry.mTimeStampInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the current generation, to be passed to update() once a value read
+   * from the device is available.
+   *
+   * @return generation
+   */
+  public long getGeneration()
+  {
+    return mGeneration;
+  }
+
+  /**
+   * Updates the cached value with a value read from the device, unless the
+   * cache has been invalidated since the given generation was obtained.
+   *
+   * @param pValue
+   *          value read from the device
+   * @param pGeneration
+   *          generation obtained before the value was read
+   * @return true if the cached value was updated
+   */
+  public synchronized boolean update(O pValue, long pGeneration)
+  {
+    if (!isEnabled() || pValue == null || pGeneration != mGeneration)
+      return false;
+    mEntry = new Entry<O>(pValue, System.nanoTime());
+    return true;
+  }
+
+  /**
+   * Invalidates the cached value
+   */
+  public synchronized void invalidate()
+  {
+    mGeneration++;
+    mEntry = null;
+  }
+
+}
@@ -29,4 +29,17 @@ public interface SerialDeviceAdapter<O>
 
   public boolean purgeAfterSet();
 
+  // CACHE RELATED:
+
+  /**
+   * Returns for how long a value read from the device can be returned without
+   * reading it again. Zero, the default, reads the device on every get.
+   * 
+   * @return max staleness in milliseconds
+   */
+  public default long getMaxStalenessInMilliseconds()
+  {
+    return 0;
+  }
+
 }
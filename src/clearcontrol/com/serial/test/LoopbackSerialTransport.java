@@ -0,0 +1,185 @@
+package clearcontrol.com.serial.test;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.com.serial.SerialTransportInterface;
+
+/**
+ * Loopback stand-in for a serial device: each message written is sent back
+ * after a given latency. Messages are processed concurrently, as a device that
+ * buffers commands would.
+ *
+ * @author royer
+ */
+public class LoopbackSerialTransport implements SerialTransportInterface
+{
+  private final ScheduledExecutorService mScheduler =
+                                                    Executors.newSingleThreadScheduledExecutor();
+  private final long mLatencyInMilliseconds;
+  private volatile boolean mMute;
+  private volatile RuntimeException mWriteFailure;
+  private byte[] mBuffer = new byte[0];
+
+  private int mNumberOfWrites;
+  private int mNumberOfPendingWrites;
+  private int mMaxNumberOfPendingWrites;
+
+  /**
+   * Instantiates a loopback transport with a given latency
+   *
+   * @param pLatencyInMilliseconds
+   *          latency in milliseconds
+   */
+  public LoopbackSerialTransport(long pLatencyInMilliseconds)
+  {
+    mLatencyInMilliseconds = pLatencyInMilliseconds;
+  }
+
+  @Override
+  public void write(byte[] pBytes)
+  {
+    if (mWriteFailure != null)
+      throw mWriteFailure;
+    if (mMute)
+      return;
+    final byte[] lBytes = pBytes.clone();
+    synchronized (this)
+    {
+      mNumberOfWrites++;
+      mNumberOfPendingWrites++;
+      mMaxNumberOfPendingWrites = Math.max(mMaxNumberOfPendingWrites,
+                                           mNumberOfPendingWrites);
+      notifyAll();
+    }
+    mScheduler.schedule(() -> {
+      synchronized (this)
+      {
+        mNumberOfPendingWrites--;
+        final int lLength = mBuffer.length;
+        mBuffer = Arrays.copyOf(mBuffer, lLength + lBytes.length);
+        System.arraycopy(lBytes, 0, mBuffer, lLength, lBytes.length);
+        notifyAll();
+      }
+    }, mLatencyInMilliseconds, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized int read(byte[] pBuffer, int pTimeOutInMilliseconds)
+  {
+    final long lDeadline = System.currentTimeMillis()
+                           + pTimeOutInMilliseconds;
+    long lRemaining;
+    while (mBuffer.length == 0
+           && (lRemaining = lDeadline - System.currentTimeMillis()) > 0)
+    {
+      try
+      {
+        wait(lRemaining);
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return 0;
+      }
+    }
+
+    final int lLength = Math.min(mBuffer.length, pBuffer.length);
+    System.arraycopy(mBuffer, 0, pBuffer, 0, lLength);
+    mBuffer = Arrays.copyOfRange(mBuffer, lLength, mBuffer.length);
+    return lLength;
+  }
+
+  @Override
+  public synchronized void purge()
+  {
+    mBuffer = new byte[0];
+  }
+
+  /**
+   * Mutes this transport: messages written are lost
+   *
+   * @param pMute
+   *          true to mute
+   */
+  public void setMute(boolean pMute)
+  {
+    mMute = pMute;
+  }
+
+  /**
+   * Sets an unexpected failure to be thrown by all subsequent writes, null for
+   * none
+   *
+   * @param pWriteFailure
+   *          write failure or null
+   */
+  public void setWriteFailure(RuntimeException pWriteFailure)
+  {
+    mWriteFailure = pWriteFailure;
+  }
+
+  /**
+   * Returns the number of messages written
+   *
+   * @return number of writes
+   */
+  public synchronized int getNumberOfWrites()
+  {
+    return mNumberOfWrites;
+  }
+
+  /**
+   * Waits until a given number of messages has been written, or a time out
+   * elapses
+   *
+   * @param pNumberOfWrites
+   *          number of writes to wait for
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time unit
+   * @return true if the number of writes has been reached
+   */
+  public synchronized boolean waitForNumberOfWrites(int pNumberOfWrites,
+                                                    long pTimeOut,
+                                                    TimeUnit pTimeUnit)
+  {
+    final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+    long lRemaining;
+    while (mNumberOfWrites < pNumberOfWrites
+           && (lRemaining = lDeadline - System.nanoTime()) > 0)
+    {
+      try
+      {
+        TimeUnit.NANOSECONDS.timedWait(this, lRemaining);
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return mNumberOfWrites >= pNumberOfWrites;
+  }
+
+  /**
+   * Returns the max number of messages written and not yet sent back
+   *
+   * @return max number of pending writes
+   */
+  public synchronized int getMaxNumberOfPendingWrites()
+  {
+    return mMaxNumberOfPendingWrites;
+  }
+
+  /**
+   * Stops sending messages back
+   */
+  public void close()
+  {
+    mScheduler.shutdownNow();
+  }
+}
@@ -0,0 +1,253 @@
+package clearcontrol.com.serial.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import clearcontrol.com.serial.SerialCommand;
+import clearcontrol.com.serial.SerialCommandEngine;
+import clearcontrol.com.serial.SerialCommandStatistics;
+import clearcontrol.com.serial.SerialException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Serial command engine tests, against a loopback stand-in for a serial device
+ *
+ * @author royer
+ */
+public class SerialCommandEngineTests
+{
+
+  private LoopbackSerialTransport mTransport;
+  private SerialCommandEngine mEngine;
+
+  @Before
+  public void setUp()
+  {
+    mTransport = new LoopbackSerialTransport(10);
+    mEngine = new SerialCommandEngine(mTransport);
+    mEngine.start();
+  }
+
+  @After
+  public void tearDown()
+  {
+    mEngine.stop();
+    mTransport.close();
+  }
+
+  private static SerialCommand newTextCommand(String pName,
+                                              String pText)
+  {
+    final SerialCommand lCommand = new SerialCommand(pName,
+                                                     (pText + "\r").getBytes());
+    lCommand.setReplyTerminator('\r');
+    return lCommand;
+  }
+
+  @Test
+  public void testTerminatorFraming() throws SerialException
+  {
+    final byte[] lReply =
+                        mEngine.execute(newTextCommand("text", "hello"));
+    assertEquals("hello", new String(lReply));
+  }
+
+  @Test
+  public void testLengthFraming() throws SerialException
+  {
+    final byte[] lMessage = new byte[]
+    { 1, 2, 3, 4, 5 };
+    final SerialCommand lCommand = new SerialCommand("binary",
+                                                     lMessage);
+    lCommand.setReplyLength(lMessage.length);
+
+    assertArrayEquals(lMessage, mEngine.execute(lCommand));
+  }
+
+  @Test
+  public void testCommandWithoutReply() throws SerialException
+  {
+    final SerialCommand lCommand = new SerialCommand("noreply",
+                                                     "x".getBytes());
+    lCommand.setDelayAfterWrite(30, TimeUnit.MILLISECONDS);
+
+    final long lStart = System.nanoTime();
+    assertEquals(0, mEngine.execute(lCommand).length);
+    final long lElapsed = System.nanoTime() - lStart;
+    assertTrue(lElapsed >= TimeUnit.MILLISECONDS.toNanos(30));
+
+    // the loopback reply is not framed, it is purged before the next command:
+    mTransport.purge();
+    assertEquals("after",
+                 new String(mEngine.execute(newTextCommand("text",
+                                                           "after"))));
+  }
+
+  @Test
+  public void testPipelining() throws Exception
+  {
+    final int lNumberOfCommands = 20;
+
+    final long lSerialTime = runCommands(lNumberOfCommands);
+
+    mEngine.setMaxNumberOfOutstandingCommands(lNumberOfCommands);
+    final long lPipelinedTime = runCommands(lNumberOfCommands);
+
+    assertTrue(lSerialTime >= TimeUnit.MILLISECONDS.toNanos(10
+                                                            * lNumberOfCommands));
+    assertTrue(lPipelinedTime < lSerialTime / 2);
+  }
+
+  private long runCommands(int pNumberOfCommands) throws Exception
+  {
+    final long lStart = System.nanoTime();
+    final ArrayList<Future<byte[]>> lReplies = new ArrayList<>();
+    for (int i = 0; i < pNumberOfCommands; i++)
+      lReplies.add(mEngine.submit(newTextCommand("text", "command" + i)));
+
+    for (int i = 0; i < pNumberOfCommands; i++)
+      assertEquals("command" + i, new String(lReplies.get(i).get()));
+    return System.nanoTime() - lStart;
+  }
+
+  @Test
+  public void testTimeOutAndRecovery() throws SerialException
+  {
+    mTransport.setMute(true);
+    final SerialCommand lCommand = newTextCommand("timeout", "lost");
+    lCommand.setTimeOut(50, TimeUnit.MILLISECONDS);
+    try
+    {
+      mEngine.execute(lCommand);
+      fail();
+    }
+    catch (final SerialException e)
+    {
+      // expected
+    }
+
+    mTransport.setMute(false);
+    assertEquals("found",
+                 new String(mEngine.execute(newTextCommand("text",
+                                                           "found"))));
+
+    assertEquals(1, mEngine.getStatistics("timeout")
+                           .getNumberOfFailures());
+  }
+
+  @Test
+  public void testStatistics() throws SerialException
+  {
+    for (int i = 0; i < 5; i++)
+      mEngine.execute(newTextCommand("text", "" + i));
+
+    final SerialCommandStatistics lStatistics =
+                                              mEngine.getStatistics("text");
+    assertEquals(5, lStatistics.getNumberOfCommands());
+    assertEquals(0, lStatistics.getNumberOfFailures());
+    assertTrue(lStatistics.getMinRoundTripTime(TimeUnit.MILLISECONDS) >= 10);
+    assertTrue(lStatistics.getAverageLatency(TimeUnit.NANOSECONDS) >= lStatistics.getAverageRoundTripTime(TimeUnit.NANOSECONDS));
+  }
+
+  @Test
+  public void testBusUtilization() throws SerialException
+  {
+    // without commands the bus is idle:
+    mEngine.clearStatistics();
+    assertEquals(0, mEngine.getBusUtilization(), 0);
+
+    for (int i = 0; i < 5; i++)
+      mEngine.execute(newTextCommand("text", "" + i));
+    final double lBusyUtilization = mEngine.getBusUtilization();
+    assertTrue(lBusyUtilization > 0 && lBusyUtilization <= 1);
+  }
+
+  @Test
+  public void testLateReplyIsDiscarded() throws SerialException
+  {
+    final SerialCommand lCommand = newTextCommand("timeout", "late");
+    lCommand.setTimeOut(2, TimeUnit.MILLISECONDS);
+    try
+    {
+      mEngine.execute(lCommand);
+      fail();
+    }
+    catch (final SerialException e)
+    {
+      // expected
+    }
+
+    // the late reply is not taken for the reply of the next command:
+    assertEquals("next",
+                 new String(mEngine.execute(newTextCommand("text",
+                                                           "next"))));
+    assertEquals("late\r".length(), mEngine.getNumberOfDiscardedBytes());
+  }
+
+  @Test
+  public void testStoppedEngine()
+  {
+    mEngine.stop();
+    try
+    {
+      mEngine.execute(newTextCommand("text", "stopped"));
+      fail();
+    }
+    catch (final SerialException e)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFailedIOLoop() throws InterruptedException
+  {
+    mTransport.setWriteFailure(new IllegalStateException("unexpected"));
+
+    final ArrayList<Future<byte[]>> lFutures = new ArrayList<>();
+    for (int i = 0; i < 8; i++)
+      lFutures.add(mEngine.submit(newTextCommand("text", "" + i)));
+
+    // no command is left hanging:
+    for (Future<byte[]> lFuture : lFutures)
+    {
+      try
+      {
+        lFuture.get(1, TimeUnit.SECONDS);
+        fail();
+      }
+      catch (final ExecutionException e)
+      {
+        assertTrue(e.getCause() instanceof SerialException);
+      }
+      catch (final TimeoutException e)
+      {
+        fail();
+      }
+    }
+
+    assertFalse(mEngine.isRunning());
+    try
+    {
+      mEngine.execute(newTextCommand("text", "stopped"));
+      fail();
+    }
+    catch (final SerialException e)
+    {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,221 @@
+package clearcontrol.com.serial.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.com.serial.SerialDevice;
+import clearcontrol.com.serial.adapters.SerialDeviceAdapterAdapter;
+import clearcontrol.com.serial.adapters.SerialTextDeviceAdapter;
+import clearcontrol.core.variable.Variable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Serial device tests, against a loopback stand-in for a serial device
+ *
+ * @author royer
+ */
+public class SerialDeviceTests
+{
+
+  /**
+   * Adapter for a value held by the loopback device: the get command carries
+   * the value, which the device sends back.
+   */
+  private static class ValueAdapter extends
+                                    SerialDeviceAdapterAdapter<Integer>
+                                    implements
+                                    SerialTextDeviceAdapter<Integer>
+  {
+    private final long mMaxStalenessInMilliseconds;
+    private volatile int mValue;
+    private volatile boolean mFailSet;
+
+    public ValueAdapter(long pMaxStalenessInMilliseconds)
+    {
+      mMaxStalenessInMilliseconds = pMaxStalenessInMilliseconds;
+    }
+
+    @Override
+    public byte[] getGetValueCommandMessage()
+    {
+      return (mValue + "\r").getBytes();
+    }
+
+    @Override
+    public Integer parseValue(byte[] pMessage)
+    {
+      return Integer.parseInt(new String(pMessage).trim());
+    }
+
+    @Override
+    public boolean hasResponseForGet()
+    {
+      return true;
+    }
+
+    @Override
+    public byte[] getSetValueCommandMessage(Integer pOldValue,
+                                            Integer pNewValue)
+    {
+      mValue = pNewValue;
+      if (mFailSet)
+        throw new IllegalStateException("set failed");
+      return (pNewValue + "\r").getBytes();
+    }
+
+    @Override
+    public boolean hasResponseForSet()
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkAcknowledgementSetValueReturnMessage(byte[] pMessage)
+    {
+      return true;
+    }
+
+    @Override
+    public Character getGetValueReturnMessageTerminationCharacter()
+    {
+      return '\r';
+    }
+
+    @Override
+    public Character getSetValueReturnMessageTerminationCharacter()
+    {
+      return '\r';
+    }
+
+    @Override
+    public long getMaxStalenessInMilliseconds()
+    {
+      return mMaxStalenessInMilliseconds;
+    }
+  }
+
+  private LoopbackSerialTransport mTransport;
+  private SerialDevice mSerialDevice;
+
+  @Before
+  public void setUp()
+  {
+    mTransport = new LoopbackSerialTransport(10);
+    mSerialDevice = new SerialDevice("Test", mTransport);
+  }
+
+  @After
+  public void tearDown()
+  {
+    mSerialDevice.close();
+    mTransport.close();
+  }
+
+  @Test
+  public void testCacheHitsAndMisses()
+  {
+    final ValueAdapter lCachedAdapter = new ValueAdapter(60 * 1000);
+    final Variable<Integer> lCachedVariable =
+                                            mSerialDevice.addSerialVariable("Cached",
+                                                                            lCachedAdapter);
+    final ValueAdapter lAdapter = new ValueAdapter(0);
+    final Variable<Integer> lVariable =
+                                      mSerialDevice.addSerialVariable("NotCached",
+                                                                      lAdapter);
+    assertTrue(mSerialDevice.open());
+
+    lCachedAdapter.mValue = 1;
+    for (int i = 0; i < 5; i++)
+      assertEquals(1, lCachedVariable.get().intValue());
+    assertEquals(1, mTransport.getNumberOfWrites());
+    assertEquals(1, mSerialDevice.getNumberOfCacheMisses());
+    assertEquals(4, mSerialDevice.getNumberOfCacheHits());
+
+    // variables without staleness read the device every time, and are not
+    // counted:
+    lAdapter.mValue = 2;
+    for (int i = 0; i < 5; i++)
+      assertEquals(2, lVariable.get().intValue());
+    assertEquals(6, mTransport.getNumberOfWrites());
+    assertEquals(1, mSerialDevice.getNumberOfCacheMisses());
+    assertEquals(4, mSerialDevice.getNumberOfCacheHits());
+    assertEquals(0.8, mSerialDevice.getCacheHitRate(), 1e-9);
+  }
+
+  @Test
+  public void testInvalidationOnSet()
+  {
+    final ValueAdapter lAdapter = new ValueAdapter(60 * 1000);
+    final Variable<Integer> lVariable =
+                                      mSerialDevice.addSerialVariable("Cached",
+                                                                      lAdapter);
+    assertTrue(mSerialDevice.open());
+
+    lAdapter.mValue = 1;
+    assertEquals(1, lVariable.get().intValue());
+
+    // a change made behind the device's back is not seen while cached:
+    lAdapter.mValue = 2;
+    assertEquals(1, lVariable.get().intValue());
+
+    lVariable.set(3);
+    assertEquals(3, lVariable.get().intValue());
+
+    // a failed set also invalidates the cached value:
+    lAdapter.mFailSet = true;
+    try
+    {
+      lVariable.set(4);
+      fail();
+    }
+    catch (final IllegalStateException e)
+    {
+      // expected
+    }
+    lAdapter.mFailSet = false;
+    assertEquals(4, lVariable.get().intValue());
+  }
+
+  @Test
+  public void testRefresherBatching()
+  {
+    final int lNumberOfVariables = 5;
+    final ArrayList<Variable<Integer>> lVariables = new ArrayList<>();
+    for (int i = 0; i < lNumberOfVariables; i++)
+    {
+      final ValueAdapter lAdapter = new ValueAdapter(1000);
+      lAdapter.mValue = i;
+      lVariables.add(mSerialDevice.addSerialVariable("Cached" + i,
+                                                     lAdapter));
+    }
+    mSerialDevice.setMaxNumberOfOutstandingCommands(lNumberOfVariables);
+    assertTrue(mSerialDevice.open());
+
+    // get commands of all stale values are sent together:
+    mSerialDevice.refreshCachedValues();
+    assertEquals(lNumberOfVariables, mTransport.getNumberOfWrites());
+    assertTrue(mTransport.getMaxNumberOfPendingWrites() > 1);
+
+    // fresh values are not refreshed, and are served from the cache:
+    mSerialDevice.refreshCachedValues();
+    for (int i = 0; i < lNumberOfVariables; i++)
+      assertEquals(i, lVariables.get(i).get().intValue());
+    assertEquals(lNumberOfVariables, mTransport.getNumberOfWrites());
+    assertEquals(lNumberOfVariables,
+                 mSerialDevice.getNumberOfCacheHits());
+
+    // the background refresher keeps refreshing values:
+    mSerialDevice.setCacheRefreshPeriod(20, TimeUnit.MILLISECONDS);
+    assertTrue(mTransport.waitForNumberOfWrites(3 * lNumberOfVariables,
+                                                10,
+                                                TimeUnit.SECONDS));
+  }
+
+}
@@ -0,0 +1,72 @@
+package clearcontrol.com.serial.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.com.serial.SerialVariableCache;
+
+import org.junit.Test;
+
+/**
+ * Serial variable cache tests
+ *
+ * @author royer
+ */
+public class SerialVariableCacheTests
+{
+
+  @Test
+  public void testStaleness()
+  {
+    final SerialVariableCache<Double> lCache =
+                                             new SerialVariableCache<>(50,
+                                                                       TimeUnit.MILLISECONDS);
+    assertTrue(lCache.isEnabled());
+    assertNull(lCache.getIfFresh());
+
+    assertTrue(lCache.update(1.0, lCache.getGeneration()));
+    assertEquals(1.0, lCache.getIfFresh(), 0);
+
+    // the value is served until it gets stale, and not after:
+    final long lDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (lCache.getIfFresh() != null && System.nanoTime() < lDeadline)
+      Thread.yield();
+    assertNull(lCache.getIfFresh());
+    assertTrue(lCache.getAge(TimeUnit.MILLISECONDS) >= 50);
+  }
+
+  @Test
+  public void testInvalidation()
+  {
+    final SerialVariableCache<Double> lCache =
+                                             new SerialVariableCache<>(1,
+                                                                       TimeUnit.MINUTES);
+    lCache.update(1.0, lCache.getGeneration());
+
+    // a read started before a set must not overwrite the invalidation:
+    final long lGeneration = lCache.getGeneration();
+    lCache.invalidate();
+    assertNull(lCache.getIfFresh());
+    assertFalse(lCache.update(2.0, lGeneration));
+    assertNull(lCache.getIfFresh());
+
+    assertTrue(lCache.update(3.0, lCache.getGeneration()));
+    assertEquals(3.0, lCache.getIfFresh(), 0);
+  }
+
+  @Test
+  public void testDisabled()
+  {
+    final SerialVariableCache<Double> lCache =
+                                             new SerialVariableCache<>(0,
+                                                                       TimeUnit.MILLISECONDS);
+    assertFalse(lCache.isEnabled());
+    assertFalse(lCache.update(1.0, lCache.getGeneration()));
+    assertNull(lCache.getIfFresh());
+  }
+
+}
@@ -2,20 +2,28 @@ package clearcontrol.core.concurrent.asyncprocs;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
-import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.concurrent.timing.WaitingInterface;
+import clearcontrol.core.concurrent.timing.WaitingSignal;
 import clearcontrol.core.log.LoggingFeature;
 
 /**
  * Asynchronous processor base
  *
+ * Objects passed to the processor are queued and handed off to a dedicated
+ * dispatcher thread that processes them in order and sends the results to the
+ * receiver. The dispatcher is woken up only when objects are passed, there is
+ * no polling: an idle processor consumes no CPU. Waiting for the processor to
+ * be started, to finish, or to stop, is signaled on the processor's waiting
+ * signal instead of polling.
+ *
  * @param <I>
  *          input type
  * @param <O>
@@ -33,14 +41,16 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   private final String mName;
   private AsynchronousProcessorInterface<O, ?> mReceiver;
   private final BlockingQueue<I> mInputQueue;
-  private final AtomicReference<WaitingScheduledFuture<?>> mScheduledFuture =
-                                                                            new AtomicReference<>();
+  private final Dispatcher mDispatcher = new Dispatcher();
+  private final AtomicBoolean mIsStarted = new AtomicBoolean(false);
   private final AtomicBoolean mIsProcessing =
                                             new AtomicBoolean(false);
 
+  private final WaitingSignal mWaitingSignal = new WaitingSignal();
+
   /**
    * Instanciates a processor given a name and max input queue size.
-   * 
+   *
    * @param pName
    *          name
    * @param pMaxQueueSize
@@ -68,34 +78,9 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   {
     try
     {
-      final Runnable lRunnable = () -> {
-
-        try
-        {
-          final I lInput = mInputQueue.poll(1, TimeUnit.SECONDS);
-          if (lInput == null)
-          {
-            return;
-          }
-          mIsProcessing.set(true);
-          final O lOutput = process(lInput);
-          mIsProcessing.set(false);
-          if (lOutput != null)
-          {
-            send(lOutput);
-          }
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
-
-      };
-
-      mScheduledFuture.set(scheduleAtFixedRate(lRunnable,
-                                               1,
-                                               TimeUnit.NANOSECONDS));
-
+      mIsStarted.set(true);
+      signalStateChange();
+      dispatch();
       return true;
     }
     catch (final Throwable e)
@@ -114,30 +99,20 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   @Override
   public boolean stop(final long pTimeOut, TimeUnit pTimeUnit)
   {
-    try
-    {
-      final WaitingScheduledFuture<?> lWaitingScheduledFuture =
-                                                              mScheduledFuture.getAndSet(null);
-      if (lWaitingScheduledFuture != null)
-      {
-        lWaitingScheduledFuture.cancel(false);
-        lWaitingScheduledFuture.waitForCompletion(pTimeOut,
-                                                  pTimeUnit);
-      }
-      return true;
-    }
-    catch (final ExecutionException e)
-    {
-      throw new RuntimeException(e);
-    }
+    mIsStarted.set(false);
+    signalStateChange();
+    // the object currently being processed (if any) is finished, queued
+    // objects are kept for when the processor is restarted:
+    awaitState(pTimeOut, pTimeUnit, () -> !mIsProcessing.get());
+    return true;
   }
 
   @Override
   public boolean waitToFinish(final long pTimeOut, TimeUnit pTimeUnit)
   {
-    waitFor(pTimeOut,
-            pTimeUnit,
-            () -> !mIsProcessing.get() && mInputQueue.isEmpty());
+    awaitState(pTimeOut,
+               pTimeUnit,
+               () -> !mIsProcessing.get() && mInputQueue.isEmpty());
     return mInputQueue.isEmpty();
   }
 
@@ -146,31 +121,33 @@ public abstract class AsynchronousProcessorBase<I, O> implements
                             final long pTimeOut,
                             TimeUnit pTimeUnit)
   {
-    waitFor(pTimeOut,
-            pTimeUnit,
-            () -> mScheduledFuture.get() != null);
+    awaitState(pTimeOut, pTimeUnit, () -> mIsStarted.get());
     try
     {
       if (pObject == null)
         return false;
-      mInputQueue.offer(pObject, pTimeOut, pTimeUnit);
+      final boolean lPassed = mInputQueue.offer(pObject,
+                                                pTimeOut,
+                                                pTimeUnit);
+      dispatch();
+      return lPassed;
     }
     catch (final InterruptedException e)
     {
       return passOrWait(pObject, pTimeOut, pTimeUnit);
     }
-    return false;
   }
 
   @Override
   public boolean passOrWait(final I pObject)
   {
-    waitFor(() -> mScheduledFuture.get() != null);
+    awaitState(Long.MAX_VALUE, TimeUnit.DAYS, () -> mIsStarted.get());
     try
     {
       if (pObject == null)
         return false;
       mInputQueue.put(pObject);
+      dispatch();
       return true;
     }
     catch (final InterruptedException e)
@@ -183,13 +160,17 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   @Override
   public boolean passOrFail(final I pObject)
   {
-    if (mScheduledFuture.get() == null)
+    if (!mIsStarted.get())
     {
       return false;
     }
 
     if (pObject != null)
-      return mInputQueue.offer(pObject);
+    {
+      final boolean lPassed = mInputQueue.offer(pObject);
+      dispatch();
+      return lPassed;
+    }
     else
       return false;
   }
@@ -210,6 +191,83 @@ public abstract class AsynchronousProcessorBase<I, O> implements
     return mInputQueue;
   }
 
+  /**
+   * Returns true if this processor is started
+   *
+   * @return true if started
+   */
+  public boolean isStarted()
+  {
+    return mIsStarted.get();
+  }
+
+  @Override
+  public WaitingSignal getWaitingSignal()
+  {
+    return mWaitingSignal;
+  }
+
+  /**
+   * Wakes up all threads waiting for a change of this processor's state. Must
+   * be called by derived classes whenever a state they wait for (with
+   * awaitState or waitFor) changes.
+   */
+  protected void signalStateChange()
+  {
+    notifyWaiters();
+  }
+
+  /**
+   * Waits until a given state is reached or a timeout elapses. The state is
+   * re-evaluated each time signalStateChange() is called.
+   *
+   * @param pTimeOut
+   *          timeout
+   * @param pTimeUnit
+   *          timeout unit
+   * @param pState
+   *          state to wait for
+   * @return true if the state was reached, false if timeout
+   */
+  protected boolean awaitState(final long pTimeOut,
+                               final TimeUnit pTimeUnit,
+                               final BooleanSupplier pState)
+  {
+    return mWaitingSignal.await(pTimeOut,
+                                pTimeUnit,
+                                pState::getAsBoolean);
+  }
+
+  private void dispatch()
+  {
+    if (mIsStarted.get() && !mInputQueue.isEmpty()
+        && mIsProcessing.compareAndSet(false, true))
+    {
+      try
+      {
+        getDispatcherExecutor().execute(mDispatcher);
+      }
+      catch (final Throwable e)
+      {
+        mIsProcessing.set(false);
+        signalStateChange();
+        throw e;
+      }
+    }
+  }
+
+  private ThreadPoolExecutor getDispatcherExecutor()
+  {
+    // The dispatcher has its own executor, keyed by the dispatcher and not by
+    // this processor, so that derived classes can use the executor feature
+    // freely:
+    return ClearControlExecutors.getOrCreateThreadPoolExecutor(mDispatcher,
+                                                               Thread.NORM_PRIORITY,
+                                                               1,
+                                                               1,
+                                                               Integer.MAX_VALUE);
+  }
+
   @Override
   public int getInputQueueLength()
   {
@@ -232,4 +290,45 @@ public abstract class AsynchronousProcessorBase<I, O> implements
                          getInputQueueLength());
   }
 
+  /**
+   * Drains the input queue, at most one dispatcher runs at any time for a
+   * given processor.
+   */
+  private class Dispatcher implements Runnable
+  {
+    @Override
+    public void run()
+    {
+      try
+      {
+        I lInput;
+        while (mIsStarted.get()
+               && (lInput = mInputQueue.poll()) != null)
+        {
+          try
+          {
+            final O lOutput = process(lInput);
+            if (lOutput != null)
+            {
+              send(lOutput);
+            }
+          }
+          catch (final Throwable e)
+          {
+            e.printStackTrace();
+          }
+        }
+      }
+      finally
+      {
+        mIsProcessing.set(false);
+        signalStateChange();
+      }
+
+      // an object might have been passed after the last poll but before the
+      // processing flag was cleared:
+      dispatch();
+    }
+  }
+
 }
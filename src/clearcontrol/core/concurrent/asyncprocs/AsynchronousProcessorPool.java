@@ -1,9 +1,10 @@
 package clearcontrol.core.concurrent.asyncprocs;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
@@ -12,7 +13,10 @@ import clearcontrol.core.concurrent.executors.CompletingThreadPoolExecutor;
 import clearcontrol.core.log.LoggingFeature;
 
 /**
- * Asynchronous processor pool
+ * Asynchronous processor pool. Objects are processed concurrently by a pool of
+ * threads, results are sent to the receiver - from the thread that completes
+ * them - in the same order as the objects were received, and not in the order
+ * in which their processing completes.
  *
  * @param <I>
  *          input type
@@ -32,6 +36,15 @@ public class AsynchronousProcessorPool<I, O> extends
   private final ProcessorInterface<I, O> mProcessor;
   private CompletingThreadPoolExecutor mThreadPoolExecutor;
 
+  private final Semaphore mInFlightSlots;
+  private final AtomicInteger mNumberOfObjectsInFlight =
+                                                       new AtomicInteger();
+  private long mNextInputSequenceNumber = 0;
+  private volatile long mNextSequenceNumberToSend = 0;
+  private final ConcurrentHashMap<Long, Result<O>> mReorderBuffer =
+                                                                  new ConcurrentHashMap<>();
+  private final ReentrantLock mSendLock = new ReentrantLock();
+
   /**
    * Instanciates an asynchronous processor pool given a name, max input queue
    * size, thread pool size, and processor.
@@ -56,7 +69,11 @@ public class AsynchronousProcessorPool<I, O> extends
                                                                             Thread.NORM_PRIORITY,
                                                                             pThreadPoolSize,
                                                                             pThreadPoolSize,
-                                                                            pMaxQueueSize);
+                                                                            pMaxQueueSize
+                                                                                             + pThreadPoolSize);
+
+    // the executor's queue is large enough to never reject tasks:
+    mInFlightSlots = new Semaphore(pMaxQueueSize + pThreadPoolSize);
 
     mProcessor = pProcessor;
   }
@@ -82,38 +99,6 @@ public class AsynchronousProcessorPool<I, O> extends
          pProcessor);
   }
 
-  @Override
-  public boolean start()
-  {
-    final Runnable lRunnable = () -> {
-      try
-      {
-
-        @SuppressWarnings("unchecked")
-        final Future<O> lFuture =
-                                (Future<O>) mThreadPoolExecutor.getFutur(1,
-                                                                         TimeUnit.NANOSECONDS);
-        if (lFuture != null)
-        {
-          final O lResult = lFuture.get();
-          send(lResult);
-        }
-      }
-      catch (final InterruptedException e)
-      {
-        return;
-      }
-      catch (final ExecutionException e)
-      {
-        e.printStackTrace();
-      }
-    };
-
-    scheduleAtFixedRate(lRunnable, 1, TimeUnit.NANOSECONDS);
-
-    return super.start();
-  }
-
   @Override
   public boolean stop(final long pTimeOut, TimeUnit pTimeUnit)
   {
@@ -127,26 +112,98 @@ public class AsynchronousProcessorPool<I, O> extends
                              super.waitToFinish(pTimeOut, pTimeUnit);
     if (!lNoTimeOut)
       return false;
+    return awaitState(pTimeOut,
+                      pTimeUnit,
+                      () -> mNumberOfObjectsInFlight.get() == 0);
+  }
+
+  @Override
+  public final O process(final I pInput)
+  {
+    // Bounds the number of objects in flight, when all slots are taken the
+    // dispatcher blocks and the input queue fills up:
+    mInFlightSlots.acquireUninterruptibly();
+    mNumberOfObjectsInFlight.incrementAndGet();
+
+    // process() is only called from the dispatcher thread:
+    final long lSequenceNumber = mNextInputSequenceNumber++;
+
+    final Runnable lRunnable = () -> {
+      O lResult = null;
+      try
+      {
+        lResult = mProcessor.process(pInput);
+      }
+      catch (final Throwable e)
+      {
+        e.printStackTrace();
+      }
+      complete(lSequenceNumber, lResult);
+    };
+
     try
     {
-      return waitForCompletion(pTimeOut, pTimeUnit);
+      mThreadPoolExecutor.execute(lRunnable);
     }
-    catch (final ExecutionException e)
+    catch (final Throwable e)
     {
       e.printStackTrace();
-      return false;
+      complete(lSequenceNumber, null);
     }
+    return null;
+  }
 
+  private void complete(final long pSequenceNumber, final O pResult)
+  {
+    mReorderBuffer.put(pSequenceNumber, new Result<O>(pResult));
+
+    // Results are sent in the order in which the inputs were received. Only
+    // one thread sends at a time, the others just leave their result in the
+    // reorder buffer. After releasing the lock we check again in case a result
+    // was added while we were sending:
+    while (mReorderBuffer.containsKey(mNextSequenceNumberToSend))
+    {
+      if (!mSendLock.tryLock())
+        return;
+      try
+      {
+        Result<O> lResult;
+        while ((lResult =
+                        mReorderBuffer.remove(mNextSequenceNumberToSend)) != null)
+        {
+          mNextSequenceNumberToSend++;
+          try
+          {
+            if (lResult.mValue != null)
+              send(lResult.mValue);
+          }
+          catch (final Throwable e)
+          {
+            e.printStackTrace();
+          }
+          finally
+          {
+            mInFlightSlots.release();
+            mNumberOfObjectsInFlight.decrementAndGet();
+            signalStateChange();
+          }
+        }
+      }
+      finally
+      {
+        mSendLock.unlock();
+      }
+    }
   }
 
-  @Override
-  public final O process(final I pInput)
+  private static class Result<O>
   {
-    final Callable<O> lCallable = () -> {
-      return mProcessor.process(pInput);
-    };
-    mThreadPoolExecutor.submit(lCallable);
-    return null;
+    final O mValue;
+
+    Result(O pValue)
+    {
+      mValue = pValue;
+    }
   }
 
 }
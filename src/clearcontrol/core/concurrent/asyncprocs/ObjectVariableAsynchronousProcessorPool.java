@@ -61,21 +61,26 @@ public class ObjectVariableAsynchronousProcessorPool<I, O> extends
       }
     };
 
-    final AsynchronousProcessorBase<O, O> lConnector =
-                                                     new AsynchronousProcessorBase<O, O>("AsynchronousProcessorPool->OutputObjectVariable",
-                                                                                         pMaxQueueSize)
-                                                     {
+    // results are sent in order by the pool, they can be set directly without
+    // going through an intermediate processor:
+    connectToReceiver(new AsynchronousProcessorAdapter<O, O>()
+    {
+
+      @Override
+      public boolean passOrWait(final O pObject)
+      {
+        mOutputObjectVariable.set(pObject);
+        return true;
+      }
 
-                                                       @Override
-                                                       public O process(final O pInput)
-                                                       {
-                                                         mOutputObjectVariable.set(pInput);
-                                                         return null;
-                                                       }
-                                                     };
+      @Override
+      public boolean passOrFail(final O pObject)
+      {
+        mOutputObjectVariable.set(pObject);
+        return true;
+      }
 
-    lConnector.start();
-    connectToReceiver(lConnector);
+    });
 
   }
 
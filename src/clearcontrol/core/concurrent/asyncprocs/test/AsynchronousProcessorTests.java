@@ -1,11 +1,18 @@
 package clearcontrol.core.concurrent.asyncprocs.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
@@ -276,4 +283,109 @@ public class AsynchronousProcessorTests
     }
 
   }
+
+  /**
+   * Benchmarks the latency of a chain of processors, and the CPU consumed by
+   * the chain while idle.
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void benchmarkChainedProcessorsLatencyAndIdleCpu() throws InterruptedException
+  {
+    final int lNumberOfProcessors = 4;
+    final int lNumberOfObjects = 10000;
+
+    final SynchronousQueue<Long> lOutputQueue = new SynchronousQueue<>();
+
+    final ArrayList<AsynchronousProcessorInterface<Long, Long>> lProcessorList =
+                                                                           new ArrayList<>();
+    for (int i = 0; i < lNumberOfProcessors; i++)
+    {
+      final boolean lIsLast = i == lNumberOfProcessors - 1;
+      lProcessorList.add(new AsynchronousProcessorBase<Long, Long>("P"
+                                                                   + i,
+                                                                   10)
+      {
+        @Override
+        public Long process(final Long pInput)
+        {
+          if (lIsLast)
+            try
+            {
+              lOutputQueue.put(pInput);
+            }
+            catch (InterruptedException e)
+            {
+              Thread.currentThread().interrupt();
+            }
+          return pInput;
+        }
+      });
+    }
+
+    for (int i = 0; i < lNumberOfProcessors - 1; i++)
+      lProcessorList.get(i)
+                    .connectToReceiver(lProcessorList.get(i + 1));
+    final Set<Long> lThreadIds = getThreadIds();
+    for (AsynchronousProcessorInterface<Long, Long> lProcessor : lProcessorList)
+      assertTrue(lProcessor.start());
+
+    // latency: objects go through the chain one at a time:
+    long lTotalLatencyNanos = 0;
+    for (int i = 0; i < lNumberOfObjects; i++)
+    {
+      final long lStartNanos = System.nanoTime();
+      lProcessorList.get(0).passOrWait(lStartNanos);
+      final Long lOutput = lOutputQueue.poll(10, TimeUnit.SECONDS);
+      assertNotNull(lOutput);
+      lTotalLatencyNanos += System.nanoTime() - lStartNanos;
+    }
+    final double lAverageLatencyMicros = 1e-3 * lTotalLatencyNanos
+                                         / lNumberOfObjects;
+
+    // idle CPU: CPU time consumed by the chain's threads - the threads
+    // started since the chain was started - while nothing is passed:
+    final Set<Long> lChainThreadIds = getThreadIds();
+    lChainThreadIds.removeAll(lThreadIds);
+    assertTrue(lAverageLatencyMicros > 0);
+    assertFalse(lChainThreadIds.isEmpty());
+    final ThreadMXBean lThreadMXBean =
+                                     ManagementFactory.getThreadMXBean();
+    final long lIdleDurationMillis = 1000;
+    final long lCpuTimeBefore = getCpuTime(lThreadMXBean,
+                                           lChainThreadIds);
+    ThreadSleep.sleep(lIdleDurationMillis, TimeUnit.MILLISECONDS);
+    final long lCpuTimeAfter = getCpuTime(lThreadMXBean,
+                                          lChainThreadIds);
+    final double lIdleCpuMillis = 1e-6 * (lCpuTimeAfter
+                                          - lCpuTimeBefore);
+
+    for (AsynchronousProcessorInterface<Long, Long> lProcessor : lProcessorList)
+      assertTrue(lProcessor.stop(1, TimeUnit.SECONDS));
+
+    // an idle chain should not consume a significant amount of CPU:
+    assertTrue(lIdleCpuMillis < 0.1 * lIdleDurationMillis);
+  }
+
+  private static Set<Long> getThreadIds()
+  {
+    final HashSet<Long> lThreadIds = new HashSet<>();
+    for (final long lThreadId : ManagementFactory.getThreadMXBean()
+                                                 .getAllThreadIds())
+      lThreadIds.add(lThreadId);
+    return lThreadIds;
+  }
+
+  private static long getCpuTime(ThreadMXBean pThreadMXBean,
+                                 Set<Long> pThreadIds)
+  {
+    if (!pThreadMXBean.isThreadCpuTimeSupported())
+      return 0;
+    long lCpuTime = 0;
+    for (final long lThreadId : pThreadIds)
+      lCpuTime += Math.max(0, pThreadMXBean.getThreadCpuTime(lThreadId));
+    return lCpuTime;
+  }
 }
@@ -2,10 +2,12 @@ package clearcontrol.core.concurrent.executors;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Class managing executors via static methods
@@ -14,6 +16,11 @@ import java.util.concurrent.TimeUnit;
  */
 public class ClearControlExecutors
 {
+  private static final int cNumberOfHelperThreads =
+                                                  Math.max(1,
+                                                           Runtime.getRuntime()
+                                                                  .availableProcessors()
+                                                              - 1);
 
   private static ConcurrentHashMap<Object, CompletingThreadPoolExecutor> cThreadPoolExecutorMap =
                                                                                                 new ConcurrentHashMap<>(100);
@@ -181,6 +188,90 @@ public class ClearControlExecutors
     return lScheduledThreadPoolExecutor;
   }
 
+  /**
+   * Runs a task on the calling thread and on up to a given number of helper
+   * threads of the thread pool executor of a given key, and returns once all
+   * runs are done. The runs are expected to share the work, for example by
+   * taking work items from an atomic counter. The pool has one thread less than
+   * there are processors - the calling thread also works - and an unbounded
+   * queue. The first failure of a run is rethrown.
+   * 
+   * @param pObject
+   *          key of the thread pool executor
+   * @param pMaxNumberOfHelpers
+   *          max number of helper runs, typically the number of work items
+   *          minus one
+   * @param pTask
+   *          task to run
+   */
+  public static void runOnCallerAndHelpers(final Object pObject,
+                                           final int pMaxNumberOfHelpers,
+                                           final Runnable pTask)
+  {
+    final int lNumberOfHelpers = Math.min(cNumberOfHelperThreads,
+                                          pMaxNumberOfHelpers);
+    if (lNumberOfHelpers <= 0)
+    {
+      pTask.run();
+      return;
+    }
+
+    final CompletingThreadPoolExecutor lThreadPoolExecutor =
+                                                           getOrCreateThreadPoolExecutor(pObject,
+                                                                                         Thread.NORM_PRIORITY,
+                                                                                         cNumberOfHelperThreads,
+                                                                                         cNumberOfHelperThreads,
+                                                                                         Integer.MAX_VALUE);
+    final CountDownLatch lHelpersDoneLatch =
+                                           new CountDownLatch(lNumberOfHelpers);
+    final AtomicReference<Throwable> lFailure = new AtomicReference<>();
+    for (int i = 0; i < lNumberOfHelpers; i++)
+      lThreadPoolExecutor.execute(() -> {
+        try
+        {
+          pTask.run();
+        }
+        catch (final Throwable e)
+        {
+          lFailure.compareAndSet(null, e);
+        }
+        finally
+        {
+          lHelpersDoneLatch.countDown();
+        }
+      });
+
+    try
+    {
+      pTask.run();
+    }
+    finally
+    {
+      // helpers might still be working on shared buffers:
+      boolean lInterrupted = false;
+      while (true)
+        try
+        {
+          lHelpersDoneLatch.await();
+          break;
+        }
+        catch (final InterruptedException e)
+        {
+          lInterrupted = true;
+        }
+      if (lInterrupted)
+        Thread.currentThread().interrupt();
+    }
+
+    final Throwable lThrowable = lFailure.get();
+    if (lThrowable instanceof RuntimeException)
+      throw (RuntimeException) lThrowable;
+    if (lThrowable instanceof Error)
+      throw (Error) lThrowable;
+    if (lThrowable != null)
+      throw new RuntimeException(lThrowable);
+  }
+
   private static String getThreadName(final Object pObject)
   {
     String lName = pObject.getClass().getSimpleName();
@@ -3,15 +3,18 @@ package clearcontrol.core.concurrent.executors.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
 import clearcontrol.core.concurrent.thread.ThreadSleep;
 
@@ -187,4 +190,50 @@ public class ExecutorServiceTests
 
   }
 
+  /**
+   * Tests that work shared between the calling thread and helper threads is
+   * done exactly once, and that failures of helpers reach the calling thread
+   */
+  @Test
+  public void testRunOnCallerAndHelpers()
+  {
+    final int lNumberOfItems = 10000;
+    final AtomicIntegerArray lItems = new AtomicIntegerArray(lNumberOfItems);
+    final AtomicInteger lNextItem = new AtomicInteger();
+    ClearControlExecutors.runOnCallerAndHelpers(ExecutorServiceTests.class,
+                                                lNumberOfItems - 1,
+                                                () -> {
+                                                  int i;
+                                                  while ((i =
+                                                            lNextItem.getAndIncrement()) < lNumberOfItems)
+                                                    lItems.incrementAndGet(i);
+                                                });
+    for (int i = 0; i < lNumberOfItems; i++)
+      assertEquals(1, lItems.get(i));
+
+    // without helpers, the calling thread does all the work:
+    final Thread lCallingThread = Thread.currentThread();
+    ClearControlExecutors.runOnCallerAndHelpers(ExecutorServiceTests.class,
+                                                0,
+                                                () -> assertTrue(Thread.currentThread() == lCallingThread));
+
+    final AtomicInteger lNumberOfRuns = new AtomicInteger();
+    try
+    {
+      ClearControlExecutors.runOnCallerAndHelpers(ExecutorServiceTests.class,
+                                                  1,
+                                                  () -> {
+                                                    if (Thread.currentThread() != lCallingThread)
+                                                      throw new IllegalStateException("helper failure");
+                                                    lNumberOfRuns.incrementAndGet();
+                                                  });
+      fail();
+    }
+    catch (final IllegalStateException e)
+    {
+      assertEquals("helper failure", e.getMessage());
+    }
+    assertEquals(1, lNumberOfRuns.get());
+  }
+
 }
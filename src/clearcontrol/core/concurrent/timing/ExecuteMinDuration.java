@@ -4,7 +4,8 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Executes a runnable synchronously and ensures that the call lasts for a given
- * duration.
+ * duration. The remaining time is waited for precisely (park then spin), so
+ * that sub-millisecond durations are respected.
  *
  * @author royer
  */
@@ -27,6 +28,6 @@ public class ExecuteMinDuration
   {
     long lDeadlineTime = System.nanoTime() + pTimeUnit.toNanos(pTime);
     pRunnable.run();
-    WaitingInterface.waitForStatic(() -> System.nanoTime() >= lDeadlineTime);
+    WaitingSignal.parkUntil(lDeadlineTime);
   }
 }
@@ -2,18 +2,41 @@ package clearcontrol.core.concurrent.timing;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-
-import clearcontrol.core.concurrent.thread.ThreadSleep;
 
 /**
- *
+ * Waiting interface. Classes implementing this interface can wait for
+ * conditions on their state. Waiting threads are parked on the waiting signal
+ * of the object, and woken up as soon as notifyWaiters() is called, typically
+ * when the state changes. Conditions are also re-evaluated periodically (at
+ * most every millisecond) for state changes that are not notified.
  *
  * @author royer
  */
 public interface WaitingInterface
 {
 
+  /**
+   * Returns the waiting signal on which threads waiting on this object are
+   * parked. By default the signal is associated to this object by identity,
+   * classes can override this method to hold their own signal.
+   * 
+   * @return waiting signal
+   */
+  default public WaitingSignal getWaitingSignal()
+  {
+    return WaitingSignal.forObject(this);
+  }
+
+  /**
+   * Wakes up all threads waiting on this object so that they re-evaluate their
+   * condition. Call this method whenever state that waiters might depend on
+   * changes.
+   */
+  default public void notifyWaiters()
+  {
+    getWaitingSignal().signal();
+  }
+
   /**
    * Waits until call to Callable returns true.
    * 
@@ -41,10 +64,7 @@ public interface WaitingInterface
                                  TimeUnit pTimeUnit,
                                  Callable<Boolean> pCallable)
   {
-    synchronized (this)
-    {
-      return waitForStatic(pTimeOut, pTimeUnit, pCallable);
-    }
+    return getWaitingSignal().await(pTimeOut, pTimeUnit, pCallable);
   }
 
   /**
@@ -60,7 +80,8 @@ public interface WaitingInterface
   }
 
   /**
-   * Waits until call to Callable returns true. Static version.
+   * Waits until call to Callable returns true. Static version: there is no
+   * object to be notified on, the condition is re-evaluated periodically.
    * 
    * @param pTimeOut
    *          time out
@@ -74,23 +95,6 @@ public interface WaitingInterface
                                       TimeUnit pTimeUnit,
                                       Callable<Boolean> pCallable)
   {
-    try
-    {
-      AtomicLong lCounter = new AtomicLong();
-      long lTimeOutInMillis =
-                            pTimeUnit == null ? 0
-                                              : pTimeUnit.toMillis(pTimeOut);
-      while (!pCallable.call()
-             && (pTimeOut == null
-                 || lCounter.incrementAndGet() < lTimeOutInMillis))
-      {
-        ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
-      }
-      return pCallable.call();
-    }
-    catch (Exception e)
-    {
-      throw new RuntimeException(e);
-    }
+    return WaitingSignal.awaitUnsignaled(pTimeOut, pTimeUnit, pCallable);
   }
 }
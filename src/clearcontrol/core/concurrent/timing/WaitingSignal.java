@@ -0,0 +1,306 @@
+package clearcontrol.core.concurrent.timing;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waiting signal. Threads waiting for a condition register on a signal and are
+ * parked, threads changing the state the condition depends on signal it, which
+ * wakes up the waiters immediately so they re-evaluate their condition.
+ * Conditions that depend on state that is never signaled are still re-evaluated
+ * periodically, with a period growing from a few microseconds to at most one
+ * millisecond.
+ *
+ * This class also offers precise deadline waits: the thread is parked until
+ * shortly before the deadline, and then spins until the deadline is reached.
+ *
+ * @author royer
+ */
+public class WaitingSignal
+{
+  private static final long cMinRecheckPeriodInNanos =
+                                                     TimeUnit.MICROSECONDS.toNanos(10);
+  private static final long cMaxRecheckPeriodInNanos =
+                                                     TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long cSpinThresholdInNanos =
+                                                  TimeUnit.MICROSECONDS.toNanos(100);
+
+  private static final ConcurrentHashMap<IdentityWeakReference, WaitingSignal> cSignalMap =
+                                                                                         new ConcurrentHashMap<>();
+  private static final ReferenceQueue<Object> cReferenceQueue =
+                                                              new ReferenceQueue<>();
+
+  private final AtomicLong mVersion = new AtomicLong();
+  private final ConcurrentLinkedQueue<Thread> mWaitingThreads =
+                                                              new ConcurrentLinkedQueue<>();
+
+  /**
+   * Returns the waiting signal associated to a given object. The association
+   * is by identity and does not prevent the object from being garbage
+   * collected.
+   *
+   * @param pObject
+   *          object
+   * @return waiting signal for this object
+   */
+  public static WaitingSignal forObject(Object pObject)
+  {
+    expungeStaleEntries();
+
+    final WaitingSignal lWaitingSignal =
+                                       cSignalMap.get(new IdentityWeakReference(pObject,
+                                                                                null));
+    if (lWaitingSignal != null)
+      return lWaitingSignal;
+
+    return cSignalMap.computeIfAbsent(new IdentityWeakReference(pObject,
+                                                                cReferenceQueue),
+                                      (k) -> new WaitingSignal());
+  }
+
+  /**
+   * Instantiates a waiting signal
+   */
+  public WaitingSignal()
+  {
+    super();
+  }
+
+  /**
+   * Signals a state change: all threads waiting on this signal re-evaluate
+   * their condition.
+   */
+  public void signal()
+  {
+    mVersion.incrementAndGet();
+    if (mWaitingThreads.isEmpty())
+      return;
+    for (final Thread lThread : mWaitingThreads)
+      LockSupport.unpark(lThread);
+  }
+
+  /**
+   * Returns the number of signals sent so far
+   *
+   * @return number of signals
+   */
+  public long getNumberOfSignals()
+  {
+    return mVersion.get();
+  }
+
+  /**
+   * Waits until a condition is true or a timeout elapses. The condition is
+   * re-evaluated each time this signal is signaled, and periodically.
+   *
+   * @param pTimeOut
+   *          timeout, null for no timeout
+   * @param pTimeUnit
+   *          timeout unit, null means that the condition is evaluated once
+   * @param pCondition
+   *          condition to wait for
+   * @return last condition state
+   */
+  public Boolean await(Long pTimeOut,
+                       TimeUnit pTimeUnit,
+                       Callable<Boolean> pCondition)
+  {
+    final Thread lCurrentThread = Thread.currentThread();
+    mWaitingThreads.add(lCurrentThread);
+    try
+    {
+      return waitFor(this, pTimeOut, pTimeUnit, pCondition);
+    }
+    finally
+    {
+      mWaitingThreads.remove(lCurrentThread);
+    }
+  }
+
+  /**
+   * Waits until a signal is received or a deadline is reached, whichever comes
+   * first. The deadline is met precisely (see parkUntil).
+   *
+   * @param pDeadlineInNanos
+   *          deadline in nanoseconds (System.nanoTime() time base)
+   * @return true if the deadline has been reached, false if woken up before
+   */
+  public boolean awaitSignalOrDeadline(long pDeadlineInNanos)
+  {
+    final long lVersion = mVersion.get();
+    final Thread lCurrentThread = Thread.currentThread();
+    mWaitingThreads.add(lCurrentThread);
+    try
+    {
+      long lRemainingNanos;
+      while ((lRemainingNanos = pDeadlineInNanos
+                                - System.nanoTime()) > 0)
+      {
+        if (mVersion.get() != lVersion || lCurrentThread.isInterrupted())
+          return false;
+
+        if (lRemainingNanos > cSpinThresholdInNanos)
+          LockSupport.parkNanos(this,
+                                lRemainingNanos - cSpinThresholdInNanos);
+        else
+          Thread.yield();
+      }
+      return true;
+    }
+    finally
+    {
+      mWaitingThreads.remove(lCurrentThread);
+    }
+  }
+
+  /**
+   * Waits until a condition is true or a timeout elapses, without any signal:
+   * the condition is re-evaluated periodically.
+   *
+   * @param pTimeOut
+   *          timeout, null for no timeout
+   * @param pTimeUnit
+   *          timeout unit, null means that the condition is evaluated once
+   * @param pCondition
+   *          condition to wait for
+   * @return last condition state
+   */
+  public static Boolean awaitUnsignaled(Long pTimeOut,
+                                        TimeUnit pTimeUnit,
+                                        Callable<Boolean> pCondition)
+  {
+    return waitFor(null, pTimeOut, pTimeUnit, pCondition);
+  }
+
+  /**
+   * Parks the current thread until a given deadline. The thread is parked
+   * until shortly before the deadline and then spins, so that sub-millisecond
+   * deadlines are met precisely. Returns early if the thread is interrupted,
+   * the interrupt status is kept.
+   *
+   * @param pDeadlineInNanos
+   *          deadline in nanoseconds (System.nanoTime() time base)
+   * @return true if the deadline was reached, false if interrupted
+   */
+  public static boolean parkUntil(long pDeadlineInNanos)
+  {
+    long lRemainingNanos;
+    while ((lRemainingNanos = pDeadlineInNanos
+                              - System.nanoTime()) > 0)
+    {
+      if (Thread.currentThread().isInterrupted())
+        return false;
+
+      if (lRemainingNanos > cSpinThresholdInNanos)
+        LockSupport.parkNanos(lRemainingNanos - cSpinThresholdInNanos);
+      else
+        Thread.yield();
+    }
+    return true;
+  }
+
+  private static Boolean waitFor(Object pBlocker,
+                                 Long pTimeOut,
+                                 TimeUnit pTimeUnit,
+                                 Callable<Boolean> pCondition)
+  {
+    boolean lInterrupted = false;
+    try
+    {
+      if (pCondition.call())
+        return true;
+      if (pTimeOut != null && pTimeUnit == null)
+        return false;
+
+      final long lTimeOutInNanos =
+                                 pTimeOut == null ? Long.MAX_VALUE
+                                                  : pTimeUnit.toNanos(pTimeOut);
+      final long lStartTimeInNanos = System.nanoTime();
+
+      long lRecheckPeriodInNanos = cMinRecheckPeriodInNanos;
+      while (true)
+      {
+        final long lElapsedNanos = System.nanoTime() - lStartTimeInNanos;
+        if (lElapsedNanos >= lTimeOutInNanos)
+          return pCondition.call();
+
+        LockSupport.parkNanos(pBlocker,
+                              Math.min(lRecheckPeriodInNanos,
+                                       lTimeOutInNanos - lElapsedNanos));
+
+        // park returns immediately while the interrupt flag is set, the flag
+        // is cleared to avoid spinning and restored once done:
+        if (Thread.interrupted())
+          lInterrupted = true;
+
+        if (pCondition.call())
+          return true;
+
+        lRecheckPeriodInNanos = Math.min(2 * lRecheckPeriodInNanos,
+                                         cMaxRecheckPeriodInNanos);
+      }
+    }
+    catch (RuntimeException e)
+    {
+      throw e;
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      if (lInterrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void expungeStaleEntries()
+  {
+    Reference<?> lReference;
+    while ((lReference = cReferenceQueue.poll()) != null)
+      cSignalMap.remove(lReference);
+  }
+
+  /**
+   * Weak reference compared by referent identity
+   */
+  private static class IdentityWeakReference extends
+                                             WeakReference<Object>
+  {
+    private final int mHashCode;
+
+    IdentityWeakReference(Object pObject,
+                          ReferenceQueue<Object> pReferenceQueue)
+    {
+      super(pObject, pReferenceQueue);
+      mHashCode = System.identityHashCode(pObject);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object pObject)
+    {
+      if (pObject == this)
+        return true;
+      if (!(pObject instanceof IdentityWeakReference))
+        return false;
+      final Object lReferent = get();
+      return lReferent != null
+             && lReferent == ((IdentityWeakReference) pObject).get();
+    }
+  }
+
+}
@@ -1,6 +1,7 @@
 package clearcontrol.core.concurrent.timing.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.concurrent.TimeUnit;
 
@@ -58,4 +59,22 @@ public class ExecuteMinDurationTests
     }
   }
 
+  /**
+   * Tests sub-millisecond min durations
+   */
+  @Test
+  public void testSubMillisecond()
+  {
+    for (int i = 0; i < 100; i++)
+    {
+      final long lStartTime = System.nanoTime();
+      ExecuteMinDuration.execute(200, TimeUnit.MICROSECONDS, () -> {
+      });
+      final long lElapsedTimeInNanos = System.nanoTime() - lStartTime;
+      // the bound is generous for loaded machines:
+      assertTrue(lElapsedTimeInNanos >= TimeUnit.MICROSECONDS.toNanos(200));
+      assertTrue(lElapsedTimeInNanos < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+  }
+
 }
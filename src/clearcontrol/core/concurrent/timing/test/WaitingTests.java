@@ -3,8 +3,10 @@ package clearcontrol.core.concurrent.timing.test;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.concurrent.timing.WaitingInterface;
 
@@ -67,4 +69,95 @@ public class WaitingTests
     assertFalse(mDoneFlag.get());
 
   }
+
+  /**
+   * Tests that a waiting thread is woken up when notified, long before the
+   * periodic re-evaluation of its condition, and that unrelated waiters on the
+   * same object do not block each other.
+   * 
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testNotification() throws InterruptedException
+  {
+    final TestClass lTestClass = new TestClass();
+    final AtomicBoolean lFlagA = new AtomicBoolean(false);
+    final AtomicBoolean lFlagB = new AtomicBoolean(false);
+    final AtomicBoolean lDoneA = new AtomicBoolean(false);
+    final AtomicBoolean lDoneB = new AtomicBoolean(false);
+
+    final Thread lThreadA = new Thread(() -> {
+      lDoneA.set(lTestClass.waitFor(() -> lFlagA.get()));
+    });
+    final Thread lThreadB = new Thread(() -> {
+      lDoneB.set(lTestClass.waitFor(() -> lFlagB.get()));
+    });
+    lThreadA.start();
+    lThreadB.start();
+
+    Thread.sleep(50);
+    lFlagB.set(true);
+    lTestClass.notifyWaiters();
+    lThreadB.join(1000);
+    assertTrue(lDoneB.get());
+    assertFalse(lDoneA.get());
+
+    lFlagA.set(true);
+    lTestClass.notifyWaiters();
+    lThreadA.join(1000);
+    assertTrue(lDoneA.get());
+  }
+
+  /**
+   * Benchmarks the hand-off latency between a thread changing a flag and a
+   * thread waiting for it, with and without notification.
+   * 
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void benchmarkLatency() throws InterruptedException
+  {
+    final TestClass lTestClass = new TestClass();
+    final int lNumberOfHandOffs = 200;
+
+    for (final boolean lNotify : new boolean[]
+    { false, true })
+    {
+      final long[] lLatencies = new long[lNumberOfHandOffs];
+      for (int i = 0; i < lNumberOfHandOffs; i++)
+      {
+        final AtomicLong lSetTime = new AtomicLong();
+        final AtomicLong lWakeUpTime = new AtomicLong();
+
+        final Thread lWaiter = new Thread(() -> {
+          lTestClass.waitFor(() -> lSetTime.get() != 0);
+          lWakeUpTime.set(System.nanoTime());
+        });
+        lWaiter.start();
+
+        // lets the waiter reach its max re-evaluation period:
+        Thread.sleep(5);
+        lSetTime.set(System.nanoTime());
+        if (lNotify)
+          lTestClass.notifyWaiters();
+        lWaiter.join();
+
+        lLatencies[i] = lWakeUpTime.get() - lSetTime.get();
+      }
+
+      Arrays.sort(lLatencies);
+      final double lMedianLatencyInMicroseconds =
+                                                1e-3 * lLatencies[lNumberOfHandOffs
+                                                                  / 2];
+      System.out.format("%s: median hand-off latency: %.1f us \n",
+                        lNotify ? "notified" : "not notified",
+                        lMedianLatencyInMicroseconds);
+
+      // without notification the condition is re-evaluated at least every
+      // millisecond:
+      assertTrue(lMedianLatencyInMicroseconds < 5000);
+    }
+  }
 }
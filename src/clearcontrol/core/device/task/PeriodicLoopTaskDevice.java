@@ -2,7 +2,6 @@ package clearcontrol.core.device.task;
 
 import java.util.concurrent.TimeUnit;
 
-import clearcontrol.core.concurrent.thread.ThreadSleep;
 import clearcontrol.core.concurrent.timing.WaitingInterface;
 import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.bounded.BoundedVariable;
@@ -60,6 +59,8 @@ public abstract class PeriodicLoopTaskDevice extends TaskDevice
                                                       Double.POSITIVE_INFINITY,
                                                       0.0);
 
+    // wakes up the loop when waiting for the next period:
+    getStopSignalVariable().addSetListener((o, n) -> notifyWaiters());
   }
 
   /**
@@ -88,10 +89,10 @@ public abstract class PeriodicLoopTaskDevice extends TaskDevice
 
       if (lStopTime < mDeadline)
         while (System.nanoTime() < mDeadline
-               && getStopSignalVariable().get() == false)
+               && getStopSignalVariable().get() == false
+               && !Thread.currentThread().isInterrupted())
         {
-          ThreadSleep.sleep((mDeadline - System.nanoTime()) / 4,
-                            TimeUnit.NANOSECONDS);
+          getWaitingSignal().awaitSignalOrDeadline(mDeadline);
         }
 
       if (!lResult)
@@ -7,14 +7,13 @@ import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.log.LoggingFeature;
 
-import org.apache.commons.io.monitor.FileAlterationListener;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-import org.apache.commons.io.monitor.FileAlterationObserver;
-
 /**
  * File event notifier.
  * 
- * 
+ * Notifies listeners of the creation, modification and deletion of a file. All
+ * notifiers share the same file notification hub, which uses native file
+ * events when available, and otherwise polls the watched files with the given
+ * monitoring period as shortest period.
  *
  * @author royer
  */
@@ -26,12 +25,11 @@ public class FileEventNotifier implements
   private static final long cDefaultMonitoringPeriodInMilliseconds =
                                                                    300;
   private final File mFileToMonitor;
-  private final File mParentFolder;
-  private final FileAlterationObserver mFileAlterationObserver;
+  private final long mMonitoringPeriodInMilliseconds;
+  private final FileNotificationHub mFileNotificationHub;
 
   private final CopyOnWriteArrayList<FileEventNotifierListener> mListenerList =
                                                                               new CopyOnWriteArrayList<FileEventNotifierListener>();
-  private final FileAlterationMonitor mFileAlterationMonitor;
   private volatile boolean mIgnore = false;
 
   /**
@@ -74,74 +72,64 @@ public class FileEventNotifier implements
    * @param pFileToMonitor
    *          file to monitor
    * @param pMonitoringPeriod
-   *          monitoring period
+   *          monitoring period, used only if the file needs to be polled
    * @param pTimeUnit
    *          monitoring period time unit
    */
   public FileEventNotifier(final File pFileToMonitor,
                            final long pMonitoringPeriod,
                            final TimeUnit pTimeUnit)
+  {
+    this(pFileToMonitor,
+         pMonitoringPeriod,
+         pTimeUnit,
+         FileNotificationHub.getSingletonFileNotificationHub());
+  }
+
+  /**
+   * Instantiates a file event notifier for a given file, using a given file
+   * notification hub
+   * 
+   * @param pFileToMonitor
+   *          file to monitor
+   * @param pMonitoringPeriod
+   *          monitoring period, used only if the file needs to be polled
+   * @param pTimeUnit
+   *          monitoring period time unit
+   * @param pFileNotificationHub
+   *          file notification hub
+   */
+  public FileEventNotifier(final File pFileToMonitor,
+                           final long pMonitoringPeriod,
+                           final TimeUnit pTimeUnit,
+                           final FileNotificationHub pFileNotificationHub)
   {
     super();
     mFileToMonitor = pFileToMonitor;
-    mParentFolder = mFileToMonitor.getParentFile();
-
-    final FileEventNotifier lThis = this;
-
-    mFileAlterationObserver =
-                            new FileAlterationObserver(mParentFolder);
-    mFileAlterationObserver.addListener(new FileAlterationListener()
-    {
-
-      @Override
-      public void onStop(final FileAlterationObserver pObserver)
-      {
-      }
-
-      @Override
-      public void onStart(final FileAlterationObserver pObserver)
-      {
-      }
-
-      @Override
-      public void onFileDelete(final File pFile)
-      {
-        notifyFileEvent(lThis, pFile, FileEventKind.Deleted);
-      }
-
-      @Override
-      public void onFileCreate(final File pFile)
-      {
-        notifyFileEvent(lThis, pFile, FileEventKind.Created);
-      }
-
-      @Override
-      public void onFileChange(final File pFile)
-      {
-        notifyFileEvent(lThis, pFile, FileEventKind.Modified);
-      }
-
-      @Override
-      public void onDirectoryDelete(final File pDirectory)
-      {
-        notifyFileEvent(lThis, pDirectory, FileEventKind.Deleted);
-      }
-
-      @Override
-      public void onDirectoryCreate(final File pDirectory)
-      {
-      }
+    mMonitoringPeriodInMilliseconds =
+                                    TimeUnit.MILLISECONDS.convert(pMonitoringPeriod,
+                                                                  pTimeUnit);
+    mFileNotificationHub = pFileNotificationHub;
+  }
 
-      @Override
-      public void onDirectoryChange(final File pDirectory)
-      {
-      }
-    });
+  /**
+   * Returns the monitored file
+   * 
+   * @return monitored file
+   */
+  public File getFileToMonitor()
+  {
+    return mFileToMonitor;
+  }
 
-    mFileAlterationMonitor =
-                           new FileAlterationMonitor(TimeUnit.MILLISECONDS.convert(pMonitoringPeriod,
-                                                                                   pTimeUnit));
-    mFileAlterationMonitor.addObserver(mFileAlterationObserver);
+  /**
+   * Returns the monitoring period in milliseconds
+   * 
+   * @return monitoring period in milliseconds
+   */
+  public long getMonitoringPeriodInMilliseconds()
+  {
+    return mMonitoringPeriodInMilliseconds;
   }
 
   /**
@@ -205,7 +193,7 @@ public class FileEventNotifier implements
   {
     try
     {
-      mFileAlterationMonitor.start();
+      mFileNotificationHub.register(this);
       return true;
     }
     catch (Throwable e)
@@ -225,7 +213,7 @@ public class FileEventNotifier implements
   {
     try
     {
-      mFileAlterationMonitor.stop();
+      mFileNotificationHub.unregister(this);
       return true;
     }
     catch (Throwable e)
@@ -238,14 +226,7 @@ public class FileEventNotifier implements
   @Override
   public void close() throws IOException
   {
-    try
-    {
-      mFileAlterationObserver.destroy();
-      mFileAlterationMonitor.stop();
-    }
-    catch (final Throwable e)
-    {
-    }
+    stopMonitoring();
   }
 
   /**
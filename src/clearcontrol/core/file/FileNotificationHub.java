@@ -0,0 +1,678 @@
+package clearcontrol.core.file;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import clearcontrol.core.file.FileEventNotifier.FileEventKind;
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * File notification hub
+ *
+ * A single thread watches the files of all file event notifiers. Folders are
+ * watched with one shared java.nio WatchService, so that the cost of watching
+ * a file does not depend on the number of other files in its folder. Bursts of
+ * events concerning the same file - for example creation followed by several
+ * writes - are debounced into a single notification whose kind is derived by
+ * comparing the state of the file before and after the burst.
+ *
+ * Folders on file systems without native file events - network file systems,
+ * or platforms where the WatchService itself polls - are polled instead: only
+ * the watched files are checked, and the polling period doubles while nothing
+ * changes, up to a maximum, and goes back to its minimum after a change. The
+ * minimum is the smallest monitoring period of the notifiers watching files
+ * of the folder. A watched folder that is deleted is polled until it exists
+ * again, and then watched with native events again.
+ *
+ * @author royer
+ */
+public class FileNotificationHub implements AutoCloseable, LoggingFeature
+{
+  private static final long cDefaultDebounceTimeInMilliseconds = 50;
+  private static final long cMaxNotificationDelayInMilliseconds = 1000;
+  private static final long cMaxPollingPeriodInMilliseconds = 3000;
+  private static final long cIdleWaitTimeInMilliseconds = 1000;
+
+  private static final HashSet<String> cFileStoresWithoutNativeEvents =
+                                                                      new HashSet<>(Arrays.asList("nfs",
+                                                                                                  "nfs4",
+                                                                                                  "cifs",
+                                                                                                  "smb",
+                                                                                                  "smbfs",
+                                                                                                  "smb2",
+                                                                                                  "afpfs",
+                                                                                                  "webdav",
+                                                                                                  "davfs",
+                                                                                                  "fuse.sshfs"));
+
+  private static class SingletonHolder
+  {
+    private static final FileNotificationHub sFileNotificationHub =
+                                                                  new FileNotificationHub(true,
+                                                                                          cDefaultDebounceTimeInMilliseconds,
+                                                                                          TimeUnit.MILLISECONDS);
+  }
+
+  private final Object mLock = new Object();
+  private final WatchService mWatchService;
+  private final long mDebounceTimeInNanoseconds;
+  private final HashMap<Path, WatchedFolder> mWatchedFolders =
+                                                             new HashMap<>();
+  private final HashMap<WatchKey, WatchedFolder> mWatchKeyToFolderMap =
+                                                                      new HashMap<>();
+  private final Thread mThread;
+  private volatile boolean mStopped;
+
+  private final AtomicLong mNumberOfNativeEvents = new AtomicLong();
+  private final AtomicLong mNumberOfPolls = new AtomicLong();
+  private final AtomicLong mNumberOfNotifications = new AtomicLong();
+
+  private static class WatchedFolder
+  {
+    final Path mPath;
+    final HashMap<String, WatchedFile> mWatchedFiles = new HashMap<>();
+    WatchKey mWatchKey;
+    boolean mLostNativeEvents;
+    long mMinPollingPeriodInNanoseconds = Long.MAX_VALUE;
+    long mPollingPeriodInNanoseconds;
+    long mNextPollTime;
+
+    WatchedFolder(Path pPath)
+    {
+      mPath = pPath;
+    }
+  }
+
+  private static class WatchedFile
+  {
+    final Path mPath;
+    final CopyOnWriteArrayList<FileEventNotifier> mFileEventNotifiers =
+                                                                     new CopyOnWriteArrayList<>();
+    boolean mExists;
+    long mLastModified;
+    long mLength;
+
+    boolean mPending;
+    boolean mNativeEvent;
+    long mFirstEventTime;
+    long mLastEventTime;
+
+    WatchedFile(Path pPath)
+    {
+      mPath = pPath;
+    }
+  }
+
+  private static class Notification
+  {
+    final List<FileEventNotifier> mFileEventNotifiers;
+    final File mFile;
+    final FileEventKind mFileEventKind;
+
+    Notification(List<FileEventNotifier> pFileEventNotifiers,
+                 File pFile,
+                 FileEventKind pFileEventKind)
+    {
+      mFileEventNotifiers = pFileEventNotifiers;
+      mFile = pFile;
+      mFileEventKind = pFileEventKind;
+    }
+  }
+
+  /**
+   * Returns the hub shared by all file event notifiers
+   *
+   * @return singleton file notification hub
+   */
+  public static FileNotificationHub getSingletonFileNotificationHub()
+  {
+    return SingletonHolder.sFileNotificationHub;
+  }
+
+  /**
+   * Instantiates a file notification hub and starts its thread.
+   *
+   * @param pUseNativeEvents
+   *          true for using native file events when available, false for
+   *          always polling
+   * @param pDebounceTime
+   *          time during which events concerning a file are gathered into a
+   *          single notification
+   * @param pTimeUnit
+   *          debounce time unit
+   */
+  public FileNotificationHub(boolean pUseNativeEvents,
+                             long pDebounceTime,
+                             TimeUnit pTimeUnit)
+  {
+    super();
+    mDebounceTimeInNanoseconds = pTimeUnit.toNanos(pDebounceTime);
+
+    WatchService lWatchService = null;
+    if (pUseNativeEvents)
+      try
+      {
+        lWatchService = FileSystems.getDefault().newWatchService();
+        // some platforms provide a watch service that polls by itself:
+        if (lWatchService.getClass()
+                         .getSimpleName()
+                         .contains("Polling"))
+        {
+          lWatchService.close();
+          lWatchService = null;
+        }
+      }
+      catch (final Throwable e)
+      {
+        warning("No native file events available, falling back to polling: %s",
+                e);
+        lWatchService = null;
+      }
+    mWatchService = lWatchService;
+
+    mThread = new Thread(this::loop, "FileNotificationHub");
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  /**
+   * Starts watching the file of a given file event notifier
+   *
+   * @param pFileEventNotifier
+   *          file event notifier
+   * @return true if the file is watched with native events, false if polled
+   */
+  public boolean register(FileEventNotifier pFileEventNotifier)
+  {
+    final Path lFilePath = pFileEventNotifier.getFileToMonitor()
+                                             .getAbsoluteFile()
+                                             .toPath()
+                                             .normalize();
+    final Path lFolderPath = lFilePath.getParent();
+
+    synchronized (mLock)
+    {
+      WatchedFolder lWatchedFolder = mWatchedFolders.get(lFolderPath);
+      if (lWatchedFolder == null)
+      {
+        lWatchedFolder = new WatchedFolder(lFolderPath);
+        lWatchedFolder.mWatchKey = registerFolder(lFolderPath);
+        if (lWatchedFolder.mWatchKey != null)
+          mWatchKeyToFolderMap.put(lWatchedFolder.mWatchKey,
+                                   lWatchedFolder);
+        mWatchedFolders.put(lFolderPath, lWatchedFolder);
+      }
+
+      final String lFileName = lFilePath.getFileName().toString();
+      WatchedFile lWatchedFile =
+                               lWatchedFolder.mWatchedFiles.get(lFileName);
+      if (lWatchedFile == null)
+      {
+        lWatchedFile = new WatchedFile(lFilePath);
+        updateState(lWatchedFile);
+        lWatchedFolder.mWatchedFiles.put(lFileName, lWatchedFile);
+      }
+      lWatchedFile.mFileEventNotifiers.addIfAbsent(pFileEventNotifier);
+
+      updateMinPollingPeriod(lWatchedFolder);
+      lWatchedFolder.mPollingPeriodInNanoseconds =
+                                                 lWatchedFolder.mMinPollingPeriodInNanoseconds;
+      lWatchedFolder.mNextPollTime = System.nanoTime()
+                                     + lWatchedFolder.mPollingPeriodInNanoseconds;
+
+      return lWatchedFolder.mWatchKey != null;
+    }
+  }
+
+  /**
+   * Stops watching the file of a given file event notifier
+   *
+   * @param pFileEventNotifier
+   *          file event notifier
+   */
+  public void unregister(FileEventNotifier pFileEventNotifier)
+  {
+    final Path lFilePath = pFileEventNotifier.getFileToMonitor()
+                                             .getAbsoluteFile()
+                                             .toPath()
+                                             .normalize();
+    synchronized (mLock)
+    {
+      final WatchedFolder lWatchedFolder =
+                                         mWatchedFolders.get(lFilePath.getParent());
+      if (lWatchedFolder == null)
+        return;
+
+      final String lFileName = lFilePath.getFileName().toString();
+      final WatchedFile lWatchedFile =
+                                     lWatchedFolder.mWatchedFiles.get(lFileName);
+      if (lWatchedFile == null)
+        return;
+
+      lWatchedFile.mFileEventNotifiers.remove(pFileEventNotifier);
+      if (lWatchedFile.mFileEventNotifiers.isEmpty())
+        lWatchedFolder.mWatchedFiles.remove(lFileName);
+
+      if (lWatchedFolder.mWatchedFiles.isEmpty())
+      {
+        if (lWatchedFolder.mWatchKey != null)
+        {
+          lWatchedFolder.mWatchKey.cancel();
+          mWatchKeyToFolderMap.remove(lWatchedFolder.mWatchKey);
+        }
+        mWatchedFolders.remove(lWatchedFolder.mPath);
+      }
+      else
+      {
+        // the removed notifier might have had the smallest period:
+        updateMinPollingPeriod(lWatchedFolder);
+        lWatchedFolder.mPollingPeriodInNanoseconds =
+                                                   Math.max(lWatchedFolder.mPollingPeriodInNanoseconds,
+                                                            lWatchedFolder.mMinPollingPeriodInNanoseconds);
+      }
+    }
+  }
+
+  private static void updateMinPollingPeriod(WatchedFolder pWatchedFolder)
+  {
+    long lMinPollingPeriodInMilliseconds = Long.MAX_VALUE;
+    for (final WatchedFile lWatchedFile : pWatchedFolder.mWatchedFiles.values())
+      for (final FileEventNotifier lFileEventNotifier : lWatchedFile.mFileEventNotifiers)
+        lMinPollingPeriodInMilliseconds =
+                                        Math.min(lMinPollingPeriodInMilliseconds,
+                                                 lFileEventNotifier.getMonitoringPeriodInMilliseconds());
+    pWatchedFolder.mMinPollingPeriodInNanoseconds =
+                                                  TimeUnit.MILLISECONDS.toNanos(lMinPollingPeriodInMilliseconds);
+  }
+
+  private WatchKey registerFolder(Path pFolderPath)
+  {
+    if (mWatchService == null)
+      return null;
+
+    try
+    {
+      final String lFileStoreType = Files.getFileStore(pFolderPath)
+                                         .type()
+                                         .toLowerCase();
+      if (cFileStoresWithoutNativeEvents.contains(lFileStoreType))
+      {
+        info("No native file events for %s (%s), polling instead",
+             pFolderPath,
+             lFileStoreType);
+        return null;
+      }
+      return pFolderPath.register(mWatchService,
+                                  ENTRY_CREATE,
+                                  ENTRY_DELETE,
+                                  ENTRY_MODIFY);
+    }
+    catch (final IOException | UnsupportedOperationException e)
+    {
+      info("Cannot watch %s, polling instead: %s", pFolderPath, e);
+      return null;
+    }
+  }
+
+  private void loop()
+  {
+    try
+    {
+      while (!mStopped)
+      {
+        final long lWaitTimeInNanoseconds;
+        synchronized (mLock)
+        {
+          lWaitTimeInNanoseconds = getWaitTime(System.nanoTime());
+        }
+
+        WatchKey lWatchKey = null;
+        if (mWatchService != null)
+          lWatchKey = mWatchService.poll(lWaitTimeInNanoseconds,
+                                         TimeUnit.NANOSECONDS);
+        else
+          LockSupport.parkNanos(this, lWaitTimeInNanoseconds);
+
+        final ArrayList<Notification> lNotifications = new ArrayList<>();
+        synchronized (mLock)
+        {
+          final long lNow = System.nanoTime();
+          while (lWatchKey != null)
+          {
+            handleWatchKey(lWatchKey, lNow);
+            lWatchKey = mWatchService.poll();
+          }
+          pollFolders(lNow);
+          collectNotifications(lNow, lNotifications);
+        }
+
+        for (final Notification lNotification : lNotifications)
+          for (final FileEventNotifier lFileEventNotifier : lNotification.mFileEventNotifiers)
+            try
+            {
+              lFileEventNotifier.notifyFileEvent(lFileEventNotifier,
+                                                 lNotification.mFile,
+                                                 lNotification.mFileEventKind);
+            }
+            catch (final Throwable e)
+            {
+              severe("Exception while notifying file event for %s: %s",
+                     lNotification.mFile,
+                     e);
+            }
+      }
+    }
+    catch (final InterruptedException | ClosedWatchServiceException e)
+    {
+      // stopped
+    }
+  }
+
+  private long getWaitTime(long pNow)
+  {
+    long lDeadline = pNow
+                     + TimeUnit.MILLISECONDS.toNanos(cIdleWaitTimeInMilliseconds);
+    for (final WatchedFolder lWatchedFolder : mWatchedFolders.values())
+    {
+      if (lWatchedFolder.mWatchKey == null)
+        lDeadline = Math.min(lDeadline, lWatchedFolder.mNextPollTime);
+      for (final WatchedFile lWatchedFile : lWatchedFolder.mWatchedFiles.values())
+        if (lWatchedFile.mPending)
+          lDeadline = Math.min(lDeadline, getNotificationTime(lWatchedFile));
+    }
+    return Math.max(0, lDeadline - pNow);
+  }
+
+  private long getNotificationTime(WatchedFile pWatchedFile)
+  {
+    return Math.min(pWatchedFile.mLastEventTime
+                    + mDebounceTimeInNanoseconds,
+                    pWatchedFile.mFirstEventTime
+                                                  + TimeUnit.MILLISECONDS.toNanos(cMaxNotificationDelayInMilliseconds));
+  }
+
+  private void handleWatchKey(WatchKey pWatchKey, long pNow)
+  {
+    final WatchedFolder lWatchedFolder =
+                                       mWatchKeyToFolderMap.get(pWatchKey);
+    final List<WatchEvent<?>> lWatchEvents = pWatchKey.pollEvents();
+    if (lWatchedFolder == null)
+      return;
+
+    for (final WatchEvent<?> lWatchEvent : lWatchEvents)
+    {
+      mNumberOfNativeEvents.incrementAndGet();
+      if (lWatchEvent.kind() == OVERFLOW)
+      {
+        // events were lost, the state of each file tells what happened:
+        for (final WatchedFile lWatchedFile : lWatchedFolder.mWatchedFiles.values())
+          setPending(lWatchedFile, false, pNow);
+      }
+      else
+      {
+        final WatchedFile lWatchedFile =
+                                       lWatchedFolder.mWatchedFiles.get(lWatchEvent.context()
+                                                                                   .toString());
+        if (lWatchedFile != null)
+          setPending(lWatchedFile, true, pNow);
+      }
+    }
+
+    if (!pWatchKey.reset())
+    {
+      // the folder itself is gone, it is polled until it is re-created:
+      mWatchKeyToFolderMap.remove(pWatchKey);
+      lWatchedFolder.mWatchKey = null;
+      lWatchedFolder.mLostNativeEvents = true;
+      lWatchedFolder.mPollingPeriodInNanoseconds =
+                                                 lWatchedFolder.mMinPollingPeriodInNanoseconds;
+      lWatchedFolder.mNextPollTime = pNow;
+    }
+  }
+
+  private void pollFolders(long pNow)
+  {
+    for (final WatchedFolder lWatchedFolder : mWatchedFolders.values())
+    {
+      if (lWatchedFolder.mWatchKey != null
+          || pNow - lWatchedFolder.mNextPollTime < 0)
+        continue;
+
+      mNumberOfPolls.incrementAndGet();
+      if (lWatchedFolder.mLostNativeEvents)
+        resumeNativeEvents(lWatchedFolder);
+
+      // changes made before native events resumed are found by this poll:
+      boolean lChanged = false;
+      for (final WatchedFile lWatchedFile : lWatchedFolder.mWatchedFiles.values())
+        if (!lWatchedFile.mPending && hasChanged(lWatchedFile))
+        {
+          setPending(lWatchedFile, false, pNow);
+          lChanged = true;
+        }
+
+      lWatchedFolder.mPollingPeriodInNanoseconds =
+                                                 lChanged ? lWatchedFolder.mMinPollingPeriodInNanoseconds
+                                                          : Math.min(2 * lWatchedFolder.mPollingPeriodInNanoseconds,
+                                                                     Math.max(lWatchedFolder.mMinPollingPeriodInNanoseconds,
+                                                                              TimeUnit.MILLISECONDS.toNanos(cMaxPollingPeriodInMilliseconds)));
+      lWatchedFolder.mNextPollTime = pNow
+                                     + lWatchedFolder.mPollingPeriodInNanoseconds;
+    }
+  }
+
+  private void resumeNativeEvents(WatchedFolder pWatchedFolder)
+  {
+    if (!Files.isDirectory(pWatchedFolder.mPath))
+      return;
+
+    pWatchedFolder.mWatchKey = registerFolder(pWatchedFolder.mPath);
+    pWatchedFolder.mLostNativeEvents = false;
+    if (pWatchedFolder.mWatchKey != null)
+      mWatchKeyToFolderMap.put(pWatchedFolder.mWatchKey, pWatchedFolder);
+  }
+
+  private void setPending(WatchedFile pWatchedFile,
+                          boolean pNativeEvent,
+                          long pNow)
+  {
+    if (!pWatchedFile.mPending)
+    {
+      pWatchedFile.mPending = true;
+      pWatchedFile.mNativeEvent = false;
+      pWatchedFile.mFirstEventTime = pNow;
+    }
+    pWatchedFile.mNativeEvent |= pNativeEvent;
+    pWatchedFile.mLastEventTime = pNow;
+  }
+
+  private void collectNotifications(long pNow,
+                                    List<Notification> pNotifications)
+  {
+    for (final WatchedFolder lWatchedFolder : mWatchedFolders.values())
+      for (final WatchedFile lWatchedFile : lWatchedFolder.mWatchedFiles.values())
+      {
+        if (!lWatchedFile.mPending
+            || pNow - getNotificationTime(lWatchedFile) < 0)
+          continue;
+
+        lWatchedFile.mPending = false;
+        final boolean lExisted = lWatchedFile.mExists;
+        final boolean lChanged = updateState(lWatchedFile);
+        final boolean lExists = lWatchedFile.mExists;
+
+        FileEventKind lFileEventKind = null;
+        if (!lExisted && lExists)
+          lFileEventKind = FileEventKind.Created;
+        else if (lExisted && !lExists)
+          lFileEventKind = FileEventKind.Deleted;
+        else if (lExists && (lChanged || lWatchedFile.mNativeEvent))
+          lFileEventKind = FileEventKind.Modified;
+
+        if (lFileEventKind != null)
+        {
+          mNumberOfNotifications.incrementAndGet();
+          pNotifications.add(new Notification(lWatchedFile.mFileEventNotifiers,
+                                              lWatchedFile.mPath.toFile(),
+                                              lFileEventKind));
+        }
+      }
+  }
+
+  private static boolean hasChanged(WatchedFile pWatchedFile)
+  {
+    return checkState(pWatchedFile, false);
+  }
+
+  private static boolean updateState(WatchedFile pWatchedFile)
+  {
+    return checkState(pWatchedFile, true);
+  }
+
+  private static boolean checkState(WatchedFile pWatchedFile,
+                                    boolean pUpdate)
+  {
+    final BasicFileAttributes lAttributes = readAttributes(pWatchedFile);
+    final boolean lExists = lAttributes != null;
+    final long lLastModified =
+                             lExists ? lAttributes.lastModifiedTime()
+                                                  .toMillis()
+                                     : 0;
+    final long lLength = lExists ? lAttributes.size() : 0;
+
+    final boolean lChanged = lExists != pWatchedFile.mExists
+                             || lLastModified != pWatchedFile.mLastModified
+                             || lLength != pWatchedFile.mLength;
+    if (pUpdate)
+    {
+      pWatchedFile.mExists = lExists;
+      pWatchedFile.mLastModified = lLastModified;
+      pWatchedFile.mLength = lLength;
+    }
+    return lChanged;
+  }
+
+  private static BasicFileAttributes readAttributes(WatchedFile pWatchedFile)
+  {
+    try
+    {
+      return Files.readAttributes(pWatchedFile.mPath,
+                                  BasicFileAttributes.class);
+    }
+    catch (final IOException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Returns true if this hub uses native file events, false if it polls all
+   * watched files.
+   *
+   * @return true if native file events are used
+   */
+  public boolean isUsingNativeEvents()
+  {
+    return mWatchService != null;
+  }
+
+  /**
+   * Returns the number of watched folders
+   *
+   * @return number of watched folders
+   */
+  public int getNumberOfWatchedFolders()
+  {
+    synchronized (mLock)
+    {
+      return mWatchedFolders.size();
+    }
+  }
+
+  /**
+   * Returns the number of watched folders that are polled
+   *
+   * @return number of polled folders
+   */
+  public int getNumberOfPolledFolders()
+  {
+    synchronized (mLock)
+    {
+      int lNumberOfPolledFolders = 0;
+      for (final WatchedFolder lWatchedFolder : mWatchedFolders.values())
+        if (lWatchedFolder.mWatchKey == null)
+          lNumberOfPolledFolders++;
+      return lNumberOfPolledFolders;
+    }
+  }
+
+  /**
+   * Returns the number of native events received so far
+   *
+   * @return number of native events
+   */
+  public long getNumberOfNativeEvents()
+  {
+    return mNumberOfNativeEvents.get();
+  }
+
+  /**
+   * Returns the number of folder polls so far
+   *
+   * @return number of polls
+   */
+  public long getNumberOfPolls()
+  {
+    return mNumberOfPolls.get();
+  }
+
+  /**
+   * Returns the number of notifications so far
+   *
+   * @return number of notifications
+   */
+  public long getNumberOfNotifications()
+  {
+    return mNumberOfNotifications.get();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    mStopped = true;
+    if (mWatchService != null)
+      mWatchService.close();
+    LockSupport.unpark(mThread);
+    try
+    {
+      mThread.join(cIdleWaitTimeInMilliseconds);
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,415 @@
+package clearcontrol.core.file.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.concurrent.thread.ThreadSleep;
+import clearcontrol.core.file.FileEventNotifier;
+import clearcontrol.core.file.FileEventNotifier.FileEventKind;
+import clearcontrol.core.file.FileNotificationHub;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
+import org.apache.commons.io.monitor.FileAlterationMonitor;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+import org.junit.Test;
+
+/**
+ * File notification hub tests
+ *
+ * @author royer
+ */
+public class FileNotificationHubTests
+{
+  private static final int cNumberOfFiles = 2000;
+  private static final int cNumberOfWatchedFiles = 50;
+  // the previous implementation gets too slow to start with more:
+  private static final int cNumberOfMonitoredFiles = 20;
+
+  private static File newFolder() throws IOException
+  {
+    final File lFolder =
+                       Files.createTempDirectory("FileNotificationHubTests")
+                            .toFile();
+    for (int i = 0; i < cNumberOfFiles; i++)
+      new File(lFolder, "stack" + i + ".raw").createNewFile();
+    return lFolder;
+  }
+
+  /**
+   * Tests event delivery for many files in a folder, with native events
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testNativeEvents() throws Exception
+  {
+    try (FileNotificationHub lFileNotificationHub =
+                                                  new FileNotificationHub(true,
+                                                                          50,
+                                                                          TimeUnit.MILLISECONDS))
+    {
+      testEventDelivery(lFileNotificationHub);
+    }
+  }
+
+  /**
+   * Tests event delivery for many files in a folder, with polling
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testPolling() throws Exception
+  {
+    try (FileNotificationHub lFileNotificationHub =
+                                                  new FileNotificationHub(false,
+                                                                          50,
+                                                                          TimeUnit.MILLISECONDS))
+    {
+      testEventDelivery(lFileNotificationHub);
+      assertEquals(0, lFileNotificationHub.getNumberOfNativeEvents());
+    }
+  }
+
+  private void testEventDelivery(FileNotificationHub pFileNotificationHub) throws Exception
+  {
+    final File lFolder = newFolder();
+    try
+    {
+      final AtomicInteger[] lEventCounters =
+                                           new AtomicInteger[FileEventKind.values().length];
+      for (int k = 0; k < lEventCounters.length; k++)
+        lEventCounters[k] = new AtomicInteger();
+      // listeners run on the hub thread, mismatches are checked here:
+      final AtomicInteger lNumberOfMismatches = new AtomicInteger();
+
+      final ArrayList<FileEventNotifier> lFileEventNotifiers =
+                                                             new ArrayList<>();
+      for (int i = 0; i < cNumberOfWatchedFiles; i++)
+      {
+        final File lFile = new File(lFolder, "watched" + i + ".txt");
+        final FileEventNotifier lFileEventNotifier =
+                                                   new FileEventNotifier(lFile,
+                                                                         100,
+                                                                         TimeUnit.MILLISECONDS,
+                                                                         pFileNotificationHub);
+        lFileEventNotifier.addFileEventListener((pThis,
+                                                 pFile,
+                                                 pEventKind) -> {
+          if (!lFile.getName().equals(pFile.getName()))
+            lNumberOfMismatches.incrementAndGet();
+          lEventCounters[pEventKind.ordinal()].incrementAndGet();
+        });
+        lFileEventNotifier.startMonitoring();
+        lFileEventNotifiers.add(lFileEventNotifier);
+      }
+      assertEquals(1, pFileNotificationHub.getNumberOfWatchedFolders());
+
+      // creation followed by writes is notified as a single creation:
+      for (int i = 0; i < cNumberOfWatchedFiles; i++)
+        try (FileWriter lFileWriter =
+                                    new FileWriter(new File(lFolder,
+                                                            "watched" + i
+                                                                     + ".txt")))
+        {
+          lFileWriter.write("created");
+          lFileWriter.flush();
+          lFileWriter.write(" and written");
+        }
+      // files that are not watched are ignored:
+      for (int i = 0; i < 100; i++)
+        FileUtils.touch(new File(lFolder, "stack" + i + ".raw"));
+      waitFor(lEventCounters[FileEventKind.Created.ordinal()],
+              cNumberOfWatchedFiles);
+
+      for (int i = 0; i < cNumberOfWatchedFiles; i++)
+        try (FileWriter lFileWriter =
+                                    new FileWriter(new File(lFolder,
+                                                            "watched" + i
+                                                                     + ".txt"),
+                                                   true))
+        {
+          lFileWriter.write(" and modified");
+        }
+      waitFor(lEventCounters[FileEventKind.Modified.ordinal()],
+              cNumberOfWatchedFiles);
+
+      for (int i = 0; i < cNumberOfWatchedFiles; i++)
+        new File(lFolder, "watched" + i + ".txt").delete();
+      waitFor(lEventCounters[FileEventKind.Deleted.ordinal()],
+              cNumberOfWatchedFiles);
+
+      // no event is notified twice:
+      ThreadSleep.sleep(500, TimeUnit.MILLISECONDS);
+      for (final AtomicInteger lEventCounter : lEventCounters)
+        assertEquals(cNumberOfWatchedFiles, lEventCounter.get());
+      assertEquals(0, lNumberOfMismatches.get());
+
+      for (final FileEventNotifier lFileEventNotifier : lFileEventNotifiers)
+        lFileEventNotifier.close();
+      assertEquals(0, pFileNotificationHub.getNumberOfWatchedFolders());
+    }
+    finally
+    {
+      FileUtils.deleteDirectory(lFolder);
+    }
+  }
+
+  /**
+   * Tests that a watched folder that is deleted is polled, and watched with
+   * native events again once it is re-created
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testFolderRecreation() throws Exception
+  {
+    final File lParentFolder =
+                             Files.createTempDirectory("FileNotificationHubTests")
+                                  .toFile();
+    final File lFolder = new File(lParentFolder, "folder");
+    try (FileNotificationHub lFileNotificationHub =
+                                                  new FileNotificationHub(true,
+                                                                          50,
+                                                                          TimeUnit.MILLISECONDS))
+    {
+      assertTrue(lFolder.mkdir());
+      final AtomicInteger lNumberOfCreations = new AtomicInteger();
+      final FileEventNotifier lFileEventNotifier =
+                                                 new FileEventNotifier(new File(lFolder,
+                                                                                "watched.txt"),
+                                                                       100,
+                                                                       TimeUnit.MILLISECONDS,
+                                                                       lFileNotificationHub);
+      lFileEventNotifier.addFileEventListener((pThis,
+                                               pFile,
+                                               pEventKind) -> {
+        if (pEventKind == FileEventKind.Created)
+          lNumberOfCreations.incrementAndGet();
+      });
+      lFileEventNotifier.startMonitoring();
+      if (!lFileNotificationHub.isUsingNativeEvents()
+          || lFileNotificationHub.getNumberOfPolledFolders() > 0)
+      {
+        // no native events on this platform or file system:
+        lFileEventNotifier.close();
+        return;
+      }
+
+      FileUtils.deleteDirectory(lFolder);
+      waitForPolledFolders(lFileNotificationHub, 1);
+
+      assertTrue(lFolder.mkdir());
+      waitForPolledFolders(lFileNotificationHub, 0);
+
+      FileUtils.touch(new File(lFolder, "watched.txt"));
+      waitFor(lNumberOfCreations, 1);
+
+      lFileEventNotifier.close();
+    }
+    finally
+    {
+      FileUtils.deleteDirectory(lParentFolder);
+    }
+  }
+
+  /**
+   * Tests that the polling period of a folder follows the notifiers that are
+   * left once one is unregistered
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testPollingPeriodAfterUnregistration() throws Exception
+  {
+    final File lFolder = newFolder();
+    try (FileNotificationHub lFileNotificationHub =
+                                                  new FileNotificationHub(false,
+                                                                          50,
+                                                                          TimeUnit.MILLISECONDS))
+    {
+      final FileEventNotifier lFastFileEventNotifier =
+                                                     new FileEventNotifier(new File(lFolder,
+                                                                                    "stack0.raw"),
+                                                                           20,
+                                                                           TimeUnit.MILLISECONDS,
+                                                                           lFileNotificationHub);
+      final FileEventNotifier lSlowFileEventNotifier =
+                                                     new FileEventNotifier(new File(lFolder,
+                                                                                    "stack1.raw"),
+                                                                           5000,
+                                                                           TimeUnit.MILLISECONDS,
+                                                                           lFileNotificationHub);
+      lFastFileEventNotifier.startMonitoring();
+      lSlowFileEventNotifier.startMonitoring();
+      lFastFileEventNotifier.close();
+
+      // only the slow notifier is left, the folder is polled at most once:
+      final long lNumberOfPolls = lFileNotificationHub.getNumberOfPolls();
+      ThreadSleep.sleep(1000, TimeUnit.MILLISECONDS);
+      assertTrue(lFileNotificationHub.getNumberOfPolls()
+                 - lNumberOfPolls <= 1);
+
+      lSlowFileEventNotifier.close();
+    }
+    finally
+    {
+      FileUtils.deleteDirectory(lFolder);
+    }
+  }
+
+  private static void waitForPolledFolders(FileNotificationHub pFileNotificationHub,
+                                           int pValue)
+  {
+    final long lDeadline = System.nanoTime()
+                           + TimeUnit.SECONDS.toNanos(10);
+    while (pFileNotificationHub.getNumberOfPolledFolders() != pValue
+           && System.nanoTime() < lDeadline)
+      ThreadSleep.sleep(10, TimeUnit.MILLISECONDS);
+    assertEquals(pValue, pFileNotificationHub.getNumberOfPolledFolders());
+  }
+
+  private static void waitFor(AtomicInteger pCounter, int pValue)
+  {
+    final long lDeadline = System.nanoTime()
+                           + TimeUnit.SECONDS.toNanos(10);
+    while (pCounter.get() < pValue && System.nanoTime() < lDeadline)
+      ThreadSleep.sleep(10, TimeUnit.MILLISECONDS);
+    assertEquals(pValue, pCounter.get());
+  }
+
+  /**
+   * Compares the CPU time spent by the watching threads, when watching many
+   * files of a large folder, by the previous implementation - one commons-io
+   * monitor per file, each listing the whole folder every 300 ms - and by the
+   * hub.
+   *
+   * @throws Exception
+   *           N/A
+   */
+  @Test
+  public void testCPUCost() throws Exception
+  {
+    final File lFolder = newFolder();
+    try
+    {
+      final long lMeasurementTimeInMilliseconds = 3000;
+
+      // previous implementation:
+      Set<Long> lThreadIds = getThreadIds();
+      final ArrayList<FileAlterationMonitor> lFileAlterationMonitors =
+                                                                     new ArrayList<>();
+      for (int i = 0; i < cNumberOfMonitoredFiles; i++)
+      {
+        final FileAlterationObserver lFileAlterationObserver =
+                                                             new FileAlterationObserver(lFolder);
+        lFileAlterationObserver.addListener(new FileAlterationListenerAdaptor());
+        final FileAlterationMonitor lFileAlterationMonitor =
+                                                           new FileAlterationMonitor(300);
+        lFileAlterationMonitor.addObserver(lFileAlterationObserver);
+        lFileAlterationMonitor.start();
+        lFileAlterationMonitors.add(lFileAlterationMonitor);
+      }
+      final long lPreviousCPUTime =
+                                  measureCPUTime(getNewThreadIds(lThreadIds),
+                                                 lMeasurementTimeInMilliseconds);
+      final Set<Long> lMonitorThreadIds = getNewThreadIds(lThreadIds);
+      for (final FileAlterationMonitor lFileAlterationMonitor : lFileAlterationMonitors)
+        lFileAlterationMonitor.stop(1);
+      // monitor threads might still be listing the folder:
+      while (!Collections.disjoint(lMonitorThreadIds, getThreadIds()))
+        ThreadSleep.sleep(10, TimeUnit.MILLISECONDS);
+
+      // hub, with native events and with polling:
+      final long[] lHubCPUTimes = new long[2];
+      for (int n = 0; n < 2; n++)
+      {
+        lThreadIds = getThreadIds();
+        try (FileNotificationHub lFileNotificationHub =
+                                                      new FileNotificationHub(n == 0,
+                                                                              50,
+                                                                              TimeUnit.MILLISECONDS))
+        {
+          final ArrayList<FileEventNotifier> lFileEventNotifiers =
+                                                                 new ArrayList<>();
+          for (int i = 0; i < cNumberOfMonitoredFiles; i++)
+          {
+            final FileEventNotifier lFileEventNotifier =
+                                                       new FileEventNotifier(new File(lFolder,
+                                                                                      "stack"
+                                                                                               + i
+                                                                                               + ".raw"),
+                                                                             300,
+                                                                             TimeUnit.MILLISECONDS,
+                                                                             lFileNotificationHub);
+            lFileEventNotifier.startMonitoring();
+            lFileEventNotifiers.add(lFileEventNotifier);
+          }
+          lHubCPUTimes[n] =
+                          measureCPUTime(getNewThreadIds(lThreadIds),
+                                         lMeasurementTimeInMilliseconds);
+          for (final FileEventNotifier lFileEventNotifier : lFileEventNotifiers)
+            lFileEventNotifier.close();
+        }
+      }
+
+      assertTrue(lHubCPUTimes[0] < lPreviousCPUTime);
+      assertTrue(lHubCPUTimes[1] < lPreviousCPUTime);
+    }
+    finally
+    {
+      FileUtils.deleteDirectory(lFolder);
+    }
+  }
+
+  private static Set<Long> getThreadIds()
+  {
+    final HashSet<Long> lThreadIds = new HashSet<>();
+    for (final long lThreadId : ManagementFactory.getThreadMXBean()
+                                                 .getAllThreadIds())
+      lThreadIds.add(lThreadId);
+    return lThreadIds;
+  }
+
+  private static Set<Long> getNewThreadIds(Set<Long> pThreadIds)
+  {
+    final Set<Long> lThreadIds = getThreadIds();
+    lThreadIds.removeAll(pThreadIds);
+    return lThreadIds;
+  }
+
+  /**
+   * Measures the CPU time spent by given threads - the watching threads -
+   * during a given time
+   */
+  private static long measureCPUTime(Set<Long> pThreadIds,
+                                     long pTimeInMilliseconds)
+  {
+    final ThreadMXBean lThreadMXBean = ManagementFactory.getThreadMXBean();
+    long lCPUTime = 0;
+    for (final long lThreadId : pThreadIds)
+      lCPUTime -= Math.max(0, lThreadMXBean.getThreadCpuTime(lThreadId));
+    ThreadSleep.sleep(pTimeInMilliseconds, TimeUnit.MILLISECONDS);
+    for (final long lThreadId : pThreadIds)
+      lCPUTime += Math.max(0, lThreadMXBean.getThreadCpuTime(lThreadId));
+    return lCPUTime;
+  }
+
+}
@@ -1,5 +1,6 @@
 package clearcontrol.core.gc;
 
+import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -8,10 +9,14 @@ import javax.management.Notification;
 import javax.management.NotificationListener;
 import javax.management.openmbean.CompositeData;
 
+import clearcontrol.core.profiling.TimingRecorder;
+
 import com.sun.management.GarbageCollectionNotificationInfo;
 
 /**
- * Debug GC notification listener
+ * Debug GC notification listener. GC pauses are also recorded into the
+ * singleton timing recorder, so that they can be correlated with the other
+ * timing events.
  *
  * @author royer
  */
@@ -41,6 +46,8 @@ public class DebugGCNotificationListener implements
   public void handleNotification(Notification notification,
                                  Object handback)
   {
+    recordTimingEvent(notification);
+
     if (!GarbageCollector.sGCDebugOutputFlag)
       return;
 
@@ -131,4 +138,35 @@ public class DebugGCNotificationListener implements
                              + "%");
     }
   }
+
+  private void recordTimingEvent(Notification pNotification)
+  {
+    final TimingRecorder lTimingRecorder =
+                                         TimingRecorder.getSingletonTimingRecorder();
+    if (!lTimingRecorder.isEnabled()
+        || !pNotification.getType()
+                         .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+      return;
+
+    final GarbageCollectionNotificationInfo lInfo =
+                                                  GarbageCollectionNotificationInfo.from((CompositeData) pNotification.getUserData());
+
+    // GC start and end times are given in milliseconds since the JVM start,
+    // they are mapped to System.nanoTime():
+    final long lOffsetInNanoseconds =
+                                    System.nanoTime()
+                                      - ManagementFactory.getRuntimeMXBean()
+                                                         .getUptime()
+                                        * 1000000L;
+    lTimingRecorder.record("GC",
+                           lInfo.getGcName(),
+                           lOffsetInNanoseconds
+                                              + lInfo.getGcInfo()
+                                                     .getStartTime()
+                                                * 1000000L,
+                           lOffsetInNanoseconds
+                                                 + lInfo.getGcInfo()
+                                                        .getEndTime()
+                                                   * 1000000L);
+  }
 }
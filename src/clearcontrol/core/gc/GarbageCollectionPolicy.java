@@ -0,0 +1,26 @@
+package clearcontrol.core.gc;
+
+/**
+ * Policy deciding when garbage collection is forced, for example before
+ * playing an acquisition queue.
+ *
+ * @author royer
+ */
+public enum GarbageCollectionPolicy
+{
+ /**
+  * Garbage collection is always forced
+  */
+ Always,
+
+ /**
+  * Garbage collection is never forced
+  */
+ Never,
+
+ /**
+  * Garbage collection is forced only if the heap usage is above a given
+  * threshold
+  */
+ AboveHeapUsageThreshold
+}
@@ -1,6 +1,8 @@
 package clearcontrol.core.gc;
 
 import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.util.List;
 
 import javax.management.NotificationEmitter;
@@ -111,4 +113,44 @@ public class GarbageCollector implements LoggingFeature
     // sGarbageCollector.info("Garbage collection finished.");
   }
 
+  /**
+   * Triggers GC if required by the given policy.
+   * 
+   * @param pPolicy
+   *          garbage collection policy
+   * @param pHeapUsageThreshold
+   *          heap usage threshold within [0,1] used by the
+   *          AboveHeapUsageThreshold policy
+   * @return true if GC was triggered
+   */
+  public static boolean trigger(GarbageCollectionPolicy pPolicy,
+                                double pHeapUsageThreshold)
+  {
+    if (pPolicy == GarbageCollectionPolicy.Never)
+      return false;
+    if (pPolicy == GarbageCollectionPolicy.AboveHeapUsageThreshold
+        && getHeapUsage() < pHeapUsageThreshold)
+      return false;
+
+    trigger();
+    return true;
+  }
+
+  /**
+   * Returns the current heap usage: used heap memory divided by max (or
+   * committed if there is no max) heap memory.
+   * 
+   * @return heap usage within [0,1]
+   */
+  public static double getHeapUsage()
+  {
+    final MemoryUsage lHeapMemoryUsage =
+                                       ManagementFactory.getMemoryMXBean()
+                                                        .getHeapMemoryUsage();
+    final long lMax = lHeapMemoryUsage.getMax() > 0
+                                                    ? lHeapMemoryUsage.getMax()
+                                                    : lHeapMemoryUsage.getCommitted();
+    return ((double) lHeapMemoryUsage.getUsed()) / lMax;
+  }
+
 }
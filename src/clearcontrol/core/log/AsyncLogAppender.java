@@ -0,0 +1,397 @@
+package clearcontrol.core.log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous log appender
+ *
+ * Log events are appended to a bounded lock-free ring buffer and drained by a
+ * background daemon thread which publishes them to the java.util.logging
+ * handlers of the target logger. Logging threads - for example acquisition
+ * threads - thus never wait for the console or any other sink. Messages are
+ * given already formatted, or as suppliers: suppliers are only called by the
+ * drain thread, and must therefore not depend on state that the logging thread
+ * mutates afterwards.
+ *
+ * When the ring buffer is full, events below WARNING level are dropped (and
+ * counted), more severe events are published synchronously by the logging
+ * thread.
+ *
+ * @author royer
+ */
+public class AsyncLogAppender implements AutoCloseable
+{
+  private static final int cDefaultCapacity = 1 << 14;
+  private static final long cIdleParkTimeInNanoseconds =
+                                                       TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long cFlushTimeOutInNanoseconds =
+                                                       TimeUnit.SECONDS.toNanos(1);
+
+  private static class SingletonHolder
+  {
+    private static final AsyncLogAppender sAsyncLogAppender =
+                                                           new AsyncLogAppender(cDefaultCapacity);
+    static
+    {
+      sAsyncLogAppender.setAsynchronous(!"false".equalsIgnoreCase(System.getProperty("clearcontrol.log.asynchronous")));
+      Runtime.getRuntime()
+             .addShutdownHook(new Thread(sAsyncLogAppender::flush,
+                                         "AsyncLogAppenderShutdown"));
+    }
+  }
+
+  private final int mMask;
+  private final AtomicLong mTail = new AtomicLong();
+  private final AtomicLong mHead = new AtomicLong();
+  private final AtomicLongArray mSequenceNumbers;
+  private final Logger[] mLoggers;
+  private final Level[] mLevels;
+  private final String[] mSources;
+  private final String[] mMessages;
+  private final Supplier<?>[] mSuppliers;
+  private final long[] mTimes;
+  private final long[] mThreadIds;
+
+  private final AtomicLong mNumberOfDroppedEvents = new AtomicLong();
+  private long mNumberOfReportedDroppedEvents;
+
+  private final Thread mDrainThread;
+  private volatile boolean mAsynchronous = true;
+  private volatile boolean mStopped;
+
+  /**
+   * Returns the singleton appender used by the logging feature. Asynchronous
+   * logging can be turned off with the system property
+   * clearcontrol.log.asynchronous=false
+   *
+   * @return singleton appender
+   */
+  public static AsyncLogAppender getSingletonAsyncLogAppender()
+  {
+    return SingletonHolder.sAsyncLogAppender;
+  }
+
+  /**
+   * Instantiates an asynchronous appender with a given ring buffer capacity,
+   * rounded up to the next power of two, and starts its drain thread.
+   *
+   * @param pCapacity
+   *          max number of pending events
+   */
+  public AsyncLogAppender(int pCapacity)
+  {
+    super();
+    final int lCapacity =
+                        Integer.highestOneBit(Math.max(2, pCapacity) - 1)
+                          << 1;
+    mMask = lCapacity - 1;
+    mSequenceNumbers = new AtomicLongArray(lCapacity);
+    for (int i = 0; i < lCapacity; i++)
+      mSequenceNumbers.set(i, i);
+    mLoggers = new Logger[lCapacity];
+    mLevels = new Level[lCapacity];
+    mSources = new String[lCapacity];
+    mMessages = new String[lCapacity];
+    mSuppliers = new Supplier<?>[lCapacity];
+    mTimes = new long[lCapacity];
+    mThreadIds = new long[lCapacity];
+
+    mDrainThread = new Thread(this::drainLoop, "AsyncLogAppender");
+    mDrainThread.setDaemon(true);
+    mDrainThread.setPriority(Thread.MIN_PRIORITY);
+    mDrainThread.start();
+  }
+
+  /**
+   * Returns the capacity of the ring buffer
+   *
+   * @return max number of pending events
+   */
+  public int getCapacity()
+  {
+    return mMask + 1;
+  }
+
+  /**
+   * Sets whether events are published asynchronously by the drain thread, or
+   * synchronously by the logging thread.
+   *
+   * @param pAsynchronous
+   *          true for asynchronous logging
+   */
+  public void setAsynchronous(boolean pAsynchronous)
+  {
+    if (!pAsynchronous)
+      flush();
+    mAsynchronous = pAsynchronous;
+  }
+
+  /**
+   * Returns true if events are published asynchronously
+   *
+   * @return true if asynchronous
+   */
+  public boolean isAsynchronous()
+  {
+    return mAsynchronous;
+  }
+
+  /**
+   * Appends a log event. The message is obtained from the supplier if not null
+   * - by the drain thread when logging is asynchronous - otherwise it is the
+   * given message. The level is not checked, callers should check that the
+   * logger is loggable for the level first.
+   *
+   * @param pLogger
+   *          target logger
+   * @param pLevel
+   *          level
+   * @param pSource
+   *          source name, prepended to the message
+   * @param pMessage
+   *          message, used if there is no supplier
+   * @param pSupplier
+   *          message supplier or null
+   */
+  public void append(Logger pLogger,
+                     Level pLevel,
+                     String pSource,
+                     String pMessage,
+                     Supplier<?> pSupplier)
+  {
+    if (!mAsynchronous || mStopped)
+    {
+      publish(pLogger,
+              pLevel,
+              pSource,
+              pMessage,
+              pSupplier,
+              System.currentTimeMillis(),
+              Thread.currentThread().getId());
+      return;
+    }
+
+    long lSequenceNumber = mTail.get();
+    int lIndex;
+    while (true)
+    {
+      lIndex = (int) (lSequenceNumber & mMask);
+      final long lDifference = mSequenceNumbers.get(lIndex)
+                               - lSequenceNumber;
+      if (lDifference == 0)
+      {
+        if (mTail.compareAndSet(lSequenceNumber, lSequenceNumber + 1))
+          break;
+        lSequenceNumber = mTail.get();
+      }
+      else if (lDifference < 0)
+      {
+        // the ring buffer is full:
+        if (pLevel.intValue() >= Level.WARNING.intValue())
+          publish(pLogger,
+                  pLevel,
+                  pSource,
+                  pMessage,
+                  pSupplier,
+                  System.currentTimeMillis(),
+                  Thread.currentThread().getId());
+        else
+          mNumberOfDroppedEvents.incrementAndGet();
+        return;
+      }
+      else
+        lSequenceNumber = mTail.get();
+    }
+
+    // the slot is owned until its sequence number is published:
+    mLoggers[lIndex] = pLogger;
+    mLevels[lIndex] = pLevel;
+    mSources[lIndex] = pSource;
+    mMessages[lIndex] = pMessage;
+    mSuppliers[lIndex] = pSupplier;
+    mTimes[lIndex] = System.currentTimeMillis();
+    mThreadIds[lIndex] = Thread.currentThread().getId();
+    mSequenceNumbers.lazySet(lIndex, lSequenceNumber + 1);
+  }
+
+  private void drainLoop()
+  {
+    while (!mStopped)
+    {
+      if (drain() == 0)
+        LockSupport.parkNanos(this, cIdleParkTimeInNanoseconds);
+    }
+    drain();
+  }
+
+  private int drain()
+  {
+    int lNumberOfEvents = 0;
+    Logger lLastLogger = null;
+    long lSequenceNumber = mHead.get();
+    while (true)
+    {
+      final int lIndex = (int) (lSequenceNumber & mMask);
+      if (mSequenceNumbers.get(lIndex) != lSequenceNumber + 1)
+        break;
+
+      final Logger lLogger = mLoggers[lIndex];
+      final Level lLevel = mLevels[lIndex];
+      final String lSource = mSources[lIndex];
+      final String lMessage = mMessages[lIndex];
+      final Supplier<?> lSupplier = mSuppliers[lIndex];
+      final long lTime = mTimes[lIndex];
+      final long lThreadId = mThreadIds[lIndex];
+
+      // references are cleared so that they can be collected:
+      mLoggers[lIndex] = null;
+      mSources[lIndex] = null;
+      mMessages[lIndex] = null;
+      mSuppliers[lIndex] = null;
+      mSequenceNumbers.lazySet(lIndex, lSequenceNumber + mMask + 1);
+      mHead.lazySet(++lSequenceNumber);
+
+      publish(lLogger,
+              lLevel,
+              lSource,
+              lMessage,
+              lSupplier,
+              lTime,
+              lThreadId);
+      lLastLogger = lLogger;
+      lNumberOfEvents++;
+    }
+
+    if (lLastLogger != null)
+    {
+      final long lNumberOfDroppedEvents = mNumberOfDroppedEvents.get();
+      if (lNumberOfDroppedEvents > mNumberOfReportedDroppedEvents)
+      {
+        publish(lLastLogger,
+                Level.WARNING,
+                getClass().getSimpleName(),
+                String.format("%d log events dropped, logging is too fast for the log handlers",
+                              lNumberOfDroppedEvents
+                                                                   - mNumberOfReportedDroppedEvents),
+                null,
+                System.currentTimeMillis(),
+                mDrainThread.getId());
+        mNumberOfReportedDroppedEvents = lNumberOfDroppedEvents;
+      }
+      flushHandlers(lLastLogger);
+    }
+    return lNumberOfEvents;
+  }
+
+  private static void publish(Logger pLogger,
+                              Level pLevel,
+                              String pSource,
+                              String pMessage,
+                              Supplier<?> pSupplier,
+                              long pTime,
+                              long pThreadId)
+  {
+    String lMessage;
+    if (pSupplier == null)
+      lMessage = String.valueOf(pMessage);
+    else
+      try
+      {
+        lMessage = String.valueOf(pSupplier.get());
+      }
+      catch (final Throwable e)
+      {
+        // the logging thread is long gone, the failure is logged instead:
+        lMessage = String.format("could not obtain log message: %s", e);
+      }
+
+    final LogRecord lLogRecord =
+                               new LogRecord(pLevel,
+                                             pSource == null ? lMessage.trim()
+                                                             : pSource + ": "
+                                                               + lMessage.trim());
+    lLogRecord.setLoggerName(pLogger.getName());
+    lLogRecord.setSourceClassName(pSource);
+    lLogRecord.setSourceMethodName(null);
+    lLogRecord.setMillis(pTime);
+    lLogRecord.setThreadID((int) pThreadId);
+    pLogger.log(lLogRecord);
+  }
+
+  private static void flushHandlers(Logger pLogger)
+  {
+    Logger lLogger = pLogger;
+    while (lLogger != null)
+    {
+      for (final Handler lHandler : lLogger.getHandlers())
+        lHandler.flush();
+      if (!lLogger.getUseParentHandlers())
+        break;
+      lLogger = lLogger.getParent();
+    }
+  }
+
+  /**
+   * Waits until all events appended so far have been published, or until a
+   * time out of one second has elapsed.
+   */
+  public void flush()
+  {
+    if (Thread.currentThread() == mDrainThread)
+      return;
+    final long lTarget = mTail.get();
+    final long lDeadline = System.nanoTime() + cFlushTimeOutInNanoseconds;
+    while (mHead.get() < lTarget && mDrainThread.isAlive()
+           && System.nanoTime() < lDeadline)
+      LockSupport.parkNanos(this, cIdleParkTimeInNanoseconds / 10);
+  }
+
+  /**
+   * Returns the number of events not yet published
+   *
+   * @return number of pending events
+   */
+  public long getNumberOfPendingEvents()
+  {
+    return Math.max(0, mTail.get() - mHead.get());
+  }
+
+  /**
+   * Returns the number of events dropped because the ring buffer was full
+   *
+   * @return number of dropped events
+   */
+  public long getNumberOfDroppedEvents()
+  {
+    return mNumberOfDroppedEvents.get();
+  }
+
+  /**
+   * Publishes all pending events and stops the drain thread, events appended
+   * afterwards are published synchronously.
+   */
+  @Override
+  public void close()
+  {
+    flush();
+    mStopped = true;
+    LockSupport.unpark(mDrainThread);
+    try
+    {
+      mDrainThread.join(TimeUnit.NANOSECONDS.toMillis(cFlushTimeOutInNanoseconds));
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
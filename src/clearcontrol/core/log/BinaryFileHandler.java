@@ -0,0 +1,185 @@
+package clearcontrol.core.log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * Binary file log handler
+ *
+ * Writes log records to a compact binary file that can be read back with
+ * BinaryLogReader. Logger names, sources and thread ids are written once and
+ * then referred to by number, times are written as variable length deltas, and
+ * the 'source: ' prefix added by the logging feature is not repeated in the
+ * message. Records are buffered, and written to disk when the handler is
+ * flushed - which the asynchronous appender does after each batch of events.
+ *
+ * @author royer
+ */
+public class BinaryFileHandler extends Handler
+{
+  static final int cMagic = 0x43434C47; // 'CCLG'
+  static final int cVersion = 1;
+
+  static final int cStringRecord = 0;
+  static final int cLogRecord = 1;
+
+  static final int cFlagSourcePrefix = 1;
+  static final int cFlagThrown = 2;
+
+  private final DataOutputStream mDataOutputStream;
+  private final HashMap<String, Integer> mStringIds = new HashMap<>();
+  private long mLastTime;
+
+  /**
+   * Instantiates a binary file handler writing to a given file. If the file
+   * exists it is overwritten.
+   *
+   * @param pFile
+   *          file
+   * @throws IOException
+   *           if the file cannot be opened
+   */
+  public BinaryFileHandler(File pFile) throws IOException
+  {
+    super();
+    setFormatter(new CompactFormatter());
+    mDataOutputStream =
+                      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pFile),
+                                                                    1 << 16));
+    mLastTime = System.currentTimeMillis();
+    mDataOutputStream.writeInt(cMagic);
+    mDataOutputStream.writeByte(cVersion);
+    mDataOutputStream.writeLong(mLastTime);
+  }
+
+  @Override
+  public synchronized void publish(LogRecord pLogRecord)
+  {
+    if (!isLoggable(pLogRecord))
+      return;
+
+    try
+    {
+      final String lSource = pLogRecord.getSourceClassName();
+      String lMessage = getFormatter().formatMessage(pLogRecord);
+      int lFlags = 0;
+      if (lSource != null && lMessage.length() >= lSource.length() + 2
+          && lMessage.startsWith(lSource)
+          && lMessage.startsWith(": ", lSource.length()))
+      {
+        lMessage = lMessage.substring(lSource.length() + 2);
+        lFlags |= cFlagSourcePrefix;
+      }
+      if (pLogRecord.getThrown() != null)
+        lFlags |= cFlagThrown;
+
+      final int lLoggerNameId = getStringId(pLogRecord.getLoggerName());
+      final int lSourceId = getStringId(lSource);
+
+      mDataOutputStream.writeByte(cLogRecord);
+      writeVarLong(mDataOutputStream,
+                   zigzag(pLogRecord.getMillis() - mLastTime));
+      mLastTime = pLogRecord.getMillis();
+      writeVarLong(mDataOutputStream,
+                   zigzag(pLogRecord.getLevel().intValue()));
+      writeVarLong(mDataOutputStream, pLogRecord.getThreadID());
+      writeVarLong(mDataOutputStream, lLoggerNameId);
+      writeVarLong(mDataOutputStream, lSourceId);
+      mDataOutputStream.writeByte(lFlags);
+      writeString(mDataOutputStream, lMessage);
+
+      if (pLogRecord.getThrown() != null)
+      {
+        final StringWriter lStringWriter = new StringWriter();
+        try (PrintWriter lPrintWriter = new PrintWriter(lStringWriter))
+        {
+          pLogRecord.getThrown().printStackTrace(lPrintWriter);
+        }
+        writeString(mDataOutputStream, lStringWriter.toString());
+      }
+    }
+    catch (final Exception e)
+    {
+      reportError(null, e, ErrorManager.WRITE_FAILURE);
+    }
+  }
+
+  private int getStringId(String pString) throws IOException
+  {
+    if (pString == null)
+      return 0;
+
+    Integer lId = mStringIds.get(pString);
+    if (lId == null)
+    {
+      lId = mStringIds.size() + 1;
+      mStringIds.put(pString, lId);
+      mDataOutputStream.writeByte(cStringRecord);
+      writeVarLong(mDataOutputStream, lId);
+      writeString(mDataOutputStream, pString);
+    }
+    return lId;
+  }
+
+  @Override
+  public synchronized void flush()
+  {
+    try
+    {
+      mDataOutputStream.flush();
+    }
+    catch (final IOException e)
+    {
+      reportError(null, e, ErrorManager.FLUSH_FAILURE);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws SecurityException
+  {
+    try
+    {
+      mDataOutputStream.close();
+    }
+    catch (final IOException e)
+    {
+      reportError(null, e, ErrorManager.CLOSE_FAILURE);
+    }
+  }
+
+  static long zigzag(long pValue)
+  {
+    return (pValue << 1) ^ (pValue >> 63);
+  }
+
+  static void writeVarLong(DataOutputStream pDataOutputStream,
+                           long pValue) throws IOException
+  {
+    long lValue = pValue;
+    while ((lValue & ~0x7FL) != 0)
+    {
+      pDataOutputStream.writeByte((int) ((lValue & 0x7F) | 0x80));
+      lValue >>>= 7;
+    }
+    pDataOutputStream.writeByte((int) lValue);
+  }
+
+  static void writeString(DataOutputStream pDataOutputStream,
+                          String pString) throws IOException
+  {
+    final byte[] lBytes = pString.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(pDataOutputStream, lBytes.length);
+    pDataOutputStream.write(lBytes);
+  }
+
+}
@@ -0,0 +1,201 @@
+package clearcontrol.core.log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Binary log reader
+ *
+ * Reads log files written by BinaryFileHandler. A record cut short - for
+ * example because the program crashed before the handler was flushed - marks
+ * the end of the file. Can be used from the command line to print a binary log
+ * file as text:
+ *
+ * java clearcontrol.core.log.BinaryLogReader file.bin
+ *
+ * @author royer
+ */
+public class BinaryLogReader implements AutoCloseable
+{
+  private final DataInputStream mDataInputStream;
+  private final ArrayList<String> mStrings = new ArrayList<>();
+  private long mLastTime;
+
+  /**
+   * Opens a binary log file
+   *
+   * @param pFile
+   *          binary log file
+   * @throws IOException
+   *           if the file cannot be opened or is not a binary log file
+   */
+  public BinaryLogReader(File pFile) throws IOException
+  {
+    super();
+    mDataInputStream =
+                     new DataInputStream(new BufferedInputStream(new FileInputStream(pFile)));
+    try
+    {
+      if (mDataInputStream.readInt() != BinaryFileHandler.cMagic)
+        throw new IOException("Not a binary log file: " + pFile);
+      if (mDataInputStream.readByte() != BinaryFileHandler.cVersion)
+        throw new IOException("Unsupported binary log file version: "
+                              + pFile);
+      mLastTime = mDataInputStream.readLong();
+    }
+    catch (final IOException e)
+    {
+      mDataInputStream.close();
+      throw e;
+    }
+    mStrings.add(null);
+  }
+
+  /**
+   * Reads the next log record. The message of the returned record is the
+   * message as it was logged - including the source prefix - the source is
+   * also available as source class name.
+   *
+   * @return next log record, or null if the end of the file is reached
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public LogRecord next() throws IOException
+  {
+    try
+    {
+      while (true)
+      {
+        final int lRecordType = mDataInputStream.read();
+        if (lRecordType < 0)
+          return null;
+
+        if (lRecordType == BinaryFileHandler.cStringRecord)
+        {
+          final int lId = (int) readVarLong();
+          final String lString = readString();
+          if (lId != mStrings.size())
+            throw new IOException("Corrupted binary log file");
+          mStrings.add(lString);
+        }
+        else if (lRecordType == BinaryFileHandler.cLogRecord)
+        {
+          final long lTime = mLastTime + unzigzag(readVarLong());
+          mLastTime = lTime;
+          final Level lLevel =
+                             Level.parse(Long.toString(unzigzag(readVarLong())));
+          final int lThreadId = (int) readVarLong();
+          final String lLoggerName = getString(readVarLong());
+          final String lSource = getString(readVarLong());
+          final int lFlags = mDataInputStream.readUnsignedByte();
+          String lMessage = readString();
+          if ((lFlags & BinaryFileHandler.cFlagSourcePrefix) != 0)
+            lMessage = lSource + ": " + lMessage;
+          if ((lFlags & BinaryFileHandler.cFlagThrown) != 0)
+            lMessage = lMessage + System.lineSeparator() + readString();
+
+          final LogRecord lLogRecord = new LogRecord(lLevel, lMessage);
+          lLogRecord.setMillis(lTime);
+          lLogRecord.setThreadID(lThreadId);
+          lLogRecord.setLoggerName(lLoggerName);
+          lLogRecord.setSourceClassName(lSource);
+          lLogRecord.setSourceMethodName(null);
+          return lLogRecord;
+        }
+        else
+          throw new IOException("Corrupted binary log file");
+      }
+    }
+    catch (final EOFException e)
+    {
+      // truncated record:
+      return null;
+    }
+  }
+
+  private String getString(long pId) throws IOException
+  {
+    if (pId < 0 || pId >= mStrings.size())
+      throw new IOException("Corrupted binary log file");
+    return mStrings.get((int) pId);
+  }
+
+  private long readVarLong() throws IOException
+  {
+    long lValue = 0;
+    for (int lShift = 0; lShift < 64; lShift += 7)
+    {
+      final int lByte = mDataInputStream.readUnsignedByte();
+      lValue |= (long) (lByte & 0x7F) << lShift;
+      if ((lByte & 0x80) == 0)
+        return lValue;
+    }
+    throw new IOException("Corrupted binary log file");
+  }
+
+  private String readString() throws IOException
+  {
+    final long lLength = readVarLong();
+    if (lLength > Integer.MAX_VALUE)
+      throw new IOException("Corrupted binary log file");
+    final byte[] lBytes = new byte[(int) lLength];
+    mDataInputStream.readFully(lBytes);
+    return new String(lBytes, StandardCharsets.UTF_8);
+  }
+
+  private static long unzigzag(long pValue)
+  {
+    return (pValue >>> 1) ^ -(pValue & 1);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    mDataInputStream.close();
+  }
+
+  /**
+   * Prints binary log files as text
+   *
+   * @param pArguments
+   *          binary log files
+   * @throws IOException
+   *           if a file cannot be read
+   */
+  public static void main(String[] pArguments) throws IOException
+  {
+    if (pArguments.length == 0)
+    {
+      System.err.println("usage: BinaryLogReader <binary log file>...");
+      return;
+    }
+
+    final SimpleDateFormat lDateFormat =
+                                       new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    for (final String lFileName : pArguments)
+      try (BinaryLogReader lBinaryLogReader =
+                                            new BinaryLogReader(new File(lFileName)))
+      {
+        LogRecord lLogRecord;
+        while ((lLogRecord = lBinaryLogReader.next()) != null)
+          System.out.format("%s [%d] %s: %s%n",
+                            lDateFormat.format(new Date(lLogRecord.getMillis())),
+                            lLogRecord.getThreadID(),
+                            lLogRecord.getLevel()
+                                      .getName()
+                                      .substring(0, 1),
+                            lLogRecord.getMessage());
+      }
+  }
+
+}
@@ -1,6 +1,8 @@
 package clearcontrol.core.log;
 
+import java.util.function.Supplier;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -21,6 +23,11 @@ public interface LoggingFeature
    */
   static Reference<Logger> sLoggerReference = new Reference<Logger>();
 
+  /**
+   * Simple class names, computed once per class
+   */
+  static SimpleClassNames cSimpleClassNames = new SimpleClassNames();
+
   /**
    * Static method that returns the logger
    * 
@@ -81,12 +88,12 @@ public interface LoggingFeature
    */
   public default void info(String pMessage)
   {
-    getLoggerStatic().info(getClassName(this) + ": "
-                           + pMessage.trim());
+    log(Level.INFO, pMessage, null, null);
   }
 
   /**
-   * Logs an information message
+   * Logs an information message. The message is formatted only if the level is
+   * enabled.
    * 
    * @param pFormat
    *          format string
@@ -95,8 +102,19 @@ public interface LoggingFeature
    */
   public default void info(String pFormat, Object... args)
   {
-    getLoggerStatic().info(getClassName(this) + ": "
-                           + String.format(pFormat, args).trim());
+    log(Level.INFO, pFormat, args, null);
+  }
+
+  /**
+   * Logs an information message. The supplier is called only if the level is
+   * enabled - and not by the calling thread when logging is asynchronous.
+   * 
+   * @param pMessageSupplier
+   *          message supplier
+   */
+  public default void info(Supplier<String> pMessageSupplier)
+  {
+    log(Level.INFO, null, null, pMessageSupplier);
   }
 
   /**
@@ -107,12 +125,12 @@ public interface LoggingFeature
    */
   public default void warning(String pMessage)
   {
-    getLoggerStatic().warning(getClassName(this) + ": "
-                              + pMessage.trim());
+    log(Level.WARNING, pMessage, null, null);
   }
 
   /**
-   * Logs a warning message
+   * Logs a warning message. The message is formatted only if the level is
+   * enabled.
    * 
    * @param pFormat
    *          format string
@@ -121,8 +139,19 @@ public interface LoggingFeature
    */
   public default void warning(String pFormat, Object... args)
   {
-    getLoggerStatic().warning(getClassName(this) + ": "
-                              + String.format(pFormat, args).trim());
+    log(Level.WARNING, pFormat, args, null);
+  }
+
+  /**
+   * Logs a warning message. The supplier is called only if the level is
+   * enabled - and not by the calling thread when logging is asynchronous.
+   * 
+   * @param pMessageSupplier
+   *          warning message supplier
+   */
+  public default void warning(Supplier<String> pMessageSupplier)
+  {
+    log(Level.WARNING, null, null, pMessageSupplier);
   }
 
   /**
@@ -133,12 +162,12 @@ public interface LoggingFeature
    */
   public default void severe(String pMessage)
   {
-    getLoggerStatic().severe(getClassName(this) + ": "
-                             + pMessage.trim());
+    log(Level.SEVERE, pMessage, null, null);
   }
 
   /**
-   * Logs a sever message
+   * Logs a severe message. The message is formatted only if the level is
+   * enabled.
    * 
    * @param pFormat
    *          format string
@@ -147,8 +176,56 @@ public interface LoggingFeature
    */
   public default void severe(String pFormat, Object... args)
   {
-    getLoggerStatic().severe(getClassName(this) + ": "
-                             + String.format(pFormat, args).trim());
+    log(Level.SEVERE, pFormat, args, null);
+  }
+
+  /**
+   * Logs a severe message. The supplier is called only if the level is
+   * enabled - and not by the calling thread when logging is asynchronous.
+   * 
+   * @param pMessageSupplier
+   *          severe message supplier
+   */
+  public default void severe(Supplier<String> pMessageSupplier)
+  {
+    log(Level.SEVERE, null, null, pMessageSupplier);
+  }
+
+  /**
+   * Logs a message at a given level, nothing is done if the level is not
+   * enabled. The message is obtained from the supplier if not null - called
+   * later by another thread when logging is asynchronous - otherwise by
+   * formatting the format string with the given arguments if not null,
+   * otherwise it is the format string itself. Format strings are formatted by
+   * the calling thread, so that arguments can be mutated afterwards.
+   * 
+   * @param pLevel
+   *          level
+   * @param pFormat
+   *          format string or message
+   * @param pArguments
+   *          format arguments or null
+   * @param pMessageSupplier
+   *          message supplier or null
+   */
+  public default void log(Level pLevel,
+                          String pFormat,
+                          Object[] pArguments,
+                          Supplier<String> pMessageSupplier)
+  {
+    final Logger lLogger = getLoggerStatic();
+    if (!lLogger.isLoggable(pLevel))
+      return;
+    final String lMessage = pArguments == null
+                            || pMessageSupplier != null ? pFormat
+                                                        : String.format(pFormat,
+                                                                        pArguments);
+    AsyncLogAppender.getSingletonAsyncLogAppender()
+                    .append(lLogger,
+                            pLevel,
+                            getClassName(this),
+                            lMessage,
+                            pMessageSupplier);
   }
 
   /**
@@ -160,16 +237,29 @@ public interface LoggingFeature
    */
   public default String getClassName(Object pObject)
   {
-    String lSimpleName = pObject.getClass().getSimpleName();
+    return cSimpleClassNames.get(pObject.getClass());
+  }
 
-    if (lSimpleName == null || lSimpleName.trim().isEmpty())
+  /**
+   * Simple class names: for anonymous classes the name of the enclosing class
+   * is used.
+   *
+   * @author royer
+   */
+  class SimpleClassNames extends ClassValue<String>
+  {
+    @Override
+    protected String computeValue(Class<?> pClass)
     {
-      lSimpleName = pObject.getClass()
-                           .getEnclosingClass()
-                           .getSimpleName();
-    }
+      String lSimpleName = pClass.getSimpleName();
 
-    return lSimpleName;
+      if (lSimpleName == null || lSimpleName.trim().isEmpty())
+      {
+        lSimpleName = pClass.getEnclosingClass().getSimpleName();
+      }
+
+      return lSimpleName;
+    }
   }
 
   /**
@@ -0,0 +1,367 @@
+package clearcontrol.core.log.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import clearcontrol.core.log.AsyncLogAppender;
+import clearcontrol.core.log.BinaryFileHandler;
+import clearcontrol.core.log.BinaryLogReader;
+import clearcontrol.core.log.LoggingFeature;
+
+import org.junit.Test;
+
+/**
+ * Asynchronous logging tests
+ *
+ * @author royer
+ */
+public class AsyncLogAppenderTests implements LoggingFeature
+{
+
+  private static class CollectingHandler extends Handler
+  {
+    final List<LogRecord> mLogRecords =
+                                      Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void publish(LogRecord pLogRecord)
+    {
+      mLogRecords.add(pLogRecord);
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close() throws SecurityException
+    {
+    }
+  }
+
+  private static Logger newLogger(Handler pHandler)
+  {
+    final Logger lLogger = Logger.getAnonymousLogger();
+    lLogger.setUseParentHandlers(false);
+    lLogger.addHandler(pHandler);
+    return lLogger;
+  }
+
+  /**
+   * Tests that events from several threads are all published, in order for each
+   * thread.
+   *
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testOrdering() throws InterruptedException
+  {
+    final CollectingHandler lHandler = new CollectingHandler();
+    final Logger lLogger = newLogger(lHandler);
+    final int lNumberOfThreads = 4;
+    final int lNumberOfEvents = 10000;
+
+    try (AsyncLogAppender lAsyncLogAppender =
+                                            new AsyncLogAppender(1 << 16))
+    {
+      final Thread[] lThreads = new Thread[lNumberOfThreads];
+      for (int t = 0; t < lNumberOfThreads; t++)
+      {
+        final int lThreadIndex = t;
+        lThreads[t] = new Thread(() -> {
+          for (int i = 0; i < lNumberOfEvents; i++)
+            lAsyncLogAppender.append(lLogger,
+                                     Level.INFO,
+                                     "Source",
+                                     lThreadIndex + " " + i,
+                                     null);
+        });
+        lThreads[t].start();
+      }
+      for (final Thread lThread : lThreads)
+        lThread.join();
+      lAsyncLogAppender.flush();
+
+      assertEquals(0, lAsyncLogAppender.getNumberOfDroppedEvents());
+      assertEquals(lNumberOfThreads * lNumberOfEvents,
+                   lHandler.mLogRecords.size());
+
+      final int[] lNextEvent = new int[lNumberOfThreads];
+      for (final LogRecord lLogRecord : lHandler.mLogRecords)
+      {
+        final String[] lTokens = lLogRecord.getMessage()
+                                           .substring("Source: ".length())
+                                           .split(" ");
+        final int lThreadIndex = Integer.parseInt(lTokens[0]);
+        assertEquals(lNextEvent[lThreadIndex]++,
+                     Integer.parseInt(lTokens[1]));
+        assertEquals("Source", lLogRecord.getSourceClassName());
+      }
+    }
+  }
+
+  /**
+   * Tests that messages are not formatted when the level is disabled
+   */
+  @Test
+  public void testLazyFormatting()
+  {
+    final Logger lLogger = LoggingFeature.getLoggerStatic();
+    final Level lLevel = lLogger.getLevel();
+    final AtomicInteger lCounter = new AtomicInteger();
+    try
+    {
+      lLogger.setLevel(Level.WARNING);
+      info(() -> "message " + lCounter.incrementAndGet());
+      info("%s", new Object()
+      {
+        @Override
+        public String toString()
+        {
+          return "message " + lCounter.incrementAndGet();
+        }
+      });
+      AsyncLogAppender.getSingletonAsyncLogAppender().flush();
+      assertEquals(0, lCounter.get());
+    }
+    finally
+    {
+      lLogger.setLevel(lLevel);
+    }
+  }
+
+  /**
+   * Tests that messages are formatted by the calling thread, so that arguments
+   * can be mutated once logged
+   */
+  @Test
+  public void testFormattingByCallingThread()
+  {
+    final CollectingHandler lHandler = new CollectingHandler();
+    final Logger lLogger = LoggingFeature.getLoggerStatic();
+    final Level lLevel = lLogger.getLevel();
+    final boolean lUseParentHandlers = lLogger.getUseParentHandlers();
+    try
+    {
+      lLogger.setLevel(Level.INFO);
+      lLogger.setUseParentHandlers(false);
+      lLogger.addHandler(lHandler);
+
+      final StringBuilder lArgument = new StringBuilder("before");
+      info("argument: %s", lArgument);
+      lArgument.setLength(0);
+      lArgument.append("after");
+      AsyncLogAppender.getSingletonAsyncLogAppender().flush();
+
+      assertEquals(1, lHandler.mLogRecords.size());
+      assertTrue(lHandler.mLogRecords.get(0)
+                                     .getMessage()
+                                     .endsWith("argument: before"));
+    }
+    finally
+    {
+      lLogger.removeHandler(lHandler);
+      lLogger.setUseParentHandlers(lUseParentHandlers);
+      lLogger.setLevel(lLevel);
+    }
+  }
+
+  /**
+   * Tests that a full ring buffer drops information events but not warnings
+   */
+  @Test
+  public void testFullRingBuffer()
+  {
+    final CollectingHandler lHandler = new CollectingHandler();
+    final Logger lLogger = newLogger(lHandler);
+
+    try (AsyncLogAppender lAsyncLogAppender = new AsyncLogAppender(2))
+    {
+      // the drain thread is kept busy so that the ring buffer fills up:
+      final Object lLock = new Object();
+      synchronized (lLock)
+      {
+        lAsyncLogAppender.append(lLogger,
+                                 Level.INFO,
+                                 null,
+                                 null,
+                                 () -> {
+                                   synchronized (lLock)
+                                   {
+                                     return "blocking";
+                                   }
+                                 });
+        for (int i = 0; i < 100; i++)
+          lAsyncLogAppender.append(lLogger,
+                                   Level.INFO,
+                                   null,
+                                   "info",
+                                   null);
+        lAsyncLogAppender.append(lLogger,
+                                 Level.WARNING,
+                                 null,
+                                 "warning",
+                                 null);
+        // the warning is published synchronously:
+        assertTrue(lHandler.mLogRecords.stream()
+                                       .anyMatch(r -> r.getMessage()
+                                                       .equals("warning")));
+      }
+      lAsyncLogAppender.flush();
+      assertTrue(lAsyncLogAppender.getNumberOfDroppedEvents() > 0);
+    }
+  }
+
+  /**
+   * Tests writing and reading back a binary log file
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testBinaryFile() throws IOException
+  {
+    final File lFile = File.createTempFile("AsyncLogAppenderTests", ".bin");
+    lFile.deleteOnExit();
+
+    final BinaryFileHandler lBinaryFileHandler =
+                                               new BinaryFileHandler(lFile);
+    final Logger lLogger = newLogger(lBinaryFileHandler);
+    try (AsyncLogAppender lAsyncLogAppender = new AsyncLogAppender(1024))
+    {
+      for (int i = 0; i < 100; i++)
+        lAsyncLogAppender.append(lLogger,
+                                 i % 10 == 0 ? Level.WARNING : Level.INFO,
+                                 i % 2 == 0 ? "Even" : "Odd",
+                                 "event " + i + " \u00e9",
+                                 null);
+    }
+    lLogger.log(Level.SEVERE,
+                "no source",
+                new IllegalStateException("test"));
+    lBinaryFileHandler.close();
+
+    try (BinaryLogReader lBinaryLogReader = new BinaryLogReader(lFile))
+    {
+      for (int i = 0; i < 100; i++)
+      {
+        final LogRecord lLogRecord = lBinaryLogReader.next();
+        assertEquals(i % 10 == 0 ? Level.WARNING : Level.INFO,
+                     lLogRecord.getLevel());
+        assertEquals((i % 2 == 0 ? "Even" : "Odd") + ": event "
+                     + i
+                     + " \u00e9", lLogRecord.getMessage());
+        assertEquals(Thread.currentThread().getId(),
+                     lLogRecord.getThreadID());
+      }
+      final LogRecord lLogRecord = lBinaryLogReader.next();
+      assertEquals(Level.SEVERE, lLogRecord.getLevel());
+      assertTrue(lLogRecord.getMessage().startsWith("no source"));
+      assertTrue(lLogRecord.getMessage()
+                           .contains("IllegalStateException: test"));
+      assertNull(lBinaryLogReader.next());
+    }
+
+    // 100 events fit in a small file:
+    assertTrue(lFile.length() < 100 * 32);
+  }
+
+  /**
+   * Measures the per call cost of logging with the level disabled, and enabled
+   * with synchronous and asynchronous logging, and checks that disabled logging
+   * is the cheapest. Each measurement is repeated after warm-up iterations, and
+   * the best iteration is kept.
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testBenchmark() throws IOException
+  {
+    final int lNumberOfWarmUpIterations = 5;
+    final int lNumberOfIterations = 10;
+    final int lNumberOfCalls = 20000;
+
+    final Logger lLogger = LoggingFeature.getLoggerStatic();
+    final Level lLevel = lLogger.getLevel();
+    final boolean lUseParentHandlers = lLogger.getUseParentHandlers();
+    final AsyncLogAppender lAsyncLogAppender =
+                                             AsyncLogAppender.getSingletonAsyncLogAppender();
+    final boolean lAsynchronous = lAsyncLogAppender.isAsynchronous();
+
+    final File lFile = File.createTempFile("AsyncLogAppenderTests", ".bin");
+    lFile.deleteOnExit();
+    final BinaryFileHandler lBinaryFileHandler =
+                                               new BinaryFileHandler(lFile);
+    try
+    {
+      lLogger.setUseParentHandlers(false);
+      lLogger.addHandler(lBinaryFileHandler);
+
+      lLogger.setLevel(Level.WARNING);
+      final double lDisabled = benchmark(lNumberOfWarmUpIterations,
+                                         lNumberOfIterations,
+                                         lNumberOfCalls);
+
+      lLogger.setLevel(Level.INFO);
+      lAsyncLogAppender.setAsynchronous(false);
+      final double lSynchronous = benchmark(lNumberOfWarmUpIterations,
+                                            lNumberOfIterations,
+                                            lNumberOfCalls);
+
+      lAsyncLogAppender.setAsynchronous(true);
+      final double lAsynchronousCost =
+                                     benchmark(lNumberOfWarmUpIterations,
+                                               lNumberOfIterations,
+                                               lNumberOfCalls);
+      lAsyncLogAppender.flush();
+
+      assertTrue(lDisabled < lSynchronous);
+      assertTrue(lDisabled < lAsynchronousCost);
+    }
+    finally
+    {
+      lLogger.setLevel(lLevel);
+      lLogger.removeHandler(lBinaryFileHandler);
+      lLogger.setUseParentHandlers(lUseParentHandlers);
+      lAsyncLogAppender.setAsynchronous(lAsynchronous);
+      lBinaryFileHandler.close();
+    }
+  }
+
+  private double benchmark(int pNumberOfWarmUpIterations,
+                           int pNumberOfIterations,
+                           int pNumberOfCalls)
+  {
+    double lBestCostPerCall = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < pNumberOfWarmUpIterations
+                        + pNumberOfIterations; i++)
+    {
+      final long lStart = System.nanoTime();
+      for (int c = 0; c < pNumberOfCalls; c++)
+        info("iteration %d call %d value %g", i, c, 0.5 * c);
+      final double lCostPerCall = (System.nanoTime() - lStart)
+                                  / (double) pNumberOfCalls;
+      if (i >= pNumberOfWarmUpIterations)
+        lBestCostPerCall = Math.min(lBestCostPerCall, lCostPerCall);
+      // pending events are not counted in the next iteration:
+      AsyncLogAppender.getSingletonAsyncLogAppender().flush();
+    }
+    return lBestCostPerCall;
+  }
+
+}
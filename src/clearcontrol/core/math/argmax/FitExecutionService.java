@@ -0,0 +1,252 @@
+package clearcontrol.core.math.argmax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * Fit execution service shared by all argmax finders and fit quality
+ * estimators. Fits are executed on a single bounded thread pool, instead of
+ * creating thread pools per finder or per call. When the pool's queue is full,
+ * tasks are executed by the calling thread. Tasks executed from within a pool
+ * thread (nested fits) are executed directly by that thread, so that pool
+ * threads never wait for tasks queued behind them.
+ *
+ * The argmax finders of ensembles run on a second bounded pool of their own:
+ * they are short and have a time out, they must not queue behind long batches
+ * of fits such as null hypothesis table builds, and ensembles used from fit
+ * threads still get their time out.
+ *
+ * @author royer
+ */
+public class FitExecutionService
+{
+  private static final int cNumberOfThreads =
+                                            Math.max(1,
+                                                     Runtime.getRuntime()
+                                                            .availableProcessors());
+  private static final int cMaxQueueLength = 16 * 1024;
+  private static final int cMaxEnsembleQueueLength = 1024;
+
+  private static final FitExecutionService cFitExecutionService =
+                                                                new FitExecutionService(cMaxQueueLength);
+
+  private static final FitExecutionService cEnsembleExecutionService =
+                                                                     new FitExecutionService(cMaxEnsembleQueueLength);
+
+  private final int mMaxQueueLength;
+
+  private final ThreadLocal<Boolean> mIsPoolThread =
+                                                   ThreadLocal.withInitial(() -> false);
+
+  private FitExecutionService(int pMaxQueueLength)
+  {
+    super();
+    mMaxQueueLength = pMaxQueueLength;
+  }
+
+  /**
+   * Returns the shared thread pool executor used for fitting.
+   *
+   * @return thread pool executor
+   */
+  public static ThreadPoolExecutor getExecutor()
+  {
+    return cFitExecutionService.getThreadPoolExecutor();
+  }
+
+  /**
+   * Returns the thread pool executor used for the argmax finders of ensembles.
+   *
+   * @return thread pool executor
+   */
+  public static ThreadPoolExecutor getEnsembleExecutor()
+  {
+    return cEnsembleExecutionService.getThreadPoolExecutor();
+  }
+
+  private ThreadPoolExecutor getThreadPoolExecutor()
+  {
+    ThreadPoolExecutor lThreadPoolExecutor =
+                                           ClearControlExecutors.getThreadPoolExecutor(this);
+    if (lThreadPoolExecutor == null)
+    {
+      synchronized (this)
+      {
+        lThreadPoolExecutor =
+                            ClearControlExecutors.getOrCreateThreadPoolExecutor(this,
+                                                                                Thread.NORM_PRIORITY,
+                                                                                cNumberOfThreads,
+                                                                                cNumberOfThreads,
+                                                                                mMaxQueueLength);
+        lThreadPoolExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+      }
+    }
+    return lThreadPoolExecutor;
+  }
+
+  /**
+   * Returns the number of threads of the shared thread pool
+   *
+   * @return number of threads
+   */
+  public static int getNumberOfThreads()
+  {
+    return cNumberOfThreads;
+  }
+
+  /**
+   * Returns true if the current thread is a thread of the shared fit thread
+   * pool.
+   *
+   * @return true if current thread is a fit thread
+   */
+  public static boolean isFitThread()
+  {
+    return cFitExecutionService.mIsPoolThread.get();
+  }
+
+  /**
+   * Executes the given tasks concurrently and waits for their results. Results
+   * are returned in the order of the tasks, a task that fails or that does not
+   * finish in time has a null result (and is cancelled). Failures and time outs
+   * are logged.
+   *
+   * @param pTasks
+   *          tasks
+   * @param pTimeOut
+   *          timeout for all tasks
+   * @param pTimeUnit
+   *          timeout unit
+   * @return list of results, in the order of the tasks
+   */
+  public static <T> ArrayList<T> executeAll(List<? extends Callable<T>> pTasks,
+                                            long pTimeOut,
+                                            TimeUnit pTimeUnit)
+  {
+    return cFitExecutionService.execute(pTasks, pTimeOut, pTimeUnit);
+  }
+
+  /**
+   * Executes the argmax finders of an ensemble concurrently on the ensemble
+   * pool and waits for their results, see executeAll.
+   *
+   * @param pTasks
+   *          tasks
+   * @param pTimeOut
+   *          timeout for all tasks
+   * @param pTimeUnit
+   *          timeout unit
+   * @return list of results, in the order of the tasks
+   */
+  public static <T> ArrayList<T> executeAllEnsemble(List<? extends Callable<T>> pTasks,
+                                                    long pTimeOut,
+                                                    TimeUnit pTimeUnit)
+  {
+    return cEnsembleExecutionService.execute(pTasks,
+                                             pTimeOut,
+                                             pTimeUnit);
+  }
+
+  private <T> ArrayList<T> execute(List<? extends Callable<T>> pTasks,
+                                   long pTimeOut,
+                                   TimeUnit pTimeUnit)
+  {
+    final ArrayList<T> lResults = new ArrayList<>(pTasks.size());
+
+    if (mIsPoolThread.get())
+    {
+      // nested: we are already on a thread of this pool, tasks are executed
+      // here.
+      for (final Callable<T> lTask : pTasks)
+        lResults.add(call(lTask));
+      return lResults;
+    }
+
+    final ThreadPoolExecutor lThreadPoolExecutor = getThreadPoolExecutor();
+    final ArrayList<FutureTask<T>> lFutureTaskList =
+                                                   new ArrayList<>(pTasks.size());
+    for (final Callable<T> lTask : pTasks)
+    {
+      final FutureTask<T> lFutureTask = new FutureTask<T>(() -> {
+        mIsPoolThread.set(true);
+        try
+        {
+          return lTask.call();
+        }
+        finally
+        {
+          mIsPoolThread.set(false);
+        }
+      });
+      lThreadPoolExecutor.execute(lFutureTask);
+      lFutureTaskList.add(lFutureTask);
+    }
+
+    final long lTimeOutInNanos = pTimeUnit.toNanos(pTimeOut);
+    final long lDeadlineInNanos = System.nanoTime() + lTimeOutInNanos;
+    for (final FutureTask<T> lFutureTask : lFutureTaskList)
+    {
+      T lResult = null;
+      try
+      {
+        final long lRemainingNanos =
+                                   lTimeOutInNanos == Long.MAX_VALUE ? Long.MAX_VALUE
+                                                                     : lDeadlineInNanos
+                                                                       - System.nanoTime();
+        lResult = lFutureTask.get(Math.max(0, lRemainingNanos),
+                                  TimeUnit.NANOSECONDS);
+      }
+      catch (final InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        lFutureTask.cancel(true);
+      }
+      catch (final ExecutionException e)
+      {
+        logFailure(e.getCause());
+      }
+      catch (final TimeoutException e)
+      {
+        lFutureTask.cancel(true);
+        LoggingFeature.getLoggerStatic()
+                      .warning("Fit task cancelled after time out of "
+                               + pTimeUnit.toMillis(pTimeOut)
+                               + " ms");
+      }
+      lResults.add(lResult);
+    }
+
+    return lResults;
+  }
+
+  private static <T> T call(Callable<T> pTask)
+  {
+    try
+    {
+      return pTask.call();
+    }
+    catch (final Throwable e)
+    {
+      logFailure(e);
+      return null;
+    }
+  }
+
+  private static void logFailure(Throwable pThrowable)
+  {
+    LoggingFeature.getLoggerStatic().log(Level.WARNING,
+                                         "Fit task failed",
+                                         pThrowable);
+  }
+
+}
@@ -1,6 +1,11 @@
 package clearcontrol.core.math.argmax;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
 import clearcontrol.core.math.argmax.fitprob.GaussianFitQualityEstimator;
+import clearcontrol.core.math.argmax.fitprob.NullHypothesisDistributionTable;
 import clearcontrol.core.math.argmax.methods.COMArgMaxFinder;
 import clearcontrol.core.math.argmax.methods.ClampingArgMaxFinder;
 import clearcontrol.core.math.argmax.methods.DenoisingArgMaxFinder;
@@ -47,6 +52,7 @@ public class SmartArgMaxFinder implements
 
   private Double mFitProbability;
   private Double mRMSD;
+  private Double[] mFitProbabilities;
 
   /**
    * Smart argmax finder
@@ -121,6 +127,63 @@ public class SmartArgMaxFinder implements
     return lEnsembleArgMaxFinder.argmax(pX, pY);
   }
 
+  /**
+   * Returns the argmaxes of many (X,Y) curves at once. Curves are processed
+   * concurrently on the shared fit execution service, the fit probabilities of
+   * each curve are available afterwards from getLastFitProbabilities().
+   * 
+   * @param pX
+   *          x data, one array per curve
+   * @param pY
+   *          y data, one array per curve
+   * @return argmaxes, one per curve (null if no argmax could be found)
+   */
+  public Double[] argmax(double[][] pX, double[][] pY)
+  {
+    // null hypothesis distributions are looked up (and if needed computed)
+    // first, so that the curves processed below do not wait for them:
+    for (final double[] lX : pX)
+      NullHypothesisDistributionTable.getDefault().get(lX.length);
+
+    final Double[] lFitProbabilities = new Double[pX.length];
+    final ArrayList<Callable<Double>> lTaskList =
+                                                new ArrayList<>(pX.length);
+    for (int i = 0; i < pX.length; i++)
+    {
+      final int lIndex = i;
+      lTaskList.add(() -> {
+        // argmax finders keep state, each curve needs its own finder:
+        final SmartArgMaxFinder lSmartArgMaxFinder =
+                                                   new SmartArgMaxFinder();
+        lSmartArgMaxFinder.setDenoisingActive(mDenoisingActive);
+        final Double lArgMax = lSmartArgMaxFinder.argmax(pX[lIndex],
+                                                         pY[lIndex]);
+        lFitProbabilities[lIndex] =
+                                  lSmartArgMaxFinder.getLastFitProbability();
+        return lArgMax;
+      });
+    }
+
+    final ArrayList<Double> lResultList =
+                                        FitExecutionService.executeAll(lTaskList,
+                                                                       Long.MAX_VALUE,
+                                                                       TimeUnit.NANOSECONDS);
+
+    mFitProbabilities = lFitProbabilities;
+    return lResultList.toArray(new Double[lResultList.size()]);
+  }
+
+  /**
+   * Returns the fit probabilities of the curves given in the last call to the
+   * batch argmax method.
+   * 
+   * @return fit probabilities, one per curve
+   */
+  public Double[] getLastFitProbabilities()
+  {
+    return mFitProbabilities;
+  }
+
   @Override
   public double[] fit(double[] pX, double[] pY)
   {
@@ -2,242 +2,50 @@ package clearcontrol.core.math.argmax.fitprob;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
-import static java.lang.Math.sqrt;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
-import gnu.trove.list.array.TDoubleArrayList;
+import clearcontrol.core.math.argmax.FitExecutionService;
 
 import org.apache.commons.math3.analysis.differentiation.UnivariateDifferentiableFunction;
 import org.apache.commons.math3.distribution.NormalDistribution;
-import org.apache.commons.math3.stat.descriptive.moment.Mean;
-import org.apache.commons.math3.stat.descriptive.moment.Variance;
 
 /**
- * Gaussian fit quality estimator
+ * Gaussian fit quality estimator. Null hypothesis distributions are looked up
+ * in a shared, persisted {@link NullHypothesisDistributionTable}.
  *
  * @author royer
  */
 public class GaussianFitQualityEstimator
 {
-  private static final int cMaxNumberOfRandomizedDatasets = 100000;
-
-  private static final ConcurrentHashMap<Integer, NormalDistribution> sNullHypothesisDistribution =
-                                                                                                  new ConcurrentHashMap<>();
-
-  private static final int cBufferLength = 128 * 1024;
-
-  private final ExecutorService mExecutorService;
+  private final NullHypothesisDistributionTable mNullHypothesisDistributionTable;
 
   private UnivariateDifferentiableFunction mUnivariateDifferentiableFunction;
 
   private Double mRealDataRMSD;
 
   /**
-   * Instantiates a fit quality estimator with half the number of cores as
-   * thread pool size.
+   * Instantiates a fit quality estimator that uses the default null hypothesis
+   * distribution table.
    */
   public GaussianFitQualityEstimator()
   {
-    this(Executors.newFixedThreadPool(max(1,
-                                          Runtime.getRuntime()
-                                                 .availableProcessors()
-                                             / 2)));
+    this(NullHypothesisDistributionTable.getDefault());
   }
 
   /**
-   * Instantiates a fit quality estimator with a given executor service
+   * Instantiates a fit quality estimator with a given null hypothesis
+   * distribution table
    * 
-   * @param pExecutorService
-   *          executor service
+   * @param pNullHypothesisDistributionTable
+   *          null hypothesis distribution table
    */
-  public GaussianFitQualityEstimator(ExecutorService pExecutorService)
-  {
-    mExecutorService = pExecutorService;
-  }
-
-  private NormalDistribution getNullHypothesisDistribution(int lLength)
-  {
-    // System.out.println("getNullHypothesisDistribution...");
-    NormalDistribution lNormalDistribution =
-                                           sNullHypothesisDistribution.get(lLength);
-    if (lNormalDistribution == null)
-    {
-      final File lCacheFile = getFile(lLength);
-      if (!lCacheFile.exists())
-      {
-        lNormalDistribution =
-                            computeNullHypothesisDistribution(lLength);
-        sNullHypothesisDistribution.put(lLength, lNormalDistribution);
-        try
-        {
-          writeToFile(lNormalDistribution, lCacheFile);
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
-      }
-      else
-      {
-        try
-        {
-          lNormalDistribution = readFromFile(lCacheFile);
-        }
-        catch (final ClassNotFoundException e)
-        {
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
-      }
-
-      if (lNormalDistribution == null)
-      {
-        lNormalDistribution =
-                            computeNullHypothesisDistribution(lLength);
-        sNullHypothesisDistribution.put(lLength, lNormalDistribution);
-        try
-        {
-          writeToFile(lNormalDistribution, lCacheFile);
-        }
-        catch (final Throwable e)
-        {
-          e.printStackTrace();
-        }
-      }
-
-    }
-    // System.out.println("getNullHypothesisDistribution=" +
-    // lNormalDistribution);
-    return lNormalDistribution;
-  }
-
-  private File getFile(int pLength)
-  {
-    final File lUserHome = new File(System.getProperty("user.home"));
-    final File lStatsFolder = new File(lUserHome, ".stats");
-    if (!lStatsFolder.exists())
-      lStatsFolder.mkdirs();
-    final File lFile = new File(lStatsFolder,
-                                String.format("%s_l=%d.obj",
-                                              this.getClass()
-                                                  .getSimpleName(),
-                                              pLength));
-
-    return lFile;
-  }
-
-  private void writeToFile(NormalDistribution pNormalDistribution,
-                           File pFile) throws IOException
+  public GaussianFitQualityEstimator(NullHypothesisDistributionTable pNullHypothesisDistributionTable)
   {
-    final FileOutputStream lFileOutputStream =
-                                             new FileOutputStream(pFile);
-    final BufferedOutputStream lBufferedOutputStream =
-                                                     new BufferedOutputStream(lFileOutputStream,
-                                                                              cBufferLength);
-    final ObjectOutputStream lObjectOutputStream =
-                                                 new ObjectOutputStream(lBufferedOutputStream);
-    lObjectOutputStream.writeObject(pNormalDistribution);
-    lObjectOutputStream.close();
-    lFileOutputStream.close();
-  }
-
-  private NormalDistribution readFromFile(File pFile) throws IOException,
-                                                      ClassNotFoundException
-  {
-    final FileInputStream lFileInputStream =
-                                           new FileInputStream(pFile);
-    final BufferedInputStream lBufferedInputStream =
-                                                   new BufferedInputStream(lFileInputStream,
-                                                                           cBufferLength);
-    final ObjectInputStream lObjectInputStream =
-                                               new ObjectInputStream(lBufferedInputStream);
-    final NormalDistribution lNormalDistribution =
-                                                 (NormalDistribution) lObjectInputStream.readObject();
-    lObjectInputStream.close();
-    lFileInputStream.close();
-
-    return lNormalDistribution;
-  }
-
-  private NormalDistribution computeNullHypothesisDistribution(int lLength)
-  {
-    // System.out.println("computeNullHypothesisDistribution...");
-    final int lNumberOfRandomizedDatasets =
-                                          cMaxNumberOfRandomizedDatasets;
-
-    final ArrayList<FutureTask<Double>> lTaskList =
-                                                  new ArrayList<FutureTask<Double>>(lNumberOfRandomizedDatasets);
-
-    final double[] lX = new double[lLength];
-    for (int i = 0; i < lLength; i++)
-      lX[i] = i;
-
-    for (int i = 0; i < lNumberOfRandomizedDatasets; i++)
-    {
-      final RandomizedDataGaussianFitter lRandomizedDataGaussianFitter =
-                                                                       new RandomizedDataGaussianFitter();
-      final Callable<Double> lCallable = () -> {
-        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-        return lRandomizedDataGaussianFitter.computeRMSDForRandomData(lX);
-      };
-      final FutureTask<Double> lFutureTask =
-                                           new FutureTask<Double>(lCallable);
-      mExecutorService.execute(lFutureTask);
-      lTaskList.add(lFutureTask);
-    }
-
-    final TDoubleArrayList lIRMSDList = new TDoubleArrayList();
-    for (final FutureTask<Double> lFutureTask : lTaskList)
-    {
-      try
-      {
-        final Double lRMSD = lFutureTask.get(200,
-                                             TimeUnit.MILLISECONDS);
-        if (lRMSD != null)
-          lIRMSDList.add(lRMSD);
-      }
-      catch (final Throwable e)
-      {
-      }
-    }
-
-    final double[] lIRMSDArray = lIRMSDList.toArray();
-    final Mean lMean = new Mean();
-    final Variance lVariance = new Variance();
-    final double lVarianceValue = lVariance.evaluate(lIRMSDArray);
-    final double lCenterValue = lMean.evaluate(lIRMSDArray);
-    final double lStandardDeviation = sqrt(lVarianceValue);
-
-    /*System.out.format("n= %d, mu=%g, sigma=%g \n",
-    									lLength,
-    									lCenterValue,
-    									lStandardDeviation);/**/
-
-    // lCenterValue = 0.25;// lMean.evaluate(lIRMSDArray);
-    // lStandardDeviation = 0.0625; // sqrt(lVarianceValue);
-
-    final NormalDistribution lNormalDistribution =
-                                                 new NormalDistribution(lCenterValue,
-                                                                        lStandardDeviation);
-    return lNormalDistribution;
-
+    mNullHypothesisDistributionTable =
+                                     pNullHypothesisDistributionTable;
   }
 
   /**
@@ -268,16 +76,7 @@ public class GaussianFitQualityEstimator
       mUnivariateDifferentiableFunction =
                                         lDataGaussianFitter.getFunction();
 
-      final NormalDistribution lNormalDistribution =
-                                                   getNullHypothesisDistribution(pX.length);
-
-      final double lProbabilityThatRandomDataHasWorseFit =
-                                                         lNormalDistribution.cumulativeProbability(mRealDataRMSD);
-
-      final double lFitProbability =
-                                   1 - lProbabilityThatRandomDataHasWorseFit;
-
-      return lFitProbability;
+      return probabilityForRMSD(pX.length, mRealDataRMSD);
     }
     catch (final Throwable e)
     {
@@ -286,6 +85,70 @@ public class GaussianFitQualityEstimator
     }
   }
 
+  /**
+   * Returns the probabilities that each of the given (X,Y) curves truly
+   * originates from a Gaussian curve. Curves are fitted concurrently on the
+   * shared fit execution service. This method does not change the RMSD and fit
+   * returned by getRMSD() and getFit(...).
+   * 
+   * @param pX
+   *          x data, one array per curve
+   * @param pY
+   *          y data, one array per curve
+   * @return probabilities, one per curve
+   */
+  public double[] probabilities(double[][] pX, double[][] pY)
+  {
+    // null hypothesis distributions are looked up (and if needed computed)
+    // first, so that the curve fits below do not wait for them:
+    for (final double[] lX : pX)
+      mNullHypothesisDistributionTable.get(lX.length);
+
+    final ArrayList<Callable<Double>> lTaskList =
+                                                new ArrayList<>(pX.length);
+    for (int i = 0; i < pX.length; i++)
+    {
+      final double[] lX = pX[i];
+      final double[] lY = pY[i];
+      lTaskList.add(() -> {
+        final RandomizedDataGaussianFitter lDataGaussianFitter =
+                                                               new RandomizedDataGaussianFitter(lX,
+                                                                                                RandomizedDataGaussianFitter.normalizeCopy(lY));
+        final Double lRMSD = lDataGaussianFitter.computeRMSD();
+        if (lRMSD == null)
+          return 0.0;
+        return probabilityForRMSD(lX.length, lRMSD);
+      });
+    }
+
+    final ArrayList<Double> lResultList =
+                                        FitExecutionService.executeAll(lTaskList,
+                                                                       Long.MAX_VALUE,
+                                                                       TimeUnit.NANOSECONDS);
+
+    final double[] lProbabilities = new double[pX.length];
+    for (int i = 0; i < lProbabilities.length; i++)
+    {
+      final Double lProbability = lResultList.get(i);
+      lProbabilities[i] = lProbability == null ? 0 : lProbability;
+    }
+    return lProbabilities;
+  }
+
+  private double probabilityForRMSD(int pLength, double pRMSD)
+  {
+    final NormalDistribution lNormalDistribution =
+                                                 mNullHypothesisDistributionTable.get(pLength);
+
+    final double lProbabilityThatRandomDataHasWorseFit =
+                                                       lNormalDistribution.cumulativeProbability(pRMSD);
+
+    final double lFitProbability =
+                                 1 - lProbabilityThatRandomDataHasWorseFit;
+
+    return lFitProbability;
+  }
+
   /**
    * Returns the RMSD of the last provided (X,Y) data.
    * 
@@ -0,0 +1,368 @@
+package clearcontrol.core.math.argmax.fitprob;
+
+import static java.lang.Math.sqrt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.math.argmax.FitExecutionService;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+/**
+ * Table of null-hypothesis distributions, per sample length, of the RMSD of
+ * Gaussian fits to random data. Computing a distribution requires fitting a
+ * large number of randomized datasets, so distributions are computed at most
+ * once per sample length, and the whole table is persisted in a single text
+ * file that is read once. Distributions can be precomputed for a range of
+ * sample lengths ahead of time.
+ *
+ * Distributions persisted by previous versions (one serialized object file per
+ * sample length) are imported into the table when found.
+ *
+ * @author royer
+ */
+public class NullHypothesisDistributionTable
+{
+  private static final int cNumberOfRandomizedDatasets = 100000;
+  private static final int cNumberOfRandomizedDatasetsPerTask = 1000;
+  private static final int cBufferLength = 128 * 1024;
+
+  private static final NullHypothesisDistributionTable cDefaultTable =
+                                                                     new NullHypothesisDistributionTable(new File(getStatsFolder(),
+                                                                                                                  NullHypothesisDistributionTable.class.getSimpleName()
+                                                                                                                                     + ".txt"));
+
+  private final File mFile;
+  private final int mNumberOfRandomizedDatasets;
+  private final ConcurrentHashMap<Integer, FutureTask<NormalDistribution>> mDistributionMap =
+                                                                                              new ConcurrentHashMap<>();
+  // distributions written to the file, guarded by this:
+  private final TreeMap<Integer, NormalDistribution> mPersistedMap =
+                                                                  new TreeMap<>();
+  private volatile boolean mLoaded = false;
+
+  /**
+   * Returns the default table, shared by all fit quality estimators and
+   * persisted in the user's home folder.
+   *
+   * @return default table
+   */
+  public static NullHypothesisDistributionTable getDefault()
+  {
+    return cDefaultTable;
+  }
+
+  /**
+   * Instantiates a table persisted in the given file.
+   *
+   * @param pFile
+   *          file in which to persist the table, null for no persistence.
+   */
+  public NullHypothesisDistributionTable(File pFile)
+  {
+    this(pFile, cNumberOfRandomizedDatasets);
+  }
+
+  /**
+   * Instantiates a table persisted in the given file, and using a given number
+   * of randomized datasets to compute each distribution.
+   *
+   * @param pFile
+   *          file in which to persist the table, null for no persistence.
+   * @param pNumberOfRandomizedDatasets
+   *          number of randomized datasets per distribution
+   */
+  public NullHypothesisDistributionTable(File pFile,
+                                         int pNumberOfRandomizedDatasets)
+  {
+    super();
+    mFile = pFile;
+    mNumberOfRandomizedDatasets = pNumberOfRandomizedDatasets;
+  }
+
+  /**
+   * Returns the null hypothesis distribution for a given sample length. The
+   * distribution is computed (and persisted) if it is not yet in the table.
+   * Concurrent requests for the same sample length wait for a single
+   * computation.
+   *
+   * @param pLength
+   *          sample length
+   * @return normal distribution of RMSD for random data
+   */
+  public NormalDistribution get(int pLength)
+  {
+    ensureLoaded();
+
+    FutureTask<NormalDistribution> lFutureTask =
+                                               mDistributionMap.get(pLength);
+    if (lFutureTask == null)
+    {
+      final FutureTask<NormalDistribution> lNewFutureTask =
+                                                          new FutureTask<>(() -> computeAndPersist(pLength));
+      lFutureTask = mDistributionMap.putIfAbsent(pLength,
+                                                 lNewFutureTask);
+      if (lFutureTask == null)
+      {
+        lFutureTask = lNewFutureTask;
+        lFutureTask.run();
+      }
+    }
+
+    try
+    {
+      return lFutureTask.get();
+    }
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    catch (final ExecutionException e)
+    {
+      e.printStackTrace();
+      mDistributionMap.remove(pLength, lFutureTask);
+      return null;
+    }
+  }
+
+  /**
+   * Returns true if the distribution for a given sample length is already
+   * available (precomputed) in the table.
+   *
+   * @param pLength
+   *          sample length
+   * @return true if available
+   */
+  public boolean contains(int pLength)
+  {
+    ensureLoaded();
+    final FutureTask<NormalDistribution> lFutureTask =
+                                                     mDistributionMap.get(pLength);
+    return lFutureTask != null && lFutureTask.isDone();
+  }
+
+  /**
+   * Precomputes the distributions for all sample lengths within a given range
+   * (inclusive), distributions already in the table are not recomputed.
+   *
+   * @param pMinLength
+   *          min sample length
+   * @param pMaxLength
+   *          max sample length
+   */
+  public void precompute(int pMinLength, int pMaxLength)
+  {
+    for (int lLength = pMinLength; lLength <= pMaxLength; lLength++)
+      get(lLength);
+  }
+
+  private NormalDistribution computeAndPersist(int pLength)
+  {
+    NormalDistribution lNormalDistribution =
+                                           readLegacyFile(pLength);
+    if (lNormalDistribution == null)
+      lNormalDistribution = compute(pLength);
+
+    try
+    {
+      write(pLength, lNormalDistribution);
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+    }
+
+    return lNormalDistribution;
+  }
+
+  private NormalDistribution compute(int pLength)
+  {
+    final double[] lX = new double[pLength];
+    for (int i = 0; i < pLength; i++)
+      lX[i] = i;
+
+    // datasets are fitted in batches, each batch reuses a single fitter:
+    final ArrayList<Callable<double[]>> lTaskList = new ArrayList<>();
+    final int lNumberOfTasks = (mNumberOfRandomizedDatasets
+                                + cNumberOfRandomizedDatasetsPerTask
+                                - 1)
+                               / cNumberOfRandomizedDatasetsPerTask;
+    for (int t = 0; t < lNumberOfTasks; t++)
+    {
+      final int lNumberOfDatasets =
+                                  Math.min(cNumberOfRandomizedDatasetsPerTask,
+                                           mNumberOfRandomizedDatasets
+                                                                       - t * cNumberOfRandomizedDatasetsPerTask);
+      lTaskList.add(() -> {
+        final RandomizedDataGaussianFitter lRandomizedDataGaussianFitter =
+                                                                         new RandomizedDataGaussianFitter();
+        final double[] lRMSDs = new double[lNumberOfDatasets];
+        for (int i = 0; i < lNumberOfDatasets; i++)
+        {
+          final Double lRMSD =
+                             lRandomizedDataGaussianFitter.computeRMSDForRandomData(lX);
+          lRMSDs[i] = lRMSD == null ? Double.NaN : lRMSD;
+        }
+        return lRMSDs;
+      });
+    }
+
+    final ArrayList<double[]> lResultList =
+                                          FitExecutionService.executeAll(lTaskList,
+                                                                         Long.MAX_VALUE,
+                                                                         TimeUnit.NANOSECONDS);
+
+    // mean and variance, (Welford's online algorithm):
+    long lCount = 0;
+    double lMean = 0;
+    double lM2 = 0;
+    for (final double[] lRMSDs : lResultList)
+    {
+      if (lRMSDs == null)
+        continue;
+      for (final double lRMSD : lRMSDs)
+      {
+        if (Double.isNaN(lRMSD))
+          continue;
+        lCount++;
+        final double lDelta = lRMSD - lMean;
+        lMean += lDelta / lCount;
+        lM2 += lDelta * (lRMSD - lMean);
+      }
+    }
+
+    final double lStandardDeviation = sqrt(lM2 / (lCount - 1));
+
+    return new NormalDistribution(lMean, lStandardDeviation);
+  }
+
+  private void ensureLoaded()
+  {
+    if (mLoaded)
+      return;
+    synchronized (this)
+    {
+      if (mLoaded)
+        return;
+      try
+      {
+        if (mFile != null && mFile.exists())
+          read();
+      }
+      catch (final Throwable e)
+      {
+        e.printStackTrace();
+      }
+      mLoaded = true;
+    }
+  }
+
+  private void read() throws IOException
+  {
+    try (BufferedReader lBufferedReader =
+                                        new BufferedReader(new FileReader(mFile)))
+    {
+      String lLine;
+      while ((lLine = lBufferedReader.readLine()) != null)
+      {
+        lLine = lLine.trim();
+        if (lLine.isEmpty() || lLine.startsWith("#"))
+          continue;
+        final String[] lFields = lLine.split("\\s+");
+        final int lLength = Integer.parseInt(lFields[0]);
+        final NormalDistribution lNormalDistribution =
+                                                     new NormalDistribution(Double.parseDouble(lFields[1]),
+                                                                            Double.parseDouble(lFields[2]));
+        final FutureTask<NormalDistribution> lDoneTask =
+                                                       new FutureTask<>(() -> lNormalDistribution);
+        lDoneTask.run();
+        mDistributionMap.put(lLength, lDoneTask);
+        mPersistedMap.put(lLength, lNormalDistribution);
+      }
+    }
+  }
+
+  private synchronized void write(int pLength,
+                                  NormalDistribution pNormalDistribution) throws IOException
+  {
+    if (mFile == null)
+      return;
+
+    // the table is written from a snapshot taken under the lock, so that
+    // concurrent writers do not drop each other's distributions - the given
+    // distribution is not yet marked as done in the map:
+    mPersistedMap.put(pLength, pNormalDistribution);
+
+    final File lTempFile = new File(mFile.getParentFile(),
+                                    mFile.getName() + ".tmp");
+    try (BufferedWriter lBufferedWriter =
+                                        new BufferedWriter(new FileWriter(lTempFile)))
+    {
+      lBufferedWriter.write("# sample length, mean RMSD, RMSD standard deviation\n");
+      for (final Map.Entry<Integer, NormalDistribution> lEntry : mPersistedMap.entrySet())
+      {
+        lBufferedWriter.write(String.format("%d\t%s\t%s\n",
+                                            lEntry.getKey(),
+                                            Double.toString(lEntry.getValue()
+                                                                  .getMean()),
+                                            Double.toString(lEntry.getValue()
+                                                                  .getStandardDeviation())));
+      }
+    }
+    Files.move(lTempFile.toPath(),
+               mFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private NormalDistribution readLegacyFile(int pLength)
+  {
+    final File lLegacyFile =
+                           new File(getStatsFolder(),
+                                    String.format("%s_l=%d.obj",
+                                                  GaussianFitQualityEstimator.class.getSimpleName(),
+                                                  pLength));
+    if (this != cDefaultTable || !lLegacyFile.exists())
+      return null;
+
+    try (ObjectInputStream lObjectInputStream =
+                                              new ObjectInputStream(new BufferedInputStream(new FileInputStream(lLegacyFile),
+                                                                                            cBufferLength)))
+    {
+      return (NormalDistribution) lObjectInputStream.readObject();
+    }
+    catch (final Throwable e)
+    {
+      return null;
+    }
+  }
+
+  private static File getStatsFolder()
+  {
+    final File lUserHome = new File(System.getProperty("user.home"));
+    final File lStatsFolder = new File(lUserHome, ".stats");
+    if (!lStatsFolder.exists())
+      lStatsFolder.mkdirs();
+    return lStatsFolder;
+  }
+
+}
@@ -1,19 +1,23 @@
 package clearcontrol.core.math.argmax.fitprob.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Random;
 
 import clearcontrol.core.math.argmax.fitprob.GaussianFitQualityEstimator;
+import clearcontrol.core.math.argmax.fitprob.NullHypothesisDistributionTable;
 import clearcontrol.core.math.argmax.fitprob.RandomizedDataGaussianFitter;
 import clearcontrol.core.math.argmax.test.ArgMaxTestsUtils;
 import clearcontrol.core.units.OrderOfMagnitude;
 import gnu.trove.list.array.TDoubleArrayList;
 
+import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 import org.junit.Test;
 
@@ -59,6 +63,74 @@ public class FitQualityEstimatorTests
 
   }
 
+  /**
+   * Tests that the null hypothesis distribution table is persisted and read
+   * back, and that distributions are not recomputed.
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testNullHypothesisDistributionTable() throws IOException
+  {
+    final File lFile = File.createTempFile(FitQualityEstimatorTests.class.getSimpleName(),
+                                           ".txt");
+    lFile.delete();
+    lFile.deleteOnExit();
+
+    final NullHypothesisDistributionTable lTable =
+                                                 new NullHypothesisDistributionTable(lFile,
+                                                                                     2000);
+    assertFalse(lTable.contains(7));
+    final NormalDistribution lNormalDistribution = lTable.get(7);
+    assertTrue(lTable.contains(7));
+    assertTrue(lFile.exists());
+
+    // same instance when asked again:
+    assertTrue(lNormalDistribution == lTable.get(7));
+
+    final NullHypothesisDistributionTable lReloadedTable =
+                                                         new NullHypothesisDistributionTable(lFile,
+                                                                                             2000);
+    assertTrue(lReloadedTable.contains(7));
+    assertFalse(lReloadedTable.contains(8));
+    assertEquals(lNormalDistribution.getMean(),
+                 lReloadedTable.get(7).getMean(),
+                 0);
+    assertEquals(lNormalDistribution.getStandardDeviation(),
+                 lReloadedTable.get(7).getStandardDeviation(),
+                 0);
+  }
+
+  /**
+   * Tests that batch probabilities are the same as probabilities computed one
+   * curve at a time.
+   */
+  @Test
+  public void testBatchProbabilities()
+  {
+    final GaussianFitQualityEstimator lFitQualityEstimator =
+                                                           new GaussianFitQualityEstimator();
+
+    final double[][] lX = new double[][]
+    { { 0, 1, 2, 3, 4, 5, 6 },
+      { -2.0, -1.0, 0.0, 1.0, 2.0 },
+      { -2.0, -1.0, 0.0, 1.0, 2.0 } };
+    final double[][] lY = new double[][]
+    { { 0, 2, 2, 7, 6, 1, 0 },
+      { 3.71E-05, 3.80E-05, 3.86E-05, 3.86E-05, 3.79E-05 },
+      { 0.2, 0.4, 0.1, 0.2, 0.1 } };
+
+    final double[] lProbabilities =
+                                  lFitQualityEstimator.probabilities(lX,
+                                                                     lY);
+
+    for (int i = 0; i < lX.length; i++)
+      assertEquals(lFitQualityEstimator.probability(lX[i], lY[i]),
+                   lProbabilities[i],
+                   1e-6);
+  }
+
   /**
    * Performance demo
    */
@@ -2,14 +2,11 @@ package clearcontrol.core.math.argmax.methods;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.math.argmax.ArgMaxFinder1DInterface;
+import clearcontrol.core.math.argmax.FitExecutionService;
 import gnu.trove.list.array.TDoubleArrayList;
 
 import org.apache.commons.math3.stat.descriptive.rank.Median;
@@ -18,15 +15,15 @@ import org.apache.commons.math3.stat.descriptive.rank.Median;
  * Ensemble argmax finder.
  * 
  * Different argmax finders can be added to an ensemble argmax finder. The
- * median argmax finder of all resuling argmaxes will be returned.
+ * median argmax finder of all resuling argmaxes will be returned. The argmax
+ * finders are run concurrently on the ensemble pool of the
+ * {@link FitExecutionService}.
  * 
  *
  * @author royer
  */
 public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
 {
-  private static final Executor sExecutor =
-                                          Executors.newCachedThreadPool();
   private static final int cTimeOutInSeconds = 1;
 
   private final ArrayList<ArgMaxFinder1DInterface> mArgMaxFinder1DInterfaceList =
@@ -100,46 +97,29 @@ public class EnsembleArgMaxFinder implements ArgMaxFinder1DInterface
     if (constant(pY))
       return null;
 
-    final ArrayList<FutureTask<Double>> lTaskList =
-                                                  new ArrayList<FutureTask<Double>>();
-    final HashMap<FutureTask<Double>, ArgMaxCallable> lTaskToCallableMap =
-                                                                         new HashMap<FutureTask<Double>, ArgMaxCallable>();
-
+    final ArrayList<ArgMaxCallable> lCallableList =
+                                                  new ArrayList<ArgMaxCallable>();
     for (final ArgMaxFinder1DInterface lArgMaxFinder1DInterface : mArgMaxFinder1DInterfaceList)
-    {
-      final ArgMaxCallable lArgMaxCallable =
-                                           new ArgMaxCallable(lArgMaxFinder1DInterface,
-                                                              pX,
-                                                              pY);
-      final FutureTask<Double> lArgMaxFutureTask =
-                                                 new FutureTask<Double>(lArgMaxCallable);
-      sExecutor.execute(lArgMaxFutureTask);
-      lTaskList.add(lArgMaxFutureTask);
-      lTaskToCallableMap.put(lArgMaxFutureTask, lArgMaxCallable);
-    }
+      lCallableList.add(new ArgMaxCallable(lArgMaxFinder1DInterface,
+                                           pX,
+                                           pY));
+
+    final ArrayList<Double> lResultList =
+                                        FitExecutionService.executeAllEnsemble(lCallableList,
+                                                                               cTimeOutInSeconds,
+                                                                               TimeUnit.SECONDS);
 
     final TDoubleArrayList lArgMaxList = new TDoubleArrayList();
-    for (final FutureTask<Double> lArgMaxFutureTask : lTaskList)
+    for (int i = 0; i < lResultList.size(); i++)
     {
-      try
-      {
-        final Double lArgMax =
-                             lArgMaxFutureTask.get(cTimeOutInSeconds,
-                                                   TimeUnit.SECONDS);
-        if (lArgMax != null)
-        {
-          if (mDebug)
-            System.out.println("class: "
-                               + lTaskToCallableMap.get(lArgMaxFutureTask)
-                               + "\n\t\targmax="
-                               + lArgMax);
-          lArgMaxList.add(lArgMax);
-        }
-      }
-      catch (final Throwable e)
+      final Double lArgMax = lResultList.get(i);
+      if (lArgMax != null)
       {
         if (mDebug)
-          e.printStackTrace();
+          System.out.println("class: " + lCallableList.get(i)
+                             + "\n\t\targmax="
+                             + lArgMax);
+        lArgMaxList.add(lArgMax);
       }
     }
 
@@ -0,0 +1,99 @@
+package clearcontrol.core.math.argmax.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.math.argmax.FitExecutionService;
+
+import org.junit.Test;
+
+/**
+ * Fit execution service tests
+ *
+ * @author royer
+ */
+public class FitExecutionServiceTests
+{
+
+  /**
+   * Tests that ensemble tasks do not wait behind a busy fit pool
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testEnsembleTasksWithBusyFitPool() throws InterruptedException
+  {
+    final CountDownLatch lLatch = new CountDownLatch(1);
+    final List<Callable<Boolean>> lFitTasks = new ArrayList<>();
+    for (int i = 0; i < 4 * FitExecutionService.getNumberOfThreads(); i++)
+      lFitTasks.add(() -> lLatch.await(10, TimeUnit.SECONDS));
+
+    final Thread lFitThread =
+                            new Thread(() -> FitExecutionService.executeAll(lFitTasks,
+                                                                            10,
+                                                                            TimeUnit.SECONDS));
+    lFitThread.start();
+    try
+    {
+      final List<Callable<Integer>> lEnsembleTasks = new ArrayList<>();
+      for (int i = 0; i < 4; i++)
+      {
+        final int lValue = i;
+        lEnsembleTasks.add(() -> lValue);
+      }
+
+      final ArrayList<Integer> lResults =
+                                        FitExecutionService.executeAllEnsemble(lEnsembleTasks,
+                                                                               1,
+                                                                               TimeUnit.SECONDS);
+      for (int i = 0; i < lResults.size(); i++)
+        assertEquals(Integer.valueOf(i), lResults.get(i));
+    }
+    finally
+    {
+      lLatch.countDown();
+      lFitThread.join();
+    }
+  }
+
+  /**
+   * Tests that ensemble tasks run from a fit thread still time out
+   */
+  @Test
+  public void testEnsembleTimeOutFromFitThread()
+  {
+    final CountDownLatch lLatch = new CountDownLatch(1);
+    final Callable<Integer> lHangingTask = () -> {
+      lLatch.await();
+      return 1;
+    };
+
+    // the ensemble is run from a fit thread:
+    final Callable<Integer> lFitTask =
+                                     () -> FitExecutionService.executeAllEnsemble(Collections.singletonList(lHangingTask),
+                                                                                  100,
+                                                                                  TimeUnit.MILLISECONDS)
+                                                              .get(0);
+
+    final long lStartTime = System.nanoTime();
+    final ArrayList<Integer> lResults =
+                                      FitExecutionService.executeAll(Collections.singletonList(lFitTask),
+                                                                     10,
+                                                                     TimeUnit.SECONDS);
+    lLatch.countDown();
+
+    assertNull(lResults.get(0));
+    assertTrue(System.nanoTime()
+               - lStartTime < TimeUnit.SECONDS.toNanos(5));
+  }
+
+}
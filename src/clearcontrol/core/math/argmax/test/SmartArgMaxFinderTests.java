@@ -119,6 +119,36 @@ public class SmartArgMaxFinderTests
 
   }
 
+  /**
+   * Tests that batch argmaxes are the same as argmaxes computed one curve at a
+   * time.
+   */
+  @Test
+  public void testBatch()
+  {
+    final SmartArgMaxFinder lSmartArgMaxFinder =
+                                               new SmartArgMaxFinder();
+
+    final double[][] lX = new double[][]
+    { { 0, 1, 2, 3, 4 }, { 0, 1, 2, 3, 4, 5, 6 } };
+    final double[][] lY = new double[][]
+    { { 1, 2, 3, 4, 5 }, { 0, 2, 2, 7, 6, 1, 0 } };
+
+    final Double[] lArgmaxes = lSmartArgMaxFinder.argmax(lX, lY);
+    final Double[] lFitProbabilities =
+                                     lSmartArgMaxFinder.getLastFitProbabilities();
+
+    assertEquals(lX.length, lArgmaxes.length);
+    for (int i = 0; i < lX.length; i++)
+    {
+      final Double lArgmax = lSmartArgMaxFinder.argmax(lX[i], lY[i]);
+      assertEquals(lArgmax, lArgmaxes[i], 0.01);
+      assertEquals(lSmartArgMaxFinder.getLastFitProbability(),
+                   lFitProbabilities[i],
+                   1e-6);
+    }
+  }
+
   /**
    * Performance test
    */
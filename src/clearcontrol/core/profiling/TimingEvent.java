@@ -0,0 +1,135 @@
+package clearcontrol.core.profiling;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing event: a named phase executed by a given source (device, camera,
+ * processor...) between two time points obtained from System.nanoTime().
+ *
+ * @author royer
+ */
+public class TimingEvent
+{
+  private final long mSequenceNumber;
+  private final String mPhase;
+  private final String mSource;
+  private final long mStartTimeInNanoseconds;
+  private final long mEndTimeInNanoseconds;
+  private final long mThreadId;
+
+  /**
+   * Instantiates a timing event
+   *
+   * @param pSequenceNumber
+   *          sequence number of the event in its recorder
+   * @param pPhase
+   *          phase name
+   * @param pSource
+   *          source name
+   * @param pStartTimeInNanoseconds
+   *          start time in nanoseconds
+   * @param pEndTimeInNanoseconds
+   *          end time in nanoseconds
+   * @param pThreadId
+   *          id of the recording thread
+   */
+  public TimingEvent(long pSequenceNumber,
+                     String pPhase,
+                     String pSource,
+                     long pStartTimeInNanoseconds,
+                     long pEndTimeInNanoseconds,
+                     long pThreadId)
+  {
+    super();
+    mSequenceNumber = pSequenceNumber;
+    mPhase = pPhase;
+    mSource = pSource;
+    mStartTimeInNanoseconds = pStartTimeInNanoseconds;
+    mEndTimeInNanoseconds = pEndTimeInNanoseconds;
+    mThreadId = pThreadId;
+  }
+
+  /**
+   * Returns the sequence number of this event in its recorder
+   *
+   * @return sequence number
+   */
+  public long getSequenceNumber()
+  {
+    return mSequenceNumber;
+  }
+
+  /**
+   * Returns the phase name
+   *
+   * @return phase name
+   */
+  public String getPhase()
+  {
+    return mPhase;
+  }
+
+  /**
+   * Returns the source name
+   *
+   * @return source name
+   */
+  public String getSource()
+  {
+    return mSource;
+  }
+
+  /**
+   * Returns the start time in nanoseconds
+   *
+   * @return start time
+   */
+  public long getStartTimeInNanoseconds()
+  {
+    return mStartTimeInNanoseconds;
+  }
+
+  /**
+   * Returns the end time in nanoseconds
+   *
+   * @return end time
+   */
+  public long getEndTimeInNanoseconds()
+  {
+    return mEndTimeInNanoseconds;
+  }
+
+  /**
+   * Returns the duration of this event
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return duration
+   */
+  public long getDuration(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mEndTimeInNanoseconds
+                             - mStartTimeInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the id of the thread that recorded this event
+   *
+   * @return thread id
+   */
+  public long getThreadId()
+  {
+    return mThreadId;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("TimingEvent [mPhase=%s, mSource=%s, duration=%d us]",
+                         mPhase,
+                         mSource,
+                         getDuration(TimeUnit.MICROSECONDS));
+  }
+
+}
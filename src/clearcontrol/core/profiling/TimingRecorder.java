@@ -0,0 +1,363 @@
+package clearcontrol.core.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import clearcontrol.core.log.LoggingFeature;
+
+/**
+ * Timing recorder collecting timing events into a fixed size ring buffer.
+ * Recording is lock-free and does not allocate: it is meant for hot paths such
+ * as the acquisition loop. When the ring is full the oldest events are
+ * overwritten. When the recorder is disabled, now() returns 0 and record() does
+ * nothing.
+ * 
+ * Each slot of the ring is guarded by a sequence number, as in a seqlock: a
+ * writer claims the slot (compare-and-set to a 'being written' mark), fills it,
+ * and publishes its sequence number. A writer that finds the slot claimed by
+ * another writer - one that lapped it, or that it lapped - drops its event
+ * instead of mixing fields with it. Slot fields are written with release
+ * stores and read with volatile loads, so that a reader that sees the same
+ * sequence number before and after reading the fields has read a consistent
+ * event.
+ * 
+ * Recorded events can be exported as a timeline file in the Chrome trace event
+ * format (JSON), which can be opened with chrome://tracing or Perfetto.
+ *
+ * @author royer
+ */
+public class TimingRecorder implements LoggingFeature
+{
+  private static final int cDefaultCapacity = 1 << 16;
+  private static final long cEmpty = -1;
+  private static final long cBeingWritten = -2;
+
+  private static final TimingRecorder sTimingRecorder =
+                                                      new TimingRecorder(cDefaultCapacity);
+
+  private final int mMask;
+  private final AtomicLong mCursor = new AtomicLong();
+  private final AtomicLong mNumberOfDroppedEvents = new AtomicLong();
+  private final AtomicLongArray mSequenceNumbers;
+  private final AtomicReferenceArray<String> mPhases;
+  private final AtomicReferenceArray<String> mSources;
+  private final AtomicLongArray mStartTimes;
+  private final AtomicLongArray mEndTimes;
+  private final AtomicLongArray mThreadIds;
+
+  private volatile boolean mEnabled;
+
+  /**
+   * Returns the singleton timing recorder shared by the acquisition code
+   *
+   * @return singleton timing recorder
+   */
+  public static TimingRecorder getSingletonTimingRecorder()
+  {
+    return sTimingRecorder;
+  }
+
+  /**
+   * Instantiates a disabled timing recorder with a given capacity, rounded up
+   * to the next power of two.
+   *
+   * @param pCapacity
+   *          max number of events kept
+   */
+  public TimingRecorder(int pCapacity)
+  {
+    super();
+    final int lCapacity =
+                        Integer.highestOneBit(Math.max(1, pCapacity - 1))
+                          << 1;
+    mMask = lCapacity - 1;
+    mSequenceNumbers = new AtomicLongArray(lCapacity);
+    for (int i = 0; i < lCapacity; i++)
+      mSequenceNumbers.set(i, cEmpty);
+    mPhases = new AtomicReferenceArray<>(lCapacity);
+    mSources = new AtomicReferenceArray<>(lCapacity);
+    mStartTimes = new AtomicLongArray(lCapacity);
+    mEndTimes = new AtomicLongArray(lCapacity);
+    mThreadIds = new AtomicLongArray(lCapacity);
+  }
+
+  /**
+   * Returns the capacity of this recorder
+   *
+   * @return max number of events kept
+   */
+  public int getCapacity()
+  {
+    return mMask + 1;
+  }
+
+  /**
+   * Enables or disables recording
+   *
+   * @param pEnabled
+   *          true to enable
+   */
+  public void setEnabled(boolean pEnabled)
+  {
+    mEnabled = pEnabled;
+  }
+
+  /**
+   * Returns true if recording is enabled
+   *
+   * @return true if enabled
+   */
+  public boolean isEnabled()
+  {
+    return mEnabled;
+  }
+
+  /**
+   * Returns the current time in nanoseconds if recording is enabled, 0
+   * otherwise.
+   *
+   * @return current time in nanoseconds, or 0
+   */
+  public long now()
+  {
+    return mEnabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records a timing event ending now.
+   *
+   * @param pPhase
+   *          phase name
+   * @param pSource
+   *          source name
+   * @param pStartTimeInNanoseconds
+   *          start time obtained from now()
+   */
+  public void record(String pPhase,
+                     String pSource,
+                     long pStartTimeInNanoseconds)
+  {
+    if (!mEnabled || pStartTimeInNanoseconds == 0)
+      return;
+    record(pPhase, pSource, pStartTimeInNanoseconds, System.nanoTime());
+  }
+
+  /**
+   * Records a timing event.
+   *
+   * @param pPhase
+   *          phase name
+   * @param pSource
+   *          source name
+   * @param pStartTimeInNanoseconds
+   *          start time in nanoseconds (System.nanoTime())
+   * @param pEndTimeInNanoseconds
+   *          end time in nanoseconds (System.nanoTime())
+   */
+  public void record(String pPhase,
+                     String pSource,
+                     long pStartTimeInNanoseconds,
+                     long pEndTimeInNanoseconds)
+  {
+    if (!mEnabled)
+      return;
+
+    final long lSequenceNumber = mCursor.getAndIncrement();
+    final int lIndex = (int) (lSequenceNumber & mMask);
+
+    // the slot is claimed, filled, then published:
+    final long lPreviousSequenceNumber = mSequenceNumbers.get(lIndex);
+    if (lPreviousSequenceNumber == cBeingWritten
+        || lPreviousSequenceNumber > lSequenceNumber
+        || !mSequenceNumbers.compareAndSet(lIndex,
+                                           lPreviousSequenceNumber,
+                                           cBeingWritten))
+    {
+      mNumberOfDroppedEvents.incrementAndGet();
+      return;
+    }
+    mPhases.lazySet(lIndex, pPhase);
+    mSources.lazySet(lIndex, pSource);
+    mStartTimes.lazySet(lIndex, pStartTimeInNanoseconds);
+    mEndTimes.lazySet(lIndex, pEndTimeInNanoseconds);
+    mThreadIds.lazySet(lIndex, Thread.currentThread().getId());
+    mSequenceNumbers.set(lIndex, lSequenceNumber);
+  }
+
+  /**
+   * Returns the total number of events recorded since the last clear, including
+   * those that have been overwritten.
+   *
+   * @return number of recorded events
+   */
+  public long getNumberOfRecordedEvents()
+  {
+    return mCursor.get();
+  }
+
+  /**
+   * Returns the number of events that have been overwritten because the ring
+   * buffer was full.
+   *
+   * @return number of overwritten events
+   */
+  public long getNumberOfOverwrittenEvents()
+  {
+    return Math.max(0, mCursor.get() - getCapacity());
+  }
+
+  /**
+   * Returns the number of events dropped because their slot of the ring buffer
+   * was being written by another thread, which happens when recording threads
+   * lap each other.
+   *
+   * @return number of dropped events
+   */
+  public long getNumberOfDroppedEvents()
+  {
+    return mNumberOfDroppedEvents.get();
+  }
+
+  /**
+   * Returns a snapshot of the events currently held, ordered by start time.
+   * Events being written while the snapshot is taken are skipped.
+   *
+   * @return list of events
+   */
+  public List<TimingEvent> getEvents()
+  {
+    final long lCursor = mCursor.get();
+    final long lFirst = Math.max(0, lCursor - getCapacity());
+    final ArrayList<TimingEvent> lEvents = new ArrayList<>();
+    for (long s = lFirst; s < lCursor; s++)
+    {
+      final int lIndex = (int) (s & mMask);
+      if (mSequenceNumbers.get(lIndex) != s)
+        continue;
+      final TimingEvent lEvent = new TimingEvent(s,
+                                                 mPhases.get(lIndex),
+                                                 mSources.get(lIndex),
+                                                 mStartTimes.get(lIndex),
+                                                 mEndTimes.get(lIndex),
+                                                 mThreadIds.get(lIndex));
+      // the fields are volatile loads, so that they are read before the
+      // sequence number is read again:
+      if (mSequenceNumbers.get(lIndex) == s)
+        lEvents.add(lEvent);
+    }
+    Collections.sort(lEvents,
+                     Comparator.comparingLong(TimingEvent::getStartTimeInNanoseconds));
+    return lEvents;
+  }
+
+  /**
+   * Clears all recorded events. Events recorded concurrently with clearing may
+   * be lost.
+   */
+  public void clear()
+  {
+    for (int i = 0; i <= mMask; i++)
+      mSequenceNumbers.set(i, cEmpty);
+    mCursor.set(0);
+    mNumberOfDroppedEvents.set(0);
+  }
+
+  /**
+   * Exports the recorded events as a timeline file in the Chrome trace event
+   * format. Each source is shown as a separate row, times are relative to the
+   * first event.
+   *
+   * @param pFile
+   *          timeline file
+   * @throws IOException
+   *           if the file cannot be written
+   */
+  public void exportTimeline(File pFile) throws IOException
+  {
+    final List<TimingEvent> lEvents = getEvents();
+    info("Exporting %d timing events to %s", lEvents.size(), pFile);
+
+    final long lOrigin = lEvents.isEmpty() ? 0
+                                           : lEvents.get(0)
+                                                    .getStartTimeInNanoseconds();
+    final LinkedHashMap<String, Integer> lSourceIds =
+                                                    new LinkedHashMap<>();
+
+    try (Writer lWriter =
+                        new OutputStreamWriter(Files.newOutputStream(pFile.toPath()),
+                                               StandardCharsets.UTF_8))
+    {
+      lWriter.write("{\"traceEvents\":[\n");
+      boolean lFirst = true;
+      for (final TimingEvent lEvent : lEvents)
+      {
+        final String lSource = String.valueOf(lEvent.getSource());
+        Integer lSourceId = lSourceIds.get(lSource);
+        if (lSourceId == null)
+        {
+          lSourceId = lSourceIds.size() + 1;
+          lSourceIds.put(lSource, lSourceId);
+        }
+
+        if (!lFirst)
+          lWriter.write(",\n");
+        lFirst = false;
+        lWriter.write(String.format(Locale.ROOT,
+                                    "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"thread\":%d}}",
+                                    escape(lEvent.getPhase()),
+                                    escape(lSource),
+                                    lSourceId,
+                                    (lEvent.getStartTimeInNanoseconds()
+                                     - lOrigin) * 1e-3,
+                                    (lEvent.getEndTimeInNanoseconds()
+                                     - lEvent.getStartTimeInNanoseconds())
+                                                          * 1e-3,
+                                    lEvent.getThreadId()));
+      }
+
+      // rows are named after the sources:
+      for (final String lSource : lSourceIds.keySet())
+      {
+        if (!lFirst)
+          lWriter.write(",\n");
+        lFirst = false;
+        lWriter.write(String.format("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                                    lSourceIds.get(lSource),
+                                    escape(lSource)));
+      }
+      lWriter.write("\n]}\n");
+    }
+  }
+
+  private static String escape(String pString)
+  {
+    if (pString == null)
+      return "";
+    final StringBuilder lBuilder = new StringBuilder(pString.length());
+    for (int i = 0; i < pString.length(); i++)
+    {
+      final char c = pString.charAt(i);
+      if (c == '"' || c == '\\')
+        lBuilder.append('\\').append(c);
+      else if (c < 0x20)
+        lBuilder.append(String.format("\\u%04x", (int) c));
+      else
+        lBuilder.append(c);
+    }
+    return lBuilder.toString();
+  }
+
+}
@@ -0,0 +1,191 @@
+package clearcontrol.core.profiling.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.profiling.TimingEvent;
+import clearcontrol.core.profiling.TimingRecorder;
+
+import org.junit.Test;
+
+/**
+ * Timing recorder tests
+ *
+ * @author royer
+ */
+public class TimingRecorderTests
+{
+
+  /**
+   * Tests that a disabled recorder records nothing
+   */
+  @Test
+  public void testDisabled()
+  {
+    final TimingRecorder lTimingRecorder = new TimingRecorder(16);
+    assertEquals(0, lTimingRecorder.now());
+    lTimingRecorder.record("phase", "source", lTimingRecorder.now());
+    lTimingRecorder.record("phase", "source", 1, 2);
+    assertEquals(0, lTimingRecorder.getNumberOfRecordedEvents());
+    assertTrue(lTimingRecorder.getEvents().isEmpty());
+  }
+
+  /**
+   * Tests that the oldest events are overwritten when the ring is full
+   */
+  @Test
+  public void testRingOverwrite()
+  {
+    final TimingRecorder lTimingRecorder = new TimingRecorder(10);
+    assertEquals(16, lTimingRecorder.getCapacity());
+    lTimingRecorder.setEnabled(true);
+
+    for (int i = 0; i < 100; i++)
+      lTimingRecorder.record("phase", "source" + i, i, i + 1);
+
+    final List<TimingEvent> lEvents = lTimingRecorder.getEvents();
+    assertEquals(16, lEvents.size());
+    assertEquals(84, lTimingRecorder.getNumberOfOverwrittenEvents());
+    assertEquals("source84", lEvents.get(0).getSource());
+    assertEquals("source99", lEvents.get(15).getSource());
+    assertEquals(1, lEvents.get(0).getDuration(TimeUnit.NANOSECONDS));
+
+    lTimingRecorder.clear();
+    assertTrue(lTimingRecorder.getEvents().isEmpty());
+  }
+
+  /**
+   * Tests recording from several threads
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testConcurrentRecording() throws InterruptedException
+  {
+    final int lNumberOfThreads = 4;
+    final int lNumberOfEventsPerThread = 10000;
+    final TimingRecorder lTimingRecorder =
+                                         new TimingRecorder(lNumberOfThreads
+                                                            * lNumberOfEventsPerThread);
+    lTimingRecorder.setEnabled(true);
+
+    final Thread[] lThreads = new Thread[lNumberOfThreads];
+    for (int t = 0; t < lNumberOfThreads; t++)
+    {
+      final String lSource = "thread" + t;
+      lThreads[t] = new Thread(() -> {
+        for (int i = 0; i < lNumberOfEventsPerThread; i++)
+        {
+          final long lStartTime = lTimingRecorder.now();
+          lTimingRecorder.record("phase", lSource, lStartTime);
+        }
+      });
+      lThreads[t].start();
+    }
+    for (final Thread lThread : lThreads)
+      lThread.join();
+
+    final List<TimingEvent> lEvents = lTimingRecorder.getEvents();
+    assertEquals(lNumberOfThreads * lNumberOfEventsPerThread,
+                 lEvents.size());
+    for (final TimingEvent lEvent : lEvents)
+      assertTrue(lEvent.getEndTimeInNanoseconds() >= lEvent.getStartTimeInNanoseconds());
+  }
+
+  /**
+   * Tests that events read while recording threads lap each other on a small
+   * ring are never made of the fields of different events
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testLappingWriters() throws InterruptedException
+  {
+    final int lNumberOfThreads = 4;
+    final int lNumberOfEventsPerThread = 100000;
+    final TimingRecorder lTimingRecorder = new TimingRecorder(4);
+    lTimingRecorder.setEnabled(true);
+
+    final String[] lSources = new String[lNumberOfThreads];
+    final Thread[] lThreads = new Thread[lNumberOfThreads];
+    for (int t = 0; t < lNumberOfThreads; t++)
+    {
+      lSources[t] = "thread" + t;
+      final String lSource = lSources[t];
+      final long lOffset = t * 1000000000L;
+      lThreads[t] = new Thread(() -> {
+        for (int i = 0; i < lNumberOfEventsPerThread; i++)
+          lTimingRecorder.record(lSource,
+                                 lSource,
+                                 lOffset + i,
+                                 lOffset + i + 1);
+      });
+      lThreads[t].start();
+    }
+
+    final AtomicInteger lNumberOfInconsistentEvents = new AtomicInteger();
+    boolean lAlive = true;
+    while (lAlive)
+    {
+      lAlive = false;
+      for (final Thread lThread : lThreads)
+        lAlive |= lThread.isAlive();
+      for (final TimingEvent lEvent : lTimingRecorder.getEvents())
+      {
+        final int lThreadIndex =
+                               (int) (lEvent.getStartTimeInNanoseconds()
+                                      / 1000000000L);
+        if (lEvent.getPhase() != lSources[lThreadIndex]
+            || lEvent.getSource() != lSources[lThreadIndex]
+            || lEvent.getDuration(TimeUnit.NANOSECONDS) != 1)
+          lNumberOfInconsistentEvents.incrementAndGet();
+      }
+    }
+    for (final Thread lThread : lThreads)
+      lThread.join();
+
+    assertEquals(0, lNumberOfInconsistentEvents.get());
+    assertEquals(lNumberOfThreads * lNumberOfEventsPerThread,
+                 lTimingRecorder.getNumberOfRecordedEvents());
+    assertTrue(lTimingRecorder.getEvents().size() <= 4);
+  }
+
+  /**
+   * Tests exporting a timeline file
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testExportTimeline() throws IOException
+  {
+    final TimingRecorder lTimingRecorder = new TimingRecorder(16);
+    lTimingRecorder.setEnabled(true);
+    lTimingRecorder.record("PlayQueue", "Laser \"1\"", 1000, 3000);
+    lTimingRecorder.record("StackDelivery", "Camera0", 2000, 9000);
+
+    final File lFile = File.createTempFile("timeline", ".json");
+    lFile.deleteOnExit();
+    lTimingRecorder.exportTimeline(lFile);
+
+    final String lTimeline =
+                           new String(Files.readAllBytes(lFile.toPath()),
+                                      StandardCharsets.UTF_8);
+
+    assertTrue(lTimeline.startsWith("{\"traceEvents\":["));
+    assertTrue(lTimeline.contains("\"name\":\"PlayQueue\""));
+    assertTrue(lTimeline.contains("Laser \\\"1\\\""));
+    assertTrue(lTimeline.contains("\"ts\":1.000,\"dur\":7.000"));
+  }
+
+}
@@ -1,7 +1,10 @@
 package clearcontrol.core.variable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.concurrent.executors.CompletingThreadPoolExecutor;
@@ -25,23 +28,39 @@ public class Variable<O> extends VariableBase<O> implements
 
 {
 
-  // The following async executor is used for the async set functions:
+  // The following async executor is used for the async set functions. Each
+  // variable applies its pending async updates in order from at most one task
+  // at a time, so several threads serve different variables without
+  // reordering the updates of any of them. The executor queue holds at most
+  // one task per variable, and is bounded: when it is full, the task runs in
+  // the calling thread, which still applies the variable's updates in order:
+  private static final int cAsyncQueueLength = 1024;
   static CompletingThreadPoolExecutor sAsyncExecutor;
   static
   {
+    final int lNumberOfThreads = Math.max(2,
+                                          Runtime.getRuntime()
+                                                 .availableProcessors()
+                                             / 2);
     sAsyncExecutor =
                    ClearControlExecutors.getOrCreateThreadPoolExecutor(Variable.class,
                                                                        Thread.NORM_PRIORITY,
-                                                                       1,
-                                                                       Runtime.getRuntime()
-                                                                              .availableProcessors()
-                                                                          / 2,
-                                                                       Integer.MAX_VALUE);
+                                                                       lNumberOfThreads,
+                                                                       lNumberOfThreads,
+                                                                       cAsyncQueueLength);
+    sAsyncExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
   }
 
+  // Max number of pending async updates per variable, when reached the newest
+  // update is merged into the last pending one - as for coalesced updates:
+  private static final int cMaxNumberOfPendingAsyncUpdates = 1024;
+
   // That where we store the value:
   protected volatile O mValue;
 
+  // async setter, created on first use:
+  private volatile AsyncSetter mAsyncSetter;
+
   // list of variable to send updates to:
   protected final CopyOnWriteArrayList<Variable<O>> mVariablesToSendUpdatesTo =
                                                                               new CopyOnWriteArrayList<Variable<O>>();
@@ -79,25 +98,30 @@ public class Variable<O> extends VariableBase<O> implements
   public void setCurrent()
   {
     EventPropagator.clear();
-    set(mValue);
+    set(getReference());
   }
 
   protected void setCurrentInternal()
   {
-    set(mValue);
+    set(getReference());
   }
 
   /**
-   * Sets the reference value asynchronously
+   * Sets the reference value asynchronously. Async updates of a variable are
+   * applied in the order in which they were requested. If async updates are
+   * coalesced for this variable, or if too many updates are pending, only the
+   * latest value is applied if several are pending.
    * 
    * @param pNewReference
    *          new value
    */
   public void setAsync(final O pNewReference)
   {
-    sAsyncExecutor.execute(() -> {
-      set(pNewReference);
-    });
+    getAsyncSetter().add(new PendingAsyncUpdate<O>(false,
+                                                   null,
+                                                   null,
+                                                   true,
+                                                   pNewReference));
   }
 
   /**
@@ -117,7 +141,9 @@ public class Variable<O> extends VariableBase<O> implements
 
   /**
    * Sets a edge asynchronously: first the before-edge value , then immediately
-   * the after-edge value.
+   * the after-edge value. If async updates are coalesced for this variable, an
+   * edge is never split: both values are applied, unless the whole edge is
+   * superseded by a newer pending edge.
    * 
    * @param pBeforeEdge
    *          value before edge
@@ -126,17 +152,96 @@ public class Variable<O> extends VariableBase<O> implements
    */
   public void setEdgeAsync(O pBeforeEdge, O pAfterEdge)
   {
-    sAsyncExecutor.execute(() -> {
-      setEdge(pBeforeEdge, pAfterEdge);
-    });
+    getAsyncSetter().add(new PendingAsyncUpdate<O>(true,
+                                                   pBeforeEdge,
+                                                   pAfterEdge,
+                                                   false,
+                                                   null));
+  }
+
+  /**
+   * Sets whether async updates of this variable are coalesced. When coalesced,
+   * at most one update is pending per variable: newer values replace older
+   * pending values (latest wins). This is useful for variables set at high
+   * rates from UI elements or scripts, for which only the latest value
+   * matters. Do not coalesce variables for which each value must be received,
+   * such as stack variables. Variables that are not coalesced keep up to 1024
+   * pending updates, past that they are coalesced too.
+   * 
+   * @param pCoalesce
+   *          true to coalesce async updates
+   */
+  public void setAsyncUpdatesCoalesced(boolean pCoalesce)
+  {
+    getAsyncSetter().mMaxNumberOfPendingUpdates =
+                                                pCoalesce ? 1
+                                                          : cMaxNumberOfPendingAsyncUpdates;
+  }
+
+  /**
+   * Returns true if async updates of this variable are coalesced.
+   * 
+   * @return true if coalesced
+   */
+  public boolean isAsyncUpdatesCoalesced()
+  {
+    final AsyncSetter lAsyncSetter = mAsyncSetter;
+    return lAsyncSetter != null
+           && lAsyncSetter.mMaxNumberOfPendingUpdates == 1;
+  }
+
+  /**
+   * Returns the number of async updates that were merged into an already
+   * pending update instead of being scheduled.
+   * 
+   * @return number of coalesced async updates
+   */
+  public long getNumberOfCoalescedAsyncUpdates()
+  {
+    final AsyncSetter lAsyncSetter = mAsyncSetter;
+    return lAsyncSetter == null ? 0
+                                : lAsyncSetter.mNumberOfCoalescedUpdates.get();
+  }
+
+  /**
+   * Returns the number of async values that were never applied because they
+   * were replaced by a newer value while pending.
+   * 
+   * @return number of dropped async values
+   */
+  public long getNumberOfDroppedAsyncUpdates()
+  {
+    final AsyncSetter lAsyncSetter = mAsyncSetter;
+    return lAsyncSetter == null ? 0
+                                : lAsyncSetter.mNumberOfDroppedUpdates.get();
+  }
+
+  private AsyncSetter getAsyncSetter()
+  {
+    AsyncSetter lAsyncSetter = mAsyncSetter;
+    if (lAsyncSetter == null)
+    {
+      synchronized (this)
+      {
+        lAsyncSetter = mAsyncSetter;
+        if (lAsyncSetter == null)
+        {
+          lAsyncSetter = new AsyncSetter();
+          mAsyncSetter = lAsyncSetter;
+        }
+      }
+    }
+    return lAsyncSetter;
   }
 
   @Override
   public void set(final O pNewReference)
   {
-    EventPropagator.clear();
-    setReferenceInternal(pNewReference);
-    EventPropagator.clear();
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
+    lEventPropagator.clearTraversed();
+    setReferenceInternal(lEventPropagator, pNewReference);
+    lEventPropagator.clearTraversed();
   }
 
   /**
@@ -158,39 +263,43 @@ public class Variable<O> extends VariableBase<O> implements
   @SuppressWarnings("unchecked")
   public void toggle()
   {
-    if (mValue instanceof Number)
+    final O lValue = getReference();
+    if (lValue instanceof Number)
     {
       set((O) new Double(-(Double) get()));
     }
-    else if (mValue instanceof Boolean)
+    else if (lValue instanceof Boolean)
     {
       set((O) new Boolean(!(Boolean) get()));
     }
   }
 
-  private boolean setReferenceInternal(final O pNewReference)
+  private boolean setReferenceInternal(final EventPropagator pEventPropagator,
+                                       final O pNewReference)
   {
-    if (EventPropagator.hasBeenTraversed(this))
+    if (pEventPropagator.isTraversed(this))
     {
       return false;
     }
 
-    final O lNewValueAfterHook = setEventHook(mValue, pNewReference);
+    final O lNewValueAfterHook = setEventHook(getReference(),
+                                              pNewReference);
 
-    EventPropagator.add(this);
-    if (mVariablesToSendUpdatesTo != null)
+    pEventPropagator.addTraversed(this);
+    if (!mVariablesToSendUpdatesTo.isEmpty())
     {
       for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
       {
-        if (EventPropagator.hasNotBeenTraversed(lObjectVariable))
+        if (!pEventPropagator.isTraversed(lObjectVariable))
         {
-          lObjectVariable.setReferenceInternal(lNewValueAfterHook);
+          lObjectVariable.setReferenceInternal(pEventPropagator,
+                                               lNewValueAfterHook);
         }
       }
     }
 
-    final O lOldReference = mValue;
-    mValue = lNewValueAfterHook;
+    final O lOldReference = getReference();
+    setReference(lNewValueAfterHook);
 
     notifyListenersOfSetEvent(lOldReference, lNewValueAfterHook);
     if (lOldReference != null && lNewValueAfterHook != null
@@ -212,9 +321,11 @@ public class Variable<O> extends VariableBase<O> implements
    */
   public void sync(final O pNewValue, final boolean pClearEventQueue)
   {
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
     if (pClearEventQueue)
     {
-      EventPropagator.clear();
+      lEventPropagator.clearTraversed();
     }
 
     // We protect ourselves from called code that might clear the Thread
@@ -227,9 +338,10 @@ public class Variable<O> extends VariableBase<O> implements
       for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
       {
         EventPropagator.setListOfTraversedObjects(lCopyOfListOfTraversedObjects);
-        if (EventPropagator.hasNotBeenTraversed(lObjectVariable))
+        if (!lEventPropagator.isTraversed(lObjectVariable))
         {
-          lObjectVariable.setReferenceInternal(pNewValue);
+          lObjectVariable.setReferenceInternal(lEventPropagator,
+                                               pNewValue);
         }
       }
     }
@@ -266,10 +378,34 @@ public class Variable<O> extends VariableBase<O> implements
     return pCurrentReference;
   }
 
+  /**
+   * Returns the raw reference held by this variable, no hook is called and no
+   * listener is notified. Derived classes that hold their value in a different
+   * form (for example unboxed) override this method and setReference.
+   * 
+   * @return raw reference
+   */
+  protected O getReference()
+  {
+    return mValue;
+  }
+
+  /**
+   * Sets the raw reference held by this variable, no hook is called, no
+   * listener is notified, and no update is sent to synced variables.
+   * 
+   * @param pNewReference
+   *          new raw reference
+   */
+  protected void setReference(final O pNewReference)
+  {
+    mValue = pNewReference;
+  }
+
   @Override
   public O get()
   {
-    final O lNewReferenceAfterHook = getEventHook(mValue);
+    final O lNewReferenceAfterHook = getEventHook(getReference());
     notifyListenersOfGetEvent(lNewReferenceAfterHook);
     return lNewReferenceAfterHook;
   }
@@ -351,29 +487,30 @@ public class Variable<O> extends VariableBase<O> implements
   @SuppressWarnings("unchecked")
   public void increment()
   {
-    if (mValue instanceof Long)
+    final O lValue = getReference();
+    if (lValue instanceof Long)
     {
-      Long lLong = (Long) mValue;
+      Long lLong = (Long) lValue;
       set((O) (new Long(lLong + 1)));
     }
-    else if (mValue instanceof Integer)
+    else if (lValue instanceof Integer)
     {
-      Integer lInteger = (Integer) mValue;
+      Integer lInteger = (Integer) lValue;
       set((O) (new Integer(lInteger + 1)));
     }
-    else if (mValue instanceof Short)
+    else if (lValue instanceof Short)
     {
-      Short lShort = (Short) mValue;
+      Short lShort = (Short) lValue;
       set((O) (new Short((short) (lShort + 1))));
     }
-    else if (mValue instanceof Character)
+    else if (lValue instanceof Character)
     {
-      Character lCharacter = (Character) mValue;
+      Character lCharacter = (Character) lValue;
       set((O) (new Character((char) (lCharacter + 1))));
     }
-    else if (mValue instanceof Byte)
+    else if (lValue instanceof Byte)
     {
-      Byte lByte = (Byte) mValue;
+      Byte lByte = (Byte) lValue;
       set((O) (new Byte((byte) (lByte + 1))));
     }
     else
@@ -386,29 +523,30 @@ public class Variable<O> extends VariableBase<O> implements
   @SuppressWarnings("unchecked")
   public void decrement()
   {
-    if (mValue instanceof Long)
+    final O lValue = getReference();
+    if (lValue instanceof Long)
     {
-      Long lLong = (Long) mValue;
+      Long lLong = (Long) lValue;
       set((O) (new Long(lLong - 1)));
     }
-    else if (mValue instanceof Integer)
+    else if (lValue instanceof Integer)
     {
-      Integer lInteger = (Integer) mValue;
+      Integer lInteger = (Integer) lValue;
       set((O) (new Integer(lInteger - 1)));
     }
-    else if (mValue instanceof Short)
+    else if (lValue instanceof Short)
     {
-      Short lShort = (Short) mValue;
+      Short lShort = (Short) lValue;
       set((O) (new Short((short) (lShort - 1))));
     }
-    else if (mValue instanceof Character)
+    else if (lValue instanceof Character)
     {
-      Character lCharacter = (Character) mValue;
+      Character lCharacter = (Character) lValue;
       set((O) (new Character((char) (lCharacter - 1))));
     }
-    else if (mValue instanceof Byte)
+    else if (lValue instanceof Byte)
     {
-      Byte lByte = (Byte) mValue;
+      Byte lByte = (Byte) lValue;
       set((O) (new Byte((byte) (lByte - 1))));
     }
     else
@@ -422,7 +560,7 @@ public class Variable<O> extends VariableBase<O> implements
    */
   public boolean isNotNull()
   {
-    return mValue != null;
+    return getReference() != null;
   }
 
   /**
@@ -432,7 +570,7 @@ public class Variable<O> extends VariableBase<O> implements
    */
   public boolean isNull()
   {
-    return mValue == null;
+    return getReference() == null;
   }
 
   @Override
@@ -440,8 +578,9 @@ public class Variable<O> extends VariableBase<O> implements
   {
     try
     {
+      final O lValue = getReference();
       return getName() + "="
-             + ((mValue == null) ? "null" : mValue.toString());
+             + ((lValue == null) ? "null" : lValue.toString());
     }
     catch (final NullPointerException e)
     {
@@ -449,4 +588,114 @@ public class Variable<O> extends VariableBase<O> implements
     }
   }
 
+  /**
+   * Pending coalesced async update: an optional edge followed by an optional
+   * value.
+   */
+  private static final class PendingAsyncUpdate<O>
+  {
+    final boolean mHasEdge;
+    final O mBeforeEdge, mAfterEdge;
+    final boolean mHasValue;
+    final O mValue;
+
+    PendingAsyncUpdate(boolean pHasEdge,
+                       O pBeforeEdge,
+                       O pAfterEdge,
+                       boolean pHasValue,
+                       O pValue)
+    {
+      mHasEdge = pHasEdge;
+      mBeforeEdge = pBeforeEdge;
+      mAfterEdge = pAfterEdge;
+      mHasValue = pHasValue;
+      mValue = pValue;
+    }
+  }
+
+  /**
+   * Keeps the pending async updates of this variable, up to a maximal number,
+   * and applies them in order from at most one executor task at a time.
+   */
+  private final class AsyncSetter implements Runnable
+  {
+    private final ArrayDeque<PendingAsyncUpdate<O>> mPendingUpdates =
+                                                                   new ArrayDeque<>();
+    private boolean mIsScheduled;
+    private volatile int mMaxNumberOfPendingUpdates =
+                                                    cMaxNumberOfPendingAsyncUpdates;
+    private final AtomicLong mNumberOfCoalescedUpdates =
+                                                       new AtomicLong();
+    private final AtomicLong mNumberOfDroppedUpdates = new AtomicLong();
+
+    void add(PendingAsyncUpdate<O> pUpdate)
+    {
+      final boolean lSchedule;
+      synchronized (this)
+      {
+        if (mPendingUpdates.size() < mMaxNumberOfPendingUpdates)
+          mPendingUpdates.addLast(pUpdate);
+        else
+          mPendingUpdates.addLast(merge(mPendingUpdates.pollLast(),
+                                        pUpdate));
+        lSchedule = !mIsScheduled;
+        mIsScheduled = true;
+      }
+      if (lSchedule)
+        sAsyncExecutor.execute(this);
+    }
+
+    private PendingAsyncUpdate<O> merge(PendingAsyncUpdate<O> pPending,
+                                        PendingAsyncUpdate<O> pUpdate)
+    {
+      mNumberOfCoalescedUpdates.incrementAndGet();
+      // a newer edge supersedes everything pending:
+      if (pUpdate.mHasEdge)
+      {
+        mNumberOfDroppedUpdates.addAndGet((pPending.mHasEdge ? 1 : 0)
+                                          + (pPending.mHasValue ? 1
+                                                                : 0));
+        return pUpdate;
+      }
+      // a pending edge is kept, a pending value is replaced:
+      if (pPending.mHasValue)
+        mNumberOfDroppedUpdates.incrementAndGet();
+      return new PendingAsyncUpdate<O>(pPending.mHasEdge,
+                                       pPending.mBeforeEdge,
+                                       pPending.mAfterEdge,
+                                       true,
+                                       pUpdate.mValue);
+    }
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        final PendingAsyncUpdate<O> lPending;
+        synchronized (this)
+        {
+          lPending = mPendingUpdates.pollFirst();
+          if (lPending == null)
+          {
+            mIsScheduled = false;
+            return;
+          }
+        }
+
+        try
+        {
+          if (lPending.mHasEdge)
+            setEdge(lPending.mBeforeEdge, lPending.mAfterEdge);
+          if (lPending.mHasValue)
+            set(lPending.mValue);
+        }
+        catch (Throwable e)
+        {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
 }
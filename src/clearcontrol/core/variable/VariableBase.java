@@ -189,6 +189,9 @@ public abstract class VariableBase<O>
   protected void notifyListenersOfSetEvent(final O pCurentValue,
                                            final O pNewValue)
   {
+    // avoids allocating an iterator when there is no listener:
+    if (mVariableSetListeners.isEmpty())
+      return;
     for (final VariableSetListener<O> lVariableListener : getVariableSetListeners())
     {
       lVariableListener.setEvent(pCurentValue, pNewValue);
@@ -198,6 +201,8 @@ public abstract class VariableBase<O>
   protected void notifyListenersOfEdgeEvent(final O pCurentValue,
                                             final O pNewValue)
   {
+    if (mVariableEdgeListeners.isEmpty())
+      return;
     for (final VariableEdgeListener<O> lVariableListener : getVariableEdgeListeners())
     {
       lVariableListener.fire(pNewValue);
@@ -206,6 +211,8 @@ public abstract class VariableBase<O>
 
   protected void notifyListenersOfGetEvent(final O pCurrentValue)
   {
+    if (mVariableGetListeners.isEmpty())
+      return;
     for (final VariableGetListener<O> lVariableListener : getVariableGetListeners())
     {
       lVariableListener.getEvent(pCurrentValue);
@@ -1,6 +1,7 @@
 package clearcontrol.core.variable.events;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -10,6 +11,12 @@ import java.util.List;
  * This is used for example to prevent variable updates to pass twice through
  * the same variable -- and thus to go on forever -- which is not good.
  *
+ * Traversed objects are compared by identity. They are kept in a list (for
+ * ordered access) that is scanned linearly while short, and beyond that in an
+ * open-addressing identity hash table stamped with a generation number:
+ * membership tests are O(1) and clearing the table amounts to incrementing the
+ * generation. No allocation happens once the list and table are large enough.
+ *
  * @author royer
  */
 public class EventPropagator
@@ -39,7 +46,7 @@ public class EventPropagator
    */
   public static final void clear()
   {
-    getEventPropagator().mTraversedObjectList.clear();
+    getEventPropagator().clearTraversed();
   }
 
   /**
@@ -50,7 +57,7 @@ public class EventPropagator
    */
   public static final void add(final Object pObject)
   {
-    getEventPropagator().mTraversedObjectList.add(pObject);
+    getEventPropagator().addTraversed(pObject);
   }
 
   /**
@@ -62,7 +69,7 @@ public class EventPropagator
    */
   public static final boolean hasBeenTraversed(final Object pObject)
   {
-    return getEventPropagator().mTraversedObjectList.contains(pObject);
+    return getEventPropagator().isTraversed(pObject);
   }
 
   /**
@@ -74,11 +81,11 @@ public class EventPropagator
    */
   public static final boolean hasNotBeenTraversed(final Object pObject)
   {
-    return !getEventPropagator().mTraversedObjectList.contains(pObject);
+    return !getEventPropagator().isTraversed(pObject);
   }
 
   /**
-   * Returns the list of traversed objects
+   * Returns the list of traversed objects, this list must not be modified.
    * 
    * @return list of traversed objects
    */
@@ -105,10 +112,10 @@ public class EventPropagator
    */
   public static void setListOfTraversedObjects(final List<Object> pListOfTraversedObjects)
   {
-    final ArrayList<Object> lTraversedObjectList =
-                                                 getEventPropagator().mTraversedObjectList;
-    lTraversedObjectList.clear();
-    lTraversedObjectList.addAll(pListOfTraversedObjects);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    lEventPropagator.clearTraversed();
+    for (final Object lObject : pListOfTraversedObjects)
+      lEventPropagator.addTraversed(lObject);
   }
 
   /**
@@ -119,17 +126,129 @@ public class EventPropagator
    */
   public static void addAllToListOfTraversedObjects(final Collection<?> pListOfTraversedObjects)
   {
-    final ArrayList<Object> lTraversedObjectList =
-                                                 getEventPropagator().mTraversedObjectList;
-    lTraversedObjectList.addAll(pListOfTraversedObjects);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    for (final Object lObject : pListOfTraversedObjects)
+      lEventPropagator.addTraversed(lObject);
   }
 
+  // below this number of traversed objects a linear scan is faster than
+  // hashing:
+  private static final int cLinearScanThreshold = 32;
+  private static final int cInitialCapacity = 64;
+
   private final ArrayList<Object> mTraversedObjectList =
                                                        new ArrayList<Object>();
 
+  private Object[] mTable = new Object[cInitialCapacity];
+  private int[] mTableGenerations = new int[cInitialCapacity];
+  private int mGeneration = 1;
+
   EventPropagator()
   {
     super();
   }
 
+  /**
+   * Clears the traversed objects of this event propagator.
+   */
+  public final void clearTraversed()
+  {
+    final int lSize = mTraversedObjectList.size();
+    if (lSize == 0)
+      return;
+
+    if (lSize > cLinearScanThreshold)
+    {
+      // we drop the references to the traversed objects so that they can be
+      // garbage collected, slots stay occupied until the generation changes:
+      for (int i = 0; i < lSize; i++)
+        mTable[find(mTraversedObjectList.get(i))] = null;
+      mGeneration++;
+      if (mGeneration == 0)
+      {
+        // the generation counter wrapped around, old stamps could match:
+        Arrays.fill(mTableGenerations, 0);
+        mGeneration = 1;
+      }
+    }
+    mTraversedObjectList.clear();
+  }
+
+  /**
+   * Adds an object to the traversed objects of this event propagator.
+   * 
+   * @param pObject
+   *          traversed object to add
+   */
+  public final void addTraversed(final Object pObject)
+  {
+    if (isTraversed(pObject))
+      return;
+    mTraversedObjectList.add(pObject);
+
+    final int lSize = mTraversedObjectList.size();
+    if (lSize <= cLinearScanThreshold)
+      return;
+
+    if (2 * lSize > mTable.length)
+      rehash(2 * mTable.length);
+    else if (lSize == cLinearScanThreshold + 1)
+      for (int i = 0; i < lSize; i++)
+        insert(mTraversedObjectList.get(i));
+    else
+      insert(pObject);
+  }
+
+  /**
+   * Returns true if the given object has been traversed, objects are compared
+   * by identity.
+   * 
+   * @param pObject
+   *          object to test for traversal
+   * @return true if traversed
+   */
+  public final boolean isTraversed(final Object pObject)
+  {
+    final int lSize = mTraversedObjectList.size();
+    if (lSize <= cLinearScanThreshold)
+    {
+      for (int i = 0; i < lSize; i++)
+        if (mTraversedObjectList.get(i) == pObject)
+          return true;
+      return false;
+    }
+    return find(pObject) >= 0;
+  }
+
+  private int find(final Object pObject)
+  {
+    final int lMask = mTable.length - 1;
+    int lIndex = System.identityHashCode(pObject) & lMask;
+    while (mTableGenerations[lIndex] == mGeneration)
+    {
+      if (mTable[lIndex] == pObject)
+        return lIndex;
+      lIndex = (lIndex + 1) & lMask;
+    }
+    return -1;
+  }
+
+  private void insert(final Object pObject)
+  {
+    final int lMask = mTable.length - 1;
+    int lIndex = System.identityHashCode(pObject) & lMask;
+    while (mTableGenerations[lIndex] == mGeneration)
+      lIndex = (lIndex + 1) & lMask;
+    mTable[lIndex] = pObject;
+    mTableGenerations[lIndex] = mGeneration;
+  }
+
+  private void rehash(final int pCapacity)
+  {
+    mTable = new Object[pCapacity];
+    mTableGenerations = new int[pCapacity];
+    for (int i = 0; i < mTraversedObjectList.size(); i++)
+      insert(mTraversedObjectList.get(i));
+  }
+
 }
@@ -14,7 +14,9 @@ import clearcontrol.core.variable.Variable;
  * Double variable as file
  *
  * @author royer
+ * @deprecated bind variables to a {@link VariableJournal} instead.
  */
+@Deprecated
 public class DoubleVariableAsFile extends Variable<Double>
                                   implements Closeable
 
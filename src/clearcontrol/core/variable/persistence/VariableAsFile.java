@@ -22,7 +22,10 @@ import clearcontrol.core.variable.Variable;
  * @param <O>
  *          variable type
  * @author royer
+ * @deprecated the file is checked on every get and rewritten on every set,
+ *             bind variables to a {@link VariableJournal} instead.
  */
+@Deprecated
 public class VariableAsFile<O> extends Variable<O>
                            implements AutoCloseable
 
@@ -18,7 +18,11 @@ import clearcontrol.core.variable.bundle.VariableBundle;
  * Variable bundle as file
  *
  * @author royer
+ * @deprecated the whole file is rewritten on every set (and re-read on every
+ *             get with auto-read), bind variables to a {@link VariableJournal}
+ *             instead.
  */
+@Deprecated
 public class VariableBundleAsFile extends VariableBundle
                                   implements AutoCloseable
 {
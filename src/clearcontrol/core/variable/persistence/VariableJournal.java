@@ -0,0 +1,887 @@
+package clearcontrol.core.variable.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.configuration.MachineConfiguration;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.VariableSetListener;
+
+/**
+ * Variable journal
+ *
+ * Process-wide persistent key-value store for variable values, backed by an
+ * append-only journal file. Each value change is appended as a typed binary
+ * record protected by a checksum. Values are served from an in-memory index,
+ * reading a value never touches the file. Appended records are written and
+ * synced to disk in batches, at most one fsync per flush period. When the
+ * journal has grown well beyond its live content it is compacted: the current
+ * values are written to a new file which atomically replaces the journal.
+ *
+ * When opening a journal, records are replayed in order. Replay stops at the
+ * first incomplete or corrupted record - for example a record torn by a crash
+ * while it was being written - and the journal is truncated to the last
+ * complete record.
+ *
+ * Supported value types are: Boolean, Integer, Long, Float, Double, String,
+ * enums and other serializable objects (stored with Java serialization).
+ *
+ * @author royer
+ */
+public class VariableJournal implements
+                             AutoCloseable,
+                             AsynchronousSchedulerFeature,
+                             LoggingFeature
+{
+  private static final int cMagic = 0x43434A56; // 'CCJV'
+  private static final int cVersion = 1;
+  private static final int cHeaderLength = 8;
+  private static final int cRecordHeaderLength = 8;
+
+  private static final byte cPutRecord = 1;
+  private static final byte cRemoveRecord = 2;
+
+  private static final byte cNullType = 0;
+  private static final byte cBooleanType = 1;
+  private static final byte cIntegerType = 2;
+  private static final byte cLongType = 3;
+  private static final byte cFloatType = 4;
+  private static final byte cDoubleType = 5;
+  private static final byte cStringType = 6;
+  private static final byte cEnumType = 7;
+  private static final byte cSerializableType = 8;
+
+  private static final long cMinCompactionSizeInBytes = 64 * 1024;
+  private static final long cDefaultFlushPeriodInMilliseconds = 100;
+
+  private static final Object cNullValue = new Object();
+
+  private static volatile VariableJournal sVariableJournal;
+
+  private final File mFile;
+  private final ConcurrentHashMap<String, Object> mIndex =
+                                                         new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Binding<?>> mBindings =
+                                                                new ConcurrentHashMap<>();
+
+  // Lock protecting the index updates and pending records:
+  private final Object mLock = new Object();
+  // Lock protecting the journal file:
+  private final Object mFileLock = new Object();
+
+  private ByteArrayOutputStream mPendingRecords =
+                                                new ByteArrayOutputStream();
+  private volatile boolean mFlushScheduled;
+  private volatile long mFlushPeriodInMilliseconds =
+                                                   cDefaultFlushPeriodInMilliseconds;
+  private volatile double mCompactionRatio = 4;
+
+  private FileChannel mFileChannel;
+  private volatile long mFileSizeInBytes;
+  private volatile long mCompactedSizeInBytes;
+  private volatile long mNumberOfRecords;
+  private volatile long mNumberOfSyncs;
+  private volatile long mNumberOfCompactions;
+  private volatile boolean mClosed;
+
+  private static class Binding<O>
+  {
+    final Variable<O> mVariable;
+    final VariableSetListener<O> mListener;
+
+    Binding(Variable<O> pVariable, VariableSetListener<O> pListener)
+    {
+      mVariable = pVariable;
+      mListener = pListener;
+    }
+
+    void unbind()
+    {
+      mVariable.removeSetListener(mListener);
+    }
+  }
+
+  /**
+   * Returns the singleton variable journal, stored in the persistency folder of
+   * the machine configuration. The journal is opened on first use.
+   *
+   * @return singleton variable journal
+   */
+  public static VariableJournal getSingletonVariableJournal()
+  {
+    if (sVariableJournal == null)
+      synchronized (VariableJournal.class)
+      {
+        if (sVariableJournal == null)
+          try
+          {
+            sVariableJournal =
+                             new VariableJournal(MachineConfiguration.get()
+                                                                     .getPersistentVariableFile("variables.journal"));
+          }
+          catch (final IOException e)
+          {
+            throw new UncheckedIOException("Could not open variable journal",
+                                           e);
+          }
+      }
+    return sVariableJournal;
+  }
+
+  /**
+   * Opens a variable journal, the journal file is created if it does not exist
+   * and replayed otherwise.
+   *
+   * @param pFile
+   *          journal file
+   * @throws IOException
+   *           if the journal cannot be opened or is not a variable journal
+   */
+  public VariableJournal(File pFile) throws IOException
+  {
+    super();
+    mFile = pFile;
+    if (mFile.getParentFile() != null)
+      mFile.getParentFile().mkdirs();
+
+    mFileChannel = FileChannel.open(mFile.toPath(),
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+    try
+    {
+      replay();
+    }
+    catch (final IOException e)
+    {
+      mFileChannel.close();
+      throw e;
+    }
+    mCompactedSizeInBytes = mFileSizeInBytes;
+  }
+
+  private void replay() throws IOException
+  {
+    final long lFileSize = mFileChannel.size();
+    if (lFileSize < cHeaderLength)
+    {
+      // new (or empty) journal:
+      mFileChannel.truncate(0);
+      final ByteBuffer lHeader = ByteBuffer.allocate(cHeaderLength);
+      lHeader.putInt(cMagic).putInt(cVersion).flip();
+      writeFully(mFileChannel, lHeader, 0);
+      mFileChannel.force(true);
+      mFileSizeInBytes = cHeaderLength;
+      return;
+    }
+
+    final ByteBuffer lBuffer =
+                             ByteBuffer.allocate(Math.toIntExact(lFileSize));
+    while (lBuffer.hasRemaining())
+      if (mFileChannel.read(lBuffer, lBuffer.position()) < 0)
+        break;
+    lBuffer.flip();
+
+    if (lBuffer.getInt() != cMagic || lBuffer.getInt() != cVersion)
+      throw new IOException("Not a variable journal: " + mFile);
+
+    final CRC32 lCRC32 = new CRC32();
+    long lValidLength = cHeaderLength;
+    while (lBuffer.remaining() >= cRecordHeaderLength)
+    {
+      final int lPayloadLength = lBuffer.getInt();
+      final int lChecksum = lBuffer.getInt();
+      if (lPayloadLength <= 0 || lPayloadLength > lBuffer.remaining())
+        break;
+
+      final byte[] lPayload = new byte[lPayloadLength];
+      lBuffer.get(lPayload);
+      lCRC32.reset();
+      lCRC32.update(lPayload, 0, lPayloadLength);
+      if ((int) lCRC32.getValue() != lChecksum)
+        break;
+
+      applyRecord(lPayload);
+      lValidLength += cRecordHeaderLength + lPayloadLength;
+      mNumberOfRecords++;
+    }
+
+    if (lValidLength < lFileSize)
+    {
+      warning("Ignoring %d bytes of incomplete or corrupted records at the end of variable journal %s",
+              lFileSize - lValidLength,
+              mFile);
+      mFileChannel.truncate(lValidLength);
+      mFileChannel.force(true);
+    }
+    mFileSizeInBytes = lValidLength;
+  }
+
+  private void applyRecord(byte[] pPayload) throws IOException
+  {
+    final DataInputStream lInput =
+                                 new DataInputStream(new ByteArrayInputStream(pPayload));
+    final byte lRecordType = lInput.readByte();
+    final String lKey = lInput.readUTF();
+    if (lRecordType == cRemoveRecord)
+    {
+      mIndex.remove(lKey);
+      return;
+    }
+
+    try
+    {
+      final Object lValue = readValue(lInput);
+      mIndex.put(lKey, lValue == null ? cNullValue : lValue);
+    }
+    catch (final ClassNotFoundException | IllegalArgumentException e)
+    {
+      // the record is complete, but its value cannot be restored any longer:
+      warning("Could not restore value of '%s' from variable journal: %s",
+              lKey,
+              e);
+    }
+  }
+
+  /**
+   * Returns the journal file
+   *
+   * @return journal file
+   */
+  public File getFile()
+  {
+    return mFile;
+  }
+
+  /**
+   * Returns the value for a given key, or null if there is none.
+   *
+   * @param pKey
+   *          key
+   * @return value or null
+   */
+  public Object get(String pKey)
+  {
+    final Object lValue = mIndex.get(pKey);
+    return lValue == cNullValue ? null : lValue;
+  }
+
+  /**
+   * Returns true if the journal holds a value for a given key
+   *
+   * @param pKey
+   *          key
+   * @return true if the key is present
+   */
+  public boolean containsKey(String pKey)
+  {
+    return mIndex.containsKey(pKey);
+  }
+
+  /**
+   * Returns the set of keys held by the journal
+   *
+   * @return key set
+   */
+  public Set<String> getKeys()
+  {
+    return mIndex.keySet();
+  }
+
+  /**
+   * Sets the value for a given key. The change is appended to the journal and
+   * synced to disk with the next flush.
+   *
+   * @param pKey
+   *          key
+   * @param pValue
+   *          value
+   * @throws IllegalArgumentException
+   *           if the value type is not supported
+   */
+  public void put(String pKey, Object pValue)
+  {
+    final Object lIndexValue = pValue == null ? cNullValue : pValue;
+    // unchanged immutable values are not appended again:
+    if (isImmutable(pValue)
+        && Objects.equals(mIndex.get(pKey), lIndexValue))
+      return;
+
+    final byte[] lRecord = encodeRecord(cPutRecord, pKey, pValue);
+    synchronized (mLock)
+    {
+      ensureOpen();
+      mIndex.put(pKey, lIndexValue);
+      mPendingRecords.write(lRecord, 0, lRecord.length);
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Removes the value for a given key.
+   *
+   * @param pKey
+   *          key
+   */
+  public void remove(String pKey)
+  {
+    if (!mIndex.containsKey(pKey))
+      return;
+
+    final byte[] lRecord = encodeRecord(cRemoveRecord, pKey, null);
+    synchronized (mLock)
+    {
+      ensureOpen();
+      mIndex.remove(pKey);
+      mPendingRecords.write(lRecord, 0, lRecord.length);
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * Binds a variable to a given key: if the journal holds a value for the key,
+   * the variable is set to that value, and from then on every value set to the
+   * variable is persisted in the journal. A key can only be bound to one
+   * variable at a time, binding a key again unbinds the previous variable.
+   *
+   * @param pKey
+   *          key
+   * @param pVariable
+   *          variable to bind
+   * @return bound variable
+   */
+  public <O> Variable<O> bind(String pKey, Variable<O> pVariable)
+  {
+    unbind(pKey);
+
+    if (mIndex.containsKey(pKey))
+      pVariable.set(convert(pVariable.get(), get(pKey)));
+    else
+      put(pKey, pVariable.get());
+
+    final VariableSetListener<O> lListener =
+                                           (o, n) -> put(pKey, n);
+    pVariable.addSetListener(lListener);
+    mBindings.put(pKey, new Binding<O>(pVariable, lListener));
+    return pVariable;
+  }
+
+  /**
+   * Unbinds the variable bound to a given key, its value is kept in the
+   * journal.
+   *
+   * @param pKey
+   *          key
+   */
+  public void unbind(String pKey)
+  {
+    final Binding<?> lBinding = mBindings.remove(pKey);
+    if (lBinding != null)
+      lBinding.unbind();
+  }
+
+  private static boolean isImmutable(Object pValue)
+  {
+    return pValue == null || pValue instanceof Boolean
+           || pValue instanceof Number
+              && pValue.getClass().getName().startsWith("java.lang.")
+           || pValue instanceof String
+           || pValue instanceof Enum;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <O> O convert(O pTemplate, Object pValue)
+  {
+    // numbers are converted to the type of the variable's current value:
+    if (pTemplate instanceof Number && pValue instanceof Number)
+    {
+      final Number lNumber = (Number) pValue;
+      if (pTemplate instanceof Double)
+        return (O) Double.valueOf(lNumber.doubleValue());
+      if (pTemplate instanceof Float)
+        return (O) Float.valueOf(lNumber.floatValue());
+      if (pTemplate instanceof Long)
+        return (O) Long.valueOf(lNumber.longValue());
+      if (pTemplate instanceof Integer)
+        return (O) Integer.valueOf(lNumber.intValue());
+    }
+    return (O) pValue;
+  }
+
+  /**
+   * Sets the flush period: appended records are synced to disk at most once
+   * per period.
+   *
+   * @param pFlushPeriod
+   *          flush period
+   * @param pTimeUnit
+   *          time unit
+   */
+  public void setFlushPeriod(long pFlushPeriod, TimeUnit pTimeUnit)
+  {
+    mFlushPeriodInMilliseconds = pTimeUnit.toMillis(pFlushPeriod);
+  }
+
+  /**
+   * Sets the compaction ratio: the journal is compacted once it is that many
+   * times bigger than after the last compaction.
+   *
+   * @param pCompactionRatio
+   *          compaction ratio
+   */
+  public void setCompactionRatio(double pCompactionRatio)
+  {
+    mCompactionRatio = pCompactionRatio;
+  }
+
+  private void scheduleFlush()
+  {
+    if (mFlushScheduled)
+      return;
+    mFlushScheduled = true;
+    schedule(() -> flush(),
+             mFlushPeriodInMilliseconds,
+             TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes all pending records to the journal and syncs it to disk. The
+   * journal is compacted if it has grown beyond the compaction ratio.
+   *
+   * @return true for success
+   */
+  public boolean flush()
+  {
+    synchronized (mFileLock)
+    {
+      final byte[] lRecords;
+      synchronized (mLock)
+      {
+        mFlushScheduled = false;
+        if (mClosed)
+          return false;
+        lRecords = mPendingRecords.toByteArray();
+        mPendingRecords.reset();
+      }
+
+      try
+      {
+        if (lRecords.length > 0)
+        {
+          try
+          {
+            writeFully(mFileChannel,
+                       ByteBuffer.wrap(lRecords),
+                       mFileSizeInBytes);
+            mFileChannel.force(false);
+          }
+          catch (final IOException e)
+          {
+            // the records are written again, at the same position, by the
+            // next flush:
+            requeue(lRecords);
+            throw e;
+          }
+          mFileSizeInBytes += lRecords.length;
+          mNumberOfSyncs++;
+        }
+
+        if (mFileSizeInBytes > cMinCompactionSizeInBytes
+            && mFileSizeInBytes > mCompactionRatio
+                                  * mCompactedSizeInBytes)
+          compact();
+
+        return true;
+      }
+      catch (final IOException e)
+      {
+        severe("Could not write variable journal %s: %s", mFile, e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Compacts the journal: the current values are written to a new journal file
+   * that atomically replaces the current one.
+   *
+   * @throws IOException
+   *           if the journal cannot be compacted
+   */
+  public void compact() throws IOException
+  {
+    synchronized (mFileLock)
+    {
+      final HashMap<String, Object> lSnapshot;
+      final byte[] lPendingRecords;
+      synchronized (mLock)
+      {
+        ensureOpen();
+        // pending records are already reflected in the index:
+        lSnapshot = new HashMap<>(mIndex);
+        lPendingRecords = mPendingRecords.toByteArray();
+        mPendingRecords.reset();
+      }
+
+      final File lCompactedFile = new File(mFile.getPath() + ".compacted");
+      final long lCompactedSize;
+      try
+      {
+        lCompactedSize = writeCompactedFile(lCompactedFile, lSnapshot);
+      }
+      catch (final IOException e)
+      {
+        requeue(lPendingRecords);
+        throw e;
+      }
+
+      mFileChannel.close();
+      try
+      {
+        Files.move(lCompactedFile.toPath(),
+                   mFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (final IOException e)
+      {
+        requeue(lPendingRecords);
+        throw e;
+      }
+      finally
+      {
+        mFileChannel = FileChannel.open(mFile.toPath(),
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+      }
+      syncFolder(mFile.getAbsoluteFile().getParentFile());
+
+      mFileSizeInBytes = lCompactedSize;
+      mCompactedSizeInBytes = lCompactedSize;
+      mNumberOfRecords = lSnapshot.size();
+      mNumberOfCompactions++;
+    }
+  }
+
+  private long writeCompactedFile(File pCompactedFile,
+                                  Map<String, Object> pSnapshot) throws IOException
+  {
+    try (FileChannel lChannel =
+                              FileChannel.open(pCompactedFile.toPath(),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.WRITE))
+    {
+      final ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+      final DataOutputStream lOutput = new DataOutputStream(lBytes);
+      lOutput.writeInt(cMagic);
+      lOutput.writeInt(cVersion);
+      for (final Map.Entry<String, Object> lEntry : pSnapshot.entrySet())
+      {
+        final Object lValue = lEntry.getValue();
+        lOutput.write(encodeRecord(cPutRecord,
+                                   lEntry.getKey(),
+                                   lValue == cNullValue ? null
+                                                        : lValue));
+      }
+      lOutput.flush();
+      writeFully(lChannel, ByteBuffer.wrap(lBytes.toByteArray()), 0);
+      lChannel.force(true);
+      return lBytes.size();
+    }
+  }
+
+  private void requeue(byte[] pRecords)
+  {
+    synchronized (mLock)
+    {
+      // records queued in the meantime come after the requeued records:
+      final ByteArrayOutputStream lPendingRecords =
+                                                  new ByteArrayOutputStream(pRecords.length
+                                                                            + mPendingRecords.size());
+      lPendingRecords.write(pRecords, 0, pRecords.length);
+      lPendingRecords.write(mPendingRecords.toByteArray(),
+                            0,
+                            mPendingRecords.size());
+      mPendingRecords = lPendingRecords;
+    }
+  }
+
+  private static void syncFolder(File pFolder)
+  {
+    // makes the replacement of the journal durable, folders cannot be opened
+    // on all platforms (Windows), where the file system syncs them eventually:
+    try (FileChannel lChannel = FileChannel.open(pFolder.toPath(),
+                                                 StandardOpenOption.READ))
+    {
+      lChannel.force(true);
+    }
+    catch (final IOException e)
+    {
+      // not supported on this platform
+    }
+  }
+
+  /**
+   * Returns the size of the journal file, not counting pending records.
+   *
+   * @return journal size in bytes
+   */
+  public long getSizeInBytes()
+  {
+    return mFileSizeInBytes;
+  }
+
+  /**
+   * Returns the number of records in the journal, including pending records.
+   *
+   * @return number of records
+   */
+  public long getNumberOfRecords()
+  {
+    return mNumberOfRecords;
+  }
+
+  /**
+   * Returns the number of times the journal has been synced to disk.
+   *
+   * @return number of syncs
+   */
+  public long getNumberOfSyncs()
+  {
+    return mNumberOfSyncs;
+  }
+
+  /**
+   * Returns the number of times the journal has been compacted.
+   *
+   * @return number of compactions
+   */
+  public long getNumberOfCompactions()
+  {
+    return mNumberOfCompactions;
+  }
+
+  /**
+   * Flushes pending records, unbinds all variables and closes the journal.
+   */
+  @Override
+  public void close()
+  {
+    flush();
+    for (final String lKey : mBindings.keySet())
+      unbind(lKey);
+
+    synchronized (mFileLock)
+    {
+      synchronized (mLock)
+      {
+        if (mClosed)
+          return;
+        mClosed = true;
+      }
+      try
+      {
+        mFileChannel.close();
+      }
+      catch (final IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+
+    final ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
+                                                                 ClearControlExecutors.getScheduledThreadPoolExecutor(this);
+    if (lScheduledThreadPoolExecutor != null)
+    {
+      lScheduledThreadPoolExecutor.shutdown();
+      ClearControlExecutors.resetScheduledThreadPoolExecutor(this);
+    }
+
+    synchronized (VariableJournal.class)
+    {
+      if (sVariableJournal == this)
+        sVariableJournal = null;
+    }
+  }
+
+  private void ensureOpen()
+  {
+    if (mClosed)
+      throw new IllegalStateException("Variable journal is closed: "
+                                      + mFile);
+  }
+
+  private byte[] encodeRecord(byte pRecordType,
+                              String pKey,
+                              Object pValue)
+  {
+    try
+    {
+      final ByteArrayOutputStream lPayloadBytes =
+                                                new ByteArrayOutputStream();
+      final DataOutputStream lPayload =
+                                      new DataOutputStream(lPayloadBytes);
+      lPayload.writeByte(pRecordType);
+      lPayload.writeUTF(pKey);
+      if (pRecordType == cPutRecord)
+        writeValue(lPayload, pValue);
+      lPayload.flush();
+
+      final byte[] lPayloadArray = lPayloadBytes.toByteArray();
+      final CRC32 lCRC32 = new CRC32();
+      lCRC32.update(lPayloadArray, 0, lPayloadArray.length);
+
+      final ByteBuffer lRecord =
+                               ByteBuffer.allocate(cRecordHeaderLength
+                                                   + lPayloadArray.length);
+      lRecord.putInt(lPayloadArray.length);
+      lRecord.putInt((int) lCRC32.getValue());
+      lRecord.put(lPayloadArray);
+      synchronized (mLock)
+      {
+        mNumberOfRecords++;
+      }
+      return lRecord.array();
+    }
+    catch (final IOException e)
+    {
+      // writing to a byte array does not fail, except for values that cannot
+      // be serialized:
+      throw new IllegalArgumentException("Cannot persist value of '" + pKey
+                                         + "': "
+                                         + pValue,
+                                         e);
+    }
+  }
+
+  private static void writeValue(DataOutputStream pOutput,
+                                 Object pValue) throws IOException
+  {
+    if (pValue == null)
+      pOutput.writeByte(cNullType);
+    else if (pValue instanceof Boolean)
+    {
+      pOutput.writeByte(cBooleanType);
+      pOutput.writeBoolean((Boolean) pValue);
+    }
+    else if (pValue instanceof Integer)
+    {
+      pOutput.writeByte(cIntegerType);
+      pOutput.writeInt((Integer) pValue);
+    }
+    else if (pValue instanceof Long)
+    {
+      pOutput.writeByte(cLongType);
+      pOutput.writeLong((Long) pValue);
+    }
+    else if (pValue instanceof Float)
+    {
+      pOutput.writeByte(cFloatType);
+      pOutput.writeFloat((Float) pValue);
+    }
+    else if (pValue instanceof Double)
+    {
+      pOutput.writeByte(cDoubleType);
+      pOutput.writeDouble((Double) pValue);
+    }
+    else if (pValue instanceof String)
+    {
+      pOutput.writeByte(cStringType);
+      pOutput.writeUTF((String) pValue);
+    }
+    else if (pValue instanceof Enum)
+    {
+      pOutput.writeByte(cEnumType);
+      pOutput.writeUTF(((Enum<?>) pValue).getDeclaringClass().getName());
+      pOutput.writeUTF(((Enum<?>) pValue).name());
+    }
+    else if (pValue instanceof Serializable)
+    {
+      final ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream lObjectOutput =
+                                            new ObjectOutputStream(lBytes))
+      {
+        lObjectOutput.writeObject(pValue);
+      }
+      pOutput.writeByte(cSerializableType);
+      pOutput.writeInt(lBytes.size());
+      lBytes.writeTo(pOutput);
+    }
+    else
+      throw new IOException("Unsupported value type: "
+                            + pValue.getClass());
+  }
+
+  @SuppressWarnings(
+  { "unchecked", "rawtypes" })
+  private static Object readValue(DataInputStream pInput) throws IOException,
+                                                          ClassNotFoundException
+  {
+    final byte lType = pInput.readByte();
+    switch (lType)
+    {
+    case cNullType:
+      return null;
+    case cBooleanType:
+      return pInput.readBoolean();
+    case cIntegerType:
+      return pInput.readInt();
+    case cLongType:
+      return pInput.readLong();
+    case cFloatType:
+      return pInput.readFloat();
+    case cDoubleType:
+      return pInput.readDouble();
+    case cStringType:
+      return pInput.readUTF();
+    case cEnumType:
+      final Class lEnumClass = Class.forName(pInput.readUTF());
+      return Enum.valueOf(lEnumClass, pInput.readUTF());
+    case cSerializableType:
+      final byte[] lBytes = new byte[pInput.readInt()];
+      pInput.readFully(lBytes);
+      try (ObjectInputStream lObjectInput =
+                                          new ObjectInputStream(new ByteArrayInputStream(lBytes)))
+      {
+        return lObjectInput.readObject();
+      }
+    default:
+      throw new IOException("Unknown value type: " + lType);
+    }
+  }
+
+  private static void writeFully(FileChannel pChannel,
+                                 ByteBuffer pBuffer,
+                                 long pPosition) throws IOException
+  {
+    long lPosition = pPosition;
+    while (pBuffer.hasRemaining())
+      lPosition += pChannel.write(pBuffer, lPosition);
+  }
+
+}
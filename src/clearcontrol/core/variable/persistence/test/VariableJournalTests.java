@@ -0,0 +1,294 @@
+package clearcontrol.core.variable.persistence.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.persistence.VariableJournal;
+
+import org.junit.Test;
+
+/**
+ * Variable journal tests
+ *
+ * @author royer
+ */
+public class VariableJournalTests
+{
+
+  private enum Mode
+  {
+   Fast, Slow
+  }
+
+  private static File newJournalFile() throws IOException
+  {
+    final File lFile = File.createTempFile("VariableJournalTests",
+                                           ".journal");
+    lFile.delete();
+    lFile.deleteOnExit();
+    return lFile;
+  }
+
+  /**
+   * Tests that bound variables are restored when the journal is reopened
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testBindAndReplay() throws IOException
+  {
+    final File lFile = newJournalFile();
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      final Variable<Double> lDoubleVariable =
+                                             lJournal.bind("x",
+                                                           new Variable<Double>("x",
+                                                                                1.0));
+      final Variable<String> lStringVariable =
+                                             lJournal.bind("name",
+                                                           new Variable<String>("name",
+                                                                                "a"));
+      final Variable<Boolean> lBooleanVariable =
+                                               lJournal.bind("flag",
+                                                             new Variable<Boolean>("flag",
+                                                                                   false));
+      final Variable<Mode> lEnumVariable =
+                                         lJournal.bind("mode",
+                                                       new Variable<Mode>("mode",
+                                                                          Mode.Fast));
+
+      lDoubleVariable.set(2.5);
+      lStringVariable.set("b");
+      lBooleanVariable.set(true);
+      lEnumVariable.set(Mode.Slow);
+      lJournal.put("removed", 1L);
+      lJournal.remove("removed");
+    }
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      assertEquals(2.5,
+                   lJournal.bind("x", new Variable<Double>("x", 0.0))
+                           .get(),
+                   0);
+      assertEquals("b",
+                   lJournal.bind("name",
+                                 new Variable<String>("name", ""))
+                           .get());
+      assertTrue(lJournal.bind("flag",
+                               new Variable<Boolean>("flag", false))
+                         .get());
+      assertEquals(Mode.Slow,
+                   lJournal.bind("mode",
+                                 new Variable<Mode>("mode", Mode.Fast))
+                           .get());
+      assertFalse(lJournal.containsKey("removed"));
+    }
+  }
+
+  /**
+   * Tests that a torn final record - as left by a crash in the middle of a
+   * write - is ignored, and that the journal remains usable.
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testTornRecordIsIgnored() throws IOException
+  {
+    final File lFile = newJournalFile();
+
+    long lLengthBeforeLastRecord;
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      lJournal.put("a", 1);
+      lJournal.put("b", "two");
+      lJournal.flush();
+      lLengthBeforeLastRecord = lJournal.getSizeInBytes();
+      lJournal.put("c", 3.0);
+      lJournal.flush();
+    }
+
+    // the last record is cut in the middle of its payload:
+    final long lTornLength = lLengthBeforeLastRecord
+                             + (lFile.length() - lLengthBeforeLastRecord)
+                               / 2;
+    try (RandomAccessFile lRandomAccessFile =
+                                            new RandomAccessFile(lFile,
+                                                                 "rw"))
+    {
+      lRandomAccessFile.setLength(lTornLength);
+    }
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      assertEquals(1, lJournal.get("a"));
+      assertEquals("two", lJournal.get("b"));
+      assertNull(lJournal.get("c"));
+      assertFalse(lJournal.containsKey("c"));
+
+      // the torn record has been truncated away:
+      assertEquals(lLengthBeforeLastRecord, lFile.length());
+
+      lJournal.put("d", 4L);
+    }
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      assertEquals(1, lJournal.get("a"));
+      assertEquals(4L, lJournal.get("d"));
+    }
+  }
+
+  /**
+   * Tests that a corrupted final record is ignored
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testCorruptedRecordIsIgnored() throws IOException
+  {
+    final File lFile = newJournalFile();
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      lJournal.put("a", 1);
+      lJournal.put("b", 2);
+    }
+
+    try (RandomAccessFile lRandomAccessFile =
+                                            new RandomAccessFile(lFile,
+                                                                 "rw"))
+    {
+      lRandomAccessFile.seek(lFile.length() - 1);
+      final int lLastByte = lRandomAccessFile.read();
+      lRandomAccessFile.seek(lFile.length() - 1);
+      lRandomAccessFile.write(lLastByte ^ 0xFF);
+    }
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      assertEquals(1, lJournal.get("a"));
+      assertFalse(lJournal.containsKey("b"));
+    }
+  }
+
+  /**
+   * Tests that records are synced to disk in batches
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testSyncBatching() throws IOException
+  {
+    try (VariableJournal lJournal = new VariableJournal(newJournalFile()))
+    {
+      lJournal.setFlushPeriod(1, TimeUnit.HOURS);
+      final Variable<Integer> lVariable =
+                                        lJournal.bind("i",
+                                                      new Variable<Integer>("i",
+                                                                            0));
+      for (int i = 1; i <= 1000; i++)
+        lVariable.set(i);
+      lJournal.flush();
+
+      assertEquals(1, lJournal.getNumberOfSyncs());
+      assertEquals(1000, lJournal.get("i"));
+    }
+  }
+
+  /**
+   * Tests compaction
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testCompaction() throws IOException
+  {
+    final File lFile = newJournalFile();
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      lJournal.setFlushPeriod(1, TimeUnit.HOURS);
+      for (int i = 0; i < 100000; i++)
+      {
+        lJournal.put("x" + (i % 10), (double) i);
+        if (i % 1000 == 0)
+          lJournal.flush();
+      }
+      lJournal.flush();
+
+      assertTrue(lJournal.getNumberOfCompactions() > 0);
+      assertTrue(lFile.length() < 64 * 1024 * 4);
+
+      lJournal.compact();
+      assertEquals(10, lJournal.getNumberOfRecords());
+      lJournal.put("y", "after compaction");
+    }
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      for (int i = 0; i < 10; i++)
+        assertEquals(99990.0 + i, lJournal.get("x" + i));
+      assertEquals("after compaction", lJournal.get("y"));
+    }
+  }
+
+  /**
+   * Tests that records pending when a compaction fails are kept, and written
+   * by the next flush
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testFailedCompactionKeepsPendingRecords() throws IOException
+  {
+    final File lFile = newJournalFile();
+    // a folder in place of the compacted file makes the compaction fail:
+    final File lCompactedFile = new File(lFile.getPath() + ".compacted");
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      lJournal.setFlushPeriod(1, TimeUnit.HOURS);
+      lJournal.put("x", 1.0);
+      assertTrue(lCompactedFile.mkdir());
+      try
+      {
+        lJournal.compact();
+        fail();
+      }
+      catch (final IOException e)
+      {
+        // expected
+      }
+      finally
+      {
+        lCompactedFile.delete();
+      }
+      assertEquals(0, lJournal.getNumberOfCompactions());
+      assertTrue(lJournal.flush());
+      assertEquals(1, lJournal.getNumberOfSyncs());
+    }
+
+    try (VariableJournal lJournal = new VariableJournal(lFile))
+    {
+      assertEquals(1.0, lJournal.get("x"));
+    }
+  }
+
+}
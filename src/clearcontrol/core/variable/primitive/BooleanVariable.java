@@ -0,0 +1,109 @@
+package clearcontrol.core.variable.primitive;
+
+import clearcontrol.core.variable.Variable;
+
+/**
+ * Boolean variable. This variable is a Variable<Boolean> and thus interoperates
+ * with other variables and listeners of that type, but it also holds its value
+ * as a primitive boolean. Setting a primitive value does not box it as long as
+ * no set or edge listener is attached and no variable is synced: in that case
+ * the boxed reference is only created if and when it is needed. Primitive
+ * values can be read without unboxing as long as no get listener is attached.
+ *
+ * Classes deriving from this class always go through the regular (boxing) set
+ * and get paths, since they might override them or their hooks.
+ *
+ * @author royer
+ */
+public class BooleanVariable extends Variable<Boolean>
+{
+
+  private final boolean mIsFastPathAllowed;
+  private volatile boolean mBooleanValue;
+  private volatile boolean mIsReferenceStale;
+
+  /**
+   * Instantiates a boolean variable with a given name and initial value false.
+   * 
+   * @param pVariableName
+   *          variable name
+   */
+  public BooleanVariable(final String pVariableName)
+  {
+    this(pVariableName, false);
+  }
+
+  /**
+   * Instantiates a boolean variable with a given name and initial value
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pValue
+   *          initial value
+   */
+  public BooleanVariable(final String pVariableName, final boolean pValue)
+  {
+    super(pVariableName, pValue);
+    mBooleanValue = pValue;
+    mIsFastPathAllowed = getClass() == BooleanVariable.class;
+  }
+
+  /**
+   * Sets the value of this variable, without boxing if possible.
+   * 
+   * @param pNewValue
+   *          new value
+   */
+  public void set(final boolean pNewValue)
+  {
+    if (mIsFastPathAllowed && mVariablesToSendUpdatesTo.isEmpty()
+        && getVariableSetListeners().isEmpty()
+        && getVariableEdgeListeners().isEmpty())
+    {
+      mBooleanValue = pNewValue;
+      mIsReferenceStale = true;
+    }
+    else
+      set(Boolean.valueOf(pNewValue));
+  }
+
+  /**
+   * Returns the value of this variable, without unboxing if possible.
+   * 
+   * @return value
+   */
+  public boolean getBoolean()
+  {
+    if (mIsFastPathAllowed && getVariableGetListeners().isEmpty())
+      return mBooleanValue;
+
+    final Boolean lValue = get();
+    return lValue == null ? false : lValue;
+  }
+
+  @Override
+  public void toggle()
+  {
+    set(!getBoolean());
+  }
+
+  @Override
+  protected Boolean getReference()
+  {
+    if (mIsReferenceStale)
+    {
+      mIsReferenceStale = false;
+      super.setReference(mBooleanValue);
+    }
+    return super.getReference();
+  }
+
+  @Override
+  protected void setReference(final Boolean pNewReference)
+  {
+    mIsReferenceStale = false;
+    super.setReference(pNewReference);
+    mBooleanValue = pNewReference == null ? false : pNewReference;
+  }
+
+}
@@ -0,0 +1,103 @@
+package clearcontrol.core.variable.primitive;
+
+import clearcontrol.core.variable.Variable;
+
+/**
+ * Double variable. This variable is a Variable<Double> and thus interoperates
+ * with other variables and listeners of that type, but it also holds its value
+ * as a primitive double. Setting a primitive value does not box it as long as
+ * no set or edge listener is attached and no variable is synced: in that case
+ * the boxed reference is only created if and when it is needed. Primitive
+ * values can be read without unboxing as long as no get listener is attached.
+ *
+ * Classes deriving from this class always go through the regular (boxing) set
+ * and get paths, since they might override them or their hooks.
+ *
+ * @author royer
+ */
+public class DoubleVariable extends Variable<Double>
+{
+
+  private final boolean mIsFastPathAllowed;
+  private volatile double mDoubleValue;
+  private volatile boolean mIsReferenceStale;
+
+  /**
+   * Instantiates a double variable with a given name and initial value zero.
+   * 
+   * @param pVariableName
+   *          variable name
+   */
+  public DoubleVariable(final String pVariableName)
+  {
+    this(pVariableName, 0);
+  }
+
+  /**
+   * Instantiates a double variable with a given name and initial value
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pValue
+   *          initial value
+   */
+  public DoubleVariable(final String pVariableName, final double pValue)
+  {
+    super(pVariableName, pValue);
+    mDoubleValue = pValue;
+    mIsFastPathAllowed = getClass() == DoubleVariable.class;
+  }
+
+  /**
+   * Sets the value of this variable, without boxing if possible.
+   * 
+   * @param pNewValue
+   *          new value
+   */
+  public void set(final double pNewValue)
+  {
+    if (mIsFastPathAllowed && mVariablesToSendUpdatesTo.isEmpty()
+        && getVariableSetListeners().isEmpty()
+        && getVariableEdgeListeners().isEmpty())
+    {
+      mDoubleValue = pNewValue;
+      mIsReferenceStale = true;
+    }
+    else
+      set(Double.valueOf(pNewValue));
+  }
+
+  /**
+   * Returns the value of this variable, without unboxing if possible.
+   * 
+   * @return value
+   */
+  public double getDouble()
+  {
+    if (mIsFastPathAllowed && getVariableGetListeners().isEmpty())
+      return mDoubleValue;
+
+    final Double lValue = get();
+    return lValue == null ? Double.NaN : lValue;
+  }
+
+  @Override
+  protected Double getReference()
+  {
+    if (mIsReferenceStale)
+    {
+      mIsReferenceStale = false;
+      super.setReference(mDoubleValue);
+    }
+    return super.getReference();
+  }
+
+  @Override
+  protected void setReference(final Double pNewReference)
+  {
+    mIsReferenceStale = false;
+    super.setReference(pNewReference);
+    mDoubleValue = pNewReference == null ? Double.NaN : pNewReference;
+  }
+
+}
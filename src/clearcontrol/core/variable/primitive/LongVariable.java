@@ -0,0 +1,115 @@
+package clearcontrol.core.variable.primitive;
+
+import clearcontrol.core.variable.Variable;
+
+/**
+ * Long variable. This variable is a Variable<Long> and thus interoperates
+ * with other variables and listeners of that type, but it also holds its value
+ * as a primitive long. Setting a primitive value does not box it as long as
+ * no set or edge listener is attached and no variable is synced: in that case
+ * the boxed reference is only created if and when it is needed. Primitive
+ * values can be read without unboxing as long as no get listener is attached.
+ *
+ * Classes deriving from this class always go through the regular (boxing) set
+ * and get paths, since they might override them or their hooks.
+ *
+ * @author royer
+ */
+public class LongVariable extends Variable<Long>
+{
+
+  private final boolean mIsFastPathAllowed;
+  private volatile long mLongValue;
+  private volatile boolean mIsReferenceStale;
+
+  /**
+   * Instantiates a long variable with a given name and initial value zero.
+   * 
+   * @param pVariableName
+   *          variable name
+   */
+  public LongVariable(final String pVariableName)
+  {
+    this(pVariableName, 0);
+  }
+
+  /**
+   * Instantiates a long variable with a given name and initial value
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pValue
+   *          initial value
+   */
+  public LongVariable(final String pVariableName, final long pValue)
+  {
+    super(pVariableName, pValue);
+    mLongValue = pValue;
+    mIsFastPathAllowed = getClass() == LongVariable.class;
+  }
+
+  /**
+   * Sets the value of this variable, without boxing if possible.
+   * 
+   * @param pNewValue
+   *          new value
+   */
+  public void set(final long pNewValue)
+  {
+    if (mIsFastPathAllowed && mVariablesToSendUpdatesTo.isEmpty()
+        && getVariableSetListeners().isEmpty()
+        && getVariableEdgeListeners().isEmpty())
+    {
+      mLongValue = pNewValue;
+      mIsReferenceStale = true;
+    }
+    else
+      set(Long.valueOf(pNewValue));
+  }
+
+  /**
+   * Returns the value of this variable, without unboxing if possible.
+   * 
+   * @return value
+   */
+  public long getLong()
+  {
+    if (mIsFastPathAllowed && getVariableGetListeners().isEmpty())
+      return mLongValue;
+
+    final Long lValue = get();
+    return lValue == null ? 0 : lValue;
+  }
+
+  @Override
+  public void increment()
+  {
+    set(getLong() + 1);
+  }
+
+  @Override
+  public void decrement()
+  {
+    set(getLong() - 1);
+  }
+
+  @Override
+  protected Long getReference()
+  {
+    if (mIsReferenceStale)
+    {
+      mIsReferenceStale = false;
+      super.setReference(mLongValue);
+    }
+    return super.getReference();
+  }
+
+  @Override
+  protected void setReference(final Long pNewReference)
+  {
+    mIsReferenceStale = false;
+    super.setReference(pNewReference);
+    mLongValue = pNewReference == null ? 0 : pNewReference;
+  }
+
+}
@@ -4,11 +4,21 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.thread.ThreadSleep;
 import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.primitive.BooleanVariable;
+import clearcontrol.core.variable.primitive.DoubleVariable;
+import clearcontrol.core.variable.primitive.LongVariable;
 
 import org.junit.Test;
 
@@ -130,4 +140,263 @@ public class VariableTests implements AsynchronousExecutorFeature
     ThreadSleep.sleep(100, TimeUnit.MILLISECONDS);
 
   }
+
+  /**
+   * Primitive variables tests
+   */
+  @Test
+  public void testPrimitiveVariables()
+  {
+    final DoubleVariable x = new DoubleVariable("x", 1.0);
+    assertEquals(1.0, x.getDouble(), 0);
+    assertEquals(new Double(1.0), x.get());
+
+    // no listener, no synced variable: unboxed set:
+    x.set(2.0);
+    assertEquals(2.0, x.getDouble(), 0);
+    assertEquals(new Double(2.0), x.get());
+    assertEquals("x=2.0", x.toString());
+
+    // interoperates with regular variables and listeners:
+    final Variable<Double> y = new Variable<Double>("y", 0.0);
+    x.syncWith(y);
+    final AtomicInteger lCounter = new AtomicInteger();
+    y.addSetListener((o, n) -> lCounter.incrementAndGet());
+
+    x.set(3.0);
+    assertEquals(new Double(3.0), y.get());
+    assertEquals(1, lCounter.get());
+
+    y.set(4.0);
+    assertEquals(4.0, x.getDouble(), 0);
+    assertEquals(2, lCounter.get());
+
+    final LongVariable lLongVariable = new LongVariable("l", 1);
+    lLongVariable.increment();
+    lLongVariable.set(lLongVariable.getLong() * 10);
+    assertEquals(20, lLongVariable.getLong());
+    assertEquals(new Long(20), lLongVariable.get());
+
+    final BooleanVariable lBooleanVariable = new BooleanVariable("b");
+    assertFalse(lBooleanVariable.getBoolean());
+    lBooleanVariable.toggle();
+    assertTrue(lBooleanVariable.getBoolean());
+    assertTrue(lBooleanVariable.get());
+  }
+
+  /**
+   * Coalesced async updates test
+   */
+  @Test
+  public void testCoalescedAsyncUpdates()
+  {
+    final Variable<Integer> x = new Variable<Integer>("x", 0);
+    x.setAsyncUpdatesCoalesced(true);
+    assertTrue(x.isAsyncUpdatesCoalesced());
+
+    final List<Integer> lValues =
+                                Collections.synchronizedList(new ArrayList<>());
+    x.addSetListener((o, n) -> {
+      lValues.add(n);
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+    });
+
+    for (int i = 1; i <= 1000; i++)
+      x.setAsync(i);
+
+    // the latest value always wins, and values are applied in order:
+    waitForLastValue(lValues, 1000);
+    assertEquals(Integer.valueOf(1000), x.get());
+    assertIncreasing(lValues);
+    assertEquals(1000 - lValues.size(),
+                 x.getNumberOfDroppedAsyncUpdates());
+
+    // edges are never split:
+    lValues.clear();
+    x.setEdgeAsync(-1, 1);
+    x.setAsync(2);
+    waitForLastValue(lValues, 2);
+    assertEquals(Arrays.asList(-1, 1, 2), lValues);
+  }
+
+  /**
+   * Tests that async updates that are not coalesced are all applied, in the
+   * order in which they were requested.
+   */
+  @Test
+  public void testAsyncUpdateOrdering()
+  {
+    final Variable<Integer> x = new Variable<Integer>("x", 0);
+
+    final List<Integer> lValues =
+                                Collections.synchronizedList(new ArrayList<>());
+    x.addSetListener((o, n) -> lValues.add(n));
+
+    // stays within the max number of pending updates:
+    for (int i = 1; i <= 1000; i++)
+      x.setAsync(i);
+
+    waitForLastValue(lValues, 1000);
+    assertEquals(1000, lValues.size());
+    for (int i = 0; i < lValues.size(); i++)
+      assertEquals(Integer.valueOf(i + 1), lValues.get(i));
+  }
+
+  /**
+   * Tests that pending async updates are bounded: past the bound, updates are
+   * coalesced, in order, and the latest value wins.
+   */
+  @Test
+  public void testAsyncUpdateBound()
+  {
+    final Variable<Integer> x = new Variable<Integer>("x", 0);
+
+    final CountDownLatch lLatch = new CountDownLatch(1);
+    final List<Integer> lValues =
+                                Collections.synchronizedList(new ArrayList<>());
+    x.addSetListener((o, n) -> {
+      try
+      {
+        lLatch.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      lValues.add(n);
+    });
+
+    for (int i = 1; i <= 5000; i++)
+      x.setAsync(i);
+    lLatch.countDown();
+
+    waitForLastValue(lValues, 5000);
+    assertIncreasing(lValues);
+    assertTrue(x.getNumberOfDroppedAsyncUpdates() > 0);
+    assertEquals(5000 - lValues.size(),
+                 x.getNumberOfDroppedAsyncUpdates());
+  }
+
+  /**
+   * Tests that a slow listener of one variable does not hold up the async
+   * updates of other variables.
+   */
+  @Test
+  public void testAsyncUpdateIsolation()
+  {
+    final Variable<Integer> x = new Variable<Integer>("x", 0);
+    final Variable<Integer> y = new Variable<Integer>("y", 0);
+
+    final CountDownLatch lLatch = new CountDownLatch(1);
+    x.addSetListener((o, n) -> {
+      try
+      {
+        lLatch.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    });
+    final List<Integer> lValues =
+                                Collections.synchronizedList(new ArrayList<>());
+    y.addSetListener((o, n) -> lValues.add(n));
+
+    try
+    {
+      x.setAsync(1);
+      y.setAsync(1);
+      waitForLastValue(lValues, 1);
+    }
+    finally
+    {
+      lLatch.countDown();
+    }
+  }
+
+  private static void waitForLastValue(List<Integer> pValues, int pValue)
+  {
+    final long lDeadline = System.nanoTime()
+                           + TimeUnit.SECONDS.toNanos(10);
+    while (System.nanoTime() < lDeadline
+           && (pValues.isEmpty()
+               || pValues.get(pValues.size() - 1) != pValue))
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+    assertEquals(Integer.valueOf(pValue),
+                 pValues.get(pValues.size() - 1));
+  }
+
+  private static void assertIncreasing(List<Integer> pValues)
+  {
+    for (int i = 1; i < pValues.size(); i++)
+      assertTrue(pValues.get(i - 1) < pValues.get(i));
+  }
+
+  /**
+   * Benchmarks the set throughput of variables for 1, 10, and 100 listeners
+   * and synced variables.
+   */
+  @Test
+  public void benchmarkSetThroughput()
+  {
+    final int lNumberOfSets = 1000000;
+
+    for (int lFanOut : new int[]
+    { 1, 10, 100 })
+    {
+      final AtomicLong lSum = new AtomicLong();
+
+      final Variable<Double> lListenedVariable =
+                                               new Variable<Double>("x",
+                                                                    0.0);
+      for (int i = 0; i < lFanOut; i++)
+        lListenedVariable.addSetListener((o, n) -> lSum.incrementAndGet());
+
+      final Variable<Double> lSyncedVariable = new Variable<Double>("y",
+                                                                    0.0);
+      for (int i = 0; i < lFanOut; i++)
+        lSyncedVariable.sendUpdatesTo(new Variable<Double>("z" + i,
+                                                           0.0));
+
+      final double lListenersSetsPerSecond =
+                                           measureSetThroughput(lListenedVariable,
+                                                                lNumberOfSets
+                                                                                   / lFanOut);
+      final double lSyncedSetsPerSecond =
+                                        measureSetThroughput(lSyncedVariable,
+                                                             lNumberOfSets
+                                                                              / lFanOut);
+
+      System.out.format("fan-out %d: %g sets/s with listeners, %g sets/s with synced variables \n",
+                        lFanOut,
+                        lListenersSetsPerSecond,
+                        lSyncedSetsPerSecond);
+
+      assertEquals(lFanOut * (long) (lNumberOfSets / lFanOut) * 2,
+                   lSum.get());
+    }
+
+    final DoubleVariable lDoubleVariable = new DoubleVariable("d");
+    final long lStartTimeNanos = System.nanoTime();
+    for (int i = 0; i < lNumberOfSets; i++)
+      lDoubleVariable.set(lDoubleVariable.getDouble() + 1);
+    final double lElapsedTimeInSeconds = 1e-9 * (System.nanoTime()
+                                                 - lStartTimeNanos);
+    System.out.format("unboxed double variable: %g sets/s \n",
+                      lNumberOfSets / lElapsedTimeInSeconds);
+    assertEquals(lNumberOfSets, lDoubleVariable.getDouble(), 0);
+  }
+
+  private static double measureSetThroughput(Variable<Double> pVariable,
+                                             int pNumberOfSets)
+  {
+    // warm-up and measurement:
+    for (int i = 0; i < pNumberOfSets; i++)
+      pVariable.set((double) i);
+    final long lStartTimeNanos = System.nanoTime();
+    for (int i = 0; i < pNumberOfSets; i++)
+      pVariable.set((double) i);
+    return pNumberOfSets / (1e-9 * (System.nanoTime()
+                                    - lStartTimeNanos));
+  }
 }
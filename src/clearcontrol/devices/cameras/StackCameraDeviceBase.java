@@ -6,6 +6,7 @@ import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.VariableSetListener;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import coremem.recycling.RecyclerInterface;
 
@@ -29,6 +30,10 @@ public abstract class StackCameraDeviceBase<Q extends StackCameraQueue<Q>>
 
   protected Variable<StackInterface> mStackVariable;
 
+  protected Variable<Boolean> mPlaneStreamingMode;
+
+  protected Variable<StackPlaneBatch> mPlaneBatchVariable;
+
   protected Q mTemplateQueue;
 
   /**
@@ -52,6 +57,11 @@ public abstract class StackCameraDeviceBase<Q extends StackCameraQueue<Q>>
 
     mStackVariable = new Variable<>("StackReference");
 
+    mPlaneStreamingMode = new Variable<Boolean>("PlaneStreamingMode",
+                                                false);
+
+    mPlaneBatchVariable = new Variable<>("PlaneBatchReference");
+
     @SuppressWarnings("rawtypes")
     final VariableSetListener lVariableListener = (o, n) -> {
       if (o != n)
@@ -125,6 +135,28 @@ public abstract class StackCameraDeviceBase<Q extends StackCameraQueue<Q>>
     return mStackVariable;
   }
 
+  @Override
+  public Variable<Boolean> getPlaneStreamingModeVariable()
+  {
+    return mPlaneStreamingMode;
+  }
+
+  @Override
+  public Variable<StackPlaneBatch> getPlaneBatchVariable()
+  {
+    return mPlaneBatchVariable;
+  }
+
+  /**
+   * Returns true if this camera is in plane streaming mode
+   * 
+   * @return true if plane streaming
+   */
+  public boolean isPlaneStreaming()
+  {
+    return mPlaneStreamingMode.get();
+  }
+
   @Override
   public void trigger()
   {
@@ -4,6 +4,7 @@ import clearcontrol.core.device.name.NameableInterface;
 import clearcontrol.core.device.queue.QueueDeviceInterface;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import coremem.recycling.RecyclerInterface;
 
@@ -72,6 +73,26 @@ public interface StackCameraDeviceInterface<Q extends StackCameraQueue<Q>>
    */
   Variable<StackInterface> getStackVariable();
 
+  /**
+   * Returns the variable holding the flag indicating whether this stack camera
+   * streams planes as they are acquired. In plane streaming mode, batches of
+   * acquired planes are sent to the plane batch variable while the stack is
+   * being acquired, the complete stack is still sent to the stack variable
+   * once the last plane has been acquired.
+   * 
+   * @return plane streaming mode variable
+   */
+  Variable<Boolean> getPlaneStreamingModeVariable();
+
+  /**
+   * Returns the variable that will receive the plane batches when in plane
+   * streaming mode. Plane batches of a given stack are always sent before the
+   * stack itself is sent to the stack variable.
+   * 
+   * @return plane batch variable
+   */
+  Variable<StackPlaneBatch> getPlaneBatchVariable();
+
   /**
    * Returns the variable holding the flag indicating whether this stack camera
    * is in stack mode versus single image mode.
@@ -8,6 +8,7 @@ import java.util.concurrent.TimeUnit;
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
 import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.profiling.TimingRecorder;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.devices.cameras.StackCameraDeviceBase;
 import clearcontrol.devices.cameras.StackCameraDeviceInterface;
@@ -219,6 +220,9 @@ public class HamStackCamera extends
                                       long pAcquiredPlanesDepth,
                                       long pKeptPlanesDepth)
   {
+    final TimingRecorder lTimingRecorder =
+                                         TimingRecorder.getSingletonTimingRecorder();
+    final long lExposureStartTime = lTimingRecorder.now();
 
     Future<Boolean> lAcquisitionResult =
                                        mDcamSequenceAcquisition.acquireSequenceAsync(lExposureInSeconds,
@@ -236,6 +240,9 @@ public class HamStackCamera extends
       else
       {
         Boolean lResult = lAcquisitionResult.get();
+        lTimingRecorder.record("Exposure",
+                               getName(),
+                               lExposureStartTime);
         if (!lResult)
           return false;
 
@@ -243,10 +250,14 @@ public class HamStackCamera extends
                                       StackRequest.build(pWidth,
                                                          pHeight,
                                                          pKeptPlanesDepth);
+        final long lRecyclerWaitStartTime = lTimingRecorder.now();
         lAcquiredStack =
                        getStackRecycler().getOrWait(cWaitTime,
                                                     TimeUnit.MILLISECONDS,
                                                     lRecyclerRequest);
+        lTimingRecorder.record("RecyclerWait",
+                               getName(),
+                               lRecyclerWaitStartTime);
 
         if (lAcquiredStack == null)
           return false;
@@ -1,17 +1,30 @@
 package clearcontrol.devices.cameras.devices.sim;
 
 import static java.lang.Math.max;
+import static java.lang.Math.toIntExact;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.device.queue.VariableQueueBase;
+import clearcontrol.core.profiling.TimingRecorder;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlanes;
 import clearcontrol.stack.StackRequest;
 import coremem.recycling.RecyclerInterface;
 
 /**
+ * Base class for stack camera simulation providers that synthesize stacks.
  *
+ * Planes are synthesized in parallel: each plane is computed by a derived class
+ * into a plane buffer (see fillPlane), which is then copied in bulk into the
+ * stack. The planes of a stack are distributed over a thread pool shared by
+ * all providers, the calling thread also synthesizes planes. Plane buffers are
+ * owned by the provider and reused from stack to stack, there are at most as
+ * many as there are threads synthesizing planes concurrently.
  *
  * @author royer
  */
@@ -20,6 +33,9 @@ public abstract class StackCameraSimulationProviderBase implements
 {
   private final long mGetStackTimeOutInSeconds;
 
+  private final ConcurrentLinkedQueue<short[]> mPlaneBuffers =
+                                                             new ConcurrentLinkedQueue<>();
+
   /**
    * Instantiates a stack camera simulation provider
    */
@@ -66,10 +82,17 @@ public abstract class StackCameraSimulationProviderBase implements
                                                           lHeight,
                                                           lDepth);
 
+    final TimingRecorder lTimingRecorder =
+                                         TimingRecorder.getSingletonTimingRecorder();
+    final long lRecyclerWaitStartTime = lTimingRecorder.now();
     final StackInterface lStack =
                                 pRecycler.getOrWait(mGetStackTimeOutInSeconds,
                                                     TimeUnit.SECONDS,
                                                     lStackRequest);
+    if (lTimingRecorder.isEnabled())
+      lTimingRecorder.record("RecyclerWait",
+                             getClass().getSimpleName(),
+                             lRecyclerWaitStartTime);
 
     if (lStack != null)
     {
@@ -84,12 +107,108 @@ public abstract class StackCameraSimulationProviderBase implements
     return lStack;
   }
 
-  protected abstract void fillStackData(StackCameraSimulationQueue pQueue,
-                                        ArrayList<Boolean> pKeepPlaneList,
-                                        long pWidth,
-                                        long pHeight,
-                                        long pDepth,
-                                        StackInterface pStack);
+  /**
+   * Fills the stack data. Kept planes are synthesized in parallel with
+   * fillPlane, the i-th plane of the stack receives the i-th kept plane of the
+   * queue.
+   * 
+   * @param pQueue
+   *          queue
+   * @param pKeepPlaneList
+   *          keep plane list
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   * @param pStack
+   *          stack to fill
+   */
+  protected void fillStackData(StackCameraSimulationQueue pQueue,
+                               ArrayList<Boolean> pKeepPlaneList,
+                               long pWidth,
+                               long pHeight,
+                               long pDepth,
+                               StackInterface pStack)
+  {
+    final long lStackIndex = pQueue.getStackCamera()
+                                   .getCurrentStackIndex();
+    final int lWidth = toIntExact(pWidth);
+    final int lHeight = toIntExact(pHeight);
+
+    final int[] lKeptPlanes = new int[toIntExact(pDepth)];
+    int lNumberOfKeptPlanes = 0;
+    for (int z = 0; z < pDepth; z++)
+      if (pKeepPlaneList.get(z))
+        lKeptPlanes[lNumberOfKeptPlanes++] = z;
+    final int lNumberOfPlanes = lNumberOfKeptPlanes;
+
+    final int lPlaneLength = lWidth * lHeight;
+    final AtomicInteger lNextPlaneIndex = new AtomicInteger();
+    final Runnable lPlaneFilling = () -> {
+      final short[] lPlane = takePlaneBuffer(lPlaneLength);
+      try
+      {
+        int lPlaneIndex;
+        while ((lPlaneIndex =
+                            lNextPlaneIndex.getAndIncrement()) < lNumberOfPlanes)
+        {
+          fillPlane(pQueue,
+                    lStackIndex,
+                    lWidth,
+                    lHeight,
+                    lKeptPlanes[lPlaneIndex],
+                    lPlane);
+          StackPlanes.asShortBuffer(pStack.getContiguousMemory(lPlaneIndex))
+                     .put(lPlane, 0, lPlaneLength);
+        }
+      }
+      finally
+      {
+        mPlaneBuffers.offer(lPlane);
+      }
+    };
+
+    ClearControlExecutors.runOnCallerAndHelpers(StackCameraSimulationProviderBase.class,
+                                                lNumberOfPlanes - 1,
+                                                lPlaneFilling);
+  }
+
+  /**
+   * Synthesizes one plane. This method is called concurrently for different
+   * planes of the same stack.
+   * 
+   * @param pQueue
+   *          queue
+   * @param pStackIndex
+   *          index of the stack being synthesized
+   * @param pWidth
+   *          plane width
+   * @param pHeight
+   *          plane height
+   * @param pZ
+   *          plane z index in the queue
+   * @param pPlane
+   *          plane buffer to fill, of length at least width*height, in
+   *          row-major order
+   */
+  protected abstract void fillPlane(StackCameraSimulationQueue pQueue,
+                                    long pStackIndex,
+                                    int pWidth,
+                                    int pHeight,
+                                    int pZ,
+                                    short[] pPlane);
+
+  private short[] takePlaneBuffer(int pLength)
+  {
+    // buffers of another plane size are dropped:
+    short[] lPlane;
+    while ((lPlane = mPlaneBuffers.poll()) != null)
+      if (lPlane.length == pLength)
+        return lPlane;
+    return new short[pLength];
+  }
 
   /**
    * @param pKeepPlaneList
@@ -1,17 +1,25 @@
 package clearcontrol.devices.cameras.devices.sim;
 
+import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.concurrent.timing.ExecuteMinDuration;
+import clearcontrol.core.concurrent.timing.WaitingSignal;
 import clearcontrol.core.variable.VariableEdgeListener;
 import clearcontrol.devices.cameras.StackCameraQueue;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 
 /**
  * Queue for stack camera simulators
  *
+ * In plane streaming mode, each trigger starts the simulated exposure of one
+ * plane, and each plane is sent to the camera's plane batch variable as soon as
+ * its exposure is over. Otherwise, the whole stack is sent to the stack
+ * variable after the last trigger.
+ *
  * @author royer
  */
 public class StackCameraSimulationQueue extends
@@ -34,6 +42,10 @@ public class StackCameraSimulationQueue extends
   private volatile StackInterface mAquiredStack;
   private CountDownLatch mAcquisitionLatch;
 
+  private volatile boolean mPlaneStreaming;
+  private ArrayList<Boolean> mKeepPlaneList;
+  private long mNextPlaneIndex;
+
   /**
    * Instanciates a queue given a stack camera simulator
    * 
@@ -72,6 +84,8 @@ public class StackCameraSimulationQueue extends
 
     mAcquisitionLatch = new CountDownLatch(1);
 
+    mPlaneStreaming = getStackCameraSimulator().isPlaneStreaming();
+
     return mAcquisitionLatch;
   }
 
@@ -91,6 +105,25 @@ public class StackCameraSimulationQueue extends
                                                                .longValue();
     final long lDepth = getQueueLength();
 
+    if (mPlaneStreaming)
+    {
+      final long lExposureTimeInNanoseconds =
+                                            (long) (getStackCameraSimulator().getExposureInSecondsVariable()
+                                                                             .get()
+                                                                             .doubleValue()
+                                                    * 1e9);
+      final long lTriggerIndex = mTriggerCounter.getAndIncrement();
+      if (lTriggerIndex + 1 >= lDepth)
+        mTriggerCounter.set(0);
+
+      getStackCameraSimulator().executeAsynchronously(() -> {
+        planeAcquisition(lTriggerIndex,
+                         lDepth,
+                         lExposureTimeInNanoseconds);
+      });
+      return;
+    }
+
     final long lAquisitionTimeInSeconds = lDepth
                                           * lExposuretimeInSeconds;
 
@@ -149,4 +182,89 @@ public class StackCameraSimulationQueue extends
     }
   }
 
+  private void planeAcquisition(final long pTriggerIndex,
+                                final long pQueueLength,
+                                final long pExposureTimeInNanoseconds)
+  {
+    final long lExposureStartInNanoseconds = System.nanoTime();
+
+    if (pTriggerIndex == 0)
+    {
+      // the stack is requested at the first trigger, and its metadata is set
+      // before any plane is sent:
+      mNextPlaneIndex = 0;
+      mKeepPlaneList = getVariableQueue(getKeepPlaneVariable());
+      try
+      {
+        mAquiredStack =
+                      getStackCameraSimulator().getStackCameraSimulationProvider()
+                                               .getStack(getStackCameraSimulator().getStackRecycler(),
+                                                         this);
+      }
+      catch (Throwable e)
+      {
+        mAquiredStack = null;
+        getStackCameraSimulator().severe("Exception occured while getting stack: '%s'",
+                                         e.getMessage());
+        e.printStackTrace();
+      }
+
+      getStackCameraSimulator().getCurrentIndexVariable().increment();
+
+      if (mAquiredStack == null)
+        getStackCameraSimulator().severe("COULD NOT GET NEW STACK! QUEUE FULL OR INVALID STACK PARAMETERS!");
+      else
+      {
+        mAquiredStack.setMetaData(getMetaDataVariable().get().clone());
+        mAquiredStack.getMetaData()
+                     .setTimeStampInNanoseconds(lExposureStartInNanoseconds);
+        mAquiredStack.getMetaData()
+                     .setIndex(getStackCameraSimulator().getCurrentIndexVariable()
+                                                        .get());
+      }
+    }
+
+    WaitingSignal.parkUntil(lExposureStartInNanoseconds
+                            + pExposureTimeInNanoseconds);
+
+    final StackInterface lStack = mAquiredStack;
+    final boolean lIsLastTrigger = pTriggerIndex + 1 >= pQueueLength;
+
+    if (lIsLastTrigger)
+      stopListeningToTrigger();
+
+    if (lStack != null)
+    {
+      final boolean lKeepPlane = mKeepPlaneList == null
+                                 || pTriggerIndex >= mKeepPlaneList.size()
+                                 || mKeepPlaneList.get((int) pTriggerIndex);
+
+      if (lKeepPlane && mNextPlaneIndex < lStack.getDepth())
+      {
+        getStackCameraSimulator().getPlaneBatchVariable()
+                                 .set(new StackPlaneBatch(lStack,
+                                                          mNextPlaneIndex,
+                                                          1));
+        mNextPlaneIndex++;
+      }
+
+      if (lIsLastTrigger)
+      {
+        // the last batch must end with the last plane of the stack:
+        if (mNextPlaneIndex < lStack.getDepth())
+          getStackCameraSimulator().getPlaneBatchVariable()
+                                   .set(new StackPlaneBatch(lStack,
+                                                            mNextPlaneIndex,
+                                                            lStack.getDepth()
+                                                                             - mNextPlaneIndex));
+        getStackCameraSimulator().getStackVariable().set(lStack);
+      }
+    }
+
+    if (lIsLastTrigger && mAcquisitionLatch != null)
+    {
+      mAcquisitionLatch.countDown();
+    }
+  }
+
 }
@@ -1,13 +1,8 @@
 package clearcontrol.devices.cameras.devices.sim.providers;
 
-import java.util.ArrayList;
-
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
-import clearcontrol.stack.StackInterface;
-import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
 
 /**
  * Fractal stack provider for stack camera simulator
@@ -21,34 +16,27 @@ public class FractalStackProvider extends
 {
 
   @Override
-  protected void fillStackData(StackCameraSimulationQueue pQueue,
-                               ArrayList<Boolean> pKeepPlaneList,
-                               final long pWidth,
-                               final long pHeight,
-                               final long pDepth,
-                               final StackInterface pStack)
+  protected void fillPlane(StackCameraSimulationQueue pQueue,
+                           long pStackIndex,
+                           int pWidth,
+                           int pHeight,
+                           int pZ,
+                           short[] pPlane)
   {
-    final byte time = (byte) pQueue.getStackCamera()
-                                   .getCurrentStackIndex();
-
-    final ContiguousMemoryInterface lContiguousMemory =
-                                                      pStack.getContiguousMemory();
-    final ContiguousBuffer lContiguousBuffer =
-                                             new ContiguousBuffer(lContiguousMemory);
+    final byte time = (byte) pStackIndex;
 
-    for (int z = 0; z < pDepth; z++)
-      if (pKeepPlaneList.get(z))
-        for (int y = 0; y < pHeight; y++)
-          for (int x = 0; x < pWidth; x++)
-          {
-            short lValue = (short) (((byte) (x + time)
-                                     ^ (byte) (y + (pHeight) / 3)
-                                     ^ (byte) z
-                                     ^ (time)));/**/
-            if (lValue < 32)
-              lValue = 0;
-            lContiguousBuffer.writeShort(lValue);
-          }
+    for (int y = 0; y < pHeight; y++)
+    {
+      final int lRowTerm = (byte) (y + (pHeight) / 3) ^ (byte) pZ ^ (time);
+      final int lRowOffset = y * pWidth;
+      for (int x = 0; x < pWidth; x++)
+      {
+        short lValue = (short) ((byte) (x + time) ^ lRowTerm);
+        if (lValue < 32)
+          lValue = 0;
+        pPlane[lRowOffset + x] = lValue;
+      }
+    }
   }
 
 }
@@ -1,13 +1,8 @@
 package clearcontrol.devices.cameras.devices.sim.providers;
 
-import java.util.ArrayList;
-
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
-import clearcontrol.stack.StackInterface;
-import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
 
 /**
  * Random stack provider for stack camera simulator
@@ -22,33 +17,29 @@ public class RandomStackProvider extends
 {
 
   @Override
-  protected void fillStackData(StackCameraSimulationQueue pQueue,
-                               ArrayList<Boolean> pKeepPlaneList,
-                               final long pWidth,
-                               final long pHeight,
-                               final long pDepth,
-                               final StackInterface pStack)
+  protected void fillPlane(StackCameraSimulationQueue pQueue,
+                           long pStackIndex,
+                           int pWidth,
+                           int pHeight,
+                           int pZ,
+                           short[] pPlane)
   {
-    final byte time = (byte) pQueue.getStackCamera()
-                                   .getCurrentStackIndex();
-
-    final ContiguousMemoryInterface lContiguousMemory =
-                                                      pStack.getContiguousMemory();
-    final ContiguousBuffer lContiguousBuffer =
-                                             new ContiguousBuffer(lContiguousMemory);
-
-    for (int z = 0; z < pDepth; z++)
-      if (pKeepPlaneList.get(z))
-        for (int y = 0; y < pHeight; y++)
-          for (int x = 0; x < pWidth; x++)
-          {
-            short lValue = (short) (256
-                                    * fract(Math.cos(x + y + z + time)
-                                            * 1000000));/**/
-            if (lValue < 32)
-              lValue = 0;
-            lContiguousBuffer.writeShort(lValue);
-          }
+    final byte time = (byte) pStackIndex;
+
+    // voxel values only depend on x+y for a given plane, they are computed
+    // once per diagonal:
+    final short[] lDiagonalValues = new short[pWidth + pHeight];
+    for (int d = 0; d < pWidth + pHeight; d++)
+    {
+      short lValue = (short) (256
+                              * fract(Math.cos(d + pZ + time) * 1000000));
+      if (lValue < 32)
+        lValue = 0;
+      lDiagonalValues[d] = lValue;
+    }
+
+    for (int y = 0; y < pHeight; y++)
+      System.arraycopy(lDiagonalValues, y, pPlane, y * pWidth, pWidth);
   }
 
 }
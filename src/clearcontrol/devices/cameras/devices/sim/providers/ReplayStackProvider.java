@@ -0,0 +1,144 @@
+package clearcontrol.devices.cameras.devices.sim.providers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.concurrent.timing.WaitingSignal;
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import clearcontrol.stack.sourcesink.source.StackSourceInterface;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Replay stack provider for stack camera simulator. Stacks are read from a
+ * stack source (for example a raw file stack source holding a pre-recorded
+ * dataset) and served in a loop, at a given frame rate: a stack of depth d is
+ * not served before d frame periods have elapsed since the previous stack was
+ * served. This makes it possible to feed the whole stack path with real data
+ * at production data rates without hardware.
+ *
+ * Replayed stacks have the dimensions of the recorded stacks, the stack
+ * dimensions of the queue are ignored.
+ *
+ * @author royer
+ */
+public class ReplayStackProvider implements
+                                 StackCameraSimulationProvider
+{
+  private final StackSourceInterface mStackSource;
+  private final String mChannel;
+  private volatile double mFramesPerSecond;
+
+  private final AtomicLong mNextStackIndex = new AtomicLong();
+  private volatile long mNextStackDeadlineInNanos = Long.MIN_VALUE;
+
+  /**
+   * Instantiates a replay stack provider for the default channel of a given
+   * stack source, with no frame rate limit.
+   *
+   * @param pStackSource
+   *          stack source
+   */
+  public ReplayStackProvider(StackSourceInterface pStackSource)
+  {
+    this(pStackSource,
+         StackSinkSourceInterface.cDefaultChannel,
+         Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Instantiates a replay stack provider for a given channel of a given stack
+   * source and a given frame rate.
+   *
+   * @param pStackSource
+   *          stack source
+   * @param pChannel
+   *          channel to replay
+   * @param pFramesPerSecond
+   *          frame rate in frames (planes) per second, infinite for no limit
+   */
+  public ReplayStackProvider(StackSourceInterface pStackSource,
+                             String pChannel,
+                             double pFramesPerSecond)
+  {
+    super();
+    mStackSource = pStackSource;
+    mChannel = pChannel;
+    setFramesPerSecond(pFramesPerSecond);
+  }
+
+  /**
+   * Sets the frame rate in frames (planes) per second, infinite for no limit
+   *
+   * @param pFramesPerSecond
+   *          frame rate
+   */
+  public void setFramesPerSecond(double pFramesPerSecond)
+  {
+    mFramesPerSecond = pFramesPerSecond;
+  }
+
+  /**
+   * Returns the frame rate in frames (planes) per second
+   *
+   * @return frame rate
+   */
+  public double getFramesPerSecond()
+  {
+    return mFramesPerSecond;
+  }
+
+  /**
+   * Returns the number of stacks served so far
+   *
+   * @return number of stacks served
+   */
+  public long getNumberOfServedStacks()
+  {
+    return mNextStackIndex.get();
+  }
+
+  @Override
+  public StackInterface getStack(RecyclerInterface<StackInterface, StackRequest> pRecycler,
+                                 StackCameraSimulationQueue pQueue)
+  {
+    final long lNumberOfStacks = mStackSource.getNumberOfStacks(mChannel);
+    if (lNumberOfStacks <= 0)
+      return null;
+
+    // stacks are allocated from the camera's recycler, so that they are
+    // released to it downstream:
+    mStackSource.setStackRecycler(pRecycler);
+
+    final long lStackIndex = mNextStackIndex.getAndIncrement()
+                             % lNumberOfStacks;
+    final StackInterface lStack = mStackSource.getStack(mChannel,
+                                                        lStackIndex,
+                                                        Long.MAX_VALUE,
+                                                        TimeUnit.SECONDS);
+    if (lStack == null)
+      return null;
+
+    // paces stacks according to the frame rate:
+    final double lFramesPerSecond = mFramesPerSecond;
+    if (lFramesPerSecond > 0 && !Double.isInfinite(lFramesPerSecond))
+    {
+      final long lStackPeriodInNanos =
+                                     (long) (lStack.getDepth() * 1e9
+                                             / lFramesPerSecond);
+      final long lNow = System.nanoTime();
+      final long lDeadline =
+                           mNextStackDeadlineInNanos == Long.MIN_VALUE ? lNow
+                                                                       : mNextStackDeadlineInNanos;
+      WaitingSignal.parkUntil(lDeadline);
+      mNextStackDeadlineInNanos = Math.max(lDeadline, lNow)
+                                  + lStackPeriodInNanos;
+    }
+
+    return lStack;
+  }
+
+}
@@ -1,13 +1,8 @@
 package clearcontrol.devices.cameras.devices.sim.providers;
 
-import java.util.ArrayList;
-
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
-import clearcontrol.stack.StackInterface;
-import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
 
 /**
  * Sinus stack provider for stack camera simulator
@@ -21,35 +16,31 @@ public class SinusStackProvider extends
 {
 
   @Override
-  protected void fillStackData(StackCameraSimulationQueue pQueue,
-                               ArrayList<Boolean> pKeepPlaneList,
-                               final long pWidth,
-                               final long pHeight,
-                               final long pDepth,
-                               final StackInterface pStack)
+  protected void fillPlane(StackCameraSimulationQueue pQueue,
+                           long pStackIndex,
+                           int pWidth,
+                           int pHeight,
+                           int pZ,
+                           short[] pPlane)
   {
-    final byte time = (byte) pQueue.getStackCamera()
-                                   .getCurrentStackIndex();
-
-    final ContiguousMemoryInterface lContiguousMemory =
-                                                      pStack.getContiguousMemory();
-    final ContiguousBuffer lContiguousBuffer =
-                                             new ContiguousBuffer(lContiguousMemory);
-
-    for (int z = 0; z < pDepth; z++)
-      if (pKeepPlaneList.get(z))
-        for (int y = 0; y < pHeight; y++)
-          for (int x = 0; x < pWidth; x++)
-          {
-            short lValue = (short) clamp(Math.sin(x / 11)
-                                         + Math.sin(y / 17)
-                                         + Math.sin(z / 31)
-                                         + Math.sin(time / 117),
-                                         0,
-                                         256);/**/
-
-            lContiguousBuffer.writeShort(lValue);
-          }
+    final byte time = (byte) pStackIndex;
+
+    // the sum of sines is separable, the x terms are computed once per plane:
+    final double[] lColumnTerms = new double[pWidth];
+    for (int x = 0; x < pWidth; x++)
+      lColumnTerms[x] = Math.sin(x / 11);
+    final double lPlaneTerm = Math.sin(pZ / 31) + Math.sin(time / 117);
+
+    for (int y = 0; y < pHeight; y++)
+    {
+      final double lRowTerm = Math.sin(y / 17) + lPlaneTerm;
+      final int lRowOffset = y * pWidth;
+      for (int x = 0; x < pWidth; x++)
+        pPlane[lRowOffset + x] = (short) clamp(lColumnTerms[x]
+                                               + lRowTerm,
+                                               0,
+                                               256);
+    }
   }
 
 }
@@ -1,19 +1,36 @@
 package clearcontrol.devices.cameras.devices.sim.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.variable.Variable;
 import clearcontrol.devices.cameras.devices.sim.StackCameraDeviceSimulator;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
 import clearcontrol.devices.cameras.devices.sim.providers.FractalStackProvider;
+import clearcontrol.devices.cameras.devices.sim.providers.ReplayStackProvider;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
+import clearcontrol.stack.StackPlanes;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+import clearcontrol.stack.sourcesink.source.RawFileStackSource;
+import coremem.recycling.BasicRecycler;
+
+import org.apache.commons.io.FileUtils;
 
 import org.junit.Test;
 
@@ -106,4 +123,262 @@ public class StackCameraDeviceSimulatorTests
 
   }
 
+  /**
+   * Tests plane streaming: planes must be received in order, and all planes of
+   * a stack must be received before the stack itself.
+   * 
+   * @throws InterruptedException
+   *           NA
+   * @throws ExecutionException
+   *           NA
+   * @throws TimeoutException
+   *           NA
+   */
+  @Test
+  public void testPlaneStreaming() throws InterruptedException,
+                                   ExecutionException,
+                                   TimeoutException
+  {
+    Variable<Boolean> lTrigger =
+                               new Variable<Boolean>("CameraTrigger",
+                                                     false);
+
+    StackCameraDeviceSimulator lStackCameraDeviceSimulator =
+                                                           new StackCameraDeviceSimulator("StackCamera",
+                                                                                          new FractalStackProvider(),
+                                                                                          lTrigger);
+
+    lStackCameraDeviceSimulator.getPlaneStreamingModeVariable()
+                               .set(true);
+
+    final AtomicLong lNextPlaneIndex = new AtomicLong();
+    final AtomicLong lNumberOfReceivedStacks = new AtomicLong();
+    final AtomicBoolean lInOrder = new AtomicBoolean(true);
+
+    lStackCameraDeviceSimulator.getPlaneBatchVariable()
+                               .addSetListener((StackPlaneBatch pOldBatch,
+                                                StackPlaneBatch pNewBatch) -> {
+                                 if (pNewBatch.getFirstPlaneIndex() != lNextPlaneIndex.get())
+                                   lInOrder.set(false);
+                                 lNextPlaneIndex.set(pNewBatch.getEndPlaneIndex());
+                               });
+
+    lStackCameraDeviceSimulator.getStackVariable()
+                               .addSetListener((StackInterface pOldStack,
+                                                StackInterface pNewStack) -> {
+                                 if (lNextPlaneIndex.get() != pNewStack.getDepth())
+                                   lInOrder.set(false);
+                                 lNextPlaneIndex.set(0);
+                                 lNumberOfReceivedStacks.incrementAndGet();
+                                 pNewStack.release();
+                               });
+
+    lStackCameraDeviceSimulator.getExposureInSecondsVariable()
+                               .set(0.001);
+
+    lStackCameraDeviceSimulator.open();
+
+    StackCameraSimulationQueue lQueue =
+                                      lStackCameraDeviceSimulator.requestQueue();
+    lQueue.clearQueue();
+    int lNumberOfImages = 20;
+    for (int i = 0; i < lNumberOfImages; i++)
+      lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+
+    for (int j = 0; j < 10; j++)
+    {
+      Future<Boolean> lPlayQueue =
+                                 lStackCameraDeviceSimulator.playQueue(lQueue);
+
+      for (int i = 0; i < lQueue.getQueueLength(); i++)
+        lTrigger.setEdge(false, true);
+
+      lPlayQueue.get(20L, TimeUnit.SECONDS);
+    }
+
+    lStackCameraDeviceSimulator.close();
+
+    assertEquals(10, lNumberOfReceivedStacks.get());
+    assertTrue(lInOrder.get());
+  }
+
+  /**
+   * Tests replaying pre-recorded stacks at a given frame rate
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testReplay() throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test", "test")
+                                        .getParentFile(),
+                                    "ReplayStackProviderTests"
+                                                          + Math.random());
+    lRootFolder.mkdirs();
+
+    // records a few stacks:
+    final int lNumberOfRecordedStacks = 3;
+    final RawFileStackSink lRawFileStackSink = new RawFileStackSink();
+    lRawFileStackSink.setLocation(lRootFolder, "recorded");
+    for (int i = 0; i < lNumberOfRecordedStacks; i++)
+    {
+      final OffHeapPlanarStack lStack =
+                                      OffHeapPlanarStack.createStack(64,
+                                                                     32,
+                                                                     8);
+      lStack.getMetaData().setIndex(i);
+      lStack.getMetaData()
+            .setTimeStampInNanoseconds(System.nanoTime());
+      assertTrue(lRawFileStackSink.appendStack(lStack));
+      lStack.free();
+    }
+    lRawFileStackSink.close();
+
+    final RawFileStackSource lRawFileStackSource =
+                                                 new RawFileStackSource(new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                        10));
+    lRawFileStackSource.setLocation(lRootFolder, "recorded");
+
+    // 8 planes per stack at 800 frames per second: 10 ms per stack
+    final ReplayStackProvider lReplayStackProvider =
+                                                   new ReplayStackProvider(lRawFileStackSource,
+                                                                           StackSinkSourceInterface.cDefaultChannel,
+                                                                           800);
+
+    Variable<Boolean> lTrigger =
+                               new Variable<Boolean>("CameraTrigger",
+                                                     false);
+    StackCameraDeviceSimulator lStackCameraDeviceSimulator =
+                                                           new StackCameraDeviceSimulator("StackCamera",
+                                                                                          lReplayStackProvider,
+                                                                                          lTrigger);
+    Variable<StackInterface> lStackVariable =
+                                            lStackCameraDeviceSimulator.getStackVariable();
+    lStackVariable.addSetListener((StackInterface pOldStack,
+                                   StackInterface pNewStack) -> {
+      pNewStack.release();
+    });
+
+    lStackCameraDeviceSimulator.open();
+
+    StackCameraSimulationQueue lQueue =
+                                      lStackCameraDeviceSimulator.requestQueue();
+    lQueue.clearQueue();
+    for (int i = 0; i < 8; i++)
+      lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+
+    final int lNumberOfReplayedStacks = 5;
+    final long lStartTime = System.nanoTime();
+    for (int j = 0; j < lNumberOfReplayedStacks; j++)
+    {
+      Future<Boolean> lPlayQueue =
+                                 lStackCameraDeviceSimulator.playQueue(lQueue);
+      for (int i = 0; i < lQueue.getQueueLength(); i++)
+        lTrigger.setEdge(false, true);
+      lPlayQueue.get(20L, TimeUnit.SECONDS);
+
+      assertEquals(64, lStackVariable.get().getWidth());
+      assertEquals(8, lStackVariable.get().getDepth());
+    }
+    final double lElapsedTimeInSeconds = (System.nanoTime()
+                                          - lStartTime)
+                                         * 1e-9;
+
+    lStackCameraDeviceSimulator.close();
+    lRawFileStackSource.close();
+
+    assertEquals(lNumberOfReplayedStacks,
+                 lReplayStackProvider.getNumberOfServedStacks());
+    // the first stack is served immediately, the others are paced:
+    assertTrue(lElapsedTimeInSeconds >= 0.04);
+
+    FileUtils.deleteDirectory(lRootFolder);
+  }
+
+  /**
+   * Provider that also synthesizes the kept planes of a queue sequentially
+   */
+  private static class SequentialFractalStackProvider extends
+                                                      FractalStackProvider
+  {
+    short[] fillPlaneSequentially(StackCameraSimulationQueue pQueue,
+                                  int pWidth,
+                                  int pHeight,
+                                  int pZ)
+    {
+      final short[] lPlane = new short[pWidth * pHeight];
+      fillPlane(pQueue,
+                pQueue.getStackCamera().getCurrentStackIndex(),
+                pWidth,
+                pHeight,
+                pZ,
+                lPlane);
+      return lPlane;
+    }
+  }
+
+  /**
+   * Tests that planes synthesized in parallel are the same as planes
+   * synthesized sequentially, in the same order
+   */
+  @Test
+  public void testParallelFillMatchesSequentialFill()
+  {
+    final int lWidth = 101;
+    final int lHeight = 67;
+    final int lNumberOfImages = 20;
+
+    final SequentialFractalStackProvider lProvider =
+                                                   new SequentialFractalStackProvider();
+    final StackCameraDeviceSimulator lStackCameraDeviceSimulator =
+                                                               new StackCameraDeviceSimulator("StackCamera",
+                                                                                              lProvider,
+                                                                                              new Variable<Boolean>("CameraTrigger",
+                                                                                                                    false));
+    lStackCameraDeviceSimulator.getStackWidthVariable()
+                               .set((long) lWidth);
+    lStackCameraDeviceSimulator.getStackHeightVariable()
+                               .set((long) lHeight);
+
+    final StackCameraSimulationQueue lQueue =
+                                            lStackCameraDeviceSimulator.requestQueue();
+    lQueue.clearQueue();
+    for (int i = 0; i < lNumberOfImages; i++)
+    {
+      // one plane out of three is not kept:
+      lQueue.getKeepPlaneVariable().set(i % 3 != 0);
+      lQueue.addCurrentStateToQueue();
+    }
+    lQueue.finalizeQueue();
+
+    final BasicRecycler<StackInterface, StackRequest> lRecycler =
+                                                                new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                2);
+    final StackInterface lStack = lProvider.getStack(lRecycler, lQueue);
+    assertEquals(lNumberOfImages - 7, lStack.getDepth());
+
+    int lPlaneIndex = 0;
+    for (int z = 0; z < lNumberOfImages; z++)
+    {
+      if (z % 3 == 0)
+        continue;
+      final short[] lExpectedPlane =
+                                   lProvider.fillPlaneSequentially(lQueue,
+                                                                   lWidth,
+                                                                   lHeight,
+                                                                   z);
+      final short[] lPlane = new short[lWidth * lHeight];
+      StackPlanes.asShortBuffer(lStack.getContiguousMemory(lPlaneIndex++))
+                 .get(lPlane);
+      assertArrayEquals(lExpectedPlane, lPlane);
+    }
+    assertEquals(lStack.getDepth(), lPlaneIndex);
+
+    lStack.free();
+  }
+
 }
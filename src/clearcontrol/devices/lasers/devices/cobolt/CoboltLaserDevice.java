@@ -1,5 +1,7 @@
 package clearcontrol.devices.lasers.devices.cobolt;
 
+import java.util.concurrent.TimeUnit;
+
 import jssc.SerialPortException;
 import clearcontrol.com.serial.SerialDevice;
 import clearcontrol.core.configuration.MachineConfiguration;
@@ -69,6 +71,9 @@ public class CoboltLaserDevice extends LaserDeviceBase
     mSerialDevice = new SerialDevice("Cobolt" + pCoboltModelName,
                                      pPortName,
                                      115200);
+    // cached values - such as the polled current power - are refreshed
+    // together in the background:
+    mSerialDevice.setCacheRefreshPeriod(200, TimeUnit.MILLISECONDS);
 
     mCoboltModel = CoboltDeviceEnum.valueOf(pCoboltModelName);
     mMaxPowerInMilliWatt = pMaxPowerInMilliWatt;
@@ -25,4 +25,10 @@ public class GetCurrentPowerAdapter extends CoboltAdapter<Number>
     return 1000 * ProtocolCobolt.parseFloat(pMessage);
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    return 500;
+  }
+
 }
@@ -41,4 +41,11 @@ public class GetSetTargetPowerAdapter extends CoboltAdapter<Number>
     return lSetTargetPowerCommandBytes;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the target power only changes when it is set:
+    return 1000;
+  }
+
 }
@@ -25,4 +25,10 @@ public class GetWorkingHoursAdapter extends CoboltAdapter<Integer>
     return (int) ProtocolCobolt.parseFloat(pMessage);
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    return 60 * 1000;
+  }
+
 }
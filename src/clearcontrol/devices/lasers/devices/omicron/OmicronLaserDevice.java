@@ -1,5 +1,7 @@
 package clearcontrol.devices.lasers.devices.omicron;
 
+import java.util.concurrent.TimeUnit;
+
 import clearcontrol.com.serial.SerialDevice;
 import clearcontrol.core.configuration.MachineConfiguration;
 import clearcontrol.devices.lasers.LaserDeviceBase;
@@ -81,6 +83,9 @@ public class OmicronLaserDevice extends LaserDeviceBase
     mSerialDevice = new SerialDevice("OmicronLaserDevice",
                                      pPortName,
                                      ProtocolOmicron.cBaudRate);
+    // cached values - such as the polled current power - are refreshed
+    // together in the background:
+    mSerialDevice.setCacheRefreshPeriod(200, TimeUnit.MILLISECONDS);
 
     final GetDeviceIdAdapter lGetDeviceIdAdapter =
                                                  new GetDeviceIdAdapter();
@@ -53,4 +53,10 @@ public class GetCurrentPowerAdapter extends OmicronAdapter<Number>
     return mCurrentPowerInMilliwatts;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    return 500;
+  }
+
 }
@@ -31,4 +31,11 @@ public class GetMaxPowerAdapter extends OmicronAdapter<Number>
     return (double) lMaxPower;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the max power never changes:
+    return Long.MAX_VALUE;
+  }
+
 }
@@ -85,4 +85,11 @@ public class GetSetTargetPowerAdapter extends OmicronAdapter<Number>
     return super.checkAcknowledgementSetValueReturnMessage(pMessage);
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the target power only changes when it is set:
+    return 1000;
+  }
+
 }
@@ -30,4 +30,11 @@ public class GetSpecPowerAdapter extends OmicronAdapter<Number>
     return (double) lSpecPower;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the specified power never changes:
+    return Long.MAX_VALUE;
+  }
+
 }
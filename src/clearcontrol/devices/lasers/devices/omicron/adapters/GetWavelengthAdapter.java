@@ -31,4 +31,11 @@ public class GetWavelengthAdapter extends OmicronAdapter<Integer>
     return lWavelengthInNanometer;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the wavelength never changes:
+    return Long.MAX_VALUE;
+  }
+
 }
@@ -30,4 +30,10 @@ public class GetWorkingHoursAdapter extends OmicronAdapter<Integer>
     return lMaxPower;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    return 60 * 1000;
+  }
+
 }
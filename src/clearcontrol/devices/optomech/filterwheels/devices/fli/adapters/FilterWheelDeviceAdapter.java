@@ -121,4 +121,11 @@ public abstract class FilterWheelDeviceAdapter extends
     return true;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the position and speed only change when they are set:
+    return 1000;
+  }
+
 }
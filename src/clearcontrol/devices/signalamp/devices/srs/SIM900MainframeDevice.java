@@ -2,7 +2,9 @@ package clearcontrol.devices.signalamp.devices.srs;
 
 import java.util.ArrayList;
 
+import clearcontrol.com.serial.SerialCommand;
 import clearcontrol.com.serial.SerialDevice;
+import clearcontrol.com.serial.SerialException;
 import clearcontrol.core.configuration.MachineConfiguration;
 import clearcontrol.core.device.VirtualDevice;
 import clearcontrol.devices.signalamp.devices.srs.adapters.protocol.ProtocolSIM;
@@ -45,11 +47,11 @@ public class SIM900MainframeDevice extends VirtualDevice
     {
       lOpen = super.open();
       mSerialDevice.open();
-      mSerialDevice.getSerial().write("*RST\n");
-      mSerialDevice.getSerial().write("FLSH\n");
-      mSerialDevice.getSerial().write("SRST\n");
-      mSerialDevice.getSerial().write("RPER 510\n");
-      mSerialDevice.getSerial().write("TERM D,LF\n");
+      sendCommand("*RST");
+      sendCommand("FLSH");
+      sendCommand("SRST");
+      sendCommand("RPER 510");
+      sendCommand("TERM D,LF");
 
       return lOpen;
     }
@@ -60,6 +62,15 @@ public class SIM900MainframeDevice extends VirtualDevice
     }
   }
 
+  private void sendCommand(String pCommand) throws SerialException
+  {
+    // commands go through the command engine, in order with the commands of
+    // the serial variables:
+    mSerialDevice.getCommandEngine()
+                 .execute(new SerialCommand(pCommand,
+                                            (pCommand + "\n").getBytes()));
+  }
+
   @Override
   public boolean close()
   {
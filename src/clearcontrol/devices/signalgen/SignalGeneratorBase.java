@@ -76,6 +76,11 @@ public abstract class SignalGeneratorBase extends VirtualDevice
     if (lFirstMovementOfGivenScore.getName()
                                   .equals("TransitionMovement"))
     {
+      // movements can be shared between scores, we adjust a copy:
+      lFirstMovementOfGivenScore = lFirstMovementOfGivenScore.duplicate();
+      pScore.removeMovementAt(0);
+      pScore.insertMovementAt(0, lFirstMovementOfGivenScore);
+
       TransitionMovement.adjust(lFirstMovementOfGivenScore,
                                 lLastMovementFromPreviouslyPlayedScore,
                                 pScore.getMovement(1),
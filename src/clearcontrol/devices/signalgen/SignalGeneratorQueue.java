@@ -1,5 +1,6 @@
 package clearcontrol.devices.signalgen;
 
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.device.queue.QueueInterface;
@@ -10,6 +11,12 @@ import clearcontrol.devices.signalgen.score.ScoreInterface;
 /**
  * Real time queue for signal generator devices
  *
+ * Movements are added to the queued score copy-on-write: when a staging (or
+ * finalization) movement has not changed since it was last added, the same
+ * snapshot is added again instead of a new copy - movements that cannot be
+ * compared by content are always copied. Movements of the queued score
+ * can therefore be shared and must not be modified.
+ *
  * @author royer
  */
 public class SignalGeneratorQueue implements QueueInterface
@@ -21,6 +28,11 @@ public class SignalGeneratorQueue implements QueueInterface
   protected final ScoreInterface mStagingScore;
   protected final ScoreInterface mFinalizationScore;
 
+  private final ArrayList<MovementInterface> mStagingSnapshotList =
+                                                                  new ArrayList<>();
+  private final ArrayList<MovementInterface> mFinalizationSnapshotList =
+                                                                       new ArrayList<>();
+
   /**
    * Instantiates a real-time signal generator queue
    * 
@@ -105,14 +117,41 @@ public class SignalGeneratorQueue implements QueueInterface
   @Override
   public void addCurrentStateToQueue()
   {
-    mQueuedScore.addScoreCopy(mStagingScore);
+    addScoreSnapshot(mStagingScore, mStagingSnapshotList);
     mEnqueuedStateCounter++;
   }
 
   @Override
   public void finalizeQueue()
   {
-    mQueuedScore.addScoreCopy(mFinalizationScore);
+    addScoreSnapshot(mFinalizationScore, mFinalizationSnapshotList);
+  }
+
+  private void addScoreSnapshot(ScoreInterface pScore,
+                                ArrayList<MovementInterface> pSnapshotList)
+  {
+    final ArrayList<MovementInterface> lMovements =
+                                                  pScore.getMovements();
+    for (int i = 0; i < lMovements.size(); i++)
+    {
+      final MovementInterface lMovement = lMovements.get(i);
+
+      MovementInterface lSnapshot = i < pSnapshotList.size()
+                                                             ? pSnapshotList.get(i)
+                                                             : null;
+      if (lSnapshot == null || !lMovement.hasContentEquality()
+          || !lSnapshot.equals(lMovement)
+          || !lSnapshot.getName().equals(lMovement.getName()))
+      {
+        lSnapshot = lMovement.duplicate();
+        if (i < pSnapshotList.size())
+          pSnapshotList.set(i, lSnapshot);
+        else
+          pSnapshotList.add(lSnapshot);
+      }
+
+      mQueuedScore.addMovement(lSnapshot);
+    }
   }
 
   @Override
@@ -0,0 +1,108 @@
+package clearcontrol.devices.signalgen.devices.nirio.compiler;
+
+/**
+ * Compiled movement: delta time, sync word, number of time points and the
+ * movement's waveforms, interleaved per time point (one short per stave), as
+ * expected by the NI-RIO board. Compiled movements are immutable and can be
+ * shared by any number of compiled scores.
+ *
+ * @author royer
+ */
+public class NIRIOCompiledMovement
+{
+  private final int mDeltaTimeInTicks;
+  private final int mSync;
+  private final int mNumberOfTimePoints;
+  private final int mNumberOfStaves;
+  private final short[] mWaveforms;
+
+  /**
+   * Instantiates a compiled movement
+   *
+   * @param pDeltaTimeInTicks
+   *          delta time in ticks
+   * @param pSync
+   *          sync word (channel and mode)
+   * @param pNumberOfTimePoints
+   *          number of time points
+   * @param pNumberOfStaves
+   *          number of staves
+   * @param pWaveforms
+   *          waveforms interleaved per time point
+   */
+  public NIRIOCompiledMovement(int pDeltaTimeInTicks,
+                               int pSync,
+                               int pNumberOfTimePoints,
+                               int pNumberOfStaves,
+                               short[] pWaveforms)
+  {
+    super();
+    mDeltaTimeInTicks = pDeltaTimeInTicks;
+    mSync = pSync;
+    mNumberOfTimePoints = pNumberOfTimePoints;
+    mNumberOfStaves = pNumberOfStaves;
+    mWaveforms = pWaveforms;
+  }
+
+  /**
+   * Returns the delta time in ticks
+   *
+   * @return delta time in ticks
+   */
+  public int getDeltaTimeInTicks()
+  {
+    return mDeltaTimeInTicks;
+  }
+
+  /**
+   * Returns the sync word
+   *
+   * @return sync word
+   */
+  public int getSync()
+  {
+    return mSync;
+  }
+
+  /**
+   * Returns the number of time points
+   *
+   * @return number of time points
+   */
+  public int getNumberOfTimePoints()
+  {
+    return mNumberOfTimePoints;
+  }
+
+  /**
+   * Returns the number of staves
+   *
+   * @return number of staves
+   */
+  public int getNumberOfStaves()
+  {
+    return mNumberOfStaves;
+  }
+
+  /**
+   * Returns the waveforms, interleaved per time point. This array must not be
+   * modified.
+   *
+   * @return waveforms
+   */
+  public short[] getWaveforms()
+  {
+    return mWaveforms;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("NIRIOCompiledMovement [mDeltaTimeInTicks=%d, mSync=%d, mNumberOfTimePoints=%d, mNumberOfStaves=%d]",
+                         mDeltaTimeInTicks,
+                         mSync,
+                         mNumberOfTimePoints,
+                         mNumberOfStaves);
+  }
+
+}
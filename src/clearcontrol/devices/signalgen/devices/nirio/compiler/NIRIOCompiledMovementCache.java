@@ -0,0 +1,157 @@
+package clearcontrol.devices.signalgen.devices.nirio.compiler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import clearcontrol.devices.signalgen.movement.MovementInterface;
+
+/**
+ * Cache of compiled movements, keyed by movement content (see
+ * Movement.equals), so that identical movements are compiled once and their
+ * compiled waveforms shared. The cache is bounded by the total number of
+ * waveform samples it holds, least recently used entries are evicted first.
+ *
+ * Movements are mutable: the cache keeps its own copy of each movement as key.
+ * Only movements whose staves all have content equality (see
+ * MovementInterface.hasContentEquality) are cached, other movements - for
+ * example with staves computed by closures - are always compiled.
+ *
+ * @author royer
+ */
+public class NIRIOCompiledMovementCache
+{
+  private static final long cDefaultMaxNumberOfSamples = 64L * 1024
+                                                         * 1024;
+
+  private static final NIRIOCompiledMovementCache cDefaultCache =
+                                                                new NIRIOCompiledMovementCache(cDefaultMaxNumberOfSamples);
+
+  private final long mMaxNumberOfSamples;
+  private final LinkedHashMap<MovementInterface, NIRIOCompiledMovement> mCompiledMovementMap =
+                                                                                            new LinkedHashMap<>(16,
+                                                                                                                0.75f,
+                                                                                                                true);
+  private long mNumberOfSamples;
+  private long mNumberOfHits;
+  private long mNumberOfMisses;
+
+  /**
+   * Returns the default cache, shared by all NI-RIO signal generators
+   *
+   * @return default cache
+   */
+  public static NIRIOCompiledMovementCache getDefault()
+  {
+    return cDefaultCache;
+  }
+
+  /**
+   * Instantiates a cache holding at most the given number of waveform samples
+   *
+   * @param pMaxNumberOfSamples
+   *          max number of samples
+   */
+  public NIRIOCompiledMovementCache(long pMaxNumberOfSamples)
+  {
+    super();
+    mMaxNumberOfSamples = pMaxNumberOfSamples;
+  }
+
+  /**
+   * Returns the compiled movement for a movement with the same content as the
+   * given movement, or null if there is none in the cache or if the movement
+   * cannot be cached.
+   *
+   * @param pMovement
+   *          movement
+   * @return compiled movement or null
+   */
+  public synchronized NIRIOCompiledMovement get(MovementInterface pMovement)
+  {
+    final NIRIOCompiledMovement lCompiledMovement =
+                                                  pMovement.hasContentEquality() ? mCompiledMovementMap.get(pMovement)
+                                                                                 : null;
+    if (lCompiledMovement == null)
+      mNumberOfMisses++;
+    else
+      mNumberOfHits++;
+    return lCompiledMovement;
+  }
+
+  /**
+   * Puts a compiled movement in the cache, movements that cannot be cached are
+   * ignored.
+   *
+   * @param pMovement
+   *          movement that was compiled, a copy is kept as key
+   * @param pCompiledMovement
+   *          compiled movement
+   */
+  public synchronized void put(MovementInterface pMovement,
+                               NIRIOCompiledMovement pCompiledMovement)
+  {
+    if (!pMovement.hasContentEquality())
+      return;
+
+    final NIRIOCompiledMovement lPrevious =
+                                          mCompiledMovementMap.put(pMovement.duplicate(),
+                                                                   pCompiledMovement);
+    if (lPrevious != null)
+      mNumberOfSamples -= lPrevious.getWaveforms().length;
+    mNumberOfSamples += pCompiledMovement.getWaveforms().length;
+
+    final Iterator<Map.Entry<MovementInterface, NIRIOCompiledMovement>> lIterator =
+                                                                             mCompiledMovementMap.entrySet()
+                                                                                                 .iterator();
+    while (mNumberOfSamples > mMaxNumberOfSamples
+           && mCompiledMovementMap.size() > 1
+           && lIterator.hasNext())
+    {
+      mNumberOfSamples -= lIterator.next()
+                                   .getValue()
+                                   .getWaveforms().length;
+      lIterator.remove();
+    }
+  }
+
+  /**
+   * Clears this cache
+   */
+  public synchronized void clear()
+  {
+    mCompiledMovementMap.clear();
+    mNumberOfSamples = 0;
+  }
+
+  /**
+   * Returns the number of compiled movements in the cache
+   *
+   * @return number of compiled movements
+   */
+  public synchronized int size()
+  {
+    return mCompiledMovementMap.size();
+  }
+
+  /**
+   * Returns the number of cache hits so far
+   *
+   * @return number of hits
+   */
+  public synchronized long getNumberOfHits()
+  {
+    return mNumberOfHits;
+  }
+
+  /**
+   * Returns the number of cache misses so far
+   *
+   * @return number of misses
+   */
+  public synchronized long getNumberOfMisses()
+  {
+    return mNumberOfMisses;
+  }
+
+}
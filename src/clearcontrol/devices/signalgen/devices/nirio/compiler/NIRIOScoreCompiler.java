@@ -6,10 +6,13 @@ import static java.lang.Math.round;
 import static java.lang.Math.toIntExact;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nirioj.direttore.Direttore;
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.devices.signalgen.movement.Movement;
 import clearcontrol.devices.signalgen.movement.MovementInterface;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
@@ -19,25 +22,140 @@ import clearcontrol.devices.signalgen.staves.StaveInterface;
 import clearcontrol.devices.signalgen.staves.ZeroStave;
 import coremem.buffers.ContiguousBuffer;
 
+/**
+ * NI-RIO score compiler. Scores are compiled movement by movement: compiled
+ * movements are looked up in a cache keyed by movement content, so that
+ * movements that are identical to previously compiled ones (a common case when
+ * queueing the same or slightly different states many times) are not compiled
+ * again. Movements missing from the cache are compiled in parallel, and the
+ * compiled movements are then copied in order into the compiled score buffers.
+ *
+ * @author royer
+ */
 public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
 {
-
+  /**
+   * Compiles a score into a NI-RIO compiled score, using the default compiled
+   * movement cache.
+   * 
+   * @param pNIRIOCompiledScore
+   *          compiled score
+   * @param pScore
+   *          score to compile
+   */
   public static void compile(NIRIOCompiledScore pNIRIOCompiledScore,
                              ScoreInterface pScore)
   {
+    compile(pNIRIOCompiledScore,
+            pScore,
+            NIRIOCompiledMovementCache.getDefault());
+  }
+
+  /**
+   * Compiles a score into a NI-RIO compiled score, using a given compiled
+   * movement cache.
+   * 
+   * @param pNIRIOCompiledScore
+   *          compiled score
+   * @param pScore
+   *          score to compile
+   * @param pCache
+   *          compiled movement cache
+   */
+  public static void compile(NIRIOCompiledScore pNIRIOCompiledScore,
+                             ScoreInterface pScore,
+                             NIRIOCompiledMovementCache pCache)
+  {
 
     ensureBuffersAreLargeEnough(pNIRIOCompiledScore, pScore);
 
     final ArrayList<MovementInterface> lMovements =
                                                   pScore.getMovements();
 
-    for (final MovementInterface lMovement : lMovements)
+    final NIRIOCompiledMovement[] lCompiledMovements =
+                                                     getCompiledMovements(lMovements,
+                                                                          pCache);
+
+    for (final NIRIOCompiledMovement lCompiledMovement : lCompiledMovements)
     {
-      compileMovement(pNIRIOCompiledScore, lMovement);
+      addCompiledMovement(pNIRIOCompiledScore, lCompiledMovement);
     }
 
   }
 
+  private static NIRIOCompiledMovement[] getCompiledMovements(ArrayList<MovementInterface> pMovements,
+                                                              NIRIOCompiledMovementCache pCache)
+  {
+    final int lNumberOfMovements = pMovements.size();
+    final NIRIOCompiledMovement[] lCompiledMovements =
+                                                     new NIRIOCompiledMovement[lNumberOfMovements];
+
+    // movements of this score that are identical are looked up and compiled
+    // only once, movements that cannot be cached are always compiled:
+    final HashMap<MovementInterface, Integer> lFirstOccurrenceMap =
+                                                                 new HashMap<>();
+    final int[] lFirstOccurrence = new int[lNumberOfMovements];
+    final ArrayList<Integer> lMissingList = new ArrayList<>();
+
+    for (int i = 0; i < lNumberOfMovements; i++)
+    {
+      final MovementInterface lMovement = pMovements.get(i);
+      if (!lMovement.hasContentEquality())
+      {
+        lFirstOccurrence[i] = i;
+        lMissingList.add(i);
+        continue;
+      }
+      final Integer lFirstIndex = lFirstOccurrenceMap.putIfAbsent(lMovement,
+                                                                  i);
+      if (lFirstIndex != null)
+      {
+        lFirstOccurrence[i] = lFirstIndex;
+        continue;
+      }
+      lFirstOccurrence[i] = i;
+      lCompiledMovements[i] = pCache.get(lMovement);
+      if (lCompiledMovements[i] == null)
+        lMissingList.add(i);
+    }
+
+    compileMovements(pMovements, lMissingList, lCompiledMovements);
+
+    for (final int lIndex : lMissingList)
+      pCache.put(pMovements.get(lIndex), lCompiledMovements[lIndex]);
+
+    for (int i = 0; i < lNumberOfMovements; i++)
+      lCompiledMovements[i] = lCompiledMovements[lFirstOccurrence[i]];
+
+    return lCompiledMovements;
+  }
+
+  private static void compileMovements(ArrayList<MovementInterface> pMovements,
+                                       ArrayList<Integer> pIndexList,
+                                       NIRIOCompiledMovement[] pCompiledMovements)
+  {
+    final int lNumberOfMovementsToCompile = pIndexList.size();
+    if (lNumberOfMovementsToCompile == 0)
+      return;
+
+    final AtomicInteger lNextIndex = new AtomicInteger();
+    final Runnable lCompilation = () -> {
+      int i;
+      while ((i = lNextIndex.getAndIncrement()) < lNumberOfMovementsToCompile)
+      {
+        final int lMovementIndex = pIndexList.get(i);
+        pCompiledMovements[lMovementIndex] =
+                                           compileMovement(pMovements.get(lMovementIndex));
+      }
+    };
+
+    // the calling thread also compiles movements:
+    final int lNumberOfHelpers = lNumberOfMovementsToCompile - 1;
+    ClearControlExecutors.runOnCallerAndHelpers(NIRIOScoreCompiler.class,
+                                                lNumberOfHelpers,
+                                                lCompilation);
+  }
+
   private static void ensureBuffersAreLargeEnough(NIRIOCompiledScore pNIRIOCompiledScore,
                                                   ScoreInterface pScore)
   {
@@ -92,93 +210,98 @@ public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
 
   }
 
-  private static void compileMovement(NIRIOCompiledScore pNIRIOCompiledScore,
-                                      MovementInterface pMovement)
+  private static void addCompiledMovement(NIRIOCompiledScore pNIRIOCompiledScore,
+                                          NIRIOCompiledMovement pCompiledMovement)
   {
-    final int pDeltaTimeInTicks =
-                                round(getDeltaTimeInNs(pMovement)
-                                      / Direttore.cNanosecondsPerTicks);
     pNIRIOCompiledScore.getDeltaTimeBuffer()
-                       .writeInt(pDeltaTimeInTicks);
-
-    final byte lSyncMode = getSyncMode(pMovement);
-    final byte lSyncChannel = (byte) pMovement.getSyncChannel();
-    final int lSync = twoBytesToShort(lSyncChannel, lSyncMode);
-    pNIRIOCompiledScore.getSyncBuffer().writeInt(lSync);
-
-    final long lNumberOfTimePoints = getNumberOfTimePoints(pMovement);
+                       .writeInt(pCompiledMovement.getDeltaTimeInTicks());
+    pNIRIOCompiledScore.getSyncBuffer()
+                       .writeInt(pCompiledMovement.getSync());
     pNIRIOCompiledScore.getNumberOfTimePointsBuffer()
-                       .writeInt(toIntExact(lNumberOfTimePoints));
+                       .writeInt(pCompiledMovement.getNumberOfTimePoints());
 
-    addMovementToBuffer(pNIRIOCompiledScore.getScoreBuffer(),
-                        pMovement);
+    final short[] lWaveforms = pCompiledMovement.getWaveforms();
+    final ContiguousBuffer lScoreBuffer =
+                                        pNIRIOCompiledScore.getScoreBuffer();
+    for (int i = 0; i < lWaveforms.length; i++)
+      lScoreBuffer.writeShort(lWaveforms[i]);
 
     pNIRIOCompiledScore.setNumberOfMovements(pNIRIOCompiledScore.getNumberOfMovements()
                                              + 1);
   }
 
-  private static void addMovementToBuffer(ContiguousBuffer pScoreBuffer,
-                                          MovementInterface pMovement)
+  /**
+   * Compiles a single movement
+   * 
+   * @param pMovement
+   *          movement
+   * @return compiled movement
+   */
+  public static NIRIOCompiledMovement compileMovement(MovementInterface pMovement)
   {
-    final long lNumberOfTimePoints = getNumberOfTimePoints(pMovement);
+    final int lDeltaTimeInTicks =
+                                round(getDeltaTimeInNs(pMovement)
+                                      / Direttore.cNanosecondsPerTicks);
+
+    final byte lSyncMode = getSyncMode(pMovement);
+    final byte lSyncChannel = (byte) pMovement.getSyncChannel();
+    final int lSync = twoBytesToShort(lSyncChannel, lSyncMode);
+
+    final int lNumberOfTimePoints =
+                                  toIntExact(getNumberOfTimePoints(pMovement));
     final int lNumberOfStaves = pMovement.getNumberOfStaves();
 
-    pScoreBuffer.pushPosition();
-    long lNumberOfShortsInMovement = lNumberOfTimePoints
-                                     * lNumberOfStaves;
-    pScoreBuffer.writeBytes(2 * lNumberOfShortsInMovement, (byte) 0);
-    pScoreBuffer.popPosition();
+    final short[] lWaveforms = new short[toIntExact(lNumberOfTimePoints
+                                                    * (long) lNumberOfStaves)];
 
-    pScoreBuffer.pushPosition();
     for (int s = 0; s < lNumberOfStaves; s++)
     {
-
-      pScoreBuffer.pushPosition();
       final StaveInterface lStave = pMovement.getStave(s);
 
       if (lStave instanceof ZeroStave)
       {
-        addZeroStaveToBuffer(pScoreBuffer,
-                             lNumberOfTimePoints,
-                             lNumberOfStaves);
+        // do nothing - already 0
       }
       else if (lStave instanceof ConstantStave)
       {
         final ConstantStave lConstantStave = (ConstantStave) lStave;
-        addConstantStaveToBuffer(pScoreBuffer,
-                                 lNumberOfTimePoints,
-                                 lNumberOfStaves,
-                                 lConstantStave.getConstantValue());
+        addConstantStave(lWaveforms,
+                         s,
+                         lNumberOfTimePoints,
+                         lNumberOfStaves,
+                         lConstantStave.getConstantValue());
       }
       else if (lStave instanceof IntervalStave)
       {
         final IntervalStave lIntervalStave = (IntervalStave) lStave;
-        addIntervalStaveToBuffer(pScoreBuffer,
-                                 lNumberOfTimePoints,
-                                 lNumberOfStaves,
-                                 lIntervalStave);
+        addIntervalStave(lWaveforms,
+                         s,
+                         lNumberOfTimePoints,
+                         lNumberOfStaves,
+                         lIntervalStave);
       } /**/
       else
       {
-        addStaveToBuffer(pScoreBuffer,
-                         lNumberOfTimePoints,
-                         lNumberOfStaves,
-                         lStave);
+        addStave(lWaveforms,
+                 s,
+                 lNumberOfTimePoints,
+                 lNumberOfStaves,
+                 lStave);
       }
-
-      pScoreBuffer.popPosition();
-      pScoreBuffer.skipShorts(1);
     }
-    pScoreBuffer.popPosition();
-
-    pScoreBuffer.skipShorts(lNumberOfShortsInMovement);
 
+    return new NIRIOCompiledMovement(lDeltaTimeInTicks,
+                                     lSync,
+                                     lNumberOfTimePoints,
+                                     lNumberOfStaves,
+                                     lWaveforms);
   }
 
-  private static void addIntervalStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                               long pNumberOfTimePoints,
-                                               int pNumberOfStaves,
-                                               IntervalStave pIntervalStave)
+  private static void addIntervalStave(short[] pWaveforms,
+                                       int pStaveIndex,
+                                       int pNumberOfTimePoints,
+                                       int pNumberOfStaves,
+                                       IntervalStave pIntervalStave)
   {
     final float lSyncStart = pIntervalStave.getStart();
     final float lSyncStop = pIntervalStave.getStop();
@@ -189,65 +312,58 @@ public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
     final boolean lEnabled = pIntervalStave.isEnabled();
 
     final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
-    for (int t = 0; t < pNumberOfTimePoints; t++)
+    int i = pStaveIndex;
+    for (int t = 0; t < pNumberOfTimePoints; t++, i += pNumberOfStaves)
     {
       final float lNormalizedTime = t * lInvNumberOfTimepoints;
 
       if (!lEnabled)
       {
-        pScoreBuffer.writeShort(lOutsideValue);
+        pWaveforms[i] = lOutsideValue;
       }
       else if (t == pNumberOfTimePoints - 1 && lSyncStart == 0)
       {
-        pScoreBuffer.writeShort(lOutsideValue);
+        pWaveforms[i] = lOutsideValue;
       }
       else
       {
         if (lNormalizedTime < lSyncStart
             || lNormalizedTime > lSyncStop)
-          pScoreBuffer.writeShort(lOutsideValue);
+          pWaveforms[i] = lOutsideValue;
         else
-          pScoreBuffer.writeShort(lInsideValue);
+          pWaveforms[i] = lInsideValue;
       }
-
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
     }
 
   }
 
-  private static void addConstantStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                               final long pNumberOfTimePoints,
-                                               final int pNumberOfStaves,
-                                               final float pFloatConstant)
+  private static void addConstantStave(short[] pWaveforms,
+                                       int pStaveIndex,
+                                       final int pNumberOfTimePoints,
+                                       final int pNumberOfStaves,
+                                       final float pFloatConstant)
   {
     final short lShortValue = getShortForFloat(pFloatConstant);
-    for (int t = 0; t < pNumberOfTimePoints; t++)
+    int i = pStaveIndex;
+    for (int t = 0; t < pNumberOfTimePoints; t++, i += pNumberOfStaves)
     {
-      pScoreBuffer.writeShort(lShortValue);
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
+      pWaveforms[i] = lShortValue;
     }
   }
 
-  private static void addZeroStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                           final long pNumberOfTimePoints,
-                                           final int pNumberOfStaves)
-  {
-    // do nothing - already 0
-  }
-
-  private static void addStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                       final long pNumberOfTimePoints,
-                                       final int pNumberOfStaves,
-                                       final StaveInterface pStave)
+  private static void addStave(short[] pWaveforms,
+                               int pStaveIndex,
+                               final int pNumberOfTimePoints,
+                               final int pNumberOfStaves,
+                               final StaveInterface pStave)
   {
     final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
-    for (int t = 0; t < pNumberOfTimePoints; t++)
+    int i = pStaveIndex;
+    for (int t = 0; t < pNumberOfTimePoints; t++, i += pNumberOfStaves)
     {
       final float lNormalizedTime = t * lInvNumberOfTimepoints;
       final float lFloatValue = pStave.getValue(lNormalizedTime);
-      final short lShortValue = getShortForFloat(lFloatValue);
-      pScoreBuffer.writeShort(lShortValue);
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
+      pWaveforms[i] = getShortForFloat(lFloatValue);
     }
   }
 
@@ -1,16 +1,35 @@
 package clearcontrol.devices.signalgen.devices.nirio.compiler.test;
 
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
+import clearcontrol.devices.signalgen.SignalGeneratorQueue;
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledMovement;
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledMovementCache;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScore;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
+import clearcontrol.devices.signalgen.devices.sim.SignalGeneratorSimulatorDevice;
 import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.movement.MovementInterface;
 import clearcontrol.devices.signalgen.score.Score;
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+import clearcontrol.devices.signalgen.staves.ClosurePatternSteppingStave;
 import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.StaveAbstract;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
 import clearcontrol.devices.signalgen.staves.TriggerStave;
 
+import coremem.buffers.ContiguousBuffer;
+
 import org.junit.Test;
 
 public class NIRIOScoreCompilerTests
@@ -139,4 +158,225 @@ public class NIRIOScoreCompilerTests
 
   }
 
+  @Test
+  public void testCompilationCache() throws InterruptedException
+  {
+    final RampSteppingStave lGalvoScannerStave =
+                                               new RampSteppingStave("galvo");
+    lGalvoScannerStave.setSyncStart(0.1f);
+    lGalvoScannerStave.setSyncStop(0.7f);
+    lGalvoScannerStave.setStartValue(0f);
+    lGalvoScannerStave.setStopValue(1f);
+    lGalvoScannerStave.setStepHeight(0.02f);
+
+    final TriggerStave lCameraTriggerStave =
+                                           new TriggerStave("camera trigger");
+    lCameraTriggerStave.setStart(0.2f);
+    lCameraTriggerStave.setStop(0.6f);
+
+    final Movement lMovement = new Movement("Test Movement");
+    lMovement.setStave(0, lCameraTriggerStave);
+    lMovement.setStave(1, lGalvoScannerStave);
+    lMovement.setDuration(5, TimeUnit.MILLISECONDS);
+
+    // a movement with the same content is equal, a different one is not:
+    final MovementInterface lSameMovement = lMovement.duplicate();
+    assertEquals(lMovement, lSameMovement);
+    assertEquals(lMovement.hashCode(), lSameMovement.hashCode());
+
+    final Movement lOtherMovement = (Movement) lMovement.duplicate();
+    ((RampSteppingStave) lOtherMovement.getStave(1)).setStopValue(0.5f);
+    assertNotEquals(lMovement, lOtherMovement);
+
+    final Score lScore = new Score("Test Score");
+    lScore.addMovementMultipleTimes(lMovement, 5);
+    lScore.addMovement(lOtherMovement);
+    lScore.addMovementMultipleTimes(lSameMovement, 5);
+
+    final NIRIOCompiledMovementCache lCache =
+                                            new NIRIOCompiledMovementCache(Long.MAX_VALUE);
+    final NIRIOCompiledScore lNIRIOCompiledScore =
+                                                 new NIRIOCompiledScore();
+
+    // two distinct movements, each compiled once:
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore, lCache);
+    assertEquals(11, lNIRIOCompiledScore.getNumberOfMovements());
+    assertEquals(2, lCache.size());
+    assertEquals(0, lCache.getNumberOfHits());
+    assertEquals(2, lCache.getNumberOfMisses());
+
+    // compiling again only hits the cache:
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore, lCache);
+    assertEquals(2, lCache.size());
+    assertEquals(2, lCache.getNumberOfHits());
+    assertEquals(2, lCache.getNumberOfMisses());
+
+    // cached compiled movements are identical to freshly compiled ones:
+    for (final MovementInterface lScoreMovement : lScore.getMovements())
+    {
+      final NIRIOCompiledMovement lCachedMovement =
+                                                  lCache.get(lScoreMovement);
+      assertNotNull(lCachedMovement);
+      final NIRIOCompiledMovement lFreshMovement =
+                                                 NIRIOScoreCompiler.compileMovement(lScoreMovement);
+      assertEquals(lFreshMovement.getDeltaTimeInTicks(),
+                   lCachedMovement.getDeltaTimeInTicks());
+      assertEquals(lFreshMovement.getSync(),
+                   lCachedMovement.getSync());
+      assertEquals(lFreshMovement.getNumberOfTimePoints(),
+                   lCachedMovement.getNumberOfTimePoints());
+      assertTrue(Arrays.equals(lFreshMovement.getWaveforms(),
+                               lCachedMovement.getWaveforms()));
+    }
+
+    // modifying a movement after compilation does not affect the cache:
+    lGalvoScannerStave.setStopValue(0.25f);
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore, lCache);
+    assertEquals(3, lCache.size());
+    assertTrue(Arrays.equals(NIRIOScoreCompiler.compileMovement(lMovement)
+                                               .getWaveforms(),
+                             lCache.get(lMovement).getWaveforms()));
+
+    // the cache is bounded:
+    final NIRIOCompiledMovementCache lSmallCache =
+                                                 new NIRIOCompiledMovementCache(1);
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore, lSmallCache);
+    assertEquals(1, lSmallCache.size());
+  }
+
+  /**
+   * Tests that movements with staves that have the same class but different
+   * contents, and no content equality, do not share compiled movements.
+   */
+  @Test
+  public void testCacheWithoutContentEquality()
+  {
+    final ValueStave lStave = new ValueStave("value", 0.25f);
+    final ValueStave lOtherStave = new ValueStave("value", 0.75f);
+
+    final Movement lMovement = new Movement("Test Movement");
+    lMovement.setStave(0, lStave);
+    lMovement.setDuration(1, TimeUnit.MILLISECONDS);
+
+    final Movement lOtherMovement = new Movement("Test Movement");
+    lOtherMovement.setStave(0, lOtherStave);
+    lOtherMovement.setDuration(1, TimeUnit.MILLISECONDS);
+
+    // equal for StaveAbstract, but not the same signals:
+    assertEquals(lMovement, lOtherMovement);
+    assertFalse(lMovement.hasContentEquality());
+
+    final Score lScore = new Score("Test Score");
+    lScore.addMovement(lMovement);
+    lScore.addMovement(lOtherMovement);
+
+    final NIRIOCompiledMovementCache lCache =
+                                            new NIRIOCompiledMovementCache(Long.MAX_VALUE);
+    final NIRIOCompiledScore lNIRIOCompiledScore =
+                                                 new NIRIOCompiledScore();
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore, lCache);
+    assertEquals(0, lCache.size());
+    assertNull(lCache.get(lMovement));
+
+    final short[] lWaveforms =
+                             NIRIOScoreCompiler.compileMovement(lMovement)
+                                               .getWaveforms();
+    final short[] lOtherWaveforms =
+                                  NIRIOScoreCompiler.compileMovement(lOtherMovement)
+                                                    .getWaveforms();
+    assertFalse(Arrays.equals(lWaveforms, lOtherWaveforms));
+
+    // the same closure stave gives other signals when the closure's state
+    // changes:
+    final float[] lClosureState = new float[]
+    { 0.25f };
+    final Movement lClosureMovement = new Movement("Closure Movement");
+    lClosureMovement.setStave(0,
+                              new ClosurePatternSteppingStave("closure",
+                                                              (i) -> lClosureState[0]));
+    lClosureMovement.setDuration(1, TimeUnit.MILLISECONDS);
+    final Score lClosureScore = new Score("Closure Score");
+    lClosureScore.addMovement(lClosureMovement);
+
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lClosureScore, lCache);
+    final short[] lClosureWaveforms = copyWaveforms(lNIRIOCompiledScore);
+    lClosureState[0] = 0.75f;
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lClosureScore, lCache);
+    assertFalse(Arrays.equals(lClosureWaveforms,
+                              copyWaveforms(lNIRIOCompiledScore)));
+    assertEquals(0, lCache.size());
+  }
+
+  private static short[] copyWaveforms(NIRIOCompiledScore pNIRIOCompiledScore)
+  {
+    final ContiguousBuffer lBuffer =
+                                   pNIRIOCompiledScore.getScoreBuffer();
+    lBuffer.rewind();
+    final short[] lWaveforms = new short[(int) (lBuffer.getSizeInBytes()
+                                                / Short.BYTES)];
+    for (int i = 0; i < lWaveforms.length; i++)
+      lWaveforms[i] = lBuffer.readShort();
+    return lWaveforms;
+  }
+
+  /**
+   * Stave with a constant value, and without content equality
+   */
+  private static class ValueStave extends StaveAbstract
+  {
+    private final float mValue;
+
+    ValueStave(String pName, float pValue)
+    {
+      super(pName);
+      mValue = pValue;
+    }
+
+    @Override
+    public StaveInterface duplicate()
+    {
+      return new ValueStave(getName(), mValue);
+    }
+
+    @Override
+    public float getValue(float pNormalizedTime)
+    {
+      return mValue;
+    }
+  }
+
+  @Test
+  public void testCopyOnWriteQueue()
+  {
+    final SignalGeneratorSimulatorDevice lSignalGenerator =
+                                                          new SignalGeneratorSimulatorDevice();
+
+    final SignalGeneratorQueue lQueue = lSignalGenerator.requestQueue();
+
+    final Movement lMovement = new Movement("Test Movement");
+    final TriggerStave lCameraTriggerStave =
+                                           new TriggerStave("camera trigger");
+    lMovement.setStave(0, lCameraTriggerStave);
+    lMovement.setDuration(1, TimeUnit.MILLISECONDS);
+    lQueue.getStagingScore().addMovement(lMovement);
+
+    lQueue.clearQueue();
+    lQueue.addCurrentStateToQueue();
+    lQueue.addCurrentStateToQueue();
+    lCameraTriggerStave.setStop(0.25f);
+    lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+
+    final ScoreInterface lQueuedScore = lQueue.getQueuedScore();
+    assertEquals(3, lQueuedScore.getNumberOfMovements());
+
+    // unchanged staging movements are shared, changed ones are copied:
+    assertNotSame(lMovement, lQueuedScore.getMovement(0));
+    assertSame(lQueuedScore.getMovement(0), lQueuedScore.getMovement(1));
+    assertNotSame(lQueuedScore.getMovement(1),
+                  lQueuedScore.getMovement(2));
+    assertEquals(lMovement, lQueuedScore.getMovement(2));
+    assertNotEquals(lMovement, lQueuedScore.getMovement(0));
+  }
+
 }
@@ -6,13 +6,19 @@ import java.util.concurrent.TimeUnit;
 import clearcontrol.core.concurrent.thread.ThreadSleep;
 import clearcontrol.core.device.sim.SimulationDeviceInterface;
 import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
 import clearcontrol.devices.signalgen.SignalGeneratorBase;
 import clearcontrol.devices.signalgen.SignalGeneratorInterface;
 import clearcontrol.devices.signalgen.SignalGeneratorQueue;
+import clearcontrol.devices.signalgen.devices.sim.compiler.SimulatedCompiledScore;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
 
 /**
- * Signal generator device simulator
+ * Signal generator device simulator. When the render scores variable is set,
+ * played scores are rendered into sample buffers (see SimulatedCompiledScore)
+ * so that waveforms can be inspected and waveform generation measured without
+ * hardware. Rendering is off by default, since it costs one sample per stave
+ * and per sample period for every played score.
  *
  * @author royer
  */
@@ -24,15 +30,39 @@ public class SignalGeneratorSimulatorDevice extends
                                             SimulationDeviceInterface
 {
 
+  /**
+   * Default sample rate of the rendered scores in Hz
+   */
+  public static final double cDefaultSampleRateInHz = 100000;
+
   private volatile int mQueueLength;
 
+  private final SimulatedCompiledScore mCompiledScore;
+
+  private final Variable<Boolean> mRenderScoresVariable =
+                                                        new Variable<Boolean>("RenderScores",
+                                                                              false);
+
   /**
    * Signal generator device simulator
    */
   public SignalGeneratorSimulatorDevice()
+  {
+    this(cDefaultSampleRateInHz);
+  }
+
+  /**
+   * Signal generator device simulator rendering scores at a given sample rate
+   * 
+   * @param pSampleRateInHz
+   *          sample rate in Hz
+   */
+  public SignalGeneratorSimulatorDevice(double pSampleRateInHz)
   {
     super(SignalGeneratorSimulatorDevice.class.getSimpleName());
 
+    mCompiledScore = new SimulatedCompiledScore(pSampleRateInHz);
+
     mTriggerVariable.addSetListener((o, n) -> {
       if (isSimLogging())
         info("Trigger received");
@@ -58,9 +88,45 @@ public class SignalGeneratorSimulatorDevice extends
     return super.playQueue(pSignalGeneratorRealTimeQueue);
   }
 
+  /**
+   * Returns the variable that decides whether played scores are rendered into
+   * the compiled score's sample buffers.
+   * 
+   * @return render scores variable
+   */
+  public Variable<Boolean> getRenderScoresVariable()
+  {
+    return mRenderScoresVariable;
+  }
+
+  /**
+   * Returns the compiled score holding the sample buffers of the last score
+   * played while rendering was on. The compiled score's lock should be held
+   * while reading its buffers.
+   * 
+   * @return compiled score
+   */
+  public SimulatedCompiledScore getCompiledScore()
+  {
+    return mCompiledScore;
+  }
+
   @Override
   public boolean playScore(ScoreInterface pScore)
   {
+    if (mRenderScoresVariable.get())
+    {
+      mCompiledScore.getLock().lock();
+      try
+      {
+        mCompiledScore.setScore(pScore);
+        mCompiledScore.ensureIsUpToDate();
+      }
+      finally
+      {
+        mCompiledScore.getLock().unlock();
+      }
+    }
 
     final long lDurationInMilliseconds =
                                        pScore.getDuration(TimeUnit.MILLISECONDS);
@@ -0,0 +1,246 @@
+package clearcontrol.devices.signalgen.devices.sim.compiler;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearcontrol.devices.signalgen.score.CompiledScoreInterface;
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+
+/**
+ * Simulated compiled score: a score rendered into one sample buffer per stave,
+ * at a given sample rate. Movements are rendered one after the other, the
+ * samples of movement i start at getMovementStartSample(i).
+ *
+ * Sample buffers are reused from one compilation to the next and can be longer
+ * than the number of samples of the current score.
+ *
+ * @author royer
+ */
+public class SimulatedCompiledScore implements CompiledScoreInterface
+{
+  private final ReentrantLock mLock = new ReentrantLock();
+  private volatile boolean mIsUpToDate = false;
+
+  private volatile double mSampleRateInHz;
+  private volatile ScoreInterface mScore;
+
+  private int mNumberOfStaves;
+  private int mNumberOfSamples;
+  private int mNumberOfMovements;
+  private float[][] mStaveBuffers = new float[0][];
+  private int[] mMovementStartSamples = new int[1];
+
+  /**
+   * Instantiates a simulated compiled score for a given sample rate
+   *
+   * @param pSampleRateInHz
+   *          sample rate in Hz
+   */
+  public SimulatedCompiledScore(double pSampleRateInHz)
+  {
+    super();
+    setSampleRateInHz(pSampleRateInHz);
+  }
+
+  @Override
+  public ReentrantLock getLock()
+  {
+    return mLock;
+  }
+
+  /**
+   * Returns the sample rate in Hz
+   *
+   * @return sample rate in Hz
+   */
+  public double getSampleRateInHz()
+  {
+    return mSampleRateInHz;
+  }
+
+  /**
+   * Sets the sample rate in Hz, the score is rendered again on the next call to
+   * ensureIsUpToDate.
+   *
+   * @param pSampleRateInHz
+   *          sample rate in Hz
+   */
+  public void setSampleRateInHz(double pSampleRateInHz)
+  {
+    if (!(pSampleRateInHz > 0))
+      throw new IllegalArgumentException("Sample rate must be strictly positive: "
+                                         + pSampleRateInHz);
+    mSampleRateInHz = pSampleRateInHz;
+    requestUpdate();
+  }
+
+  /**
+   * Returns the score rendered by this compiled score
+   *
+   * @return score
+   */
+  public ScoreInterface getScore()
+  {
+    return mScore;
+  }
+
+  /**
+   * Sets the score to render, the score is rendered on the next call to
+   * ensureIsUpToDate.
+   *
+   * @param pScore
+   *          score
+   */
+  public void setScore(ScoreInterface pScore)
+  {
+    mScore = pScore;
+    requestUpdate();
+  }
+
+  @Override
+  public void ensureIsUpToDate()
+  {
+    mLock.lock();
+    try
+    {
+      final ScoreInterface lScore = mScore;
+      if (!isUpToDate() && lScore != null)
+      {
+        SimulatedScoreCompiler.compile(this, lScore);
+        setUpToDate(true);
+      }
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isUpToDate()
+  {
+    return mIsUpToDate;
+  }
+
+  @Override
+  public void setUpToDate(boolean pIsUpToDate)
+  {
+    mIsUpToDate = pIsUpToDate;
+  }
+
+  @Override
+  public void requestUpdate()
+  {
+    mIsUpToDate = false;
+  }
+
+  /**
+   * Returns the number of staves
+   *
+   * @return number of staves
+   */
+  public int getNumberOfStaves()
+  {
+    return mNumberOfStaves;
+  }
+
+  /**
+   * Returns the total number of samples per stave
+   *
+   * @return number of samples
+   */
+  public int getNumberOfSamples()
+  {
+    return mNumberOfSamples;
+  }
+
+  /**
+   * Returns the number of movements
+   *
+   * @return number of movements
+   */
+  public int getNumberOfMovements()
+  {
+    return mNumberOfMovements;
+  }
+
+  /**
+   * Returns the index of the first sample of a given movement
+   *
+   * @param pMovementIndex
+   *          movement index
+   * @return index of first sample
+   */
+  public int getMovementStartSample(int pMovementIndex)
+  {
+    return mMovementStartSamples[pMovementIndex];
+  }
+
+  /**
+   * Returns the number of samples of a given movement
+   *
+   * @param pMovementIndex
+   *          movement index
+   * @return number of samples
+   */
+  public int getMovementNumberOfSamples(int pMovementIndex)
+  {
+    return mMovementStartSamples[pMovementIndex + 1]
+           - mMovementStartSamples[pMovementIndex];
+  }
+
+  /**
+   * Returns the sample buffer of a given stave. Only the first
+   * getNumberOfSamples() samples are valid. This buffer must not be modified.
+   *
+   * @param pStaveIndex
+   *          stave index
+   * @return sample buffer
+   */
+  public float[] getStaveBuffer(int pStaveIndex)
+  {
+    return mStaveBuffers[pStaveIndex];
+  }
+
+  void allocate(int pNumberOfStaves,
+                int pNumberOfSamples,
+                int pNumberOfMovements)
+  {
+    if (mStaveBuffers.length < pNumberOfStaves)
+    {
+      final float[][] lStaveBuffers = new float[pNumberOfStaves][];
+      System.arraycopy(mStaveBuffers,
+                       0,
+                       lStaveBuffers,
+                       0,
+                       mStaveBuffers.length);
+      mStaveBuffers = lStaveBuffers;
+    }
+    for (int s = 0; s < pNumberOfStaves; s++)
+      if (mStaveBuffers[s] == null
+          || mStaveBuffers[s].length < pNumberOfSamples)
+        mStaveBuffers[s] = new float[pNumberOfSamples];
+
+    if (mMovementStartSamples.length < pNumberOfMovements + 1)
+      mMovementStartSamples = new int[pNumberOfMovements + 1];
+
+    mNumberOfStaves = pNumberOfStaves;
+    mNumberOfSamples = pNumberOfSamples;
+    mNumberOfMovements = pNumberOfMovements;
+  }
+
+  int[] getMovementStartSamples()
+  {
+    return mMovementStartSamples;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("SimulatedCompiledScore [mSampleRateInHz=%g, mNumberOfStaves=%d, mNumberOfSamples=%d, mNumberOfMovements=%d]",
+                         mSampleRateInHz,
+                         mNumberOfStaves,
+                         mNumberOfSamples,
+                         mNumberOfMovements);
+  }
+
+}
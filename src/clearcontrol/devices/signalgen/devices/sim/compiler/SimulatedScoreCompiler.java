@@ -0,0 +1,412 @@
+package clearcontrol.devices.signalgen.devices.sim.compiler;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.floor;
+import static java.lang.Math.max;
+import static java.lang.Math.pow;
+import static java.lang.Math.round;
+import static java.lang.Math.signum;
+import static java.lang.Math.sin;
+import static java.lang.Math.toIntExact;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.math.interpolation.bezier.Bezier;
+import clearcontrol.devices.signalgen.movement.MovementInterface;
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+import clearcontrol.devices.signalgen.staves.BezierStave;
+import clearcontrol.devices.signalgen.staves.ConstantStave;
+import clearcontrol.devices.signalgen.staves.EdgeStave;
+import clearcontrol.devices.signalgen.staves.IntervalStave;
+import clearcontrol.devices.signalgen.staves.RampContinuousStave;
+import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.SinusStave;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
+import clearcontrol.devices.signalgen.staves.TriggerStave;
+import clearcontrol.devices.signalgen.staves.ZeroStave;
+
+/**
+ * Hardware independent score compiler: renders scores into per-stave sample
+ * buffers at the sample rate of a simulated compiled score.
+ *
+ * The samples of a movement of n samples are the stave values at normalized
+ * times t/n for t in [0, n[. Staves of known types are rendered with bulk
+ * kernels: stave parameters are read once, interval boundaries are found by
+ * bisection and constant segments are filled, only the varying parts of ramps,
+ * Bezier and sinus staves are computed sample by sample. Kernels compute
+ * exactly the same values as the staves' getValue methods, which are used for
+ * staves of other types.
+ *
+ * @author royer
+ */
+public class SimulatedScoreCompiler
+{
+
+  /**
+   * Renders a score into a simulated compiled score
+   *
+   * @param pCompiledScore
+   *          compiled score
+   * @param pScore
+   *          score to render
+   */
+  public static void compile(SimulatedCompiledScore pCompiledScore,
+                             ScoreInterface pScore)
+  {
+    final ArrayList<MovementInterface> lMovements =
+                                                  pScore.getMovements();
+    final int lNumberOfMovements = lMovements.size();
+    final double lSampleRateInHz = pCompiledScore.getSampleRateInHz();
+
+    int lNumberOfStaves = 0;
+    long lNumberOfSamples = 0;
+    for (final MovementInterface lMovement : lMovements)
+    {
+      lNumberOfStaves = max(lNumberOfStaves,
+                            lMovement.getNumberOfStaves());
+      lNumberOfSamples += getNumberOfSamples(lMovement,
+                                             lSampleRateInHz);
+    }
+
+    pCompiledScore.allocate(lNumberOfStaves,
+                            toIntExact(lNumberOfSamples),
+                            lNumberOfMovements);
+
+    final int[] lMovementStartSamples =
+                                      pCompiledScore.getMovementStartSamples();
+    int lOffset = 0;
+    for (int m = 0; m < lNumberOfMovements; m++)
+    {
+      final MovementInterface lMovement = lMovements.get(m);
+      final int lLength = getNumberOfSamples(lMovement,
+                                             lSampleRateInHz);
+      lMovementStartSamples[m] = lOffset;
+
+      for (int s = 0; s < lNumberOfStaves; s++)
+      {
+        final float[] lBuffer = pCompiledScore.getStaveBuffer(s);
+        if (s < lMovement.getNumberOfStaves())
+          renderStave(lMovement.getStave(s), lBuffer, lOffset, lLength);
+        else
+          Arrays.fill(lBuffer, lOffset, lOffset + lLength, 0);
+      }
+
+      lOffset += lLength;
+    }
+    lMovementStartSamples[lNumberOfMovements] = lOffset;
+  }
+
+  /**
+   * Returns the number of samples of a movement for a given sample rate, at
+   * least one.
+   *
+   * @param pMovement
+   *          movement
+   * @param pSampleRateInHz
+   *          sample rate in Hz
+   * @return number of samples
+   */
+  public static int getNumberOfSamples(MovementInterface pMovement,
+                                       double pSampleRateInHz)
+  {
+    final long lDurationInNanoseconds =
+                                      pMovement.getDuration(TimeUnit.NANOSECONDS);
+    return toIntExact(max(1,
+                          round(lDurationInNanoseconds * 1e-9
+                                * pSampleRateInHz)));
+  }
+
+  /**
+   * Renders a stave into a buffer: pLength samples are written starting at
+   * pOffset.
+   *
+   * @param pStave
+   *          stave
+   * @param pBuffer
+   *          buffer
+   * @param pOffset
+   *          offset in buffer
+   * @param pLength
+   *          number of samples
+   */
+  public static void renderStave(StaveInterface pStave,
+                                 float[] pBuffer,
+                                 int pOffset,
+                                 int pLength)
+  {
+    final Class<?> lClass = pStave.getClass();
+
+    if (lClass == ZeroStave.class || lClass == ConstantStave.class)
+    {
+      Arrays.fill(pBuffer,
+                  pOffset,
+                  pOffset + pLength,
+                  ((ConstantStave) pStave).getConstantValue());
+    }
+    else if (lClass == IntervalStave.class
+             || lClass == TriggerStave.class)
+    {
+      renderIntervalStave((IntervalStave) pStave,
+                          pBuffer,
+                          pOffset,
+                          pLength);
+    }
+    else if (lClass == EdgeStave.class)
+    {
+      renderEdgeStave((EdgeStave) pStave, pBuffer, pOffset, pLength);
+    }
+    else if (lClass == RampContinuousStave.class)
+    {
+      renderRampStave((RampContinuousStave) pStave,
+                      0,
+                      pBuffer,
+                      pOffset,
+                      pLength);
+    }
+    else if (lClass == RampSteppingStave.class)
+    {
+      final RampSteppingStave lRampSteppingStave =
+                                                 (RampSteppingStave) pStave;
+      renderRampStave(lRampSteppingStave,
+                      lRampSteppingStave.isStepping() ? lRampSteppingStave.getNumberOfSteps()
+                                                      : 0,
+                      pBuffer,
+                      pOffset,
+                      pLength);
+    }
+    else if (lClass == BezierStave.class)
+    {
+      renderBezierStave((BezierStave) pStave,
+                        pBuffer,
+                        pOffset,
+                        pLength);
+    }
+    else if (lClass == SinusStave.class)
+    {
+      renderSinusStave((SinusStave) pStave, pBuffer, pOffset, pLength);
+    }
+    else
+    {
+      renderGenericStave(pStave, pBuffer, pOffset, pLength);
+    }
+  }
+
+  private static void renderIntervalStave(IntervalStave pStave,
+                                          float[] pBuffer,
+                                          int pOffset,
+                                          int pLength)
+  {
+    final float lInsideValue = pStave.getInsideValue();
+    final float lOutsideValue = pStave.getOutsideValue();
+
+    if (!pStave.isEnabled())
+    {
+      Arrays.fill(pBuffer, pOffset, pOffset + pLength, lOutsideValue);
+      return;
+    }
+
+    final float lInvLength = 1f / pLength;
+    final int lStart = firstIndexAbove(pStave.getStart(),
+                                       false,
+                                       pLength,
+                                       lInvLength);
+    final int lStop = max(lStart,
+                          firstIndexAbove(pStave.getStop(),
+                                          true,
+                                          pLength,
+                                          lInvLength));
+
+    Arrays.fill(pBuffer, pOffset, pOffset + lStart, lOutsideValue);
+    Arrays.fill(pBuffer,
+                pOffset + lStart,
+                pOffset + lStop,
+                lInsideValue);
+    Arrays.fill(pBuffer,
+                pOffset + lStop,
+                pOffset + pLength,
+                lOutsideValue);
+  }
+
+  private static void renderEdgeStave(EdgeStave pStave,
+                                      float[] pBuffer,
+                                      int pOffset,
+                                      int pLength)
+  {
+    final float lValueBefore = pStave.getValueBefore();
+    final float lValueAfter = pStave.getValueAfter();
+
+    final int lEdge = pStave.isEnabled() ? firstIndexAbove(pStave.getEdgePosition(),
+                                                           true,
+                                                           pLength,
+                                                           1f / pLength)
+                                         : pLength;
+
+    Arrays.fill(pBuffer, pOffset, pOffset + lEdge, lValueBefore);
+    Arrays.fill(pBuffer, pOffset + lEdge, pOffset + pLength, lValueAfter);
+  }
+
+  private static void renderRampStave(RampContinuousStave pStave,
+                                      int pNumberOfSteps,
+                                      float[] pBuffer,
+                                      int pOffset,
+                                      int pLength)
+  {
+    final float lSyncStart = pStave.getSyncStart();
+    final float lSyncStop = pStave.getSyncStop();
+    final float lStartValue = pStave.getStartValue();
+    final float lStopValue = pStave.getStopValue();
+    final float lOutsideValue = pStave.getOutsideValue();
+    final float lExponent = pStave.getExponent();
+
+    final float lInvLength = 1f / pLength;
+    final int lStart = firstIndexAbove(lSyncStart,
+                                       false,
+                                       pLength,
+                                       lInvLength);
+    final int lStop = max(lStart,
+                          firstIndexAbove(lSyncStop,
+                                          true,
+                                          pLength,
+                                          lInvLength));
+
+    Arrays.fill(pBuffer, pOffset, pOffset + lStart, lOutsideValue);
+
+    final float lRampDuration = lSyncStop - lSyncStart;
+    final float lRampHeight = lStopValue - lStartValue;
+    for (int t = lStart; t < lStop; t++)
+    {
+      float lNormalizedRampTime = (t * lInvLength - lSyncStart)
+                                  / lRampDuration;
+      if (lExponent != 1)
+        lNormalizedRampTime = abspow(lNormalizedRampTime, lExponent);
+      if (pNumberOfSteps > 0)
+        lNormalizedRampTime =
+                            (float) (floor(pNumberOfSteps
+                                           * lNormalizedRampTime)
+                                     / pNumberOfSteps);
+      pBuffer[pOffset + t] = lStartValue
+                             + lRampHeight * lNormalizedRampTime;
+    }
+
+    Arrays.fill(pBuffer,
+                pOffset + lStop,
+                pOffset + pLength,
+                lOutsideValue);
+  }
+
+  private static void renderBezierStave(BezierStave pStave,
+                                        float[] pBuffer,
+                                        int pOffset,
+                                        int pLength)
+  {
+    final float lValueStart = pStave.getValueStart();
+    final float lValueStop = pStave.getValueStop();
+    final float lSlopeStart = pStave.getSlopeStart();
+    final float lSlopeEnd = pStave.getSlopeEnd();
+    final float lSmoothness = pStave.getSmoothness();
+    final float lMargin = pStave.getMargin();
+
+    final float lBezierDuration = 1 - 2 * lMargin;
+    final float lBezierValueStart = lValueStart + lSlopeStart * lMargin;
+    final float lBezierValueStop = lValueStop - lSlopeEnd * (lMargin);
+    final float lControlValueStart = lBezierValueStart
+                                     + lSlopeStart * lSmoothness
+                                       * lBezierDuration;
+    final float lControlValueEnd = lBezierValueStop
+                                   - lSlopeEnd * lSmoothness
+                                     * lBezierDuration;
+
+    final float lInvLength = 1f / pLength;
+    final int lBezierStart = firstIndexAbove(lMargin,
+                                             false,
+                                             pLength,
+                                             lInvLength);
+    final int lBezierStop = max(lBezierStart,
+                                firstIndexAbove(1 - lMargin,
+                                                true,
+                                                pLength,
+                                                lInvLength));
+
+    for (int t = 0; t < lBezierStart; t++)
+      pBuffer[pOffset + t] = lValueStart
+                             + lSlopeStart * (t * lInvLength);
+
+    for (int t = lBezierStart; t < lBezierStop; t++)
+    {
+      final float lBezierTime = (t * lInvLength - lMargin)
+                                / lBezierDuration;
+      pBuffer[pOffset + t] = (float) Bezier.bezier(lBezierValueStart,
+                                                   lControlValueStart,
+                                                   lControlValueEnd,
+                                                   lBezierValueStop,
+                                                   lBezierTime);
+    }
+
+    for (int t = lBezierStop; t < pLength; t++)
+      pBuffer[pOffset + t] = lValueStop
+                             - lSlopeEnd * (1 - t * lInvLength);
+  }
+
+  private static void renderSinusStave(SinusStave pStave,
+                                       float[] pBuffer,
+                                       int pOffset,
+                                       int pLength)
+  {
+    final float lAmplitude = pStave.getSinusAmplitude();
+    final float lPhase = pStave.getSinusPhase();
+    final float lOmega = (float) ((2 * PI) / pStave.getSinusPeriod());
+
+    final float lInvLength = 1f / pLength;
+    for (int t = 0; t < pLength; t++)
+      pBuffer[pOffset + t] =
+                           (float) (lAmplitude * sin((t * lInvLength
+                                                      + lPhase)
+                                                     * lOmega));
+  }
+
+  private static void renderGenericStave(StaveInterface pStave,
+                                         float[] pBuffer,
+                                         int pOffset,
+                                         int pLength)
+  {
+    final float lInvLength = 1f / pLength;
+    for (int t = 0; t < pLength; t++)
+      pBuffer[pOffset + t] = pStave.getValue(t * lInvLength);
+  }
+
+  /**
+   * Returns the smallest index t in [0, n] such that the normalized time t/n
+   * (computed as t*(1/n) in single precision, as in the staves) is above or
+   * equal to (or strictly above if pStrict is true) the given threshold.
+   * Normalized times increase with t so bisection is exact.
+   */
+  private static int firstIndexAbove(float pThreshold,
+                                     boolean pStrict,
+                                     int pLength,
+                                     float pInvLength)
+  {
+    int lLow = 0;
+    int lHigh = pLength;
+    while (lLow < lHigh)
+    {
+      final int lMiddle = (lLow + lHigh) >>> 1;
+      final float lNormalizedTime = lMiddle * pInvLength;
+      final boolean lAbove = pStrict ? lNormalizedTime > pThreshold
+                                     : lNormalizedTime >= pThreshold;
+      if (lAbove)
+        lHigh = lMiddle;
+      else
+        lLow = lMiddle + 1;
+    }
+    return lLow;
+  }
+
+  private static float abspow(float pValue, float pExponent)
+  {
+    return (float) (signum(pValue) * pow(abs(pValue), pExponent));
+  }
+
+}
@@ -0,0 +1,289 @@
+package clearcontrol.devices.signalgen.devices.sim.compiler.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.devices.signalgen.SignalGeneratorQueue;
+import clearcontrol.devices.signalgen.devices.sim.SignalGeneratorSimulatorDevice;
+import clearcontrol.devices.signalgen.devices.sim.compiler.SimulatedCompiledScore;
+import clearcontrol.devices.signalgen.devices.sim.compiler.SimulatedScoreCompiler;
+import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.score.Score;
+import clearcontrol.devices.signalgen.staves.BezierStave;
+import clearcontrol.devices.signalgen.staves.BinaryPatternSteppingStave;
+import clearcontrol.devices.signalgen.staves.ConstantStave;
+import clearcontrol.devices.signalgen.staves.EdgeStave;
+import clearcontrol.devices.signalgen.staves.IntervalStave;
+import clearcontrol.devices.signalgen.staves.RampContinuousStave;
+import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.SinusStave;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
+import clearcontrol.devices.signalgen.staves.TriggerStave;
+import clearcontrol.devices.signalgen.staves.ZeroStave;
+
+import org.junit.Test;
+
+/**
+ * Simulated score compiler tests
+ *
+ * @author royer
+ */
+public class SimulatedScoreCompilerTests
+{
+
+  @Test
+  public void testKernelsMatchStaves()
+  {
+    final ArrayList<StaveInterface> lStaves = new ArrayList<>();
+
+    lStaves.add(new ZeroStave());
+    lStaves.add(new ConstantStave("constant", 0.3f));
+    lStaves.add(new IntervalStave("interval", 0.1f, 0.6f, 1, -0.5f));
+    lStaves.add(new TriggerStave("trigger", 0, 0.25f, 1, 0));
+    lStaves.add(new TriggerStave("trigger", 0.7f, 0.2f, 1, 0));
+    lStaves.add(new EdgeStave("edge", 0.45f, -1, 1));
+    lStaves.add(new RampContinuousStave("ramp",
+                                        0.1f,
+                                        0.9f,
+                                        -1,
+                                        1,
+                                        0.2f));
+    lStaves.add(new RampContinuousStave("ramp",
+                                        0.2f,
+                                        0.8f,
+                                        0,
+                                        1,
+                                        0,
+                                        2.5f));
+    lStaves.add(newRampSteppingStave(0.1f, 0.7f, 0.02f, 1, true));
+    lStaves.add(newRampSteppingStave(0.1f, 0.7f, 0.1f, 0.5f, true));
+    lStaves.add(newRampSteppingStave(0.3f, 0.6f, 0.02f, 1, false));
+    lStaves.add(new BezierStave("bezier", -0.5f, 0.8f, 1, 2, 0.5f, 0.1f));
+    lStaves.add(new BezierStave("bezier", 0.2f));
+    lStaves.add(new SinusStave("sinus", 0.3f, 0.1f, 0.9f));
+    lStaves.add(new BinaryPatternSteppingStave("pattern",
+                                               0.1f,
+                                               0.9f,
+                                               64,
+                                               9,
+                                               2,
+                                               3,
+                                               1));
+
+    final int lNumberOfEnabledStaves = lStaves.size();
+    for (int i = 0; i < lNumberOfEnabledStaves; i++)
+    {
+      final StaveInterface lDisabledStave = lStaves.get(i).duplicate();
+      lDisabledStave.setEnabled(false);
+      lStaves.add(lDisabledStave);
+    }
+
+    for (final int lLength : new int[]
+    { 1, 2, 3, 7, 33, 100, 2048, 12345 })
+    {
+      final int lOffset = 5;
+      final float[] lBuffer = new float[lOffset + lLength + 5];
+      for (final StaveInterface lStave : lStaves)
+      {
+        SimulatedScoreCompiler.renderStave(lStave,
+                                           lBuffer,
+                                           lOffset,
+                                           lLength);
+
+        final float lInvLength = 1f / lLength;
+        for (int t = 0; t < lLength; t++)
+          assertEquals(lStave + " length=" + lLength + " t=" + t,
+                       lStave.getValue(t * lInvLength),
+                       lBuffer[lOffset + t],
+                       0);
+      }
+    }
+  }
+
+  @Test
+  public void testScoreRendering()
+  {
+    final Score lScore = new Score("score");
+
+    final Movement lMovement1 = new Movement("movement 1", 4);
+    lMovement1.setDuration(1, TimeUnit.MILLISECONDS);
+    lMovement1.setStave(0, new TriggerStave("trigger", 0.5f, 1, 1, 0));
+    lMovement1.setStave(3, new ConstantStave("constant", 0.25f));
+
+    final Movement lMovement2 = new Movement("movement 2", 2);
+    lMovement2.setDuration(250, TimeUnit.MICROSECONDS);
+    lMovement2.setStave(1, new ConstantStave("constant", -1));
+
+    lScore.addMovement(lMovement1);
+    lScore.addMovement(lMovement2);
+
+    final SimulatedCompiledScore lCompiledScore =
+                                                new SimulatedCompiledScore(1e6);
+    lCompiledScore.setScore(lScore);
+    lCompiledScore.ensureIsUpToDate();
+    assertTrue(lCompiledScore.isUpToDate());
+
+    assertEquals(4, lCompiledScore.getNumberOfStaves());
+    assertEquals(2, lCompiledScore.getNumberOfMovements());
+    assertEquals(1250, lCompiledScore.getNumberOfSamples());
+    assertEquals(0, lCompiledScore.getMovementStartSample(0));
+    assertEquals(1000, lCompiledScore.getMovementNumberOfSamples(0));
+    assertEquals(1000, lCompiledScore.getMovementStartSample(1));
+    assertEquals(250, lCompiledScore.getMovementNumberOfSamples(1));
+
+    assertEquals(0, lCompiledScore.getStaveBuffer(0)[499], 0);
+    assertEquals(1, lCompiledScore.getStaveBuffer(0)[500], 0);
+    assertEquals(0, lCompiledScore.getStaveBuffer(1)[999], 0);
+    assertEquals(-1, lCompiledScore.getStaveBuffer(1)[1000], 0);
+    assertEquals(0.25f, lCompiledScore.getStaveBuffer(3)[999], 0);
+    // staves missing from a movement are zero:
+    assertEquals(0, lCompiledScore.getStaveBuffer(3)[1000], 0);
+
+    // changing the sample rate renders the score again:
+    lCompiledScore.setSampleRateInHz(1e5);
+    assertTrue(!lCompiledScore.isUpToDate());
+    lCompiledScore.ensureIsUpToDate();
+    assertEquals(125, lCompiledScore.getNumberOfSamples());
+  }
+
+  @Test
+  public void testSimulatorRendering() throws Exception
+  {
+    final SignalGeneratorSimulatorDevice lSignalGenerator =
+                                                          new SignalGeneratorSimulatorDevice(1e6);
+    final SimulatedCompiledScore lCompiledScore =
+                                                lSignalGenerator.getCompiledScore();
+
+    final SignalGeneratorQueue lQueue = lSignalGenerator.requestQueue();
+    lQueue.getStagingScore().addMovement(newLightSheetMovement(0));
+
+    lQueue.clearQueue();
+    for (int i = 0; i < 10; i++)
+      lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+
+    // scores are not rendered by default:
+    assertTrue(lSignalGenerator.playQueue(lQueue)
+                               .get(10, TimeUnit.SECONDS));
+    assertEquals(0, lCompiledScore.getNumberOfSamples());
+
+    lSignalGenerator.getRenderScoresVariable().set(true);
+    assertTrue(lSignalGenerator.playQueue(lQueue)
+                               .get(10, TimeUnit.SECONDS));
+
+    assertEquals(10, lCompiledScore.getNumberOfMovements());
+    assertEquals(10 * 5000, lCompiledScore.getNumberOfSamples());
+    assertEquals(Movement.cDefaultNumberOfStavesPerMovement,
+                 lCompiledScore.getNumberOfStaves());
+  }
+
+  @Test
+  public void testRenderingBenchmark()
+  {
+    // typical light-sheet score: one movement per plane
+    final int lNumberOfPlanes = 200;
+    final Score lScore = new Score("light-sheet score");
+    for (int z = 0; z < lNumberOfPlanes; z++)
+      lScore.addMovement(newLightSheetMovement(((float) z)
+                                               / lNumberOfPlanes));
+
+    final SimulatedCompiledScore lCompiledScore =
+                                                new SimulatedCompiledScore(SignalGeneratorSimulatorDevice.cDefaultSampleRateInHz);
+    final int lNumberOfSamplesPerMovement =
+                                          SimulatedScoreCompiler.getNumberOfSamples(lScore.getMovement(0),
+                                                                                    lCompiledScore.getSampleRateInHz());
+    final float[] lReferenceBuffer =
+                                   new float[lNumberOfSamplesPerMovement];
+
+    final int lRepeats = 20;
+    double lKernelTimeInMs = Double.POSITIVE_INFINITY;
+    double lGetValueTimeInMs = Double.POSITIVE_INFINITY;
+    float lCheckSum = 0;
+    for (int r = 0; r < lRepeats; r++)
+    {
+      long lStartTime = System.nanoTime();
+      SimulatedScoreCompiler.compile(lCompiledScore, lScore);
+      lKernelTimeInMs = Math.min(lKernelTimeInMs,
+                                 (System.nanoTime() - lStartTime)
+                                                  * 1e-6);
+
+      lStartTime = System.nanoTime();
+      for (int m = 0; m < lNumberOfPlanes; m++)
+      {
+        final Movement lMovement = (Movement) lScore.getMovement(m);
+        for (int s = 0; s < lMovement.getNumberOfStaves(); s++)
+        {
+          final StaveInterface lStave = lMovement.getStave(s);
+          final float lInvLength = 1f / lNumberOfSamplesPerMovement;
+          for (int t = 0; t < lNumberOfSamplesPerMovement; t++)
+            lReferenceBuffer[t] = lStave.getValue(t * lInvLength);
+          lCheckSum += lReferenceBuffer[lNumberOfSamplesPerMovement
+                                        / 2];
+        }
+      }
+      lGetValueTimeInMs = Math.min(lGetValueTimeInMs,
+                                   (System.nanoTime() - lStartTime)
+                                                      * 1e-6);
+    }
+
+    final long lNumberOfSamples =
+                                (long) lCompiledScore.getNumberOfSamples()
+                                  * lCompiledScore.getNumberOfStaves();
+    System.out.format("rendered %d samples: kernels= %g ms (%g Msamples/s), getValue= %g ms (%g Msamples/s) [%g]\n",
+                      lNumberOfSamples,
+                      lKernelTimeInMs,
+                      lNumberOfSamples / (1e3 * lKernelTimeInMs),
+                      lGetValueTimeInMs,
+                      lNumberOfSamples / (1e3 * lGetValueTimeInMs),
+                      lCheckSum);
+
+    assertEquals(lNumberOfPlanes, lCompiledScore.getNumberOfMovements());
+    assertEquals(lNumberOfPlanes * lNumberOfSamplesPerMovement,
+                 lCompiledScore.getNumberOfSamples());
+  }
+
+  private static Movement newLightSheetMovement(float pZ)
+  {
+    final Movement lMovement = new Movement("plane");
+    lMovement.setDuration(5, TimeUnit.MILLISECONDS);
+
+    lMovement.setStave(0, new TriggerStave("camera", 0.1f, 0.9f, 1, 0));
+    lMovement.setStave(1, new TriggerStave("laser", 0.15f, 0.85f, 1, 0));
+    lMovement.setStave(2, newRampSteppingStave(0.1f, 0.9f, 0.01f, 1, true));
+    lMovement.setStave(3, new ConstantStave("detection z", pZ));
+    lMovement.setStave(4, new BezierStave("lightsheet z",
+                                          pZ,
+                                          pZ + 0.01f,
+                                          0,
+                                          0,
+                                          0.5f,
+                                          0.1f));
+    lMovement.setStave(5, new ConstantStave("lightsheet x", 0.1f));
+    lMovement.setStave(6, new SinusStave("lightsheet alpha", 0.5f, 0, 0.1f));
+    lMovement.setStave(7, new ConstantStave("laser power", 0.8f));
+
+    return lMovement;
+  }
+
+  private static RampSteppingStave newRampSteppingStave(float pSyncStart,
+                                                        float pSyncStop,
+                                                        float pStepHeight,
+                                                        float pExponent,
+                                                        boolean pStepping)
+  {
+    final RampSteppingStave lRampSteppingStave =
+                                               new RampSteppingStave("galvo");
+    lRampSteppingStave.setSyncStart(pSyncStart);
+    lRampSteppingStave.setSyncStop(pSyncStop);
+    lRampSteppingStave.setStartValue(-1);
+    lRampSteppingStave.setStopValue(1);
+    lRampSteppingStave.setExponent(pExponent);
+    lRampSteppingStave.setStepHeight(pStepHeight);
+    lRampSteppingStave.setStepping(pStepping);
+    return lRampSteppingStave;
+  }
+
+}
@@ -76,7 +76,9 @@ public class Movement extends NameableBase
     {
       final StaveInterface lStaveInterface =
                                            pMovement.mStaveListArray[i];
-      setStave(i, lStaveInterface.duplicate());
+      final StaveInterface lStaveCopy = lStaveInterface.duplicate();
+      lStaveCopy.setEnabled(lStaveInterface.isEnabled());
+      setStave(i, lStaveCopy);
     }
   }
 
@@ -60,6 +60,25 @@ public interface MovementInterface extends NameableInterface
    */
   int getNumberOfStaves();
 
+  /**
+   * Returns true if all staves of this movement have content equality, so that
+   * equal movements produce the same signals (see
+   * StaveInterface.hasContentEquality).
+   * 
+   * @return true if equality of this movement is content equality
+   */
+  default boolean hasContentEquality()
+  {
+    final int lNumberOfStaves = getNumberOfStaves();
+    for (int i = 0; i < lNumberOfStaves; i++)
+    {
+      final StaveInterface lStave = getStave(i);
+      if (lStave != null && !lStave.hasContentEquality())
+        return false;
+    }
+    return true;
+  }
+
   /**
    * Returns the duration of the stave in the provided time unit.
    * 
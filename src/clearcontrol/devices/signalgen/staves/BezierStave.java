@@ -246,4 +246,48 @@ public class BezierStave extends StaveAbstract
     mMargin = pMargin;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + Float.floatToIntBits(mStartValue);
+    result = prime * result + Float.floatToIntBits(mStopValue);
+    result = prime * result + Float.floatToIntBits(mStartSlope);
+    result = prime * result + Float.floatToIntBits(mStopSlope);
+    result = prime * result + Float.floatToIntBits(mSmoothness);
+    result = prime * result + Float.floatToIntBits(mMargin);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    BezierStave other = (BezierStave) obj;
+    if (Float.floatToIntBits(mStartValue) != Float.floatToIntBits(other.mStartValue))
+      return false;
+    if (Float.floatToIntBits(mStopValue) != Float.floatToIntBits(other.mStopValue))
+      return false;
+    if (Float.floatToIntBits(mStartSlope) != Float.floatToIntBits(other.mStartSlope))
+      return false;
+    if (Float.floatToIntBits(mStopSlope) != Float.floatToIntBits(other.mStopSlope))
+      return false;
+    if (Float.floatToIntBits(mSmoothness) != Float.floatToIntBits(other.mSmoothness))
+      return false;
+    if (Float.floatToIntBits(mMargin) != Float.floatToIntBits(other.mMargin))
+      return false;
+    return true;
+  }
+  /**/
+
 }
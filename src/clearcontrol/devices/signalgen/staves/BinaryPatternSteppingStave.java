@@ -170,4 +170,42 @@ public class BinaryPatternSteppingStave extends PatternSteppingStave
     mPatternPhaseIncrement = pPatternPhaseIncrement;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + mPatternPeriod;
+    result = prime * result + mPatternPhaseIndex;
+    result = prime * result + mPatternOnLength;
+    result = prime * result + mPatternPhaseIncrement;
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    BinaryPatternSteppingStave other = (BinaryPatternSteppingStave) obj;
+    if (mPatternPeriod != other.mPatternPeriod)
+      return false;
+    if (mPatternPhaseIndex != other.mPatternPhaseIndex)
+      return false;
+    if (mPatternOnLength != other.mPatternOnLength)
+      return false;
+    if (mPatternPhaseIncrement != other.mPatternPhaseIncrement)
+      return false;
+    return true;
+  }
+  /**/
+
 }
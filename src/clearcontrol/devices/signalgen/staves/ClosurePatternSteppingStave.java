@@ -31,4 +31,31 @@ public class ClosurePatternSteppingStave extends PatternSteppingStave
     return getSteppingFunction().function(pIndex);
   }
 
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result
+             + ((mSteppingFunction == null) ? 0
+                                            : mSteppingFunction.hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    ClosurePatternSteppingStave other =
+                                      (ClosurePatternSteppingStave) obj;
+    // stepping functions are closures, they can only be compared by identity:
+    if (mSteppingFunction != other.mSteppingFunction)
+      return false;
+    return true;
+  }
+  /**/
+
 }
@@ -33,4 +33,33 @@ public class ConstantStave extends StaveAbstract
     mConstantValue = pValue;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + Float.floatToIntBits(mConstantValue);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    ConstantStave other = (ConstantStave) obj;
+    if (Float.floatToIntBits(mConstantValue) != Float.floatToIntBits(other.mConstantValue))
+      return false;
+    return true;
+  }
+  /**/
+
 }
@@ -87,4 +87,42 @@ public class IntervalStave extends StaveAbstract
     mOutsideValue = pOutsideValue;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + Float.floatToIntBits(mStart);
+    result = prime * result + Float.floatToIntBits(mStop);
+    result = prime * result + Float.floatToIntBits(mInsideValue);
+    result = prime * result + Float.floatToIntBits(mOutsideValue);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    IntervalStave other = (IntervalStave) obj;
+    if (Float.floatToIntBits(mStart) != Float.floatToIntBits(other.mStart))
+      return false;
+    if (Float.floatToIntBits(mStop) != Float.floatToIntBits(other.mStop))
+      return false;
+    if (Float.floatToIntBits(mInsideValue) != Float.floatToIntBits(other.mInsideValue))
+      return false;
+    if (Float.floatToIntBits(mOutsideValue) != Float.floatToIntBits(other.mOutsideValue))
+      return false;
+    return true;
+  }
+  /**/
+
 }
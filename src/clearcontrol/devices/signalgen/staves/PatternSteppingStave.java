@@ -83,4 +83,33 @@ public abstract class PatternSteppingStave extends StaveAbstract
     mNumberOfSteps = pNumberOfSteps;
   }
 
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + Float.floatToIntBits(mSyncStart);
+    result = prime * result + Float.floatToIntBits(mSyncStop);
+    result = prime * result + mNumberOfSteps;
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    PatternSteppingStave other = (PatternSteppingStave) obj;
+    if (Float.floatToIntBits(mSyncStart) != Float.floatToIntBits(other.mSyncStart))
+      return false;
+    if (Float.floatToIntBits(mSyncStop) != Float.floatToIntBits(other.mSyncStop))
+      return false;
+    if (mNumberOfSteps != other.mNumberOfSteps)
+      return false;
+    return true;
+  }
+  /**/
+
 }
@@ -64,6 +64,7 @@ public class RampContinuousStave extends StaveAbstract
                                                                      getStopValue(),
                                                                      getOutsideValue(),
                                                                      getExponent());
+    lRampContinuousStave.setNoJump(isNoJump());
 
     return lRampContinuousStave;
 
@@ -180,4 +181,51 @@ public class RampContinuousStave extends StaveAbstract
     mExponent = pExponent;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + Float.floatToIntBits(mSyncStart);
+    result = prime * result + Float.floatToIntBits(mSyncStop);
+    result = prime * result + Float.floatToIntBits(mStartValue);
+    result = prime * result + Float.floatToIntBits(mStopValue);
+    result = prime * result + Float.floatToIntBits(mOutsideValue);
+    result = prime * result + (mNoJump ? 1231 : 1237);
+    result = prime * result + Float.floatToIntBits(mExponent);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    RampContinuousStave other = (RampContinuousStave) obj;
+    if (Float.floatToIntBits(mSyncStart) != Float.floatToIntBits(other.mSyncStart))
+      return false;
+    if (Float.floatToIntBits(mSyncStop) != Float.floatToIntBits(other.mSyncStop))
+      return false;
+    if (Float.floatToIntBits(mStartValue) != Float.floatToIntBits(other.mStartValue))
+      return false;
+    if (Float.floatToIntBits(mStopValue) != Float.floatToIntBits(other.mStopValue))
+      return false;
+    if (Float.floatToIntBits(mOutsideValue) != Float.floatToIntBits(other.mOutsideValue))
+      return false;
+    if (mNoJump != other.mNoJump)
+      return false;
+    if (Float.floatToIntBits(mExponent) != Float.floatToIntBits(other.mExponent))
+      return false;
+    return true;
+  }
+  /**/
+
 }
@@ -67,6 +67,9 @@ public class RampSteppingStave extends RampContinuousStave
 
     lRampSteppingStave.setStepping(isStepping());
     lRampSteppingStave.setExponent(getExponent());
+    lRampSteppingStave.setNoJump(isNoJump());
+    // the number of steps is only updated when the step height is set:
+    lRampSteppingStave.mNumberOfSteps = mNumberOfSteps;
 
     return lRampSteppingStave;
   }
@@ -128,4 +131,39 @@ public class RampSteppingStave extends RampContinuousStave
     mStepping = pStepping;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + (mStepping ? 1231 : 1237);
+    result = prime * result + Float.floatToIntBits(mStepHeight);
+    result = prime * result + mNumberOfSteps;
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    RampSteppingStave other = (RampSteppingStave) obj;
+    if (mStepping != other.mStepping)
+      return false;
+    if (Float.floatToIntBits(mStepHeight) != Float.floatToIntBits(other.mStepHeight))
+      return false;
+    if (mNumberOfSteps != other.mNumberOfSteps)
+      return false;
+    return true;
+  }
+  /**/
+
 }
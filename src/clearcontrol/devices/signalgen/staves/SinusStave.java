@@ -76,4 +76,39 @@ public class SinusStave extends StaveAbstract
     mSinusAmplitude = pSinusAmplitude;
   }
 
+  @Override
+  public boolean hasContentEquality()
+  {
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    final int prime = 31;
+    int result = super.hashCode();
+    result = prime * result + Float.floatToIntBits(mSinusPeriod);
+    result = prime * result + Float.floatToIntBits(mSinusPhase);
+    result = prime * result + Float.floatToIntBits(mSinusAmplitude);
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!super.equals(obj))
+      return false;
+    SinusStave other = (SinusStave) obj;
+    if (Float.floatToIntBits(mSinusPeriod) != Float.floatToIntBits(other.mSinusPeriod))
+      return false;
+    if (Float.floatToIntBits(mSinusPhase) != Float.floatToIntBits(other.mSinusPhase))
+      return false;
+    if (Float.floatToIntBits(mSinusAmplitude) != Float.floatToIntBits(other.mSinusAmplitude))
+      return false;
+    return true;
+  }
+  /**/
+
 }
@@ -45,4 +45,17 @@ public interface StaveInterface extends NameableInterface, Cloneable
    */
   float getValue(float pNormalizedTime);
 
+  /**
+   * Returns true if equals and hashCode compare the whole content of this
+   * stave, so that two equal staves have the same value at all times. Compiled
+   * movements are only shared between movements whose staves all have content
+   * equality.
+   * 
+   * @return true if equality of this stave is content equality
+   */
+  default boolean hasContentEquality()
+  {
+    return false;
+  }
+
 }
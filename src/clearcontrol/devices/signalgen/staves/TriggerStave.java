@@ -18,4 +18,14 @@ public class TriggerStave extends IntervalStave
     super(pName, pSyncStart, pSyncStop, pInsideValue, pOutsideValue);
   }
 
+  @Override
+  public StaveInterface duplicate()
+  {
+    return new TriggerStave(getName(),
+                            getStart(),
+                            getStop(),
+                            getInsideValue(),
+                            getOutsideValue());
+  }
+
 }
@@ -33,6 +33,8 @@ public class SMC100StageDevice extends SerialDevice implements
   public SMC100StageDevice(String pDeviceName, String pPortName)
   {
     super(pDeviceName, pPortName, SMC100Protocol.cBaudRate);
+    // the cached current position is refreshed in the background:
+    setCacheRefreshPeriod(100, TimeUnit.MILLISECONDS);
 
     final SerialTextDeviceAdapter<Boolean> lEnableAdapter =
                                                           new SMC100EnableAdapter();
@@ -75,4 +75,11 @@ public class SMC100MinPositionAdapter extends
     return true;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the limits only change when they are set:
+    return 60 * 1000;
+  }
+
 }
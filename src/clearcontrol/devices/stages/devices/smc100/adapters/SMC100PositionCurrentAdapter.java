@@ -68,4 +68,11 @@ public class SMC100PositionCurrentAdapter extends
     return true;
   }
 
+  @Override
+  public long getMaxStalenessInMilliseconds()
+  {
+    // the position changes while the stage moves:
+    return 200;
+  }
+
 }
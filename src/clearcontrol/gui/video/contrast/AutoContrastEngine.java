@@ -0,0 +1,344 @@
+package clearcontrol.gui.video.contrast;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.toIntExact;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlanes;
+import clearcontrol.stack.metadata.StackMetaData;
+import coremem.ContiguousMemoryInterface;
+
+/**
+ * Auto-contrast engine for 16 bit stacks. Histograms are built when stacks
+ * arrive, in parallel tiles, and display ranges are obtained by percentile
+ * clipping followed by temporal smoothing (see AutoContrastRange).
+ *
+ * For each stack, a single pass computes both the exact histogram of the
+ * displayed plane and, once a stack range has been requested, a sampled
+ * histogram of the whole stack. The histograms of the last stack are kept, so
+ * that 2D and 3D displays that share an engine only go once over the data.
+ *
+ * @author royer
+ */
+public class AutoContrastEngine
+{
+  private static final int cTileLength = 1 << 18;
+  private static final int cChunkLength = 1 << 13;
+
+  private final Variable<Double> mLowerPercentile =
+                                                  new Variable<Double>("AutoContrastLowerPercentile",
+                                                                       0.001);
+  private final Variable<Double> mUpperPercentile =
+                                                  new Variable<Double>("AutoContrastUpperPercentile",
+                                                                       0.999);
+  private final Variable<Double> mSmoothing =
+                                            new Variable<Double>("AutoContrastSmoothing",
+                                                                 0.5);
+  private final Variable<Long> mMaxNumberOfStackSamples =
+                                                        new Variable<Long>("AutoContrastMaxNumberOfStackSamples",
+                                                                           4L * 1024
+                                                                                  * 1024);
+
+  private final Histogram16 mStackHistogram = new Histogram16();
+  private final Histogram16 mPlaneHistogram = new Histogram16();
+  private final Histogram16 mBufferHistogram = new Histogram16();
+
+  private volatile boolean mStackHistogramRequested;
+  private StackInterface mLastStack;
+  private Long mLastStackIndex;
+  private Long mLastStackTimeStamp;
+  private boolean mHasStackHistogram;
+  private int mPlaneHistogramIndex = -1;
+
+  /**
+   * Instantiates an auto-contrast engine
+   */
+  public AutoContrastEngine()
+  {
+    super();
+  }
+
+  /**
+   * Updates a display range with the exact histogram of a plane of a stack
+   *
+   * @param pStack
+   *          16 bit stack
+   * @param pPlaneIndex
+   *          plane index
+   * @param pRange
+   *          range to update
+   */
+  public synchronized void updatePlaneRange(StackInterface pStack,
+                                            int pPlaneIndex,
+                                            AutoContrastRange pRange)
+  {
+    ensureHistograms(pStack, pPlaneIndex);
+    updateRange(mPlaneHistogram, pRange);
+  }
+
+  /**
+   * Updates a display range with the sampled histogram of a whole stack
+   *
+   * @param pStack
+   *          16 bit stack
+   * @param pRange
+   *          range to update
+   */
+  public synchronized void updateStackRange(StackInterface pStack,
+                                            AutoContrastRange pRange)
+  {
+    mStackHistogramRequested = true;
+    ensureHistograms(pStack, -1);
+    updateRange(mStackHistogram, pRange);
+  }
+
+  /**
+   * Updates a display range with the exact histogram of a 16 bit buffer, for
+   * example a projection.
+   *
+   * @param pBuffer
+   *          16 bit buffer
+   * @param pNumberOfValues
+   *          number of values in buffer
+   * @param pRange
+   *          range to update
+   */
+  public synchronized void updateBufferRange(ContiguousMemoryInterface pBuffer,
+                                             long pNumberOfValues,
+                                             AutoContrastRange pRange)
+  {
+    mBufferHistogram.clear();
+    accumulate((z) -> pBuffer,
+               1,
+               pNumberOfValues,
+               0,
+               0,
+               null,
+               mBufferHistogram);
+    updateRange(mBufferHistogram, pRange);
+  }
+
+  private void updateRange(Histogram16 pHistogram,
+                           AutoContrastRange pRange)
+  {
+    pRange.update(pHistogram,
+                  mLowerPercentile.get(),
+                  mUpperPercentile.get(),
+                  mSmoothing.get());
+  }
+
+  private void ensureHistograms(StackInterface pStack, int pPlaneIndex)
+  {
+    final StackMetaData lMetaData = pStack.getMetaData();
+    final Long lStackIndex = lMetaData == null ? null
+                                               : lMetaData.getIndex();
+    final Long lStackTimeStamp =
+                               lMetaData == null ? null
+                                                 : lMetaData.getTimeStampInNanoseconds();
+
+    final boolean lSameStack = pStack == mLastStack
+                               && equal(lStackIndex, mLastStackIndex)
+                               && equal(lStackTimeStamp,
+                                        mLastStackTimeStamp);
+    if (!lSameStack)
+    {
+      mLastStack = pStack;
+      mLastStackIndex = lStackIndex;
+      mLastStackTimeStamp = lStackTimeStamp;
+      mHasStackHistogram = false;
+      mPlaneHistogramIndex = -1;
+    }
+
+    final boolean lNeedsStackHistogram = mStackHistogramRequested
+                                         && !mHasStackHistogram;
+    final boolean lNeedsPlaneHistogram = pPlaneIndex >= 0
+                                         && pPlaneIndex != mPlaneHistogramIndex;
+    if (!lNeedsStackHistogram && !lNeedsPlaneHistogram)
+      return;
+
+    final int lDepth = toIntExact(pStack.getDepth());
+    final long lPlaneLength = pStack.getWidth() * pStack.getHeight();
+
+    long lSamplingStep = 0;
+    if (lNeedsStackHistogram)
+    {
+      mStackHistogram.clear();
+      lSamplingStep = max(1,
+                          (lPlaneLength * lDepth)
+                             / max(1, mMaxNumberOfStackSamples.get()));
+    }
+    if (lNeedsPlaneHistogram)
+      mPlaneHistogram.clear();
+
+    accumulate((z) -> pStack.getContiguousMemory(z),
+               lDepth,
+               lPlaneLength,
+               lSamplingStep,
+               lNeedsPlaneHistogram ? pPlaneIndex : -1,
+               mStackHistogram,
+               mPlaneHistogram);
+
+    if (lNeedsStackHistogram)
+      mHasStackHistogram = true;
+    if (lNeedsPlaneHistogram)
+      mPlaneHistogramIndex = pPlaneIndex;
+  }
+
+  /**
+   * Accumulates histograms in a single parallel pass over planes. Values of
+   * the plane of interest are all counted in the plane histogram, values at
+   * multiples of the sampling step (global index) are counted in the stack
+   * histogram.
+   */
+  private void accumulate(final IntFunction<ContiguousMemoryInterface> pPlanes,
+                          final int pDepth,
+                          final long pPlaneLength,
+                          final long pSamplingStep,
+                          final int pPlaneOfInterest,
+                          final Histogram16 pStackHistogram,
+                          final Histogram16 pPlaneHistogram)
+  {
+    final int lTilesPerPlane = toIntExact((pPlaneLength + cTileLength
+                                           - 1)
+                                          / cTileLength);
+    final int lNumberOfTiles;
+    final int lFirstPlane;
+    if (pSamplingStep > 0)
+    {
+      lFirstPlane = 0;
+      lNumberOfTiles = pDepth * lTilesPerPlane;
+    }
+    else
+    {
+      // only the plane of interest is visited:
+      lFirstPlane = max(0, pPlaneOfInterest);
+      lNumberOfTiles = lTilesPerPlane;
+    }
+    final int lPlaneOfInterest = pSamplingStep > 0 ? pPlaneOfInterest
+                                                   : lFirstPlane;
+
+    final AtomicInteger lNextTileIndex = new AtomicInteger();
+    final Runnable lTileProcessing = () -> {
+      final int[] lStackCounts = pSamplingStep > 0
+                                                   ? new int[Histogram16.cNumberOfBins]
+                                                   : null;
+      final int[] lPlaneCounts = new int[Histogram16.cNumberOfBins];
+      final short[] lChunk = new short[cChunkLength];
+      boolean lHasPlaneCounts = false;
+
+      int lTileIndex;
+      while ((lTileIndex =
+                         lNextTileIndex.getAndIncrement()) < lNumberOfTiles)
+      {
+        final int z = lFirstPlane + lTileIndex / lTilesPerPlane;
+        final long lStart = ((long) (lTileIndex % lTilesPerPlane))
+                            * cTileLength;
+        final long lEnd = min(pPlaneLength, lStart + cTileLength);
+        final ShortBuffer lPlane = StackPlanes.asShortBuffer(pPlanes.apply(z));
+        final long lPlaneOffset = z * pPlaneLength;
+
+        if (z == lPlaneOfInterest)
+        {
+          lHasPlaneCounts = true;
+          for (long c = lStart; c < lEnd; c += cChunkLength)
+          {
+            final int lLength = (int) min(cChunkLength, lEnd - c);
+            lPlane.position((int) c);
+            lPlane.get(lChunk, 0, lLength);
+            for (int i = 0; i < lLength; i++)
+            {
+              final int lValue = lChunk[i] & 0xFFFF;
+              lPlaneCounts[lValue]++;
+              if (lStackCounts != null
+                  && (lPlaneOffset + c + i) % pSamplingStep == 0)
+                lStackCounts[lValue]++;
+            }
+          }
+        }
+        else if (lStackCounts != null)
+        {
+          final long lFirstSample = (lPlaneOffset + lStart
+                                     + pSamplingStep
+                                     - 1)
+                                    / pSamplingStep
+                                    * pSamplingStep
+                                    - lPlaneOffset;
+          for (long i = lFirstSample; i < lEnd; i += pSamplingStep)
+            lStackCounts[lPlane.get((int) i) & 0xFFFF]++;
+        }
+      }
+
+      if (lStackCounts != null)
+        synchronized (pStackHistogram)
+        {
+          pStackHistogram.add(lStackCounts);
+        }
+      if (lHasPlaneCounts)
+        synchronized (pPlaneHistogram)
+        {
+          pPlaneHistogram.add(lPlaneCounts);
+        }
+    };
+
+    ClearControlExecutors.runOnCallerAndHelpers(AutoContrastEngine.class,
+                                                lNumberOfTiles - 1,
+                                                lTileProcessing);
+  }
+
+  private static boolean equal(Long pA, Long pB)
+  {
+    return pA == null ? pB == null : pA.equals(pB);
+  }
+
+  /**
+   * Returns the variable holding the percentile of the values displayed as
+   * black
+   *
+   * @return lower percentile variable
+   */
+  public Variable<Double> getLowerPercentileVariable()
+  {
+    return mLowerPercentile;
+  }
+
+  /**
+   * Returns the variable holding the percentile of the values displayed as
+   * white
+   *
+   * @return upper percentile variable
+   */
+  public Variable<Double> getUpperPercentileVariable()
+  {
+    return mUpperPercentile;
+  }
+
+  /**
+   * Returns the variable holding the temporal smoothing factor within [0,1[, 0
+   * for no smoothing.
+   *
+   * @return smoothing variable
+   */
+  public Variable<Double> getSmoothingVariable()
+  {
+    return mSmoothing;
+  }
+
+  /**
+   * Returns the variable holding the max number of values sampled for stack
+   * histograms
+   *
+   * @return max number of stack samples variable
+   */
+  public Variable<Long> getMaxNumberOfStackSamplesVariable()
+  {
+    return mMaxNumberOfStackSamples;
+  }
+
+}
@@ -0,0 +1,92 @@
+package clearcontrol.gui.video.contrast;
+
+/**
+ * Display range obtained by percentile clipping of successive histograms, and
+ * smoothed over time. Values are normalized within [0,1].
+ *
+ * @author royer
+ */
+public class AutoContrastRange
+{
+  private volatile double mMin = Double.NaN;
+  private volatile double mMax = Double.NaN;
+
+  /**
+   * Updates this range with a new histogram
+   *
+   * @param pHistogram
+   *          histogram
+   * @param pLowerPercentile
+   *          percentile of the values displayed as black
+   * @param pUpperPercentile
+   *          percentile of the values displayed as white
+   * @param pSmoothing
+   *          temporal smoothing within [0,1[, 0 for none
+   */
+  public synchronized void update(Histogram16 pHistogram,
+                                  double pLowerPercentile,
+                                  double pUpperPercentile,
+                                  double pSmoothing)
+  {
+    if (pHistogram.getTotalCount() == 0)
+      return;
+
+    final double lMin = pHistogram.getPercentile(pLowerPercentile)
+                        / 65535d;
+    double lMax = pHistogram.getPercentile(pUpperPercentile) / 65535d;
+    if (lMax <= lMin)
+      lMax = Math.min(1, lMin + 1 / 65535d);
+
+    if (Double.isNaN(mMin) || Double.isNaN(mMax))
+    {
+      mMin = lMin;
+      mMax = lMax;
+    }
+    else
+    {
+      final double lSmoothing = Math.max(0, Math.min(0.999, pSmoothing));
+      mMin = lSmoothing * mMin + (1 - lSmoothing) * lMin;
+      mMax = lSmoothing * mMax + (1 - lSmoothing) * lMax;
+    }
+  }
+
+  /**
+   * Resets this range, the next update is not smoothed with the previous ones
+   */
+  public synchronized void reset()
+  {
+    mMin = Double.NaN;
+    mMax = Double.NaN;
+  }
+
+  /**
+   * Returns true if this range has been updated at least once
+   *
+   * @return true if valid
+   */
+  public boolean isValid()
+  {
+    return !Double.isNaN(mMin);
+  }
+
+  /**
+   * Returns the normalized min of the range
+   *
+   * @return min within [0,1]
+   */
+  public double getMin()
+  {
+    return mMin;
+  }
+
+  /**
+   * Returns the normalized max of the range
+   *
+   * @return max within [0,1]
+   */
+  public double getMax()
+  {
+    return mMax;
+  }
+
+}
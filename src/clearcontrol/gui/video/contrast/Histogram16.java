@@ -0,0 +1,126 @@
+package clearcontrol.gui.video.contrast;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of unsigned 16 bit values, one bin per value.
+ *
+ * @author royer
+ */
+public class Histogram16
+{
+  /**
+   * Number of bins
+   */
+  public static final int cNumberOfBins = 1 << 16;
+
+  private final long[] mCounts = new long[cNumberOfBins];
+  private long mTotalCount;
+
+  /**
+   * Clears this histogram
+   */
+  public void clear()
+  {
+    Arrays.fill(mCounts, 0);
+    mTotalCount = 0;
+  }
+
+  /**
+   * Adds the counts of a partial histogram
+   *
+   * @param pCounts
+   *          counts, one per bin
+   */
+  public void add(int[] pCounts)
+  {
+    long lTotalCount = 0;
+    for (int i = 0; i < cNumberOfBins; i++)
+    {
+      mCounts[i] += pCounts[i];
+      lTotalCount += pCounts[i];
+    }
+    mTotalCount += lTotalCount;
+  }
+
+  /**
+   * Copies another histogram into this one
+   *
+   * @param pHistogram
+   *          histogram to copy
+   */
+  public void set(Histogram16 pHistogram)
+  {
+    System.arraycopy(pHistogram.mCounts, 0, mCounts, 0, cNumberOfBins);
+    mTotalCount = pHistogram.mTotalCount;
+  }
+
+  /**
+   * Returns the count of a given value
+   *
+   * @param pValue
+   *          value within [0,65535]
+   * @return count
+   */
+  public long getCount(int pValue)
+  {
+    return mCounts[pValue];
+  }
+
+  /**
+   * Returns the total count
+   *
+   * @return total count
+   */
+  public long getTotalCount()
+  {
+    return mTotalCount;
+  }
+
+  /**
+   * Returns the smallest value such that at least the given fraction of all
+   * values are lower or equal, 0 if the histogram is empty.
+   *
+   * @param pPercentile
+   *          percentile within [0,1]
+   * @return value within [0,65535]
+   */
+  public int getPercentile(double pPercentile)
+  {
+    if (mTotalCount == 0)
+      return 0;
+
+    final double lThreshold = Math.max(1,
+                                       Math.ceil(pPercentile
+                                                 * mTotalCount));
+    long lCumulativeCount = 0;
+    for (int i = 0; i < cNumberOfBins; i++)
+    {
+      lCumulativeCount += mCounts[i];
+      if (lCumulativeCount >= lThreshold)
+        return i;
+    }
+    return cNumberOfBins - 1;
+  }
+
+  /**
+   * Returns the smallest value present, 0 if the histogram is empty.
+   *
+   * @return min value
+   */
+  public int getMin()
+  {
+    return getPercentile(0);
+  }
+
+  /**
+   * Returns the largest value present, 0 if the histogram is empty.
+   *
+   * @return max value
+   */
+  public int getMax()
+  {
+    return getPercentile(1);
+  }
+
+}
@@ -0,0 +1,227 @@
+package clearcontrol.gui.video.contrast.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import clearcontrol.gui.video.contrast.AutoContrastEngine;
+import clearcontrol.gui.video.contrast.AutoContrastRange;
+import clearcontrol.gui.video.contrast.Histogram16;
+import clearcontrol.stack.OffHeapPlanarStack;
+import coremem.ContiguousMemoryInterface;
+
+import org.junit.Test;
+
+/**
+ * Auto-contrast tests
+ *
+ * @author royer
+ */
+public class AutoContrastTests
+{
+  private static final int cWidth = 256;
+  private static final int cHeight = 256;
+  private static final int cDepth = 8;
+
+  /**
+   * Tests histogram percentiles
+   */
+  @Test
+  public void testHistogramPercentiles()
+  {
+    final Histogram16 lHistogram = new Histogram16();
+    assertEquals(0, lHistogram.getPercentile(0.5));
+
+    final int[] lCounts = new int[Histogram16.cNumberOfBins];
+    for (int i = 0; i < 1000; i++)
+      lCounts[i]++;
+    lHistogram.add(lCounts);
+    assertEquals(1000, lHistogram.getTotalCount());
+    assertEquals(0, lHistogram.getMin());
+    assertEquals(999, lHistogram.getMax());
+    assertEquals(499, lHistogram.getPercentile(0.5));
+    assertEquals(9, lHistogram.getPercentile(0.01));
+    assertEquals(989, lHistogram.getPercentile(0.99));
+
+    // counts of partial histograms add up:
+    lHistogram.add(lCounts);
+    assertEquals(2000, lHistogram.getTotalCount());
+    assertEquals(2, lHistogram.getCount(10));
+    assertEquals(499, lHistogram.getPercentile(0.5));
+
+    final Histogram16 lCopy = new Histogram16();
+    lCopy.set(lHistogram);
+    assertEquals(2000, lCopy.getTotalCount());
+    assertEquals(989, lCopy.getPercentile(0.99));
+
+    lHistogram.clear();
+    assertEquals(0, lHistogram.getTotalCount());
+    assertEquals(0, lHistogram.getMax());
+  }
+
+  /**
+   * Tests percentile clipping and temporal smoothing of display ranges
+   */
+  @Test
+  public void testRangeSmoothing()
+  {
+    final AutoContrastRange lRange = new AutoContrastRange();
+    assertFalse(lRange.isValid());
+
+    // empty histograms are ignored:
+    lRange.update(new Histogram16(), 0, 1, 0.5);
+    assertFalse(lRange.isValid());
+
+    // the first update is not smoothed:
+    lRange.update(uniform(1000, 2000), 0, 1, 0.5);
+    assertTrue(lRange.isValid());
+    assertEquals(1000 / 65535d, lRange.getMin(), 1e-12);
+    assertEquals(1999 / 65535d, lRange.getMax(), 1e-12);
+
+    // later updates are smoothed:
+    lRange.update(uniform(3000, 4000), 0, 1, 0.5);
+    assertEquals(2000 / 65535d, lRange.getMin(), 1e-12);
+    assertEquals(2999 / 65535d, lRange.getMax(), 1e-12);
+
+    // ... unless smoothing is off:
+    lRange.update(uniform(3000, 4000), 0, 1, 0);
+    assertEquals(3000 / 65535d, lRange.getMin(), 1e-12);
+    assertEquals(3999 / 65535d, lRange.getMax(), 1e-12);
+
+    // a single value gives a range that is not empty:
+    lRange.update(uniform(5000, 5001), 0, 1, 0);
+    assertEquals(5000 / 65535d, lRange.getMin(), 1e-12);
+    assertEquals(5001 / 65535d, lRange.getMax(), 1e-12);
+
+    // after a reset, the next update is not smoothed:
+    lRange.reset();
+    assertFalse(lRange.isValid());
+    lRange.update(uniform(100, 200), 0, 1, 0.9);
+    assertEquals(100 / 65535d, lRange.getMin(), 1e-12);
+    assertEquals(199 / 65535d, lRange.getMax(), 1e-12);
+  }
+
+  /**
+   * Tests the exact plane histograms and the sampled stack histograms of the
+   * engine against histograms computed naively
+   */
+  @Test
+  public void testEngineHistograms()
+  {
+    final OffHeapPlanarStack lStack = createStack();
+    final OffHeapPlanarStack lOtherStack = createStack();
+    try
+    {
+      final AutoContrastEngine lAutoContrastEngine =
+                                                   new AutoContrastEngine();
+      lAutoContrastEngine.getLowerPercentileVariable().set(0.1);
+      lAutoContrastEngine.getUpperPercentileVariable().set(0.9);
+      lAutoContrastEngine.getSmoothingVariable().set(0.0);
+      final long lSamplingStep = 7;
+      lAutoContrastEngine.getMaxNumberOfStackSamplesVariable()
+                         .set((long) cWidth * cHeight
+                              * cDepth
+                              / lSamplingStep);
+
+      // exact histogram of each plane:
+      for (int z = 0; z < cDepth; z++)
+      {
+        final AutoContrastRange lRange = new AutoContrastRange();
+        lAutoContrastEngine.updatePlaneRange(lStack, z, lRange);
+        assertRangeEquals(naiveHistogram(lStack, z, z + 1, 1), lRange);
+      }
+
+      // sampled histogram of the stack:
+      AutoContrastRange lRange = new AutoContrastRange();
+      lAutoContrastEngine.updateStackRange(lStack, lRange);
+      assertRangeEquals(naiveHistogram(lStack, 0, cDepth, lSamplingStep),
+                        lRange);
+
+      // once a stack range has been requested, both histograms of a new stack
+      // are computed in the same pass:
+      lRange = new AutoContrastRange();
+      lAutoContrastEngine.updatePlaneRange(lOtherStack, 3, lRange);
+      assertRangeEquals(naiveHistogram(lOtherStack, 3, 4, 1), lRange);
+      lRange = new AutoContrastRange();
+      lAutoContrastEngine.updateStackRange(lOtherStack, lRange);
+      assertRangeEquals(naiveHistogram(lOtherStack,
+                                       0,
+                                       cDepth,
+                                       lSamplingStep),
+                        lRange);
+
+      // exact histogram of a buffer:
+      lRange = new AutoContrastRange();
+      lAutoContrastEngine.updateBufferRange(lStack.getContiguousMemory(5),
+                                            (long) cWidth * cHeight,
+                                            lRange);
+      assertRangeEquals(naiveHistogram(lStack, 5, 6, 1), lRange);
+    }
+    finally
+    {
+      lStack.free();
+      lOtherStack.free();
+    }
+  }
+
+  private static Histogram16 uniform(int pFrom, int pTo)
+  {
+    final int[] lCounts = new int[Histogram16.cNumberOfBins];
+    for (int i = pFrom; i < pTo; i++)
+      lCounts[i]++;
+    final Histogram16 lHistogram = new Histogram16();
+    lHistogram.add(lCounts);
+    return lHistogram;
+  }
+
+  private static OffHeapPlanarStack createStack()
+  {
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(cWidth,
+                                                                   cHeight,
+                                                                   cDepth);
+    for (int z = 0; z < cDepth; z++)
+    {
+      final ContiguousMemoryInterface lPlane = lStack.getContiguousMemory(z);
+      for (int y = 0; y < cHeight; y++)
+        for (int x = 0; x < cWidth; x++)
+          lPlane.setShortAligned(x + (long) y * cWidth,
+                                 (short) (1000 * z
+                                          + (7 * x + 13 * y) % 1000));
+    }
+    return lStack;
+  }
+
+  /**
+   * Histogram of the values of planes [pFromPlane, pToPlane[ whose index in
+   * the stack is a multiple of the sampling step
+   */
+  private static Histogram16 naiveHistogram(OffHeapPlanarStack pStack,
+                                            int pFromPlane,
+                                            int pToPlane,
+                                            long pSamplingStep)
+  {
+    final long lPlaneLength = (long) cWidth * cHeight;
+    final int[] lCounts = new int[Histogram16.cNumberOfBins];
+    for (int z = pFromPlane; z < pToPlane; z++)
+    {
+      final ContiguousMemoryInterface lPlane = pStack.getContiguousMemory(z);
+      for (long i = 0; i < lPlaneLength; i++)
+        if ((z * lPlaneLength + i) % pSamplingStep == 0)
+          lCounts[lPlane.getShortAligned(i) & 0xFFFF]++;
+    }
+    final Histogram16 lHistogram = new Histogram16();
+    lHistogram.add(lCounts);
+    return lHistogram;
+  }
+
+  private static void assertRangeEquals(Histogram16 pExpectedHistogram,
+                                        AutoContrastRange pRange)
+  {
+    final AutoContrastRange lExpectedRange = new AutoContrastRange();
+    lExpectedRange.update(pExpectedHistogram, 0.1, 0.9, 0);
+    assertEquals(lExpectedRange.getMin(), pRange.getMin(), 0);
+    assertEquals(lExpectedRange.getMax(), pRange.getMax(), 0);
+  }
+
+}
@@ -5,10 +5,13 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
 import clearcontrol.core.device.VirtualDevice;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.gui.video.StackDisplayInterface;
+import clearcontrol.gui.video.contrast.AutoContrastEngine;
+import clearcontrol.gui.video.contrast.AutoContrastRange;
 import clearcontrol.gui.video.video2d.videowindow.VideoWindow;
 import clearcontrol.stack.EmptyStack;
 import clearcontrol.stack.StackInterface;
@@ -24,16 +27,29 @@ import com.jogamp.newt.event.MouseEvent;
 import coremem.ContiguousMemoryInterface;
 import coremem.enums.NativeTypeEnum;
 import coremem.exceptions.FreedException;
+import coremem.offheap.OffHeapMemory;
 
 /**
  * Stack 2D display
+ * 
+ * By default only the currently selected plane of each received stack is
+ * copied into one of a small ring of reusable plane buffers, alternatively a
+ * max or mean projection can be displayed. The whole stack is only copied in
+ * the FullStack display mode, or when requested (key 'I' for ImageJ) - in which
+ * case the copy is handed over to ImageJ, and freed once shown.
+ * 
+ * The display range is computed when each stack arrives, from the histogram of
+ * the displayed plane (see AutoContrastEngine).
  *
  * @author royer
  */
 public class Stack2DDisplay extends VirtualDevice implements
                             StackDisplayInterface,
+                            AsynchronousExecutorFeature,
                             AsynchronousSchedulerFeature
 {
+  private static final int cNumberOfPlaneBuffers = 3;
+
   private final VideoWindow mVideoWindow;
 
   private final Variable<StackInterface> mInputStackVariable;
@@ -41,6 +57,19 @@ public class Stack2DDisplay extends VirtualDevice implements
 
   private volatile StackInterface mReceivedStackCopy;
 
+  private final ContiguousMemoryInterface[] mPlaneBuffers =
+                                                          new ContiguousMemoryInterface[cNumberOfPlaneBuffers];
+  private int mNextPlaneBufferIndex;
+  private volatile boolean mFullStackRequested;
+
+  private volatile AutoContrastEngine mAutoContrastEngine =
+                                                          new AutoContrastEngine();
+  private final AutoContrastRange mAutoContrastRange =
+                                                     new AutoContrastRange();
+
+  private final Variable<Stack2DDisplayMode> mDisplayMode;
+  private final Variable<Integer> mProjectionDownsampling;
+
   private final Variable<Boolean> mDisplayOn;
   private final Variable<Boolean> mManualMinMaxIntensity;
   private final Variable<Double> mMinimumIntensity;
@@ -134,7 +163,9 @@ public class Stack2DDisplay extends VirtualDevice implements
           final double nx = ((double) pMouseEvent.getX())
                             / mVideoWindow.getWindowWidth();
           mStackSliceNormalizedIndex.set(nx);
-          displayStack(mReceivedStackCopy, true);
+          // without a full copy, the plane is shown with the next stack:
+          if (mDisplayMode.get() == Stack2DDisplayMode.FullStack)
+            displayStack(mReceivedStackCopy, true);
         }
 
         super.mouseDragged(pMouseEvent);
@@ -151,17 +182,13 @@ public class Stack2DDisplay extends VirtualDevice implements
         switch (pE.getKeyCode())
         {
         case KeyEvent.VK_I:
-          try
-          {
-            mDisplayLock.lock();
-            ImageJStackDisplay.show(mReceivedStackCopy);
-            mDisplayLock.unlock();
-          }
-          catch (Throwable e)
+          if (mDisplayMode.get() != Stack2DDisplayMode.FullStack)
           {
-            e.printStackTrace();
+            // the next received stack is copied and shown:
+            mFullStackRequested = true;
+            break;
           }
-
+          showInImageJ(false);
           break;
         }
 
@@ -189,11 +216,7 @@ public class Stack2DDisplay extends VirtualDevice implements
                                     try
                                     {
                                       if (mVideoWindow.isVisible())
-                                      {
-                                        makeCopyOfReceivedStack(pStack);
-                                        displayStack(mReceivedStackCopy,
-                                                     false);
-                                      }
+                                        updateDisplay(pStack);
                                       forwardStack(pStack);
                                     }
                                     catch (FreedException e)
@@ -281,21 +304,200 @@ public class Stack2DDisplay extends VirtualDevice implements
                                new Variable<Double>("StackSliceNormalizedIndex",
                                                     Double.NaN);
 
-    Runnable lAutoRescaleRunnable = () -> {
-      boolean lTryLock = false;
+    mDisplayMode =
+                 new Variable<Stack2DDisplayMode>("DisplayMode",
+                                                  Stack2DDisplayMode.Plane);
+
+    mProjectionDownsampling =
+                            new Variable<Integer>("ProjectionDownsampling",
+                                                  1);
+
+
+  }
+
+  private void updateDisplay(final StackInterface pStack)
+  {
+    final boolean lFullStackRequested = mFullStackRequested;
+    Stack2DDisplayMode lDisplayMode = mDisplayMode.get();
+    if (lDisplayMode == null)
+      lDisplayMode = Stack2DDisplayMode.Plane;
+
+    // projections are only computed for 16 bit stacks:
+    if (pStack.getBytesPerVoxel() != 2 || pStack.getDepth() <= 1)
+      if (lDisplayMode == Stack2DDisplayMode.MaxProjection
+          || lDisplayMode == Stack2DDisplayMode.MeanProjection)
+        lDisplayMode = Stack2DDisplayMode.Plane;
+
+    if (!isAutoContrast(pStack) && mAutoContrastRange.isValid())
+    {
+      // the window samples min and max itself again, and the range of later 16
+      // bit stacks does not start from a stale one:
+      mAutoContrastRange.reset();
+      mVideoWindow.clearAutoContrastRange();
+    }
+
+    if (lDisplayMode == Stack2DDisplayMode.FullStack
+        || lFullStackRequested)
+    {
+      makeCopyOfReceivedStack(pStack);
+      if (lFullStackRequested)
+      {
+        mFullStackRequested = false;
+        // outside of the FullStack mode, only ImageJ needs the copy:
+        showInImageJ(lDisplayMode != Stack2DDisplayMode.FullStack);
+      }
+    }
+    else if (mReceivedStackCopy != null)
+      freeReceivedStackCopy();
+
+    switch (lDisplayMode)
+    {
+    case FullStack:
+      if (isAutoContrast(pStack))
+        mAutoContrastEngine.updatePlaneRange(pStack,
+                                             getCurrentStackPlaneIndex(pStack),
+                                             mAutoContrastRange);
+      displayStack(mReceivedStackCopy, false);
+      break;
+
+    case Plane:
+    {
+      final int lPlaneIndex = getCurrentStackPlaneIndex(pStack);
+      if (isAutoContrast(pStack))
+        mAutoContrastEngine.updatePlaneRange(pStack,
+                                             lPlaneIndex,
+                                             mAutoContrastRange);
+      final ContiguousMemoryInterface lPlane =
+                                             pStack.getContiguousMemory(lPlaneIndex);
+      final ContiguousMemoryInterface lPlaneBuffer =
+                                                   getNextPlaneBuffer(lPlane.getSizeInBytes());
+      lPlaneBuffer.copyFrom(lPlane);
+      displayPlane(lPlaneBuffer,
+                   (int) pStack.getWidth(),
+                   (int) pStack.getHeight());
+      break;
+    }
+
+    case MaxProjection:
+    case MeanProjection:
+    {
+      final int lDownsampling = Math.max(1,
+                                         mProjectionDownsampling.get());
+      final int lProjectionWidth =
+                                 StackProjector.getProjectionWidth(pStack,
+                                                                   lDownsampling);
+      final int lProjectionHeight =
+                                  StackProjector.getProjectionHeight(pStack,
+                                                                     lDownsampling);
+      final ContiguousMemoryInterface lPlaneBuffer =
+                                                   getNextPlaneBuffer(2L * lProjectionWidth
+                                                                      * lProjectionHeight);
+      StackProjector.project(pStack,
+                             lDownsampling,
+                             lDisplayMode == Stack2DDisplayMode.MeanProjection,
+                             lPlaneBuffer);
+      if (isAutoContrast(pStack))
+        mAutoContrastEngine.updateBufferRange(lPlaneBuffer,
+                                              ((long) lProjectionWidth)
+                                                            * lProjectionHeight,
+                                              mAutoContrastRange);
+      displayPlane(lPlaneBuffer, lProjectionWidth, lProjectionHeight);
+      break;
+    }
+    }
+  }
+
+  private boolean isAutoContrast(final StackInterface pStack)
+  {
+    return pStack.getBytesPerVoxel() == 2
+           && !mManualMinMaxIntensity.get()
+           && !mVideoWindow.isMinMaxFixed();
+  }
+
+  private ContiguousMemoryInterface getNextPlaneBuffer(long pSizeInBytes)
+  {
+    // the buffers of the ring are used in turn, so that the buffer being
+    // filled is never the one being displayed:
+    mNextPlaneBufferIndex = (mNextPlaneBufferIndex + 1)
+                            % cNumberOfPlaneBuffers;
+    ContiguousMemoryInterface lPlaneBuffer =
+                                           mPlaneBuffers[mNextPlaneBufferIndex];
+    if (lPlaneBuffer == null || lPlaneBuffer.isFree()
+        || lPlaneBuffer.getSizeInBytes() != pSizeInBytes)
+    {
+      mDisplayLock.lock();
       try
       {
-        lTryLock = mDisplayLock.tryLock(1, TimeUnit.MILLISECONDS);
-        if (lTryLock && mReceivedStackCopy != null)
-        {
-          int lStackZIndex =
-                           getCurrentStackPlaneIndex(mReceivedStackCopy);
-          ContiguousMemoryInterface lContiguousMemory =
-                                                      mReceivedStackCopy.getContiguousMemory(lStackZIndex);
+        if (lPlaneBuffer != null && !lPlaneBuffer.isFree())
+          lPlaneBuffer.free();
+        lPlaneBuffer = OffHeapMemory.allocateBytes(pSizeInBytes);
+        mPlaneBuffers[mNextPlaneBufferIndex] = lPlaneBuffer;
+      }
+      finally
+      {
+        mDisplayLock.unlock();
+      }
+    }
+    return lPlaneBuffer;
+  }
 
-          if (mVideoWindow != null)
-            mVideoWindow.fastMinMaxSampling(lContiguousMemory);
+  private void displayPlane(final ContiguousMemoryInterface pPlane,
+                            final int pWidth,
+                            final int pHeight)
+  {
+    mDisplayLock.lock();
+    try
+    {
+      if (mAutoContrastRange.isValid())
+        mVideoWindow.setAutoContrastRange(mAutoContrastRange.getMin(),
+                                          mAutoContrastRange.getMax());
+      mVideoWindow.sendBuffer(pPlane, pWidth, pHeight);
+      mVideoWindow.waitForBufferCopy(1, TimeUnit.SECONDS);
+      mVideoWindow.setWidth(pWidth);
+      mVideoWindow.setHeight(pHeight);
+    }
+    finally
+    {
+      mDisplayLock.unlock();
+    }
+  }
 
+  private void showInImageJ(final boolean pHandOverCopy)
+  {
+    final StackInterface lStack;
+    mDisplayLock.lock();
+    try
+    {
+      lStack = mReceivedStackCopy;
+      if (pHandOverCopy)
+        mReceivedStackCopy = null;
+    }
+    finally
+    {
+      mDisplayLock.unlock();
+    }
+    if (lStack == null)
+      return;
+
+    // ImageJ windows are opened on a worker thread, not on the thread that
+    // processes stacks or on the window's event thread:
+    executeAsynchronously(() -> {
+      try
+      {
+        if (pHandOverCopy)
+          ImageJStackDisplay.show(lStack);
+        else
+        {
+          // the copy is still displayed, and updated with each stack:
+          mDisplayLock.lock();
+          try
+          {
+            ImageJStackDisplay.show(lStack);
+          }
+          finally
+          {
+            mDisplayLock.unlock();
+          }
         }
       }
       catch (Throwable e)
@@ -304,17 +506,26 @@ public class Stack2DDisplay extends VirtualDevice implements
       }
       finally
       {
-        if (lTryLock)
-          mDisplayLock.unlock();
+        if (pHandOverCopy)
+          lStack.free();
       }
+    });
+  }
 
-    };
-
-    scheduleAtFixedRate(lAutoRescaleRunnable,
-                        10,
-                        TimeUnit.MILLISECONDS);
-    /**/
-
+  private void freeReceivedStackCopy()
+  {
+    mDisplayLock.lock();
+    try
+    {
+      final StackInterface lStackToFree = mReceivedStackCopy;
+      mReceivedStackCopy = null;
+      if (lStackToFree != null && !lStackToFree.isFree())
+        lStackToFree.free();
+    }
+    finally
+    {
+      mDisplayLock.unlock();
+    }
   }
 
   private void makeCopyOfReceivedStack(final StackInterface pStack)
@@ -370,6 +581,9 @@ public class Stack2DDisplay extends VirtualDevice implements
     {
       if (pStack != null)
       {
+        if (mAutoContrastRange.isValid())
+          mVideoWindow.setAutoContrastRange(mAutoContrastRange.getMin(),
+                                            mAutoContrastRange.getMax());
 
         final int lStackWidth = (int) pStack.getWidth();
         final int lStackHeight = (int) pStack.getHeight();
@@ -441,6 +655,48 @@ public class Stack2DDisplay extends VirtualDevice implements
     mOutputStackVariable = pOutputStackVariable;
   }
 
+  /**
+   * Returns the auto-contrast engine of this display
+   * 
+   * @return auto-contrast engine
+   */
+  public AutoContrastEngine getAutoContrastEngine()
+  {
+    return mAutoContrastEngine;
+  }
+
+  /**
+   * Sets the auto-contrast engine of this display. Displays that receive the
+   * same stacks can share an engine so that histograms are computed once.
+   * 
+   * @param pAutoContrastEngine
+   *          auto-contrast engine
+   */
+  public void setAutoContrastEngine(AutoContrastEngine pAutoContrastEngine)
+  {
+    mAutoContrastEngine = pAutoContrastEngine;
+  }
+
+  /**
+   * Returns the variable holding the display update mode
+   * 
+   * @return display mode variable
+   */
+  public Variable<Stack2DDisplayMode> getDisplayModeVariable()
+  {
+    return mDisplayMode;
+  }
+
+  /**
+   * Returns the variable holding the X and Y downsampling factor of projections
+   * 
+   * @return projection downsampling variable
+   */
+  public Variable<Integer> getProjectionDownsamplingVariable()
+  {
+    return mProjectionDownsampling;
+  }
+
   public Variable<Boolean> getDisplayOnVariable()
   {
     return mDisplayOn;
@@ -0,0 +1,31 @@
+package clearcontrol.gui.video.video2d;
+
+/**
+ * Stack 2D display update modes
+ *
+ * @author royer
+ */
+public enum Stack2DDisplayMode
+{
+ /**
+  * Only the currently selected plane is copied
+  */
+ Plane,
+
+ /**
+  * A max projection (possibly downsampled) is computed
+  */
+ MaxProjection,
+
+ /**
+  * A mean projection (possibly downsampled) is computed
+  */
+ MeanProjection,
+
+ /**
+  * The whole stack is copied, planes can then be browsed without waiting for
+  * the next stack
+  */
+ FullStack;
+
+}
@@ -0,0 +1,159 @@
+package clearcontrol.gui.video.video2d;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.toIntExact;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlanes;
+import coremem.ContiguousMemoryInterface;
+
+/**
+ * Computes max and mean Z projections of 16 bit stacks, optionally downsampled
+ * in X and Y, directly into a plane buffer. Blocks of rows are projected in
+ * parallel, the calling thread also projects rows.
+ *
+ * @author royer
+ */
+public class StackProjector
+{
+  private static final int cRowsPerBlock = 16;
+
+  /**
+   * Returns the width of a projection
+   *
+   * @param pStack
+   *          stack
+   * @param pDownsampling
+   *          downsampling factor
+   * @return projection width
+   */
+  public static int getProjectionWidth(StackInterface pStack,
+                                       int pDownsampling)
+  {
+    return max(1, toIntExact(pStack.getWidth() / max(1, pDownsampling)));
+  }
+
+  /**
+   * Returns the height of a projection
+   *
+   * @param pStack
+   *          stack
+   * @param pDownsampling
+   *          downsampling factor
+   * @return projection height
+   */
+  public static int getProjectionHeight(StackInterface pStack,
+                                        int pDownsampling)
+  {
+    return max(1,
+               toIntExact(pStack.getHeight() / max(1, pDownsampling)));
+  }
+
+  /**
+   * Computes the max (or mean) Z projection of a 16 bit stack into a plane
+   * buffer. Each pixel of the projection covers a square of pDownsampling by
+   * pDownsampling pixels of each plane. The plane buffer must be big enough to
+   * hold getProjectionWidth() x getProjectionHeight() 16 bit values.
+   *
+   * @param pStack
+   *          16 bit stack
+   * @param pDownsampling
+   *          downsampling factor, 1 for none
+   * @param pMean
+   *          true for a mean projection, false for a max projection
+   * @param pPlaneBuffer
+   *          destination plane buffer
+   */
+  public static void project(final StackInterface pStack,
+                             final int pDownsampling,
+                             final boolean pMean,
+                             final ContiguousMemoryInterface pPlaneBuffer)
+  {
+    final int lDownsampling = max(1, pDownsampling);
+    final int lWidth = toIntExact(pStack.getWidth());
+    final int lDepth = toIntExact(pStack.getDepth());
+    final int lProjectionWidth = getProjectionWidth(pStack,
+                                                    lDownsampling);
+    final int lProjectionHeight = getProjectionHeight(pStack,
+                                                      lDownsampling);
+    final int lNumberOfBlocks = (lProjectionHeight + cRowsPerBlock - 1)
+                                / cRowsPerBlock;
+    final double lNormalization =
+                                1.0 / (((double) lDepth) * lDownsampling
+                                       * lDownsampling);
+
+    final AtomicInteger lNextBlockIndex = new AtomicInteger();
+    final Runnable lBlockProjecting = () -> {
+      final short[] lRow = new short[lWidth];
+      final long[] lAccumulator = new long[cRowsPerBlock
+                                           * lProjectionWidth];
+      final short[] lProjectedRow = new short[lProjectionWidth];
+      final ShortBuffer lProjection = StackPlanes.asShortBuffer(pPlaneBuffer);
+
+      int lBlockIndex;
+      while ((lBlockIndex =
+                          lNextBlockIndex.getAndIncrement()) < lNumberOfBlocks)
+      {
+        final int lFirstRow = lBlockIndex * cRowsPerBlock;
+        final int lNumberOfRows = min(cRowsPerBlock,
+                                      lProjectionHeight - lFirstRow);
+        Arrays.fill(lAccumulator, 0);
+
+        for (int z = 0; z < lDepth; z++)
+        {
+          final ShortBuffer lPlane =
+                                   StackPlanes.asShortBuffer(pStack.getContiguousMemory(z));
+          for (int r = 0; r < lNumberOfRows; r++)
+          {
+            final int lAccumulatorOffset = r * lProjectionWidth;
+            for (int dy = 0; dy < lDownsampling; dy++)
+            {
+              final int y = (lFirstRow + r) * lDownsampling + dy;
+              lPlane.position(y * lWidth);
+              lPlane.get(lRow, 0, lWidth);
+
+              for (int xo = 0, x = 0; xo < lProjectionWidth; xo++)
+              {
+                final int i = lAccumulatorOffset + xo;
+                long lValue = lAccumulator[i];
+                if (pMean)
+                  for (int dx = 0; dx < lDownsampling; dx++, x++)
+                    lValue += lRow[x] & 0xFFFF;
+                else
+                  for (int dx = 0; dx < lDownsampling; dx++, x++)
+                    lValue = max(lValue, lRow[x] & 0xFFFF);
+                lAccumulator[i] = lValue;
+              }
+            }
+          }
+        }
+
+        for (int r = 0; r < lNumberOfRows; r++)
+        {
+          final int lAccumulatorOffset = r * lProjectionWidth;
+          for (int x = 0; x < lProjectionWidth; x++)
+          {
+            final long lValue = lAccumulator[lAccumulatorOffset + x];
+            lProjectedRow[x] =
+                             (short) (pMean ? Math.round(lValue
+                                                         * lNormalization)
+                                            : lValue);
+          }
+          lProjection.position((lFirstRow + r) * lProjectionWidth);
+          lProjection.put(lProjectedRow);
+        }
+      }
+    };
+
+    ClearControlExecutors.runOnCallerAndHelpers(StackProjector.class,
+                                                lNumberOfBlocks - 1,
+                                                lBlockProjecting);
+  }
+
+}
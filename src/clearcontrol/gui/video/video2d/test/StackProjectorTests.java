@@ -0,0 +1,121 @@
+package clearcontrol.gui.video.video2d.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import clearcontrol.gui.video.video2d.StackProjector;
+import clearcontrol.stack.OffHeapPlanarStack;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+
+import org.junit.Test;
+
+/**
+ * Stack projector tests
+ *
+ * @author royer
+ */
+public class StackProjectorTests
+{
+
+  /**
+   * Tests max and mean projections, with and without downsampling, against
+   * projections computed naively
+   */
+  @Test
+  public void testProjections()
+  {
+    // dimensions that are not multiples of the downsampling factors, and
+    // enough rows for several blocks of rows:
+    final int lWidth = 101;
+    final int lHeight = 67;
+    final int lDepth = 5;
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(lWidth,
+                                                                   lHeight,
+                                                                   lDepth);
+    try
+    {
+      final Random lRandom = new Random(42);
+      for (int z = 0; z < lDepth; z++)
+      {
+        final ContiguousMemoryInterface lPlane =
+                                               lStack.getContiguousMemory(z);
+        for (long i = 0; i < (long) lWidth * lHeight; i++)
+          lPlane.setShortAligned(i, (short) lRandom.nextInt(1 << 16));
+      }
+
+      for (final int lDownsampling : new int[]
+      { 1, 2, 3 })
+        for (final boolean lMean : new boolean[]
+        { false, true })
+          testProjection(lStack, lDownsampling, lMean);
+    }
+    finally
+    {
+      lStack.free();
+    }
+  }
+
+  private void testProjection(OffHeapPlanarStack pStack,
+                              int pDownsampling,
+                              boolean pMean)
+  {
+    final int lWidth = (int) pStack.getWidth();
+    final int lDepth = (int) pStack.getDepth();
+    final int lProjectionWidth =
+                               StackProjector.getProjectionWidth(pStack,
+                                                                 pDownsampling);
+    final int lProjectionHeight =
+                                StackProjector.getProjectionHeight(pStack,
+                                                                   pDownsampling);
+    assertEquals(lWidth / pDownsampling, lProjectionWidth);
+    assertEquals(pStack.getHeight() / pDownsampling, lProjectionHeight);
+
+    final ContiguousMemoryInterface lProjection =
+                                                OffHeapMemory.allocateBytes(2L * lProjectionWidth
+                                                                            * lProjectionHeight);
+    try
+    {
+      StackProjector.project(pStack, pDownsampling, pMean, lProjection);
+
+      for (int yo = 0; yo < lProjectionHeight; yo++)
+        for (int xo = 0; xo < lProjectionWidth; xo++)
+        {
+          long lValue = 0;
+          for (int z = 0; z < lDepth; z++)
+          {
+            final ContiguousMemoryInterface lPlane =
+                                                   pStack.getContiguousMemory(z);
+            for (int dy = 0; dy < pDownsampling; dy++)
+              for (int dx = 0; dx < pDownsampling; dx++)
+              {
+                final long lIndex = (xo * pDownsampling + dx)
+                                    + ((long) yo * pDownsampling + dy)
+                                      * lWidth;
+                final int lVoxel = lPlane.getShortAligned(lIndex) & 0xFFFF;
+                lValue = pMean ? lValue + lVoxel
+                               : Math.max(lValue, lVoxel);
+              }
+          }
+          if (pMean)
+            lValue = Math.round(lValue / ((double) lDepth * pDownsampling
+                                          * pDownsampling));
+
+          // means might be rounded differently:
+          assertEquals(lValue,
+                       lProjection.getShortAligned(xo
+                                                   + (long) yo
+                                                     * lProjectionWidth)
+                            & 0xFFFF,
+                       pMean ? 1 : 0);
+        }
+    }
+    finally
+    {
+      lProjection.free();
+    }
+  }
+
+}
@@ -329,7 +329,8 @@ final class ClearGLDebugEventListenerForVideoWindow extends
                               mVideoWindow.mVideoHeight);
           }
 
-          if (!mVideoWindow.mMinMaxFixed)
+          if (!mVideoWindow.mMinMaxFixed
+              && !mVideoWindow.mExternalAutoContrast)
             mVideoWindow.fastMinMaxSampling(lSourceBuffer);
           final ContiguousMemoryInterface lConvertedBuffer =
                                                            convertBuffer(lSourceBuffer,
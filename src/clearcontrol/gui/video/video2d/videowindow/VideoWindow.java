@@ -58,6 +58,8 @@ public class VideoWindow implements AutoCloseable
 
   volatile boolean mMinMaxFixed = false;
 
+  volatile boolean mExternalAutoContrast = false;
+
   volatile boolean mIsDisplayLines = false;
 
   volatile double mMinIntensity = 0;
@@ -70,9 +72,9 @@ public class VideoWindow implements AutoCloseable
 
   final ReentrantLock mSendBufferLock = new ReentrantLock();
 
-  double mSampledMinIntensity;
+  volatile double mSampledMinIntensity;
 
-  double mSampledMaxIntensity;
+  volatile double mSampledMaxIntensity;
 
   private ClearGLDefaultEventListener mClearGLDebugEventListener;
 
@@ -279,6 +281,33 @@ public class VideoWindow implements AutoCloseable
     mMinMaxFixed = pMinMaxFixed;
   }
 
+  /**
+   * Sets the automatic display range computed outside of this window (for
+   * example by an AutoContrastEngine), the window then stops sampling min and
+   * max intensities itself.
+   * 
+   * @param pMinIntensity
+   *          normalized min intensity
+   * @param pMaxIntensity
+   *          normalized max intensity
+   */
+  public void setAutoContrastRange(final double pMinIntensity,
+                                   final double pMaxIntensity)
+  {
+    mExternalAutoContrast = true;
+    mSampledMinIntensity = pMinIntensity;
+    mSampledMaxIntensity = pMaxIntensity;
+  }
+
+  /**
+   * Clears the automatic display range computed outside of this window, the
+   * window then samples min and max intensities itself again.
+   */
+  public void clearAutoContrastRange()
+  {
+    mExternalAutoContrast = false;
+  }
+
   public boolean isDisplayFrameRate()
   {
     return mDisplayFrameRate;
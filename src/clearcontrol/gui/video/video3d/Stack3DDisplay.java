@@ -6,6 +6,8 @@ import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
 import clearcontrol.core.device.VirtualDevice;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.gui.video.StackDisplayInterface;
+import clearcontrol.gui.video.contrast.AutoContrastEngine;
+import clearcontrol.gui.video.contrast.AutoContrastRange;
 import clearcontrol.gui.video.util.WindowControl;
 import clearcontrol.stack.EmptyStack;
 import clearcontrol.stack.StackInterface;
@@ -33,6 +35,11 @@ public class Stack3DDisplay extends VirtualDevice
 
   private volatile Variable<Boolean> mVisibleVariable;
   private volatile Variable<Boolean> mWaitForLastChannel;
+  private final Variable<Boolean> mAutoContrast;
+
+  private volatile AutoContrastEngine mAutoContrastEngine =
+                                                          new AutoContrastEngine();
+  private final AutoContrastRange[] mAutoContrastRanges;
 
   public Stack3DDisplay(final String pWindowName)
   {
@@ -61,6 +68,11 @@ public class Stack3DDisplay extends VirtualDevice
 
     mVisibleVariable = new Variable<Boolean>("Visible", false);
 
+    mAutoContrast = new Variable<Boolean>("AutoContrast", false);
+    mAutoContrastRanges = new AutoContrastRange[pNumberOfLayers];
+    for (int i = 0; i < pNumberOfLayers; i++)
+      mAutoContrastRanges[i] = new AutoContrastRange();
+
     mVisibleVariable.addSetListener((o, n) -> {
       mClearVolumeRenderer.setVisible(n);
     });
@@ -164,6 +176,16 @@ public class Stack3DDisplay extends VirtualDevice
 
           }
 
+          if (mAutoContrast.get() && lBytesPerVoxel == 2)
+          {
+            final AutoContrastRange lRange =
+                                           mAutoContrastRanges[lChannel];
+            mAutoContrastEngine.updateStackRange(pStack, lRange);
+            mClearVolumeRenderer.setTransferFunctionRange(lChannel,
+                                                          lRange.getMin(),
+                                                          lRange.getMax());
+          }
+
           mClearVolumeRenderer.setVolumeDataBuffer(lChannel,
                                                    lContiguousMemory,
                                                    lWidth,
@@ -310,6 +332,39 @@ public class Stack3DDisplay extends VirtualDevice
     mClearVolumeRenderer.disableClose();
   }
 
+  /**
+   * Returns the variable that switches on the automatic transfer function
+   * range, computed from a sampled histogram of each stack.
+   * 
+   * @return auto-contrast variable
+   */
+  public Variable<Boolean> getAutoContrastVariable()
+  {
+    return mAutoContrast;
+  }
+
+  /**
+   * Returns the auto-contrast engine of this display
+   * 
+   * @return auto-contrast engine
+   */
+  public AutoContrastEngine getAutoContrastEngine()
+  {
+    return mAutoContrastEngine;
+  }
+
+  /**
+   * Sets the auto-contrast engine of this display. Displays that receive the
+   * same stacks can share an engine so that histograms are computed once.
+   * 
+   * @param pAutoContrastEngine
+   *          auto-contrast engine
+   */
+  public void setAutoContrastEngine(AutoContrastEngine pAutoContrastEngine)
+  {
+    mAutoContrastEngine = pAutoContrastEngine;
+  }
+
   public Variable<Boolean> getWaitForLastChannel()
   {
     return mWaitForLastChannel;
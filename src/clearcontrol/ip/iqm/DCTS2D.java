@@ -3,193 +3,244 @@ package clearcontrol.ip.iqm;
 import static java.lang.Math.sqrt;
 import static java.lang.Math.toIntExact;
 
-import clearcontrol.stack.OffHeapPlanarStack;
-
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackPlanes;
 import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
-import coremem.util.Size;
 
 import org.jtransforms.dct.DoubleDCT_2D;
-import pl.edu.icm.jlargearrays.DoubleLargeArray;
 
+/**
+ * Normalized DCT Shannon entropy (DCTS) image quality metric, computed plane by
+ * plane.
+ *
+ * Planes are evaluated in parallel on a thread pool shared by all instances.
+ * Each thread has its own working buffers and its own DCT plans, so that a
+ * single instance can be used concurrently from several threads. Optionally,
+ * the metric can be evaluated on a region of interest (ROI) of each plane
+ * and/or on a decimated plane (one pixel out of n along x and y).
+ *
+ * @author royer
+ */
 public class DCTS2D implements ImageQualityMetricInterface
 {
-  private ContiguousBuffer mWorkingBuffer;
+  private static final int cMaxNumberOfThreads =
+                                               Runtime.getRuntime()
+                                                      .availableProcessors();
 
-  private final Table<Long, Long, DoubleDCT_2D> mDoubleDCT2DCache =
-                                                                  HashBasedTable.create();
+  private static final ThreadLocal<PlaneWorkspace> cPlaneWorkspace =
+                                                                   ThreadLocal.withInitial(PlaneWorkspace::new);
 
-  private double mPSFSupportRadius = 3;
+  private volatile double mPSFSupportRadius = 3;
 
-  public DCTS2D()
-  {
-    super();
-  }
+  private volatile int mNumberOfThreads = cMaxNumberOfThreads;
 
-  private DoubleDCT_2D getDCTForWidthAndHeight(long pWidth,
-                                               long pHeight)
-  {
-    DoubleDCT_2D lDoubleDCT_2D =
-                               mDoubleDCT2DCache.get(pWidth, pHeight);
+  private volatile int[] mRegionOfInterest = null;
 
-    if (lDoubleDCT_2D == null)
-    {
-      try
-      {
-        lDoubleDCT_2D = new DoubleDCT_2D(pHeight, pWidth, true);
-        mDoubleDCT2DCache.put(pWidth, pHeight, lDoubleDCT_2D);
-      }
-      catch (final Throwable e)
-      {
-        e.printStackTrace();
-      }
-    }
+  private volatile int mDecimation = 1;
 
-    return lDoubleDCT_2D;
+  /**
+   * Instantiates a DCTS2D metric
+   */
+  public DCTS2D()
+  {
+    super();
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public final double[] computeImageQualityMetric(OffHeapPlanarStack pStack)
   {
-    long lWidth = pStack.getWidth();
-    long lHeight = pStack.getHeight();
-    long lDepth = pStack.getDepth();
+    final int lDepth = toIntExact(pStack.getDepth());
+    final double[] lDCTSArray = new double[lDepth];
 
-    final double[] lDCTSArray = new double[toIntExact(lDepth)];
-    for (int z = 0; z < lDepth; z++)
-    {
-      long lNumberOfPixelsPerPlane = lWidth * lHeight;
-      final ContiguousMemoryInterface lPlaneContiguousMemory =
-                                                             pStack.getContiguousMemory(z);
+    final PlaneEvaluation lPlaneEvaluation =
+                                           new PlaneEvaluation(pStack,
+                                                               lDCTSArray);
 
-      if (mWorkingBuffer == null
-          || mWorkingBuffer.getSizeInBytes() != lNumberOfPixelsPerPlane
-                                                * Size.DOUBLE)
-      {
-        mWorkingBuffer =
-                       ContiguousBuffer.allocate(lNumberOfPixelsPerPlane
-                                                 * Size.DOUBLE);
-      }
-
-      mWorkingBuffer.rewind();
-      for (int i = 0; i < lNumberOfPixelsPerPlane; i++)
-      {
-        double lValue = lPlaneContiguousMemory.getCharAligned(i);
-        mWorkingBuffer.writeDouble(lValue);
-      }
-
-      final long lAddress = mWorkingBuffer.getContiguousMemory()
-                                          .getAddress();
-      final DoubleLargeArray lDoubleLargeArray =
-                                               new DoubleLargeArray(pStack,
-                                                                    lAddress,
-                                                                    lNumberOfPixelsPerPlane);
-
-      final double lDCTS =
-                         computeDCTSForSinglePlane(lDoubleLargeArray,
-                                                   lWidth,
-                                                   lHeight,
-                                                   getPSFSupportRadius());
-
-      lDCTSArray[z] = lDCTS;
-    }
+    // one pool for all instances, the calling thread also evaluates planes:
+    final int lNumberOfHelpers = Math.min(mNumberOfThreads, lDepth) - 1;
+    ClearControlExecutors.runOnCallerAndHelpers(DCTS2D.class,
+                                                lNumberOfHelpers,
+                                                lPlaneEvaluation);
 
     return lDCTSArray;
   }
 
-  private final double computeDCTSForSinglePlane(DoubleLargeArray pDoubleLargeArray,
-                                                 long pWidth,
-                                                 long pHeight,
+  private final double computeDCTSForSinglePlane(ContiguousMemoryInterface pPlaneContiguousMemory,
+                                                 int pPlaneWidth,
+                                                 int pPlaneHeight,
+                                                 int[] pRegionOfInterest,
+                                                 int pDecimation,
                                                  double pPSFSupportRadius)
   {
-    final DoubleDCT_2D lDCTForWidthAndHeight =
-                                             getDCTForWidthAndHeight(pWidth,
-                                                                     pHeight);
-
-    lDCTForWidthAndHeight.forward(pDoubleLargeArray, false);
-
-    normalizeL2(pDoubleLargeArray);
-
-    final long lOTFSupportRadiusX = Math.round(pWidth
-                                               / pPSFSupportRadius);
-    final long lOTFSupportRadiusY = Math.round(pHeight
-                                               / pPSFSupportRadius);
+    int lROIX = 0, lROIY = 0, lROIWidth = pPlaneWidth,
+        lROIHeight = pPlaneHeight;
+    if (pRegionOfInterest != null)
+    {
+      lROIX = Math.max(0, Math.min(pRegionOfInterest[0], pPlaneWidth));
+      lROIY = Math.max(0,
+                       Math.min(pRegionOfInterest[1], pPlaneHeight));
+      lROIWidth = Math.min(pRegionOfInterest[2], pPlaneWidth - lROIX);
+      lROIHeight = Math.min(pRegionOfInterest[3],
+                            pPlaneHeight - lROIY);
+    }
 
-    final double lEntropy =
-                          entropyPerPixelSubTriangle(pDoubleLargeArray,
-                                                     pWidth,
-                                                     pHeight,
-                                                     0,
-                                                     0,
-                                                     lOTFSupportRadiusX,
-                                                     lOTFSupportRadiusY);
+    final int lWidth = (lROIWidth + pDecimation - 1) / pDecimation;
+    final int lHeight = (lROIHeight + pDecimation - 1) / pDecimation;
+    if (lWidth <= 0 || lHeight <= 0)
+      return Double.NaN;
+
+    final PlaneWorkspace lPlaneWorkspace = cPlaneWorkspace.get();
+    final double[] lArray = lPlaneWorkspace.getArray(lWidth * lHeight);
+
+    convertToDouble(pPlaneContiguousMemory,
+                    pPlaneWidth,
+                    lROIX,
+                    lROIY,
+                    lROIWidth,
+                    lROIHeight,
+                    pDecimation,
+                    lPlaneWorkspace,
+                    lArray);
+
+    lPlaneWorkspace.getDCT(lWidth, lHeight).forward(lArray, false);
+
+    normalizeL2(lArray, lWidth * lHeight);
+
+    // the PSF support radius is given in original pixels:
+    final double lPSFSupportRadius = pPSFSupportRadius / pDecimation;
+    final int lOTFSupportRadiusX =
+                                 (int) Math.min(lWidth,
+                                                Math.round(lWidth
+                                                           / lPSFSupportRadius));
+    final int lOTFSupportRadiusY =
+                                 (int) Math.min(lHeight,
+                                                Math.round(lHeight
+                                                           / lPSFSupportRadius));
+
+    final double lEntropy = entropyPerPixelSubTriangle(lArray,
+                                                       lWidth,
+                                                       lHeight,
+                                                       0,
+                                                       0,
+                                                       lOTFSupportRadiusX,
+                                                       lOTFSupportRadiusY);
 
     return lEntropy;
   }
 
-  private void normalizeL2(DoubleLargeArray pDoubleLargeArray)
+  private void convertToDouble(ContiguousMemoryInterface pPlaneContiguousMemory,
+                               int pPlaneWidth,
+                               int pROIX,
+                               int pROIY,
+                               int pROIWidth,
+                               int pROIHeight,
+                               int pDecimation,
+                               PlaneWorkspace pPlaneWorkspace,
+                               double[] pArray)
   {
-    final double lL2 = computeL2(pDoubleLargeArray);
-    final double lIL2 = 1.0 / lL2;
-    final long lLength = pDoubleLargeArray.length();
+    final ShortBuffer lShortBuffer =
+                                   StackPlanes.asShortBuffer(pPlaneContiguousMemory);
 
-    for (long i = 0; i < lLength; i++)
+    if (pDecimation == 1 && pROIX == 0 && pROIWidth == pPlaneWidth)
     {
-      final double lValue = pDoubleLargeArray.getDouble(i);
-      pDoubleLargeArray.setDouble(i, lValue * lIL2);
+      // contiguous rows: one bulk copy and a single conversion loop.
+      final int lLength = pROIWidth * pROIHeight;
+      final short[] lShorts = pPlaneWorkspace.getShorts(lLength);
+      lShortBuffer.position(pROIY * pPlaneWidth);
+      lShortBuffer.get(lShorts, 0, lLength);
+      convertUnsignedShortsToDoubles(lShorts, 0, pArray, 0, lLength);
+      return;
     }
+
+    final short[] lShorts = pPlaneWorkspace.getShorts(pROIWidth);
+    final int lWidth = (pROIWidth + pDecimation - 1) / pDecimation;
+    int lIndex = 0;
+    for (int y = pROIY; y < pROIY + pROIHeight; y += pDecimation)
+    {
+      lShortBuffer.position(y * pPlaneWidth + pROIX);
+      lShortBuffer.get(lShorts, 0, pROIWidth);
+      if (pDecimation == 1)
+        convertUnsignedShortsToDoubles(lShorts,
+                                       0,
+                                       pArray,
+                                       lIndex,
+                                       pROIWidth);
+      else
+        for (int x = 0; x < lWidth; x++)
+          pArray[lIndex + x] = lShorts[x * pDecimation] & 0xFFFF;
+      lIndex += lWidth;
+    }
+  }
+
+  private static void convertUnsignedShortsToDoubles(short[] pShorts,
+                                                     int pShortsOffset,
+                                                     double[] pDoubles,
+                                                     int pDoublesOffset,
+                                                     int pLength)
+  {
+    // simple counted loop without branches, the JIT vectorizes it:
+    for (int i = 0; i < pLength; i++)
+      pDoubles[pDoublesOffset + i] = pShorts[pShortsOffset + i]
+                                     & 0xFFFF;
   }
 
-  private double computeL2(DoubleLargeArray pDoubleLargeArray)
+  private void normalizeL2(double[] pArray, int pLength)
   {
-    final long lLength = pDoubleLargeArray.length();
+    final double lL2 = computeL2(pArray, pLength);
+    final double lIL2 = 1.0 / lL2;
 
+    for (int i = 0; i < pLength; i++)
+      pArray[i] *= lIL2;
+  }
+
+  private double computeL2(double[] pArray, int pLength)
+  {
     double l2 = 0;
-    for (long i = 0; i < lLength; i++)
+    for (int i = 0; i < pLength; i++)
     {
-      final double lValue = pDoubleLargeArray.getDouble(i);
+      final double lValue = pArray[i];
       l2 += lValue * lValue;
     }
 
     return sqrt(l2);
   }
 
-  private final double entropyPerPixelSubTriangle(DoubleLargeArray pDoubleLargeArray,
-                                                  final long pWidth,
-                                                  final long pHeight,
-                                                  final long xl,
-                                                  final long yl,
-                                                  final long xh,
-                                                  final long yh)
+  private final double entropyPerPixelSubTriangle(double[] pArray,
+                                                  final int pWidth,
+                                                  final int pHeight,
+                                                  final int xl,
+                                                  final int yl,
+                                                  final int xh,
+                                                  final int yh)
   {
     double entropy = 0;
-    for (long y = yl; y < yh; y++)
+    for (int y = yl; y < yh; y++)
     {
-      final long yi = y * pWidth;
+      final int yi = y * pWidth;
 
-      final long xend = xh - y * xh / yh;
-      entropy = entropySub(pDoubleLargeArray, xl, entropy, yi, xend);
+      final int xend = (int) (xh - (long) y * xh / yh);
+      entropy = entropySub(pArray, xl, entropy, yi, xend);
     }
-    entropy = -entropy / (2 * xh * yh);
+    entropy = -entropy / (2.0 * xh * yh);
 
     return entropy;
   }
 
-  private double entropySub(DoubleLargeArray pDoubleLargeArray,
-                            final long xl,
+  private double entropySub(double[] pArray,
+                            final int xl,
                             final double entropy,
-                            final long yi,
-                            final long xend)
+                            final int yi,
+                            final int xend)
   {
     double lEntropy = entropy;
-    for (long x = xl; x < xend; x++)
+    for (int x = xl; x < xend; x++)
     {
-      final long i = yi + x;
-      final double value = pDoubleLargeArray.getDouble(i);
+      final double value = pArray[yi + x];
       if (value > 0)
       {
         lEntropy += value * Math.log(value);
@@ -202,14 +253,185 @@ public class DCTS2D implements ImageQualityMetricInterface
     return lEntropy;
   }
 
+  /**
+   * Returns the PSF support radius in pixels
+   *
+   * @return PSF support radius
+   */
   public double getPSFSupportRadius()
   {
     return mPSFSupportRadius;
   }
 
+  /**
+   * Sets the PSF support radius in pixels
+   *
+   * @param pPSFSupportRadius
+   *          PSF support radius
+   */
   public void setPSFSupportRadius(double pPSFSupportRadius)
   {
     mPSFSupportRadius = pPSFSupportRadius;
   }
 
+  /**
+   * Returns the max number of threads used to evaluate the planes of a stack
+   *
+   * @return number of threads
+   */
+  public int getNumberOfThreads()
+  {
+    return mNumberOfThreads;
+  }
+
+  /**
+   * Sets the max number of threads used to evaluate the planes of a stack, one
+   * means that planes are evaluated sequentially by the calling thread.
+   *
+   * @param pNumberOfThreads
+   *          number of threads
+   */
+  public void setNumberOfThreads(int pNumberOfThreads)
+  {
+    mNumberOfThreads = Math.max(1, pNumberOfThreads);
+  }
+
+  /**
+   * Sets the region of interest on which the metric is evaluated, the ROI is
+   * clipped to the plane boundaries.
+   *
+   * @param pX
+   *          ROI x offset
+   * @param pY
+   *          ROI y offset
+   * @param pWidth
+   *          ROI width
+   * @param pHeight
+   *          ROI height
+   */
+  public void setRegionOfInterest(int pX, int pY, int pWidth, int pHeight)
+  {
+    mRegionOfInterest = new int[]
+    { pX, pY, pWidth, pHeight };
+  }
+
+  /**
+   * Clears the region of interest, the metric is evaluated on whole planes.
+   */
+  public void clearRegionOfInterest()
+  {
+    mRegionOfInterest = null;
+  }
+
+  /**
+   * Returns the decimation factor
+   *
+   * @return decimation factor
+   */
+  public int getDecimation()
+  {
+    return mDecimation;
+  }
+
+  /**
+   * Sets the decimation factor: only one pixel out of n along x and y is used
+   * to evaluate the metric. The PSF support radius is scaled accordingly.
+   *
+   * @param pDecimation
+   *          decimation factor (1 means no decimation)
+   */
+  public void setDecimation(int pDecimation)
+  {
+    mDecimation = Math.max(1, pDecimation);
+  }
+
+  /**
+   * Evaluation of the planes of a stack, shared by all threads taking part in
+   * the evaluation: each thread picks the next plane until none is left. The
+   * settings are read once, so that they are consistent over the stack.
+   */
+  private class PlaneEvaluation implements Runnable
+  {
+    private final OffHeapPlanarStack mStack;
+    private final double[] mDCTSArray;
+    private final int mWidth, mHeight;
+    private final int[] mRegionOfInterest;
+    private final int mDecimation;
+    private final double mPSFSupportRadius;
+    private final AtomicInteger mNextPlaneIndex = new AtomicInteger();
+
+    PlaneEvaluation(OffHeapPlanarStack pStack, double[] pDCTSArray)
+    {
+      mStack = pStack;
+      mDCTSArray = pDCTSArray;
+      mWidth = toIntExact(pStack.getWidth());
+      mHeight = toIntExact(pStack.getHeight());
+      mRegionOfInterest = DCTS2D.this.mRegionOfInterest;
+      mDecimation = DCTS2D.this.mDecimation;
+      mPSFSupportRadius = DCTS2D.this.mPSFSupportRadius;
+    }
+
+    @Override
+    public void run()
+    {
+      int z;
+      while ((z = mNextPlaneIndex.getAndIncrement()) < mDCTSArray.length)
+      {
+        try
+        {
+          mDCTSArray[z] =
+                        computeDCTSForSinglePlane(mStack.getContiguousMemory(z),
+                                                  mWidth,
+                                                  mHeight,
+                                                  mRegionOfInterest,
+                                                  mDecimation,
+                                                  mPSFSupportRadius);
+        }
+        catch (final Throwable e)
+        {
+          e.printStackTrace();
+          mDCTSArray[z] = Double.NaN;
+        }
+      }
+    }
+  }
+
+  /**
+   * Per-thread working buffers and DCT plans
+   */
+  private static class PlaneWorkspace
+  {
+    private short[] mShorts = new short[0];
+    private double[] mArray = new double[0];
+    private final HashMap<Long, DoubleDCT_2D> mDCTCache =
+                                                        new HashMap<>();
+
+    short[] getShorts(int pLength)
+    {
+      if (mShorts.length < pLength)
+        mShorts = new short[pLength];
+      return mShorts;
+    }
+
+    double[] getArray(int pLength)
+    {
+      // the DCT operates on the whole array, its length must be exact:
+      if (mArray.length != pLength)
+        mArray = new double[pLength];
+      return mArray;
+    }
+
+    DoubleDCT_2D getDCT(int pWidth, int pHeight)
+    {
+      final long lKey = ((long) pHeight << 32) | pWidth;
+      DoubleDCT_2D lDoubleDCT_2D = mDCTCache.get(lKey);
+      if (lDoubleDCT_2D == null)
+      {
+        lDoubleDCT_2D = new DoubleDCT_2D(pHeight, pWidth);
+        mDCTCache.put(lKey, lDoubleDCT_2D);
+      }
+      return lDoubleDCT_2D;
+    }
+  }
+
 }
@@ -1,10 +1,12 @@
 package clearcontrol.ip.iqm.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.ip.iqm.DCTS2D;
@@ -100,4 +102,119 @@ public class DCTS2DTests
 
   }
 
+  /**
+   * Tests that the parallel evaluation gives the same result as the sequential
+   * evaluation, and that ROI and decimated evaluations give valid values.
+   */
+  @Test
+  public void testParallelAndRegionOfInterest()
+  {
+    final OffHeapPlanarStack lStack = createSyntheticStack(256, 256, 16);
+
+    final DCTS2D lDCTS2D = new DCTS2D();
+
+    lDCTS2D.setNumberOfThreads(1);
+    final double[] lSequential = lDCTS2D.computeImageQualityMetric(lStack);
+
+    lDCTS2D.setNumberOfThreads(8);
+    final double[] lParallel = lDCTS2D.computeImageQualityMetric(lStack);
+
+    assertArrayEquals(lSequential, lParallel, 0);
+
+    lDCTS2D.setRegionOfInterest(32, 64, 128, 100);
+    lDCTS2D.setDecimation(2);
+    final double[] lDecimatedROI =
+                                 lDCTS2D.computeImageQualityMetric(lStack);
+
+    for (final double lValue : lDecimatedROI)
+    {
+      assertFalse(Double.isNaN(lValue));
+      assertFalse(Double.isInfinite(lValue));
+      assertFalse(lValue == 0);
+    }
+
+    lStack.free();
+  }
+
+  /**
+   * Benchmarks sequential versus parallel evaluation for planes of 512x512 up
+   * to 2048x2048 pixels.
+   */
+  @Test
+  public void benchmark()
+  {
+    final int lDepth = 16;
+    final int lRepeats = 5;
+
+    for (int lSize = 512; lSize <= 2048; lSize *= 2)
+    {
+      final OffHeapPlanarStack lStack = createSyntheticStack(lSize,
+                                                             lSize,
+                                                             lDepth);
+
+      final DCTS2D lDCTS2D = new DCTS2D();
+
+      for (final int lNumberOfThreads : new int[]
+      { 1, Runtime.getRuntime().availableProcessors() })
+      {
+        lDCTS2D.setNumberOfThreads(lNumberOfThreads);
+
+        // warmup:
+        lDCTS2D.computeImageQualityMetric(lStack);
+
+        final long lStartTimeInNs = System.nanoTime();
+        for (int r = 0; r < lRepeats; r++)
+          lDCTS2D.computeImageQualityMetric(lStack);
+        final long lStopTimeInNs = System.nanoTime();
+
+        final double lElapsedTimePerPlaneInMs =
+                                              OrderOfMagnitude.nano2milli((lStopTimeInNs
+                                                                           - lStartTimeInNs)
+                                                                          / (lRepeats
+                                                                             * lDepth));
+        System.out.format("%dx%d planes, %d thread(s): %.2f ms per plane \n",
+                          lSize,
+                          lSize,
+                          lNumberOfThreads,
+                          lElapsedTimePerPlaneInMs);
+      }
+
+      lStack.free();
+    }
+  }
+
+  private OffHeapPlanarStack createSyntheticStack(int pWidth,
+                                                  int pHeight,
+                                                  int pDepth)
+  {
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(pWidth,
+                                                                   pHeight,
+                                                                   pDepth);
+
+    final Random lRandom = new Random(42);
+    for (int z = 0; z < pDepth; z++)
+    {
+      final ContiguousMemoryInterface lPlaneContiguousMemory =
+                                                             lStack.getContiguousMemory(z);
+
+      // blobs whose sharpness depends on the plane index, plus some noise:
+      final double lSigma = 1 + Math.abs(z - pDepth / 2);
+      for (int y = 0; y < pHeight; y++)
+        for (int x = 0; x < pWidth; x++)
+        {
+          final double lDx = (x % 32) - 16;
+          final double lDy = (y % 32) - 16;
+          final double lValue = 1000 * Math.exp(-(lDx * lDx + lDy * lDy)
+                                                / (2 * lSigma * lSigma))
+                                + 100
+                                + 10 * lRandom.nextDouble();
+          lPlaneContiguousMemory.setShortAligned(x + (long) y * pWidth,
+                                                 (short) lValue);
+        }
+    }
+
+    return lStack;
+  }
+
 }
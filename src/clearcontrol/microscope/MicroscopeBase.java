@@ -23,8 +23,10 @@ import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
 import clearcontrol.core.device.queue.QueueDeviceInterface;
 import clearcontrol.core.device.queue.QueueInterface;
 import clearcontrol.core.device.startstop.StartStopDeviceInterface;
+import clearcontrol.core.gc.GarbageCollectionPolicy;
 import clearcontrol.core.gc.GarbageCollector;
 import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.profiling.TimingRecorder;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.VariableSetListener;
 import clearcontrol.devices.cameras.StackCameraDeviceInterface;
@@ -33,10 +35,11 @@ import clearcontrol.microscope.stacks.CleanupStackVariable;
 import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.microscope.state.AcquisitionStateManager;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
-import clearcontrol.stack.processor.AsynchronousPoolStackProcessorPipeline;
 import clearcontrol.stack.processor.AsynchronousStackProcessorPipeline;
+import clearcontrol.stack.processor.OrderedPoolStackProcessorPipeline;
 import clearcontrol.stack.processor.StackProcessingPipelineInterface;
 import clearcontrol.stack.processor.StackProcessorInterface;
 import coremem.recycling.RecyclerInterface;
@@ -72,6 +75,14 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
                                                  new Variable<Q>("LastPlayedQueue",
                                                                  null);
 
+  // Garbage collection policy applied before playing queues:
+  private final Variable<GarbageCollectionPolicy> mGarbageCollectionPolicyVariable =
+                                                                                  new Variable<>("GarbageCollectionPolicy",
+                                                                                                 GarbageCollectionPolicy.Always);
+  private final Variable<Double> mGarbageCollectionHeapUsageThresholdVariable =
+                                                                              new Variable<>("GarbageCollectionHeapUsageThreshold",
+                                                                                             0.5);
+
   // Stack processing pipeline:
   protected volatile StackProcessingPipelineInterface mStackProcessingPipeline;
 
@@ -130,10 +141,10 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
                                                                       pMaxStackProcessingQueueLength);
     else
       mStackProcessingPipeline =
-                               new AsynchronousPoolStackProcessorPipeline("Stack Pipeline",
-                                                                          mStackRecyclerManager,
-                                                                          pMaxStackProcessingQueueLength,
-                                                                          pThreadPoolSize);
+                               new OrderedPoolStackProcessorPipeline("Stack Pipeline",
+                                                                     mStackRecyclerManager,
+                                                                     pMaxStackProcessingQueueLength,
+                                                                     pThreadPoolSize);
 
     CleanupStackVariable lCleanupStackVariable =
                                                new CleanupStackVariable("CleanupStackVariable",
@@ -223,6 +234,11 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
   public <T> void addDevice(int pDeviceIndex, T pDevice)
   {
     mDeviceLists.addDevice(pDeviceIndex, pDevice);
+
+    // plane batches are streamed to the pipeline as they are acquired:
+    if (pDevice instanceof StackCameraDeviceInterface)
+      ((StackCameraDeviceInterface<?>) pDevice).getPlaneBatchVariable()
+                                               .sendUpdatesTo(mStackProcessingPipeline.getPlaneBatchInputVariable());
   }
 
   @Override
@@ -327,6 +343,12 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
     return mStackProcessingPipeline.getOutputVariable();
   }
 
+  @Override
+  public Variable<StackPlaneBatch> getPipelinePlaneBatchVariable()
+  {
+    return mStackProcessingPipeline.getPlaneBatchOutputVariable();
+  }
+
   @Override
   public boolean open()
   {
@@ -476,6 +498,15 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
 
   }
 
+  @SuppressWarnings("unchecked")
+  @Override
+  public Variable<StackPlaneBatch> getCameraPlaneBatchVariable(int pIndex)
+  {
+    return mDeviceLists.getDevice(StackCameraDeviceInterface.class,
+                                  pIndex)
+                       .getPlaneBatchVariable();
+  }
+
   @Override
   public void useRecycler(final String pName,
                           final int pMinimumNumberOfAvailableStacks,
@@ -540,6 +571,40 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
     mStackRecyclerManager.clearAll();
   }
 
+  /**
+   * Returns the variable holding the garbage collection policy applied before
+   * playing a queue.
+   * 
+   * @return garbage collection policy variable
+   */
+  public Variable<GarbageCollectionPolicy> getGarbageCollectionPolicyVariable()
+  {
+    return mGarbageCollectionPolicyVariable;
+  }
+
+  /**
+   * Returns the variable holding the heap usage threshold above which garbage
+   * collection is forced, when the policy is AboveHeapUsageThreshold.
+   * 
+   * @return heap usage threshold variable
+   */
+  public Variable<Double> getGarbageCollectionHeapUsageThresholdVariable()
+  {
+    return mGarbageCollectionHeapUsageThresholdVariable;
+  }
+
+  /**
+   * Returns the timing recorder collecting the timings of the acquisition
+   * path: forced GC, queue playing per device, stack delivery per camera,
+   * recycler waits, GC pauses and pipeline stages.
+   * 
+   * @return timing recorder
+   */
+  public TimingRecorder getTimingRecorder()
+  {
+    return TimingRecorder.getSingletonTimingRecorder();
+  }
+
   @Override
   public abstract Q requestQueue();
 
@@ -547,7 +612,15 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
   public FutureBooleanList playQueue(Q pQueue)
   {
     return lock(() -> {
-      GarbageCollector.trigger();
+      final TimingRecorder lTimingRecorder =
+                                           TimingRecorder.getSingletonTimingRecorder();
+
+      final long lGarbageCollectionStartTime = lTimingRecorder.now();
+      if (GarbageCollector.trigger(getGarbageCollectionPolicyVariable().get(),
+                                   getGarbageCollectionHeapUsageThresholdVariable().get()))
+        lTimingRecorder.record("ForcedGC",
+                               getName(),
+                               lGarbageCollectionStartTime);
 
       getPlayedQueueVariable().set(pQueue);
 
@@ -564,12 +637,21 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
           final QueueDeviceInterface<QueueInterface> lStateQueueDeviceInterface =
                                                                                 (QueueDeviceInterface<QueueInterface>) lDevice;
 
+          final long lPlayQueueStartTime = lTimingRecorder.now();
+
           QueueInterface lDeviceQueue =
                                       pQueue.getDeviceQueue(lStateQueueDeviceInterface);
 
           final Future<Boolean> lPlayQueueFuture =
                                                  lStateQueueDeviceInterface.playQueue(lDeviceQueue);
 
+          // compiling and uploading the queue happens before playQueue()
+          // returns:
+          if (lTimingRecorder.isEnabled())
+            lTimingRecorder.record("PlayQueue",
+                                   lDevice.toString(),
+                                   lPlayQueueStartTime);
+
           if (lPlayQueueFuture != null)
             lFutureBooleanList.addFuture(lDevice.toString(),
                                          lPlayQueueFuture);
@@ -588,8 +670,13 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
                                                       TimeoutException
   {
     return lock(() -> {
+      final TimingRecorder lTimingRecorder =
+                                           TimingRecorder.getSingletonTimingRecorder();
+      final long lStartTime = lTimingRecorder.now();
       final FutureBooleanList lPlayQueue = playQueue(pQueue);
-      return lPlayQueue.get(pTimeOut, pTimeUnit);
+      final Boolean lBoolean = lPlayQueue.get(pTimeOut, pTimeUnit);
+      lTimingRecorder.record("Acquisition", getName(), lStartTime);
+      return lBoolean;
     });
   }
 
@@ -601,6 +688,9 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
                                                                TimeoutException
   {
     return lock(() -> {
+      final TimingRecorder lTimingRecorder =
+                                           TimingRecorder.getSingletonTimingRecorder();
+      final long lStartTime = lTimingRecorder.now();
 
       int lNumberOfStackCameras =
                                 getDeviceLists().getNumberOfDevices(StackCameraDeviceInterface.class);
@@ -627,6 +717,12 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
                                                                    {
                                                                      /*System.out.println("Received: "
                                                                                         + pNewValue);/**/
+                                                                     // delivery latency from the start of the acquisition:
+                                                                     if (lTimingRecorder.isEnabled())
+                                                                       lTimingRecorder.record("StackDelivery",
+                                                                                              "Camera"
+                                                                                                               + fi,
+                                                                                              lStartTime);
                                                                      lStacksReceivedLatches[fi].countDown();
                                                                      if (pNewValue == null)
                                                                        return;
@@ -653,13 +749,16 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
       final FutureBooleanList lPlayQueue = playQueue(pQueue);
 
       Boolean lBoolean = lPlayQueue.get(pTimeOut, pTimeUnit);
+      lTimingRecorder.record("Acquisition", getName(), lStartTime);
 
       if (lBoolean != null && lBoolean)
       {
+        final long lWaitStartTime = lTimingRecorder.now();
         for (int i = 0; i < lNumberOfStackCameras; i++)
         {
           lStacksReceivedLatches[i].await(pTimeOut, pTimeUnit);
         }
+        lTimingRecorder.record("StackWait", getName(), lWaitStartTime);
       }
 
       for (VariableSetListener<StackInterface> lVariableSetListener : lListenerList)
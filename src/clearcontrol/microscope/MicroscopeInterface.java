@@ -16,6 +16,7 @@ import clearcontrol.core.variable.Variable;
 import clearcontrol.devices.stages.StageDeviceInterface;
 import clearcontrol.microscope.state.AcquisitionStateManager;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.processor.StackProcessingPipelineInterface;
 import clearcontrol.stack.processor.StackProcessorInterface;
@@ -323,6 +324,23 @@ public interface MicroscopeInterface<Q extends QueueInterface> extends
    */
   public Variable<StackInterface> getCameraStackVariable(int pIndex);
 
+  /**
+   * Returns the variable receiving the plane batches of the stacks leaving the
+   * pipeline, when they are streamed through it unchanged
+   * 
+   * @return plane batch variable
+   */
+  public Variable<StackPlaneBatch> getPipelinePlaneBatchVariable();
+
+  /**
+   * Returns the plane batch variable of a given stack camera
+   * 
+   * @param pIndex
+   *          stack camera index
+   * @return plane batch variable
+   */
+  public Variable<StackPlaneBatch> getCameraPlaneBatchVariable(int pIndex);
+
   /**
    * Returns the size in nanometer (anisotropic XY) of a pixel. this is the
    * actual physical size in the sample - thus taking into account overall
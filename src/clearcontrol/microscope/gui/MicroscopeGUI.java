@@ -20,6 +20,7 @@ import clearcontrol.devices.signalamp.ScalingAmplifierDeviceInterface;
 import clearcontrol.devices.signalamp.gui.ScalingAmplifierPanel;
 import clearcontrol.devices.stages.StageDeviceInterface;
 import clearcontrol.devices.stages.gui.StageDevicePanel;
+import clearcontrol.gui.video.contrast.AutoContrastEngine;
 import clearcontrol.gui.video.video2d.Stack2DDisplay;
 import clearcontrol.gui.video.video3d.Stack3DDisplay;
 import clearcontrol.microscope.MicroscopeInterface;
@@ -65,6 +66,11 @@ public class MicroscopeGUI extends VirtualDevice implements
   private ArrayList<Stack3DDisplay> mStack3DDisplayList =
                                                         new ArrayList<>();
 
+  // shared by all displays, so that histograms of a stack shown in several
+  // displays are computed once:
+  private final AutoContrastEngine mAutoContrastEngine =
+                                                       new AutoContrastEngine();
+
   private final boolean m2DDisplay, m3DDisplay;
   private HalcyonGUIGenerator mHalcyonGUIGenerator;
   private HalcyonFrame mHalcyonFrame;
@@ -322,6 +328,7 @@ public class MicroscopeGUI extends VirtualDevice implements
                                                                 cDefaultWindowWidth,
                                                                 cDefaultWindowHeight,
                                                                 c % 2 == 1);
+        lStack2DDisplay.setAutoContrastEngine(mAutoContrastEngine);
         lStack2DDisplay.setVisible(false);
         mStack2DDisplayList.add(lStack2DDisplay);
       }
@@ -335,6 +342,7 @@ public class MicroscopeGUI extends VirtualDevice implements
                                                               cDefaultWindowHeight,
                                                               1,
                                                               10);
+      lStack3DDisplay.setAutoContrastEngine(mAutoContrastEngine);
       lStack3DDisplay.getVisibleVariable().set(false);
       mStack3DDisplayList.add(lStack3DDisplay);
     }
@@ -5,6 +5,7 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import clearcl.util.ElapsedTime;
@@ -22,9 +23,11 @@ import clearcontrol.microscope.state.AcquisitionType;
 import clearcontrol.microscope.timelapse.timer.TimelapseTimerInterface;
 import clearcontrol.microscope.timelapse.timer.fixed.FixedIntervalTimelapseTimer;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.metadata.MetaDataChannel;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
 import clearcontrol.stack.sourcesink.sink.FileStackSinkInterface;
+import clearcontrol.stack.sourcesink.sink.PlaneStreamingStackSinkInterface;
 
 /**
  * Base implementation providing common fields and methods for all Timelapse
@@ -124,6 +127,12 @@ public abstract class TimelapseBase extends LoopTaskDevice
                                                                                                       1);
 
   private final VariableSetListener<StackInterface> mStackListener;
+  private final VariableSetListener<StackPlaneBatch> mPlaneBatchListener;
+
+  // stacks streamed to the sink plane by plane, mapped to whether their last
+  // batch has been appended:
+  private final ConcurrentHashMap<StackInterface, Boolean> mStreamedStackMap =
+                                                                          new ConcurrentHashMap<>();
 
   /**
    * Instantiates a timelapse with a given timelapse timer
@@ -154,25 +163,46 @@ public abstract class TimelapseBase extends LoopTaskDevice
                                                                   "New dataset name: %s \n",
                                                                   n));
 
+    mPlaneBatchListener = (o, n) -> {
+      Variable<FileStackSinkInterface> lStackSinkVariable =
+                                                          getCurrentFileStackSinkVariable();
+      if (n == null || !isSaved(n.getStack())
+          || !(lStackSinkVariable.get() instanceof PlaneStreamingStackSinkInterface))
+        return;
+
+      final StackInterface lStack = n.getStack();
+      // a stack is only streamed if its first batch was received:
+      if (!n.isFirstBatch() && !mStreamedStackMap.containsKey(lStack))
+        return;
+
+      final PlaneStreamingStackSinkInterface lPlaneStreamingStackSink =
+                                                                      (PlaneStreamingStackSinkInterface) lStackSinkVariable.get();
+      mStreamedStackMap.put(lStack, false);
+      if (lPlaneStreamingStackSink.appendPlanes(getChannel(lStack), n)
+          && n.isLastBatch())
+        mStreamedStackMap.put(lStack, true);
+    };
+
     mStackListener = (o, n) -> {
       Variable<FileStackSinkInterface> lStackSinkVariable =
                                                           getCurrentFileStackSinkVariable();
-      if (getSaveStacksVariable().get() && lStackSinkVariable != null
-          && n != null
-          && n.getMetaData()
-              .getValue(MetaDataAcquisitionType.AcquisitionType) == AcquisitionType.TimeLapse)
+      if (isSaved(n))
       {
+        final Boolean lStreamed = mStreamedStackMap.remove(n);
+        if (lStreamed != null)
+        {
+          if (!lStreamed)
+            warning("Stack %s was not fully streamed to the file sink %s",
+                    n,
+                    lStackSinkVariable);
+          return;
+        }
+
         info("Appending new stack %s to the file sink %s",
              n,
              lStackSinkVariable);
 
-        String lChannelInMetaData =
-                                  n.getMetaData()
-                                   .getValue(MetaDataChannel.Channel);
-
-        final String lChannel =
-                              lChannelInMetaData != null ? lChannelInMetaData
-                                                         : StackSinkSourceInterface.cDefaultChannel;
+        final String lChannel = getChannel(n);
 
         ElapsedTime.measureForceOutput("TimeLapse stack saving",
                                        () -> lStackSinkVariable.get()
@@ -195,6 +225,24 @@ public abstract class TimelapseBase extends LoopTaskDevice
     });
   }
 
+  private boolean isSaved(StackInterface pStack)
+  {
+    return getSaveStacksVariable().get()
+           && getCurrentFileStackSinkVariable().get() != null
+           && pStack != null
+           && pStack.getMetaData()
+                    .getValue(MetaDataAcquisitionType.AcquisitionType) == AcquisitionType.TimeLapse;
+  }
+
+  private String getChannel(StackInterface pStack)
+  {
+    String lChannelInMetaData = pStack.getMetaData()
+                                      .getValue(MetaDataChannel.Channel);
+
+    return lChannelInMetaData != null ? lChannelInMetaData
+                                      : StackSinkSourceInterface.cDefaultChannel;
+  }
+
   /**
    * Instantiates a timelapse with a fixed interval timer
    * 
@@ -292,18 +340,26 @@ public abstract class TimelapseBase extends LoopTaskDevice
       // changes
 
       Variable<StackInterface> lPipelineStackVariable = null;
+      Variable<StackPlaneBatch> lPipelinePlaneBatchVariable = null;
       if (mMicroscope != null)
       {
         lPipelineStackVariable =
                                mMicroscope.getPipelineStackVariable();
         lPipelineStackVariable.addSetListener(mStackListener);
+        lPipelinePlaneBatchVariable =
+                                    mMicroscope.getPipelinePlaneBatchVariable();
+        lPipelinePlaneBatchVariable.addSetListener(mPlaneBatchListener);
       }
 
       initAdaptiveEngine();
 
       super.run();
       if (mMicroscope != null)
+      {
+        lPipelinePlaneBatchVariable.removeSetListener(mPlaneBatchListener);
         lPipelineStackVariable.removeSetListener(mStackListener);
+      }
+      mStreamedStackMap.clear();
 
       getCurrentFileStackSinkVariable().set((FileStackSinkInterface) null);
     }
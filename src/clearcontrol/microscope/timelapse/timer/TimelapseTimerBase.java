@@ -56,6 +56,11 @@ public class TimelapseTimerBase implements
         mActualAcquisitionIntervalVariable.set(lActualAcquisitionTime);
       }
     });
+
+    // threads waiting for the next time point need to know:
+    mAcquisitionIntervalVariable.addSetListener((o, n) -> notifyWaiters());
+    mAcquisitionIntervalUnitVariable.addSetListener((o,
+                                                     n) -> notifyWaiters());
   }
 
   @Override
@@ -92,6 +97,7 @@ public class TimelapseTimerBase implements
     }
 
     mLastAcquisitionTimeInNS = lLastAcquisitionTimeInNs;
+    notifyWaiters();
   }
 
   @Override
@@ -131,6 +137,7 @@ public class TimelapseTimerBase implements
   public void reset()
   {
     mLastAcquisitionTimeInNS = -1;
+    notifyWaiters();
   }
 
   /**
@@ -173,21 +180,30 @@ public class TimelapseTimerBase implements
   @Override
   public boolean waitToAcquire(long pTimeOut, TimeUnit pTimeUnit)
   {
-    long lNow = System.nanoTime();
-    long lTimeOut = lNow + TimeUnit.NANOSECONDS.convert(pTimeOut,
-                                                        pTimeUnit);
+    final long lStartTimeInNS = System.nanoTime();
+    final long lTimeOutInNS = TimeUnit.NANOSECONDS.convert(pTimeOut,
+                                                           pTimeUnit);
 
-    class NowRef
+    // waits precisely until the next time point, but wakes up early if the
+    // interval or last acquisition time change:
+    while (!Thread.currentThread().isInterrupted())
     {
-      public long now;
+      final long lTimeLeftInNS =
+                               timeLeftBeforeNextTimePoint(TimeUnit.NANOSECONDS);
+      if (lTimeLeftInNS <= 0)
+        return true;
+
+      final long lNow = System.nanoTime();
+      final long lTimeOutLeftInNS = lTimeOutInNS
+                                    - (lNow - lStartTimeInNS);
+      if (lTimeOutLeftInNS <= 0)
+        return false;
+
+      getWaitingSignal().awaitSignalOrDeadline(lNow
+                                               + Math.min(lTimeLeftInNS,
+                                                          lTimeOutLeftInNS));
     }
-
-    final NowRef lNowRef = new NowRef();
-
-    waitFor(() -> timeLeftBeforeNextTimePoint(TimeUnit.NANOSECONDS) <= 0
-                  || (lNowRef.now = System.nanoTime()) > lTimeOut);
-
-    return lNowRef.now < lTimeOut;
+    return false;
   }
 
   @Override
@@ -0,0 +1,543 @@
+package clearcontrol.scripting.autoimport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import clearcontrol.core.configuration.MachineConfiguration;
+
+/**
+ * Class path index
+ *
+ * Index of the classes available on the class path, built by listing the class
+ * files of each class path root (directory or jar) and of the Java runtime -
+ * without loading any class. The index maps simple class names to fully
+ * qualified names in constant time. Nested classes, package-info and
+ * module-info are not indexed.
+ *
+ * Listing jars and the Java runtime is what takes time, so their content can be
+ * saved to a cache file named after a hash of the jar paths, sizes and
+ * modification dates. Directories - typically build output folders that change
+ * often - are always listed again.
+ *
+ * @author royer
+ */
+public class ClassPathIndex
+{
+  private static final String cRuntimeRoot = "jrt:/";
+  private static final int cCacheFileVersion = 2;
+
+  private static volatile ClassPathIndex sClassPathIndex;
+
+  private final LinkedHashMap<String, List<String>> mRootToClassNamesMap;
+  private final HashMap<String, String[]> mSimpleNameToFullyQualifiedNamesMap =
+                                                                            new HashMap<>();
+  private final HashMap<String, Set<String>> mRootToPackagesMap =
+                                                                new HashMap<>();
+
+  /**
+   * Returns the index of the JVM class path (and Java runtime). The index is
+   * built on first use, the cache folder of the machine configuration is used
+   * to cache the content of jars.
+   *
+   * @return class path index
+   */
+  public static ClassPathIndex getSingletonClassPathIndex()
+  {
+    if (sClassPathIndex == null)
+      synchronized (ClassPathIndex.class)
+      {
+        if (sClassPathIndex == null)
+        {
+          File lCacheFolder = null;
+          try
+          {
+            lCacheFolder = MachineConfiguration.get()
+                                               .getFolder("cache");
+          }
+          catch (final Throwable e)
+          {
+            // no cache then
+          }
+          sClassPathIndex = build(getClassPathRoots(), true, lCacheFolder);
+        }
+      }
+    return sClassPathIndex;
+  }
+
+  /**
+   * Returns the class path roots of the JVM: the entries of the java.class.path
+   * property, and the URLs of the context class loader if it is a
+   * URLClassLoader.
+   *
+   * @return class path roots
+   */
+  public static List<File> getClassPathRoots()
+  {
+    final LinkedHashSet<File> lRoots = new LinkedHashSet<>();
+    for (final String lEntry : System.getProperty("java.class.path", "")
+                                     .split(File.pathSeparator))
+      if (!lEntry.isEmpty())
+        lRoots.add(new File(lEntry).getAbsoluteFile());
+
+    final ClassLoader lClassLoader = Thread.currentThread()
+                                           .getContextClassLoader();
+    if (lClassLoader instanceof URLClassLoader)
+      for (final URL lURL : ((URLClassLoader) lClassLoader).getURLs())
+        if ("file".equals(lURL.getProtocol()))
+          try
+          {
+            lRoots.add(new File(lURL.toURI()).getAbsoluteFile());
+          }
+          catch (final Exception e)
+          {
+            // not a local file
+          }
+
+    return new ArrayList<>(lRoots);
+  }
+
+  /**
+   * Builds a class path index for the given roots.
+   *
+   * @param pRoots
+   *          class path roots: directories and jars
+   * @param pIncludeRuntime
+   *          true for including the classes of the Java runtime
+   * @param pCacheFolder
+   *          folder holding the cache file for jars and runtime, null for no
+   *          caching
+   * @return class path index
+   */
+  public static ClassPathIndex build(List<File> pRoots,
+                                     boolean pIncludeRuntime,
+                                     File pCacheFolder)
+  {
+    final ArrayList<File> lDirectories = new ArrayList<>();
+    final ArrayList<File> lJars = new ArrayList<>();
+    for (final File lRoot : pRoots)
+      if (lRoot.isDirectory())
+        lDirectories.add(lRoot);
+      else if (lRoot.isFile())
+        lJars.add(lRoot);
+
+    final File lCacheFile =
+                          pCacheFolder == null ? null
+                                               : new File(pCacheFolder,
+                                                          "classpathindex."
+                                                                        + hash(lJars,
+                                                                               pIncludeRuntime)
+                                                                        + ".bin");
+
+    LinkedHashMap<String, List<String>> lRootToClassNamesMap = null;
+    if (lCacheFile != null && lCacheFile.exists())
+      try
+      {
+        lRootToClassNamesMap = load(lCacheFile);
+      }
+      catch (final IOException e)
+      {
+        lRootToClassNamesMap = null;
+      }
+
+    if (lRootToClassNamesMap == null)
+    {
+      lRootToClassNamesMap = new LinkedHashMap<>();
+      if (pIncludeRuntime)
+        lRootToClassNamesMap.putAll(listRuntimeClasses());
+      for (final File lJar : lJars)
+        lRootToClassNamesMap.put(lJar.getPath(), listJarClasses(lJar));
+
+      if (lCacheFile != null)
+        try
+        {
+          save(lRootToClassNamesMap, lCacheFile);
+        }
+        catch (final IOException e)
+        {
+          System.err.format("Could not save class path index to %s: %s \n",
+                            lCacheFile,
+                            e);
+        }
+    }
+
+    for (final File lDirectory : lDirectories)
+      lRootToClassNamesMap.put(lDirectory.getPath(),
+                               listDirectoryClasses(lDirectory));
+
+    return new ClassPathIndex(lRootToClassNamesMap);
+  }
+
+  private ClassPathIndex(LinkedHashMap<String, List<String>> pRootToClassNamesMap)
+  {
+    mRootToClassNamesMap = pRootToClassNamesMap;
+
+    final HashMap<String, LinkedHashSet<String>> lSimpleNameToFullyQualifiedNamesMap =
+                                                                                     new HashMap<>();
+    for (final Map.Entry<String, List<String>> lEntry : mRootToClassNamesMap.entrySet())
+    {
+      final HashSet<String> lPackages = new HashSet<>();
+      for (final String lClassName : lEntry.getValue())
+      {
+        final int lLastDot = lClassName.lastIndexOf('.');
+        final String lSimpleName = lClassName.substring(lLastDot + 1);
+        lPackages.add(lLastDot < 0 ? "" : lClassName.substring(0, lLastDot));
+
+        LinkedHashSet<String> lFullyQualifiedNames =
+                                                   lSimpleNameToFullyQualifiedNamesMap.get(lSimpleName);
+        if (lFullyQualifiedNames == null)
+        {
+          lFullyQualifiedNames = new LinkedHashSet<>(2);
+          lSimpleNameToFullyQualifiedNamesMap.put(lSimpleName,
+                                                  lFullyQualifiedNames);
+        }
+        lFullyQualifiedNames.add(lClassName);
+      }
+      mRootToPackagesMap.put(lEntry.getKey(), lPackages);
+    }
+
+    for (final Map.Entry<String, LinkedHashSet<String>> lEntry : lSimpleNameToFullyQualifiedNamesMap.entrySet())
+      mSimpleNameToFullyQualifiedNamesMap.put(lEntry.getKey(),
+                                              lEntry.getValue()
+                                                    .toArray(new String[0]));
+  }
+
+  /**
+   * Returns the fully qualified names of all indexed classes with a given
+   * simple name.
+   *
+   * @param pSimpleName
+   *          simple class name
+   * @return list of fully qualified names, empty if none
+   */
+  public List<String> getFullyQualifiedNames(String pSimpleName)
+  {
+    final String[] lFullyQualifiedNames =
+                                        mSimpleNameToFullyQualifiedNamesMap.get(pSimpleName);
+    if (lFullyQualifiedNames == null)
+      return Collections.emptyList();
+    return Arrays.asList(lFullyQualifiedNames);
+  }
+
+  /**
+   * Returns the packages of all classes held by the class path roots that
+   * contain a given base package.
+   *
+   * @param pBasePackage
+   *          base package
+   * @return set of packages
+   */
+  public Set<String> getPackagesOfRootsContaining(String pBasePackage)
+  {
+    final HashSet<String> lPackages = new HashSet<>();
+    for (final Set<String> lRootPackages : mRootToPackagesMap.values())
+      for (final String lPackage : lRootPackages)
+        if (lPackage.equals(pBasePackage)
+            || lPackage.startsWith(pBasePackage + "."))
+        {
+          lPackages.addAll(lRootPackages);
+          break;
+        }
+    return lPackages;
+  }
+
+  /**
+   * Returns the indexed class path roots
+   *
+   * @return roots
+   */
+  public Set<String> getRoots()
+  {
+    return Collections.unmodifiableSet(mRootToClassNamesMap.keySet());
+  }
+
+  /**
+   * Returns the number of indexed classes
+   *
+   * @return number of classes
+   */
+  public int getNumberOfClasses()
+  {
+    int lNumberOfClasses = 0;
+    for (final List<String> lClassNames : mRootToClassNamesMap.values())
+      lNumberOfClasses += lClassNames.size();
+    return lNumberOfClasses;
+  }
+
+  /**
+   * Returns the class name for a class file path relative to its root, or null
+   * if the file is not indexed (not a class file, nested class, package-info,
+   * module-info).
+   *
+   * @param pRelativePath
+   *          class file path relative to its root, with '/' separators
+   * @return class name or null
+   */
+  static String toClassName(String pRelativePath)
+  {
+    if (!pRelativePath.endsWith(".class") || pRelativePath.indexOf('$') >= 0
+        || pRelativePath.startsWith("META-INF/"))
+      return null;
+    final String lClassName =
+                            pRelativePath.substring(0,
+                                                    pRelativePath.length()
+                                                       - ".class".length())
+                                         .replace('/', '.');
+    if (lClassName.endsWith("package-info")
+        || lClassName.endsWith("module-info"))
+      return null;
+    return lClassName;
+  }
+
+  private static List<String> listDirectoryClasses(File pDirectory)
+  {
+    final ArrayList<String> lClassNames = new ArrayList<>();
+    final Path lRoot = pDirectory.toPath();
+    try (Stream<Path> lPaths = Files.walk(lRoot))
+    {
+      lPaths.forEach(lPath -> {
+        final String lClassName =
+                                toClassName(lRoot.relativize(lPath)
+                                                 .toString()
+                                                 .replace(File.separatorChar,
+                                                          '/'));
+        if (lClassName != null)
+          lClassNames.add(lClassName);
+      });
+    }
+    catch (final Exception e)
+    {
+      System.err.format("Could not list classes of %s: %s \n",
+                        pDirectory,
+                        e);
+    }
+    return lClassNames;
+  }
+
+  private static List<String> listJarClasses(File pJar)
+  {
+    final ArrayList<String> lClassNames = new ArrayList<>();
+    try (ZipFile lZipFile = new ZipFile(pJar))
+    {
+      final Enumeration<? extends ZipEntry> lEntries = lZipFile.entries();
+      while (lEntries.hasMoreElements())
+      {
+        final String lClassName =
+                                toClassName(lEntries.nextElement()
+                                                    .getName());
+        if (lClassName != null)
+          lClassNames.add(lClassName);
+      }
+    }
+    catch (final IOException e)
+    {
+      System.err.format("Could not list classes of %s: %s \n",
+                        pJar,
+                        e);
+    }
+    return lClassNames;
+  }
+
+  private static Map<String, List<String>> listRuntimeClasses()
+  {
+    final LinkedHashMap<String, List<String>> lRootToClassNamesMap =
+                                                                   new LinkedHashMap<>();
+
+    // Java 8 and earlier: the runtime classes are in the boot class path jars
+    // and in the extension jars (JavaFX, Nashorn, ...)
+    final String lBootClassPath =
+                                System.getProperty("sun.boot.class.path");
+    if (lBootClassPath != null)
+    {
+      for (final String lEntry : lBootClassPath.split(File.pathSeparator))
+      {
+        final File lJar = new File(lEntry);
+        if (lJar.isFile())
+          lRootToClassNamesMap.put(lJar.getPath(),
+                                   listJarClasses(lJar));
+      }
+      for (final File lJar : listExtensionJars())
+        if (!lRootToClassNamesMap.containsKey(lJar.getPath()))
+          lRootToClassNamesMap.put(lJar.getPath(),
+                                   listJarClasses(lJar));
+      return lRootToClassNamesMap;
+    }
+
+    // Java 9 and later: the runtime classes are in the jrt file system, under
+    // /modules/<module name>/
+    final ArrayList<String> lClassNames = new ArrayList<>();
+    try
+    {
+      final FileSystem lFileSystem =
+                                   FileSystems.getFileSystem(URI.create(cRuntimeRoot));
+      final Path lModules = lFileSystem.getPath("/modules");
+      try (Stream<Path> lPaths = Files.walk(lModules))
+      {
+        lPaths.forEach(lPath -> {
+          if (lPath.getNameCount() < 3)
+            return;
+          final String lClassName =
+                                  toClassName(lPath.subpath(2,
+                                                            lPath.getNameCount())
+                                                   .toString());
+          if (lClassName != null)
+            lClassNames.add(lClassName);
+        });
+      }
+    }
+    catch (final Exception e)
+    {
+      System.err.format("Could not list Java runtime classes: %s \n",
+                        e);
+    }
+    lRootToClassNamesMap.put(cRuntimeRoot, lClassNames);
+    return lRootToClassNamesMap;
+  }
+
+  private static List<File> listExtensionJars()
+  {
+    final ArrayList<File> lJars = new ArrayList<>();
+    final String lExtensionDirectories =
+                                       System.getProperty("java.ext.dirs");
+    if (lExtensionDirectories == null)
+      return lJars;
+
+    for (final String lEntry : lExtensionDirectories.split(File.pathSeparator))
+    {
+      final File[] lFiles = new File(lEntry).listFiles((pDirectory,
+                                                        pName) -> pName.endsWith(".jar"));
+      if (lFiles == null)
+        continue;
+      Arrays.sort(lFiles);
+      lJars.addAll(Arrays.asList(lFiles));
+    }
+    return lJars;
+  }
+
+  /**
+   * Returns a hash of the given jars - paths, sizes and modification dates -
+   * and of the Java runtime version and extension jars if the runtime is
+   * included.
+   *
+   * @param pJars
+   *          jars
+   * @param pIncludeRuntime
+   *          true if the runtime classes are included
+   * @return hash as hexadecimal string
+   */
+  static String hash(List<File> pJars, boolean pIncludeRuntime)
+  {
+    try
+    {
+      final MessageDigest lMessageDigest =
+                                         MessageDigest.getInstance("SHA-256");
+      lMessageDigest.update(String.valueOf(cCacheFileVersion)
+                                  .getBytes(StandardCharsets.UTF_8));
+      if (pIncludeRuntime)
+        lMessageDigest.update((System.getProperty("java.home") + "|"
+                               + System.getProperty("java.version"))
+                                                                    .getBytes(StandardCharsets.UTF_8));
+      final ArrayList<File> lJars = new ArrayList<>(pJars);
+      if (pIncludeRuntime)
+        lJars.addAll(listExtensionJars());
+      for (final File lJar : lJars)
+        lMessageDigest.update(String.format("|%s|%d|%d",
+                                            lJar.getPath(),
+                                            lJar.length(),
+                                            lJar.lastModified())
+                                    .getBytes(StandardCharsets.UTF_8));
+
+      final StringBuilder lStringBuilder = new StringBuilder();
+      final byte[] lDigest = lMessageDigest.digest();
+      // 128 bits are plenty to tell class paths apart:
+      for (int i = 0; i < 16; i++)
+        lStringBuilder.append(String.format("%02x", lDigest[i]));
+      return lStringBuilder.toString();
+    }
+    catch (final NoSuchAlgorithmException e)
+    {
+      // SHA-256 is available on all Java platforms:
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void save(Map<String, List<String>> pRootToClassNamesMap,
+                           File pFile) throws IOException
+  {
+    final File lTemporaryFile = new File(pFile.getPath() + ".tmp");
+    try (DataOutputStream lOutput =
+                                  new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lTemporaryFile))))
+    {
+      lOutput.writeInt(cCacheFileVersion);
+      lOutput.writeInt(pRootToClassNamesMap.size());
+      for (final Map.Entry<String, List<String>> lEntry : pRootToClassNamesMap.entrySet())
+      {
+        lOutput.writeUTF(lEntry.getKey());
+        lOutput.writeInt(lEntry.getValue().size());
+        for (final String lClassName : lEntry.getValue())
+          lOutput.writeUTF(lClassName);
+      }
+    }
+    // the cache file appears complete or not at all:
+    if (!lTemporaryFile.renameTo(pFile))
+    {
+      lTemporaryFile.delete();
+      throw new IOException("Could not rename " + lTemporaryFile);
+    }
+  }
+
+  private static LinkedHashMap<String, List<String>> load(File pFile) throws IOException
+  {
+    try (DataInputStream lInput =
+                                new DataInputStream(new BufferedInputStream(new FileInputStream(pFile))))
+    {
+      if (lInput.readInt() != cCacheFileVersion)
+        throw new IOException("Unknown class path index version");
+
+      final int lNumberOfRoots = lInput.readInt();
+      final LinkedHashMap<String, List<String>> lRootToClassNamesMap =
+                                                                     new LinkedHashMap<>();
+      for (int r = 0; r < lNumberOfRoots; r++)
+      {
+        final String lRoot = lInput.readUTF();
+        final int lNumberOfClasses = lInput.readInt();
+        final ArrayList<String> lClassNames =
+                                            new ArrayList<>(lNumberOfClasses);
+        for (int i = 0; i < lNumberOfClasses; i++)
+          lClassNames.add(lInput.readUTF());
+        lRootToClassNamesMap.put(lRoot, lClassNames);
+      }
+      return lRootToClassNamesMap;
+    }
+  }
+
+}
@@ -7,17 +7,20 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
-import org.reflections.util.ClasspathHelper;
-import org.reflections.util.ConfigurationBuilder;
-
+/**
+ * Class path resolver
+ *
+ * Resolves simple class names to fully qualified names using the class path
+ * index - no class is loaded in the process. Only classes that belong to the
+ * packages of the class path roots containing the base package, or to packages
+ * already known to the current class loader, are considered.
+ *
+ * @author royer
+ */
 public class ClassPathResolver
 {
 
-  static Set<String> sPackages;
-  static ConcurrentHashMap<String, HashSet<String>> sClassNameToFullyQualifiedNames =
-                                                                                    new ConcurrentHashMap<>();
+  static volatile Set<String> sPackages;
 
   public static List<String> getFullyQualifiedNames(String pSimpleName)
   {
@@ -27,50 +30,35 @@ public class ClassPathResolver
   public static List<String> getFullyQualifiedNames(String pBasePackage,
                                                     String pSimpleName)
   {
-    final List<String> lFullyQualifiedNames = new ArrayList<String>();
-
-    if (sPackages == null)
-    {
-      sPackages = getPackagesFromClassPath(pBasePackage);
-      sPackages.addAll(getPackagesFromCurrentClassLoader());
-    }
+    final Set<String> lPackages = getPackages(pBasePackage);
 
-    HashSet<String> lKnownFullyQualifiedNames =
-                                              sClassNameToFullyQualifiedNames.get(pSimpleName);
-
-    if (lKnownFullyQualifiedNames != null)
+    final List<String> lFullyQualifiedNames = new ArrayList<String>();
+    for (final String lCandidateFullyQualifiedName : ClassPathIndex.getSingletonClassPathIndex()
+                                                                   .getFullyQualifiedNames(pSimpleName))
     {
-      lFullyQualifiedNames.addAll(lKnownFullyQualifiedNames);
-      return lFullyQualifiedNames;
+      final String lPackage =
+                            lCandidateFullyQualifiedName.substring(0,
+                                                                   Math.max(0,
+                                                                            lCandidateFullyQualifiedName.length()
+                                                                               - pSimpleName.length()
+                                                                               - 1));
+      if (lPackages.contains(lPackage))
+        lFullyQualifiedNames.add(lCandidateFullyQualifiedName);
     }
 
-    if (lKnownFullyQualifiedNames == null)
-    {
-      lKnownFullyQualifiedNames = new HashSet<String>();
-      sClassNameToFullyQualifiedNames.put(pSimpleName,
-                                          lKnownFullyQualifiedNames);
-    }
+    return lFullyQualifiedNames;
+  }
 
-    for (final String aPackage : sPackages)
+  public static Set<String> getPackages(String pBasePackage)
+  {
+    // packages are snapshotted on first use:
+    if (sPackages == null)
     {
-      final String lCandidateFullyQualifiedName = aPackage + "."
-                                                  + pSimpleName;
-
-      try
-      {
-        Class.forName(lCandidateFullyQualifiedName);
-        lFullyQualifiedNames.add(lCandidateFullyQualifiedName);
-        lKnownFullyQualifiedNames.add(lCandidateFullyQualifiedName);
-      }
-      catch (final Exception e)
-      {
-        /*System.out.format("package '%s' does not exist. \n",
-        									lCandidateFullyQualifiedName);/**/
-
-      }
+      final Set<String> lPackages = getPackagesFromClassPath(pBasePackage);
+      lPackages.addAll(getPackagesFromCurrentClassLoader());
+      sPackages = lPackages;
     }
-
-    return lFullyQualifiedNames;
+    return Collections.unmodifiableSet(sPackages);
   }
 
   public static HashSet<String> getPackagesFromCurrentClassLoader()
@@ -85,26 +73,10 @@ public class ClassPathResolver
 
   public static Set<String> getPackagesFromClassPath(String pBasePackage)
   {
-    final Reflections lReflections =
-                                   new Reflections(new ConfigurationBuilder().setUrls(ClasspathHelper.forPackage(pBasePackage))
-                                                                             .setScanners(new SubTypesScanner(false)));
-
     final Set<String> lPackages =
                                 Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
-    for (final String lType : lReflections.getAllTypes())
-    {
-      try
-      {
-        final Class<?> lClass = Class.forName(lType);
-        final Package lPackage = lClass.getPackage();
-        final String lName = lPackage.getName();
-        lPackages.add(lName);
-      }
-      catch (final Throwable e)
-      {
-
-      }
-    }
+    lPackages.addAll(ClassPathIndex.getSingletonClassPathIndex()
+                                   .getPackagesOfRootsContaining(pBasePackage));
     return lPackages;
   }
 
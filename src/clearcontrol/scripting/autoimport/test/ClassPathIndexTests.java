@@ -0,0 +1,229 @@
+package clearcontrol.scripting.autoimport.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import clearcontrol.scripting.autoimport.ClassPathIndex;
+import clearcontrol.scripting.autoimport.ClassPathResolver;
+
+import org.junit.Test;
+
+/**
+ * Class path index tests
+ *
+ * @author royer
+ */
+public class ClassPathIndexTests
+{
+
+  private static File newFolder() throws IOException
+  {
+    final File lFolder = Files.createTempDirectory("ClassPathIndexTests")
+                              .toFile();
+    lFolder.deleteOnExit();
+    return lFolder;
+  }
+
+  private static File newDirectoryRoot() throws IOException
+  {
+    final File lRoot = newFolder();
+    for (final String lPath : new String[]
+    { "org/example/alpha/Foo.class",
+      "org/example/alpha/Foo$Inner.class",
+      "org/example/alpha/package-info.class",
+      "org/example/alpha/readme.txt",
+      "org/example/beta/Bar.class" })
+    {
+      final File lFile = new File(lRoot, lPath);
+      lFile.getParentFile().mkdirs();
+      lFile.createNewFile();
+    }
+    return lRoot;
+  }
+
+  private static File newJarRoot(File pFolder,
+                                 String... pPaths) throws IOException
+  {
+    final File lJar = new File(pFolder, "test.jar");
+    try (ZipOutputStream lZipOutputStream =
+                                          new ZipOutputStream(new FileOutputStream(lJar)))
+    {
+      for (final String lPath : pPaths)
+      {
+        lZipOutputStream.putNextEntry(new ZipEntry(lPath));
+        lZipOutputStream.closeEntry();
+      }
+    }
+    return lJar;
+  }
+
+  /**
+   * Tests that names are resolved from directory and jar entries
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testDirectoryAndJarEntries() throws IOException
+  {
+    final File lDirectoryRoot = newDirectoryRoot();
+    final File lJarRoot = newJarRoot(newFolder(),
+                                     "META-INF/MANIFEST.MF",
+                                     "META-INF/versions/9/org/example/gamma/Foo.class",
+                                     "module-info.class",
+                                     "org/example/gamma/Foo.class",
+                                     "org/example/gamma/Baz.class",
+                                     "org/example/gamma/Baz$1.class");
+
+    final ClassPathIndex lClassPathIndex =
+                                         ClassPathIndex.build(Arrays.asList(lDirectoryRoot,
+                                                                            lJarRoot),
+                                                              false,
+                                                              null);
+
+    assertEquals(new HashSet<>(Arrays.asList("org.example.alpha.Foo",
+                                             "org.example.gamma.Foo")),
+                 new HashSet<>(lClassPathIndex.getFullyQualifiedNames("Foo")));
+    assertEquals(Arrays.asList("org.example.beta.Bar"),
+                 lClassPathIndex.getFullyQualifiedNames("Bar"));
+    assertEquals(Arrays.asList("org.example.gamma.Baz"),
+                 lClassPathIndex.getFullyQualifiedNames("Baz"));
+
+    // nested classes, package-info and module-info are not indexed:
+    assertTrue(lClassPathIndex.getFullyQualifiedNames("Inner")
+                              .isEmpty());
+    assertTrue(lClassPathIndex.getFullyQualifiedNames("Foo$Inner")
+                              .isEmpty());
+    assertTrue(lClassPathIndex.getFullyQualifiedNames("package-info")
+                              .isEmpty());
+    assertTrue(lClassPathIndex.getFullyQualifiedNames("module-info")
+                              .isEmpty());
+    assertEquals(4, lClassPathIndex.getNumberOfClasses());
+
+    assertEquals(new HashSet<>(Arrays.asList("org.example.alpha",
+                                             "org.example.beta")),
+                 lClassPathIndex.getPackagesOfRootsContaining("org.example.beta"));
+    assertEquals(new HashSet<>(Arrays.asList("org.example.gamma")),
+                 lClassPathIndex.getPackagesOfRootsContaining("org.example.gamma"));
+    assertTrue(lClassPathIndex.getPackagesOfRootsContaining("org.example.gam")
+                              .isEmpty());
+  }
+
+  /**
+   * Tests that jar content is cached, and that the cache is keyed by the jars
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testCacheFile() throws IOException
+  {
+    final File lCacheFolder = newFolder();
+    final File lJarFolder = newFolder();
+    File lJarRoot = newJarRoot(lJarFolder, "org/example/A.class");
+    lJarRoot.setLastModified(1000000000000L);
+    final List<File> lRoots = Arrays.asList(lJarRoot);
+
+    ClassPathIndex lClassPathIndex = ClassPathIndex.build(lRoots,
+                                                          false,
+                                                          lCacheFolder);
+    assertEquals(Arrays.asList("org.example.A"),
+                 lClassPathIndex.getFullyQualifiedNames("A"));
+    final File[] lCacheFiles = lCacheFolder.listFiles();
+    assertEquals(1, lCacheFiles.length);
+    for (final File lCacheFile : lCacheFiles)
+      lCacheFile.deleteOnExit();
+
+    // same jar, the index is loaded from the cache file:
+    lClassPathIndex = ClassPathIndex.build(lRoots, false, lCacheFolder);
+    assertEquals(Arrays.asList("org.example.A"),
+                 lClassPathIndex.getFullyQualifiedNames("A"));
+    assertEquals(1, lCacheFolder.listFiles().length);
+
+    // modified jar, the index is built again:
+    lJarRoot = newJarRoot(lJarFolder,
+                          "org/example/A.class",
+                          "org/example/B.class");
+    lJarRoot.setLastModified(2000000000000L);
+    lClassPathIndex = ClassPathIndex.build(lRoots, false, lCacheFolder);
+    assertEquals(Arrays.asList("org.example.B"),
+                 lClassPathIndex.getFullyQualifiedNames("B"));
+    assertEquals(2, lCacheFolder.listFiles().length);
+    for (final File lCacheFile : lCacheFolder.listFiles())
+      lCacheFile.deleteOnExit();
+  }
+
+  /**
+   * Tests that the resolver gives the same results as loading candidate
+   * classes from every known package - the way it used to work
+   */
+  @Test
+  public void testSameResultsAsClassLoading()
+  {
+    for (final String lSimpleName : new String[]
+    { "String",
+      "Math",
+      "List",
+      "File",
+      "ScriptingEngine",
+      "ClassPathIndex",
+      "Color",
+      "NoSuchClassAnywhere" })
+    {
+      final List<String> lFullyQualifiedNames =
+                                              ClassPathResolver.getFullyQualifiedNames(lSimpleName);
+
+      // packages known to the resolver were snapshotted on its first use, the
+      // same packages are searched:
+      final Set<String> lPackages = ClassPathResolver.getPackages("rtlib");
+      final List<String> lExpectedFullyQualifiedNames =
+                                                      new ArrayList<>();
+      for (final String lPackage : lPackages)
+        try
+        {
+          Class.forName(lPackage + "." + lSimpleName);
+          lExpectedFullyQualifiedNames.add(lPackage + "."
+                                           + lSimpleName);
+        }
+        catch (final Throwable e)
+        {
+        }
+
+      assertEquals(new HashSet<>(lFullyQualifiedNames).size(),
+                   lFullyQualifiedNames.size());
+      assertEquals(lSimpleName,
+                   new HashSet<>(lExpectedFullyQualifiedNames),
+                   new HashSet<>(lFullyQualifiedNames));
+    }
+
+    assertEquals(Arrays.asList("java.lang.String"),
+                 ClassPathResolver.getFullyQualifiedNames("String"));
+    assertTrue(ClassPathResolver.getFullyQualifiedNames("NoSuchClassAnywhere")
+                                .isEmpty());
+
+    // on Java 8, JavaFX comes with the runtime's extension jars:
+    try
+    {
+      Class.forName("javafx.scene.paint.Color");
+      assertTrue(ClassPathResolver.getFullyQualifiedNames("Color")
+                                  .contains("javafx.scene.paint.Color"));
+    }
+    catch (final ClassNotFoundException e)
+    {
+      // no JavaFX in this environment
+    }
+  }
+
+}
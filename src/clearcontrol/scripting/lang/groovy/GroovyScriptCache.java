@@ -0,0 +1,261 @@
+package clearcontrol.scripting.lang.groovy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.Script;
+
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+
+/**
+ * Cache of compiled Groovy script classes, keyed by a hash of the script name
+ * and source. All scripts are compiled by a single shared class loader. Script
+ * classes are cached in LRU order up to a maximum number of entries. The cache
+ * must be invalidated when anything that affects compilation but is not part
+ * of the source changes - compiler configuration, imports - this also replaces
+ * the class loader so that previously compiled classes can be collected.
+ *
+ * @author royer
+ */
+public class GroovyScriptCache
+{
+  private static final String cCodeBase = "/groovy/script";
+
+  private final ClassLoader mParentClassLoader;
+  private final CompilerConfiguration mCompilerConfiguration;
+  private final int mMaxNumberOfEntries;
+
+  private final LinkedHashMap<String, Class<? extends Script>> mScriptClassMap;
+  private volatile GroovyClassLoader mGroovyClassLoader;
+  private volatile long mGeneration;
+  private volatile boolean mEnabled = true;
+
+  private final AtomicLong mNumberOfHits = new AtomicLong();
+  private final AtomicLong mNumberOfMisses = new AtomicLong();
+
+  /**
+   * Instantiates a script cache.
+   *
+   * @param pParentClassLoader
+   *          parent class loader of the shared script class loader
+   * @param pCompilerConfiguration
+   *          compiler configuration
+   * @param pMaxNumberOfEntries
+   *          max number of cached script classes
+   */
+  @SuppressWarnings("serial")
+  public GroovyScriptCache(ClassLoader pParentClassLoader,
+                           CompilerConfiguration pCompilerConfiguration,
+                           int pMaxNumberOfEntries)
+  {
+    super();
+    mParentClassLoader = pParentClassLoader;
+    mCompilerConfiguration = pCompilerConfiguration;
+    mMaxNumberOfEntries = pMaxNumberOfEntries;
+    mScriptClassMap =
+                    new LinkedHashMap<String, Class<? extends Script>>(16,
+                                                                       0.75f,
+                                                                       true)
+                    {
+                      @Override
+                      protected boolean removeEldestEntry(Map.Entry<String, Class<? extends Script>> pEldest)
+                      {
+                        return size() > mMaxNumberOfEntries;
+                      }
+                    };
+    mGroovyClassLoader = newGroovyClassLoader();
+  }
+
+  private GroovyClassLoader newGroovyClassLoader()
+  {
+    return new GroovyClassLoader(mParentClassLoader,
+                                 mCompilerConfiguration);
+  }
+
+  /**
+   * Returns the compiled class of a given script. The script is compiled only
+   * if its class is not cached yet.
+   *
+   * @param pScriptName
+   *          script name
+   * @param pSource
+   *          script source, used as cache key
+   * @param pCompleteSourceSupplier
+   *          supplies the source actually compiled - for example the source
+   *          with resolved imports - only called when the script needs to be
+   *          compiled
+   * @return script class
+   * @throws CompilationFailedException
+   *           if the script cannot be compiled
+   */
+  public Class<? extends Script> getScriptClass(String pScriptName,
+                                                String pSource,
+                                                Supplier<String> pCompleteSourceSupplier) throws CompilationFailedException
+  {
+    if (!mEnabled)
+    {
+      mNumberOfMisses.incrementAndGet();
+      return compile(newGroovyClassLoader(),
+                     pScriptName,
+                     pCompleteSourceSupplier.get());
+    }
+
+    final String lKey = hash(pScriptName, pSource);
+    final long lGeneration;
+    final GroovyClassLoader lGroovyClassLoader;
+    synchronized (mScriptClassMap)
+    {
+      final Class<? extends Script> lScriptClass =
+                                                 mScriptClassMap.get(lKey);
+      if (lScriptClass != null)
+      {
+        mNumberOfHits.incrementAndGet();
+        return lScriptClass;
+      }
+      lGeneration = mGeneration;
+      lGroovyClassLoader = mGroovyClassLoader;
+    }
+
+    // compilation happens outside of the lock, so that other scripts can be
+    // served in the meantime:
+    mNumberOfMisses.incrementAndGet();
+    final Class<? extends Script> lScriptClass =
+                                               compile(lGroovyClassLoader,
+                                                       pScriptName,
+                                                       pCompleteSourceSupplier.get());
+
+    synchronized (mScriptClassMap)
+    {
+      // classes compiled before an invalidation are not cached:
+      if (lGeneration == mGeneration)
+        mScriptClassMap.put(lKey, lScriptClass);
+    }
+    return lScriptClass;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Class<? extends Script> compile(GroovyClassLoader pGroovyClassLoader,
+                                                 String pScriptName,
+                                                 String pSource)
+  {
+    final GroovyCodeSource lGroovyCodeSource =
+                                             new GroovyCodeSource(pSource,
+                                                                  pScriptName,
+                                                                  cCodeBase);
+    // the class loader's own source cache is keyed by name only:
+    lGroovyCodeSource.setCachable(false);
+    return pGroovyClassLoader.parseClass(lGroovyCodeSource, false);
+  }
+
+  /**
+   * Invalidates all cached script classes and replaces the shared class loader.
+   */
+  public void invalidate()
+  {
+    final GroovyClassLoader lPreviousGroovyClassLoader;
+    synchronized (mScriptClassMap)
+    {
+      mGeneration++;
+      mScriptClassMap.clear();
+      lPreviousGroovyClassLoader = mGroovyClassLoader;
+      mGroovyClassLoader = newGroovyClassLoader();
+    }
+    lPreviousGroovyClassLoader.clearCache();
+    try
+    {
+      lPreviousGroovyClassLoader.close();
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Enables or disables caching, when disabled every script is compiled by a
+   * new class loader - as if there was no cache.
+   *
+   * @param pEnabled
+   *          true to enable
+   */
+  public void setEnabled(boolean pEnabled)
+  {
+    mEnabled = pEnabled;
+  }
+
+  /**
+   * Returns true if caching is enabled
+   *
+   * @return true if enabled
+   */
+  public boolean isEnabled()
+  {
+    return mEnabled;
+  }
+
+  /**
+   * Returns the number of cached script classes
+   *
+   * @return number of cached script classes
+   */
+  public int size()
+  {
+    synchronized (mScriptClassMap)
+    {
+      return mScriptClassMap.size();
+    }
+  }
+
+  /**
+   * Returns the number of cache hits
+   *
+   * @return number of hits
+   */
+  public long getNumberOfHits()
+  {
+    return mNumberOfHits.get();
+  }
+
+  /**
+   * Returns the number of cache misses (compilations)
+   *
+   * @return number of misses
+   */
+  public long getNumberOfMisses()
+  {
+    return mNumberOfMisses.get();
+  }
+
+  private static String hash(String pScriptName, String pSource)
+  {
+    try
+    {
+      final MessageDigest lMessageDigest =
+                                         MessageDigest.getInstance("SHA-256");
+      lMessageDigest.update(String.valueOf(pScriptName)
+                                  .getBytes(StandardCharsets.UTF_8));
+      lMessageDigest.update((byte) 0);
+      lMessageDigest.update(pSource.getBytes(StandardCharsets.UTF_8));
+
+      final StringBuilder lStringBuilder = new StringBuilder(64);
+      for (final byte lByte : lMessageDigest.digest())
+        lStringBuilder.append(String.format("%02x", lByte));
+      return lStringBuilder.toString();
+    }
+    catch (final NoSuchAlgorithmException e)
+    {
+      // SHA-256 is available on all Java platforms:
+      throw new RuntimeException(e);
+    }
+  }
+
+}
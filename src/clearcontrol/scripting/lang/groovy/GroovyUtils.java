@@ -4,16 +4,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 
 import clearcontrol.scripting.autoimport.AutoImport;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.Script;
 
 import org.apache.commons.io.IOUtils;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.CompilationCustomizer;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
 public class GroovyUtils
 {
@@ -21,12 +27,20 @@ public class GroovyUtils
   static final CompilerConfiguration cCompilerConfiguration =
                                                             new CompilerConfiguration();
 
-  static final ImportCustomizer cImportCustomizer =
-                                                  new ImportCustomizer();
+  // guarded by GroovyUtils.class, replaced when imports are removed:
+  static ImportCustomizer sImportCustomizer = new ImportCustomizer();
+  static final LinkedHashSet<String> cImports = new LinkedHashSet<>();
+  static final LinkedHashSet<String> cStaticStarImports =
+                                                      new LinkedHashSet<>();
+
+  static final GroovyScriptCache cScriptCache =
+                                              new GroovyScriptCache(GroovyUtils.class.getClassLoader(),
+                                                                    cCompilerConfiguration,
+                                                                    256);
 
   static
   {
-    cCompilerConfiguration.addCompilationCustomizers(cImportCustomizer);
+    cCompilerConfiguration.addCompilationCustomizers(sImportCustomizer);
     /*cCompilerConfiguration.getOptimizationOptions().put("indy", true);
     cCompilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));/**/
   }
@@ -36,14 +50,39 @@ public class GroovyUtils
     return cCompilerConfiguration;
   }
 
-  public static void addImports(final String... pClassNames)
+  public static GroovyScriptCache getScriptCache()
+  {
+    return cScriptCache;
+  }
+
+  public static synchronized void addImports(final String... pClassNames)
   {
-    cImportCustomizer.addImports(pClassNames);
+    Collections.addAll(cImports, pClassNames);
+    sImportCustomizer.addImports(pClassNames);
+    cScriptCache.invalidate();
   }
 
-  public static void addStaticStarImport(final String... pClassNames)
+  public static synchronized void removeImports(final String... pClassNames)
   {
-    cImportCustomizer.addStaticStars(pClassNames);
+    cImports.removeAll(Arrays.asList(pClassNames));
+
+    // import customizers cannot remove imports, a new one replaces it:
+    final ImportCustomizer lImportCustomizer = new ImportCustomizer();
+    lImportCustomizer.addImports(cImports.toArray(new String[cImports.size()]));
+    lImportCustomizer.addStaticStars(cStaticStarImports.toArray(new String[cStaticStarImports.size()]));
+    final List<CompilationCustomizer> lCompilationCustomizers =
+                                                            cCompilerConfiguration.getCompilationCustomizers();
+    lCompilationCustomizers.set(lCompilationCustomizers.indexOf(sImportCustomizer),
+                                lImportCustomizer);
+    sImportCustomizer = lImportCustomizer;
+    cScriptCache.invalidate();
+  }
+
+  public static synchronized void addStaticStarImport(final String... pClassNames)
+  {
+    Collections.addAll(cStaticStarImports, pClassNames);
+    sImportCustomizer.addStaticStars(pClassNames);
+    cScriptCache.invalidate();
   }
 
   public static Object runScript(final String pScriptName,
@@ -132,11 +171,6 @@ public class GroovyUtils
       pBinding.setProperty("err", new PrintStream(pOutputStream));
     }
 
-    final GroovyShell lGroovyShell =
-                                   new GroovyShell(GroovyUtils.class.getClassLoader(),
-                                                   pBinding,
-                                                   cCompilerConfiguration);
-
     final String lPreamble = pPreambleString != null ? pPreambleString
                                                      : "";
 
@@ -154,23 +188,36 @@ public class GroovyUtils
                                               + lPostamble
                                               + "\n////Postamble end\n\n";
 
-    final String lImportsStatements =
-                                    AutoImport.generateImportStatements(lPreambleAndScriptCombined);
+    // compiled script classes are cached, keyed by the script source before
+    // import resolution, so that neither imports resolution nor compilation
+    // happen again for a script that has already been run:
+    final Class<? extends Script> lScriptClass =
+                                               cScriptCache.getScriptClass(pScriptName,
+                                                                           lPreambleAndScriptCombined,
+                                                                           () -> addImportStatements(lPreambleAndScriptCombined));
 
-    final String lPreambleAndScriptCombinedWithImports =
-                                                       "////AutoImports begin\n"
-                                                         + lImportsStatements
-                                                         + "////AutoImports end\n\n"
-                                                         + lPreambleAndScriptCombined;
+    // each run gets its own script instance bound to the given binding:
+    final Script lScript = InvokerHelper.createScript(lScriptClass,
+                                                      pBinding);
+    final Object lObject = lScript.run();
 
-    // System.out.println(lPreambleAndScriptCombinedWithImports);
+    return lObject;
 
-    final Object lObject =
-                         lGroovyShell.evaluate(lPreambleAndScriptCombinedWithImports,
-                                               pScriptName);
+  }
 
-    return lObject;
+  private static String addImportStatements(final String pScript)
+  {
+    final String lImportsStatements =
+                                    AutoImport.generateImportStatements(pScript);
+
+    final String lScriptWithImports = "////AutoImports begin\n"
+                                      + lImportsStatements
+                                      + "////AutoImports end\n\n"
+                                      + pScript;
+
+    // System.out.println(lScriptWithImports);
 
+    return lScriptWithImports;
   }
 
 }
@@ -0,0 +1,161 @@
+package clearcontrol.scripting.lang.groovy.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.scripting.lang.groovy.GroovyScriptCache;
+import clearcontrol.scripting.lang.groovy.GroovyUtils;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class TestGroovyScriptCache
+{
+
+  private static final String[] cScriptNames =
+  { "ZStackPositions", "TimeLapse", "FocusSweep", "AcquisitionReport" };
+
+  @Test
+  public void testCacheHit() throws IOException
+  {
+    final GroovyScriptCache lScriptCache = GroovyUtils.getScriptCache();
+    lScriptCache.invalidate();
+    final long lNumberOfHits = lScriptCache.getNumberOfHits();
+
+    final Map<String, Object> lMap1 = new LinkedHashMap<>();
+    lMap1.put("x", 1);
+    final Map<String, Object> lMap2 = new LinkedHashMap<>();
+    lMap2.put("x", 2);
+
+    final Object lResult1 = GroovyUtils.runScript("TestCacheHit",
+                                                  "y = x * 10; return y",
+                                                  lMap1,
+                                                  null,
+                                                  false);
+    final Object lResult2 = GroovyUtils.runScript("TestCacheHit",
+                                                  "y = x * 10; return y",
+                                                  lMap2,
+                                                  null,
+                                                  false);
+
+    // the second run is served by the cache, but bindings are isolated:
+    assertEquals(lNumberOfHits + 1, lScriptCache.getNumberOfHits());
+    assertEquals(10, lResult1);
+    assertEquals(20, lResult2);
+    assertEquals(10, lMap1.get("y"));
+    assertEquals(20, lMap2.get("y"));
+  }
+
+  @Test
+  public void testSameNameDifferentSource() throws IOException
+  {
+    assertEquals(1,
+                 GroovyUtils.runScript("TestSameName",
+                                       "return 1",
+                                       (Map<String, Object>) null,
+                                       null,
+                                       false));
+    assertEquals(2,
+                 GroovyUtils.runScript("TestSameName",
+                                       "return 2",
+                                       (Map<String, Object>) null,
+                                       null,
+                                       false));
+  }
+
+  @Test
+  public void testInvalidationOnImports() throws IOException
+  {
+    final GroovyScriptCache lScriptCache = GroovyUtils.getScriptCache();
+    GroovyUtils.runScript("TestInvalidation",
+                          "return 1",
+                          (Map<String, Object>) null,
+                          null,
+                          false);
+    assertTrue(lScriptCache.size() > 0);
+
+    GroovyUtils.addImports("java.util.concurrent.TimeUnit");
+    try
+    {
+      assertEquals(0, lScriptCache.size());
+
+      assertEquals(TimeUnit.SECONDS,
+                   GroovyUtils.runScript("TestInvalidation",
+                                         "return TimeUnit.SECONDS",
+                                         (Map<String, Object>) null,
+                                         null,
+                                         false));
+    }
+    finally
+    {
+      GroovyUtils.removeImports("java.util.concurrent.TimeUnit");
+    }
+    assertEquals(0, lScriptCache.size());
+  }
+
+  /**
+   * Compares, for the example scripts, the latency of warm runs without cache
+   * (compilation with a warmed up JVM and compiler) and of cache hits.
+   *
+   * @throws IOException
+   *           N/A
+   */
+  @Test
+  public void testBenchmark() throws IOException
+  {
+    final int lNumberOfRuns = 20;
+    final GroovyScriptCache lScriptCache = GroovyUtils.getScriptCache();
+    lScriptCache.invalidate();
+
+    final String[] lScripts = new String[cScriptNames.length];
+    for (int i = 0; i < cScriptNames.length; i++)
+      lScripts[i] = IOUtils.toString(getClass().getResourceAsStream("scripts/"
+                                                                    + cScriptNames[i]
+                                                                    + ".groovy"),
+                                     "UTF-8");
+
+    double lTotalWarmRun = 0;
+    lScriptCache.setEnabled(false);
+    try
+    {
+      for (int i = 0; i < lScripts.length; i++)
+      {
+        runScript(cScriptNames[i], lScripts[i]);
+        for (int r = 0; r < lNumberOfRuns; r++)
+          lTotalWarmRun += runScript(cScriptNames[i], lScripts[i]);
+      }
+    }
+    finally
+    {
+      lScriptCache.setEnabled(true);
+    }
+
+    double lTotalCacheHit = 0;
+    for (int i = 0; i < lScripts.length; i++)
+    {
+      runScript(cScriptNames[i], lScripts[i]);
+      for (int r = 0; r < lNumberOfRuns; r++)
+        lTotalCacheHit += runScript(cScriptNames[i], lScripts[i]);
+    }
+
+    assertTrue(lTotalCacheHit < lTotalWarmRun);
+  }
+
+  private static long runScript(String pScriptName,
+                                String pScript) throws IOException
+  {
+    final long lStart = System.nanoTime();
+    GroovyUtils.runScript(pScriptName,
+                          pScript,
+                          (Map<String, Object>) null,
+                          null,
+                          false);
+    return System.nanoTime() - lStart;
+  }
+
+}
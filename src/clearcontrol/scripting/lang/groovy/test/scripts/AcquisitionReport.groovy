@@ -0,0 +1,12 @@
+// formats a short report of an acquisition:
+def lChannels = ['488nm', '561nm', '640nm']
+def lReport = new StringBuilder()
+lChannels.eachWithIndex { lChannel, lIndex ->
+  for (int lTimePoint = 0; lTimePoint < 30; lTimePoint++)
+    lReport.append(String.format('%s\t%d\t%.3f\n',
+                                 lChannel,
+                                 lTimePoint,
+                                 0.01 * (lIndex + 1)))
+}
+
+return lReport.length()
@@ -0,0 +1,13 @@
+// finds the best focus of a sweep by fitting a parabola around the maximum
+// of a simulated sharpness metric:
+def lDeltaZ = (-20..20).collect { it * 0.5 }
+def lMetric = lDeltaZ.collect { Math.exp(-(it - 1.25) * (it - 1.25) / 8) }
+
+int lArgMax = lMetric.indexOf(lMetric.max())
+lArgMax = Math.max(1, Math.min(lMetric.size() - 2, lArgMax))
+double lLeft = lMetric[lArgMax - 1]
+double lCenter = lMetric[lArgMax]
+double lRight = lMetric[lArgMax + 1]
+double lOffset = 0.5 * (lLeft - lRight) / (lLeft - 2 * lCenter + lRight)
+
+return lDeltaZ[lArgMax] + lOffset * 0.5
@@ -0,0 +1,15 @@
+// simulates a time lapse loop that can be cancelled between time points:
+def isCanceled = { return false }
+
+int lNumberOfTimePoints = 1000
+long lPeriodInMilliseconds = 30000
+def lSchedule = [:]
+
+int lTimePoint = 0
+while (!isCanceled() && lTimePoint < lNumberOfTimePoints)
+{
+  lSchedule[lTimePoint] = lTimePoint * lPeriodInMilliseconds
+  lTimePoint++
+}
+
+return lSchedule.size()
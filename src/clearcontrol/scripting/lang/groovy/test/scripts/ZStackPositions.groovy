@@ -0,0 +1,18 @@
+// computes the z positions and exposures of a stack, with a linear exposure
+// ramp compensating for the attenuation in depth:
+double lMinZ = -50
+double lMaxZ = 50
+int lNumberOfPlanes = 200
+double lMinExposure = 0.005
+double lMaxExposure = 0.02
+
+def lPositions = []
+def lExposures = []
+for (int i = 0; i < lNumberOfPlanes; i++)
+{
+  double lAlpha = i / (double) (lNumberOfPlanes - 1)
+  lPositions << lMinZ + lAlpha * (lMaxZ - lMinZ)
+  lExposures << lMinExposure + lAlpha * (lMaxExposure - lMinExposure)
+}
+
+return lExposures.sum()
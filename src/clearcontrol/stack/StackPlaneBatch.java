@@ -0,0 +1,109 @@
+package clearcontrol.stack;
+
+/**
+ * Stack plane batch. A plane batch designates a contiguous range of planes of
+ * a stack that have been acquired (or otherwise produced) and whose data is
+ * ready to be consumed, while the remaining planes of the stack might still be
+ * in the making. Plane batches of a given stack are always published in plane
+ * order, the last batch of a stack ends with the stack's last plane.
+ *
+ * @author royer
+ */
+public class StackPlaneBatch
+{
+  private final StackInterface mStack;
+  private final long mFirstPlaneIndex;
+  private final long mNumberOfPlanes;
+
+  /**
+   * Instantiates a plane batch for a given stack, first plane index and number
+   * of planes.
+   *
+   * @param pStack
+   *          stack
+   * @param pFirstPlaneIndex
+   *          index of the first plane of the batch
+   * @param pNumberOfPlanes
+   *          number of planes in the batch
+   */
+  public StackPlaneBatch(StackInterface pStack,
+                         long pFirstPlaneIndex,
+                         long pNumberOfPlanes)
+  {
+    super();
+    mStack = pStack;
+    mFirstPlaneIndex = pFirstPlaneIndex;
+    mNumberOfPlanes = pNumberOfPlanes;
+  }
+
+  /**
+   * Returns the stack to which the planes belong
+   *
+   * @return stack
+   */
+  public StackInterface getStack()
+  {
+    return mStack;
+  }
+
+  /**
+   * Returns the index of the first plane of this batch
+   *
+   * @return first plane index
+   */
+  public long getFirstPlaneIndex()
+  {
+    return mFirstPlaneIndex;
+  }
+
+  /**
+   * Returns the number of planes in this batch
+   *
+   * @return number of planes
+   */
+  public long getNumberOfPlanes()
+  {
+    return mNumberOfPlanes;
+  }
+
+  /**
+   * Returns the index following the last plane of this batch
+   *
+   * @return end plane index (exclusive)
+   */
+  public long getEndPlaneIndex()
+  {
+    return mFirstPlaneIndex + mNumberOfPlanes;
+  }
+
+  /**
+   * Returns true if this batch is the first batch of its stack
+   *
+   * @return true if first batch
+   */
+  public boolean isFirstBatch()
+  {
+    return mFirstPlaneIndex == 0;
+  }
+
+  /**
+   * Returns true if this batch is the last batch of its stack, i.e. once this
+   * batch is consumed the whole stack has been consumed.
+   *
+   * @return true if last batch
+   */
+  public boolean isLastBatch()
+  {
+    return getEndPlaneIndex() >= mStack.getDepth();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("StackPlaneBatch [mStack=%s, mFirstPlaneIndex=%d, mNumberOfPlanes=%d]",
+                         mStack,
+                         mFirstPlaneIndex,
+                         mNumberOfPlanes);
+  }
+
+}
@@ -0,0 +1,33 @@
+package clearcontrol.stack;
+
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import coremem.ContiguousMemoryInterface;
+
+/**
+ * Static helpers to access the planes of stacks
+ *
+ * @author royer
+ */
+public class StackPlanes
+{
+
+  /**
+   * Returns a native order 16 bit view of a plane (or any contiguous memory).
+   * Each view has its own position, so that several threads can read or write
+   * disjoint parts of the same plane.
+   *
+   * @param pMemory
+   *          contiguous memory
+   * @return 16 bit view
+   */
+  public static ShortBuffer asShortBuffer(ContiguousMemoryInterface pMemory)
+  {
+    return pMemory.getByteBuffer()
+                  .duplicate()
+                  .order(ByteOrder.nativeOrder())
+                  .asShortBuffer();
+  }
+
+}
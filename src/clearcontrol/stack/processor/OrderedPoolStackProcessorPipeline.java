@@ -0,0 +1,414 @@
+package clearcontrol.stack.processor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.microscope.stacks.StackRecyclerManager;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Ordered thread pool stack processor pipeline. Like the
+ * {@link AsynchronousPoolStackProcessorPipeline} this pipeline distributes
+ * stacks over a pool of threads, but processed stacks are emitted to the output
+ * variable strictly in the order in which they were received, thanks to a
+ * reorder buffer keyed by input sequence number.
+ *
+ * The number of stacks in flight (received but not yet emitted) is bounded:
+ * when the bound is reached, setting the input variable blocks the caller until
+ * a stack is emitted - backpressure is applied to the producer instead of
+ * blocking inside a variable listener. Stacks arriving through a variable that
+ * sends its updates to the input variable are accepted without blocking, and
+ * count as in flight, so that the next direct set waits for them too.
+ *
+ * Per-stage statistics (number of processed stacks and processing time) are
+ * kept for each stack processor of the pipeline.
+ *
+ * @author royer
+ */
+public class OrderedPoolStackProcessorPipeline extends
+                                               StackProcessorPipelineBase
+                                               implements
+                                               StackProcessingPipelineInterface,
+                                               OpenCloseDeviceInterface,
+                                               AsynchronousExecutorFeature,
+                                               LoggingFeature
+{
+
+  private final int mThreadPoolSize;
+  private final int mMaxNumberOfStacksInFlight;
+  private final InFlightSlots mInFlightSlots;
+  private final ThreadLocal<Boolean> mSlotAcquiredBySet =
+                                                        ThreadLocal.withInitial(() -> false);
+
+  private final Variable<StackInterface> mOrderedInputVariable;
+
+  private final AtomicLong mNextInputSequenceNumber = new AtomicLong();
+  private volatile long mNextSequenceNumberToEmit = 0;
+  private final ConcurrentHashMap<Long, ProcessedStack> mReorderBuffer =
+                                                                       new ConcurrentHashMap<>();
+  private final ReentrantLock mEmitLock = new ReentrantLock();
+
+  private final ConcurrentHashMap<StackProcessorInterface, StageStatistics> mStageStatisticsMap =
+                                                                                                 new ConcurrentHashMap<>();
+  private final AtomicLong mNumberOfEmittedStacks = new AtomicLong();
+  private volatile long mOpenTimeInNanoseconds;
+
+  private volatile ThreadPoolExecutor mThreadPoolExecutor;
+
+  /**
+   * Instanciates an ordered thread pool stack processing pipeline
+   *
+   * @param pName
+   *          pipeline name
+   * @param pStackRecyclerManager
+   *          stack recycler manager
+   * @param pMaxQueueSize
+   *          max number of stacks waiting to be processed, the max number of
+   *          stacks in flight is this number plus the thread pool size
+   * @param pThreadPoolSize
+   *          thread pool size.
+   */
+  public OrderedPoolStackProcessorPipeline(String pName,
+                                           StackRecyclerManager pStackRecyclerManager,
+                                           final int pMaxQueueSize,
+                                           final int pThreadPoolSize)
+  {
+    super(pName, pStackRecyclerManager);
+    mThreadPoolSize = Math.max(1, pThreadPoolSize);
+    mMaxNumberOfStacksInFlight = Math.max(0, pMaxQueueSize)
+                                 + mThreadPoolSize;
+    mInFlightSlots = new InFlightSlots(mMaxNumberOfStacksInFlight);
+
+    mOrderedInputVariable = new Variable<StackInterface>("inputVariable")
+    {
+      @Override
+      public void set(final StackInterface pNewStack)
+      {
+        // backpressure: blocks the caller until a slot is free, before any
+        // listener is notified:
+        if (pNewStack != null && mThreadPoolExecutor != null)
+        {
+          mInFlightSlots.acquireUninterruptibly();
+          mSlotAcquiredBySet.set(true);
+        }
+        try
+        {
+          super.set(pNewStack);
+        }
+        finally
+        {
+          // the slot is handed over to the stack when it is submitted:
+          if (mSlotAcquiredBySet.get())
+          {
+            mSlotAcquiredBySet.set(false);
+            mInFlightSlots.release();
+          }
+        }
+      }
+    };
+    mOrderedInputVariable.addSetListener((o, n) -> submit(n));
+  }
+
+  @Override
+  public Variable<StackInterface> getInputVariable()
+  {
+    return mOrderedInputVariable;
+  }
+
+  @Override
+  public boolean open()
+  {
+    if (mThreadPoolExecutor != null)
+      return true;
+    mOpenTimeInNanoseconds = System.nanoTime();
+    mNumberOfEmittedStacks.set(0);
+    mThreadPoolExecutor = initializeExecutor(mMaxNumberOfStacksInFlight,
+                                             mThreadPoolSize);
+    return true;
+  }
+
+  @Override
+  public boolean close()
+  {
+    try
+    {
+      if (mThreadPoolExecutor == null)
+        return true;
+
+      // waits for all stacks in flight to be emitted:
+      mInFlightSlots.acquire(mMaxNumberOfStacksInFlight);
+      mInFlightSlots.release(mMaxNumberOfStacksInFlight);
+
+      mThreadPoolExecutor = null;
+      return resetThreadPoolAndWaitForCompletion(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Returns the number of stacks received but not yet emitted.
+   *
+   * @return number of stacks in flight
+   */
+  public int getNumberOfStacksInFlight()
+  {
+    return mMaxNumberOfStacksInFlight
+           - mInFlightSlots.availablePermits();
+  }
+
+  /**
+   * Returns the number of stacks emitted since the pipeline was opened.
+   *
+   * @return number of emitted stacks
+   */
+  public long getNumberOfEmittedStacks()
+  {
+    return mNumberOfEmittedStacks.get();
+  }
+
+  /**
+   * Returns the pipeline throughput in stacks per second since the pipeline
+   * was opened.
+   *
+   * @return throughput in stacks per second
+   */
+  public double getThroughput()
+  {
+    double lElapsedTimeInSeconds = 1e-9 * (System.nanoTime()
+                                           - mOpenTimeInNanoseconds);
+    if (lElapsedTimeInSeconds <= 0)
+      return 0;
+    return mNumberOfEmittedStacks.get() / lElapsedTimeInSeconds;
+  }
+
+  /**
+   * Returns the number of stacks processed by a given stage (stack processor)
+   * of the pipeline.
+   *
+   * @param pProcessorIndex
+   *          processor index
+   * @return number of processed stacks
+   */
+  public long getStageNumberOfProcessedStacks(int pProcessorIndex)
+  {
+    return getStageStatistics(getStackProcessor(pProcessorIndex)).mNumberOfProcessedStacks.get();
+  }
+
+  /**
+   * Returns the throughput, in stacks per second and per thread, of a given
+   * stage (stack processor) of the pipeline. This is the inverse of the
+   * average processing time of the stage.
+   *
+   * @param pProcessorIndex
+   *          processor index
+   * @return throughput in stacks per second per thread
+   */
+  public double getStageThroughput(int pProcessorIndex)
+  {
+    StageStatistics lStageStatistics =
+                                     getStageStatistics(getStackProcessor(pProcessorIndex));
+    long lProcessingTime =
+                         lStageStatistics.mProcessingTimeInNanoseconds.get();
+    if (lProcessingTime == 0)
+      return 0;
+    return lStageStatistics.mNumberOfProcessedStacks.get()
+           / (1e-9 * lProcessingTime);
+  }
+
+  private void submit(final StackInterface pStack)
+  {
+    if (pStack == null)
+      return;
+
+    final ThreadPoolExecutor lThreadPoolExecutor = mThreadPoolExecutor;
+    if (lThreadPoolExecutor == null)
+    {
+      warning("Pipeline %s is not open, dropping stack: %s",
+              getName(),
+              pStack);
+      pStack.release();
+      return;
+    }
+
+    // takes over the slot acquired by set(), stacks propagated from another
+    // variable take a slot without blocking:
+    if (mSlotAcquiredBySet.get())
+      mSlotAcquiredBySet.set(false);
+    else
+      mInFlightSlots.reducePermits(1);
+
+    final long lSequenceNumber =
+                               mNextInputSequenceNumber.getAndIncrement();
+
+    try
+    {
+      lThreadPoolExecutor.execute(() -> processAndEmit(lSequenceNumber,
+                                                       pStack));
+    }
+    catch (Throwable e)
+    {
+      severe("Could not submit stack to pipeline %s: %s",
+             getName(),
+             e);
+      pStack.release();
+      complete(lSequenceNumber, null);
+    }
+  }
+
+  private void processAndEmit(long pSequenceNumber,
+                              StackInterface pStack)
+  {
+    StackInterface lProcessedStack = null;
+    try
+    {
+      lProcessedStack = doProcessWithStatistics(pStack);
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+      pStack.release();
+    }
+    complete(pSequenceNumber, lProcessedStack);
+  }
+
+  private StackInterface doProcessWithStatistics(StackInterface pInput)
+  {
+    awaitPlaneBatches(pInput);
+
+    StackInterface lStack = pInput;
+    for (int i = 0; i < mProcessorList.size(); i++)
+    {
+      final StackProcessorInterface lProcessor =
+                                               mProcessorList.get(i);
+      if (lProcessor.isActive())
+      {
+        final RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                        mRecyclerList.get(i);
+
+        if (lStack == null)
+          return null;
+
+        long lStartTime = System.nanoTime();
+        lStack = lProcessor.process(lStack, lRecycler);
+        long lStopTime = System.nanoTime();
+        if (getTimingRecorder().isEnabled())
+          getTimingRecorder().record("StackProcessing",
+                                     getStageName(lProcessor),
+                                     lStartTime,
+                                     lStopTime);
+
+        StageStatistics lStageStatistics =
+                                         getStageStatistics(lProcessor);
+        lStageStatistics.mNumberOfProcessedStacks.incrementAndGet();
+        lStageStatistics.mProcessingTimeInNanoseconds.addAndGet(lStopTime
+                                                                - lStartTime);
+      }
+    }
+    return lStack;
+  }
+
+  private void complete(long pSequenceNumber,
+                        StackInterface pProcessedStack)
+  {
+    mReorderBuffer.put(pSequenceNumber,
+                       new ProcessedStack(pProcessedStack));
+
+    // Only one thread emits at a time, the others just leave their stack in
+    // the reorder buffer. After releasing the lock we check again in case a
+    // stack was added while we were emitting:
+    while (mReorderBuffer.containsKey(mNextSequenceNumberToEmit))
+    {
+      if (!mEmitLock.tryLock())
+        return;
+      try
+      {
+        ProcessedStack lProcessedStack;
+        while ((lProcessedStack =
+                                mReorderBuffer.remove(mNextSequenceNumberToEmit)) != null)
+        {
+          mNextSequenceNumberToEmit++;
+          try
+          {
+            if (lProcessedStack.mStack != null)
+            {
+              getOutputVariable().set(lProcessedStack.mStack);
+              mNumberOfEmittedStacks.incrementAndGet();
+            }
+          }
+          catch (Throwable e)
+          {
+            e.printStackTrace();
+          }
+          finally
+          {
+            mInFlightSlots.release();
+          }
+        }
+      }
+      finally
+      {
+        mEmitLock.unlock();
+      }
+    }
+  }
+
+  private StageStatistics getStageStatistics(StackProcessorInterface pStackProcessor)
+  {
+    return mStageStatisticsMap.computeIfAbsent(pStackProcessor,
+                                               (p) -> new StageStatistics());
+  }
+
+  @Override
+  public void removeStackProcessor(StackProcessorInterface pStackProcessor)
+  {
+    super.removeStackProcessor(pStackProcessor);
+    mStageStatisticsMap.remove(pStackProcessor);
+  }
+
+  private static class InFlightSlots extends Semaphore
+  {
+    private static final long serialVersionUID = 1L;
+
+    InFlightSlots(int pNumberOfSlots)
+    {
+      super(pNumberOfSlots, true);
+    }
+
+    @Override
+    protected void reducePermits(int pReduction)
+    {
+      super.reducePermits(pReduction);
+    }
+  }
+
+  private static class ProcessedStack
+  {
+    final StackInterface mStack;
+
+    ProcessedStack(StackInterface pStack)
+    {
+      mStack = pStack;
+    }
+  }
+
+  private static class StageStatistics
+  {
+    final AtomicLong mNumberOfProcessedStacks = new AtomicLong();
+    final AtomicLong mProcessingTimeInNanoseconds = new AtomicLong();
+  }
+
+}
@@ -0,0 +1,26 @@
+package clearcontrol.stack.processor;
+
+import clearcontrol.stack.StackPlaneBatch;
+
+/**
+ * Interface implemented by stack processors that can process stacks plane by
+ * plane while they are being acquired. Plane batches of a stack are passed in
+ * plane order, and all of them have been processed before the stack itself is
+ * passed to the process method - which can then make use of the work already
+ * done on the planes.
+ *
+ * @author royer
+ */
+public interface PlaneStreamingStackProcessorInterface extends
+                                                       StackProcessorInterface
+{
+
+  /**
+   * Processes a batch of planes of a stack being acquired.
+   *
+   * @param pPlaneBatch
+   *          plane batch
+   */
+  public void processPlanes(StackPlaneBatch pPlaneBatch);
+
+}
@@ -2,6 +2,7 @@ package clearcontrol.stack.processor;
 
 import clearcontrol.core.variable.Variable;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 
 /**
  * Stack processing pipeline
@@ -59,4 +60,24 @@ public interface StackProcessingPipelineInterface
    */
   public Variable<StackInterface> getOutputVariable();
 
+  /**
+   * Returns plane batch input variable. Plane batches of stacks being acquired
+   * can be sent to this variable (before the stacks themselves are sent to the
+   * input variable), they are forwarded to the first active processor if it
+   * implements {@link PlaneStreamingStackProcessorInterface}.
+   * 
+   * @return plane batch input variable
+   */
+  public Variable<StackPlaneBatch> getPlaneBatchInputVariable();
+
+  /**
+   * Returns plane batch output variable. When no processor is active, stacks
+   * go through the pipeline unchanged and the plane batches received on the
+   * plane batch input variable are forwarded - in order - to this variable,
+   * before the stacks themselves are sent to the output variable.
+   * 
+   * @return plane batch output variable
+   */
+  public Variable<StackPlaneBatch> getPlaneBatchOutputVariable();
+
 }
@@ -1,23 +1,44 @@
 package clearcontrol.stack.processor;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.timing.WaitingSignal;
 import clearcontrol.core.device.name.NameableBase;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.profiling.TimingRecorder;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import coremem.recycling.RecyclerInterface;
 
 /**
  * Base class for stack processing pipelines
  *
+ * Plane batches received on the plane batch input variable are forwarded - in
+ * order, on a dedicated thread - to the first active processor when it
+ * implements {@link PlaneStreamingStackProcessorInterface}. Only the first
+ * processor sees the acquired stacks, the following processors see the stacks
+ * produced by their predecessors. When no processor is active, plane batches
+ * are forwarded to the plane batch output variable, for example to be streamed
+ * to a sink. A stack is not processed before all its plane batches have been
+ * forwarded.
+ *
  * @author royer
  */
 public class StackProcessorPipelineBase extends NameableBase
                                         implements
-                                        StackProcessingPipelineInterface
+                                        StackProcessingPipelineInterface,
+                                        LoggingFeature
 {
+  private static final long cPlaneBatchTimeOutInSeconds = 60;
+
   private StackRecyclerManager mStackRecyclerManager;
 
   protected final CopyOnWriteArrayList<StackProcessorInterface> mProcessorList =
@@ -27,6 +48,15 @@ public class StackProcessorPipelineBase extends NameableBase
 
   private Variable<StackInterface> mInputVariable;
   private Variable<StackInterface> mOutputVariable;
+  private Variable<StackPlaneBatch> mPlaneBatchInputVariable;
+  private Variable<StackPlaneBatch> mPlaneBatchOutputVariable;
+
+  private final PlaneBatchDispatcher mPlaneBatchDispatcher =
+                                                          new PlaneBatchDispatcher();
+  private final Set<StackInterface> mStreamingStackSet =
+                                                       ConcurrentHashMap.newKeySet();
+  private final WaitingSignal mStreamingStackSignal =
+                                                    new WaitingSignal();
 
   /**
    * Instantiates a stack processor given a stack recycler manager
@@ -44,6 +74,14 @@ public class StackProcessorPipelineBase extends NameableBase
     mStackRecyclerManager = pStackRecyclerManager;
     mInputVariable = new Variable<StackInterface>("inputVariable");
     mOutputVariable = new Variable<StackInterface>("OutputVariable");
+    mPlaneBatchInputVariable =
+                             new Variable<StackPlaneBatch>("PlaneBatchInputVariable");
+    mPlaneBatchOutputVariable =
+                              new Variable<StackPlaneBatch>("PlaneBatchOutputVariable");
+    mPlaneBatchInputVariable.addSetListener((o, n) -> {
+      if (n != null)
+        dispatchPlaneBatch(n);
+    });
   }
 
   @Override
@@ -86,8 +124,97 @@ public class StackProcessorPipelineBase extends NameableBase
     return mOutputVariable;
   }
 
+  @Override
+  public Variable<StackPlaneBatch> getPlaneBatchInputVariable()
+  {
+    return mPlaneBatchInputVariable;
+  }
+
+  @Override
+  public Variable<StackPlaneBatch> getPlaneBatchOutputVariable()
+  {
+    return mPlaneBatchOutputVariable;
+  }
+
+  private void dispatchPlaneBatch(StackPlaneBatch pPlaneBatch)
+  {
+    // the stack is registered synchronously, so that it is known to be
+    // streaming by the time it is sent to the input variable:
+    final StackInterface lStack = pPlaneBatch.getStack();
+    mStreamingStackSet.add(lStack);
+
+    getPlaneBatchExecutor().execute(() -> {
+      try
+      {
+        final StackProcessorInterface lFirstActiveProcessor =
+                                                            getFirstActiveProcessor();
+        if (lFirstActiveProcessor == null)
+          mPlaneBatchOutputVariable.set(pPlaneBatch);
+        else if (lFirstActiveProcessor instanceof PlaneStreamingStackProcessorInterface)
+          ((PlaneStreamingStackProcessorInterface) lFirstActiveProcessor).processPlanes(pPlaneBatch);
+      }
+      catch (Throwable e)
+      {
+        e.printStackTrace();
+      }
+      finally
+      {
+        if (pPlaneBatch.isLastBatch())
+        {
+          mStreamingStackSet.remove(lStack);
+          mStreamingStackSignal.signal();
+        }
+      }
+    });
+  }
+
+  private StackProcessorInterface getFirstActiveProcessor()
+  {
+    for (final StackProcessorInterface lProcessor : mProcessorList)
+      if (lProcessor.isActive())
+        return lProcessor;
+    return null;
+  }
+
+  private ThreadPoolExecutor getPlaneBatchExecutor()
+  {
+    return ClearControlExecutors.getOrCreateThreadPoolExecutor(mPlaneBatchDispatcher,
+                                                               Thread.NORM_PRIORITY,
+                                                               1,
+                                                               1,
+                                                               Integer.MAX_VALUE);
+  }
+
+  /**
+   * Waits until all plane batches of a given stack have been forwarded, returns
+   * immediately if the stack was not streamed. If the last batch of the stack
+   * has not been forwarded after a time out - for example because it was never
+   * received - the stack is processed anyway.
+   * 
+   * @param pStack
+   *          stack
+   */
+  protected void awaitPlaneBatches(StackInterface pStack)
+  {
+    if (mStreamingStackSet.isEmpty())
+      return;
+    final Boolean lForwarded =
+                             mStreamingStackSignal.await(cPlaneBatchTimeOutInSeconds,
+                                                         TimeUnit.SECONDS,
+                                                         () -> !mStreamingStackSet.contains(pStack));
+    if (lForwarded == null || !lForwarded)
+    {
+      warning("Plane batches of stack %s not forwarded after %d seconds, processing the stack anyway",
+              pStack,
+              cPlaneBatchTimeOutInSeconds);
+      mStreamingStackSet.remove(pStack);
+    }
+  }
+
   protected StackInterface doProcess(StackInterface pInput)
   {
+    awaitPlaneBatches(pInput);
+
     StackInterface lStack = pInput;
     for (int i = 0; i < mProcessorList.size(); i++)
     {
@@ -102,11 +229,35 @@ public class StackProcessorPipelineBase extends NameableBase
         if (lStack == null)
           return null;
 
+        final TimingRecorder lTimingRecorder = getTimingRecorder();
+        final long lStartTime = lTimingRecorder.now();
         lStack = lProcessor.process(lStack, lRecycler);
+        if (lTimingRecorder.isEnabled())
+          lTimingRecorder.record("StackProcessing",
+                                 getStageName(lProcessor),
+                                 lStartTime);
 
       }
     }
     return lStack;
   }
 
+  protected TimingRecorder getTimingRecorder()
+  {
+    return TimingRecorder.getSingletonTimingRecorder();
+  }
+
+  protected String getStageName(StackProcessorInterface pProcessor)
+  {
+    return getName() + "/" + pProcessor.getClass().getSimpleName();
+  }
+
+  /**
+   * Key of the executor forwarding plane batches, the executor's threads are
+   * named after this class.
+   */
+  private static class PlaneBatchDispatcher
+  {
+  }
+
 }
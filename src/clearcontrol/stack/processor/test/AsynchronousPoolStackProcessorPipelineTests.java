@@ -3,14 +3,21 @@ package clearcontrol.stack.processor.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.variable.VariableListener;
 import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.processor.AsynchronousPoolStackProcessorPipeline;
+import clearcontrol.stack.processor.PlaneStreamingStackProcessorInterface;
 import clearcontrol.stack.processor.StackProcessorInterface;
 import coremem.recycling.BasicRecycler;
 import coremem.recycling.RecyclerInterface;
@@ -177,4 +184,168 @@ public class AsynchronousPoolStackProcessorPipelineTests
     assertTrue(lAsynchronousPoolStackProcessorPipeline.close());
 
   }
+
+  /**
+   * Tests that plane batches are forwarded in order - to the plane batch output
+   * variable when no processor is active, and to the first processor otherwise
+   * - before their stack leaves the pipeline.
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testPlaneBatchForwarding() throws InterruptedException
+  {
+    final int lNumberOfStacks = 20;
+    final long lDepth = 14;
+    final long lNumberOfPlanesPerBatch = 4;
+
+    final AsynchronousPoolStackProcessorPipeline lPipeline =
+                                                           new AsynchronousPoolStackProcessorPipeline("Test",
+                                                                                                      new StackRecyclerManager(),
+                                                                                                      10,
+                                                                                                      4);
+
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                    new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                    lNumberOfStacks);
+
+    // events are recorded as: stack index, first plane index or -1 for the
+    // stack itself:
+    final List<long[]> lForwardedEvents =
+                                        Collections.synchronizedList(new ArrayList<>());
+    final List<long[]> lProcessedEvents =
+                                        Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger lNumberOfOutputStacks = new AtomicInteger();
+
+    final AtomicBoolean lActive = new AtomicBoolean();
+    final PlaneStreamingStackProcessorInterface lStackProcessor =
+                                                                new PlaneStreamingStackProcessorInterface()
+                                                                {
+                                                                  @Override
+                                                                  public void setActive(boolean pIsActive)
+                                                                  {
+                                                                    lActive.set(pIsActive);
+                                                                  }
+
+                                                                  @Override
+                                                                  public boolean isActive()
+                                                                  {
+                                                                    return lActive.get();
+                                                                  }
+
+                                                                  @Override
+                                                                  public void processPlanes(StackPlaneBatch pPlaneBatch)
+                                                                  {
+                                                                    lProcessedEvents.add(new long[]
+                                                                    { pPlaneBatch.getStack()
+                                                                                 .getMetaData()
+                                                                                 .getIndex(),
+                                                                      pPlaneBatch.getFirstPlaneIndex() });
+                                                                  }
+
+                                                                  @Override
+                                                                  public StackInterface process(StackInterface pStack,
+                                                                                                RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+                                                                  {
+                                                                    lProcessedEvents.add(new long[]
+                                                                    { pStack.getMetaData()
+                                                                            .getIndex(),
+                                                                      -1 });
+                                                                    return pStack;
+                                                                  }
+                                                                };
+    lPipeline.addStackProcessor(lStackProcessor, "recycler", 10, 10);
+
+    lPipeline.getPlaneBatchOutputVariable().addSetListener((o, n) -> {
+      lForwardedEvents.add(new long[]
+      { n.getStack().getMetaData().getIndex(), n.getFirstPlaneIndex() });
+    });
+    lPipeline.getOutputVariable().addSetListener((o, n) -> {
+      lForwardedEvents.add(new long[]
+      { n.getMetaData().getIndex(), -1 });
+      lNumberOfOutputStacks.incrementAndGet();
+      n.release();
+    });
+
+    assertTrue(lPipeline.open());
+
+    for (int r = 0; r < 2; r++)
+    {
+      // first without active processor, then with:
+      lStackProcessor.setActive(r == 1);
+      lNumberOfOutputStacks.set(0);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        final StackInterface lStack =
+                                    lRecycler.getOrWait(1,
+                                                        TimeUnit.SECONDS,
+                                                        StackRequest.build(12,
+                                                                           13,
+                                                                           lDepth));
+        lStack.getMetaData().setIndex(i);
+        for (long z = 0; z < lDepth; z += lNumberOfPlanesPerBatch)
+          lPipeline.getPlaneBatchInputVariable()
+                   .set(new StackPlaneBatch(lStack,
+                                            z,
+                                            Math.min(lNumberOfPlanesPerBatch,
+                                                     lDepth - z)));
+        lPipeline.getInputVariable().set(lStack);
+      }
+
+      final long lDeadline = System.nanoTime()
+                             + TimeUnit.SECONDS.toNanos(10);
+      while (lNumberOfOutputStacks.get() < lNumberOfStacks
+             && System.nanoTime() < lDeadline)
+        Thread.sleep(1);
+      assertEquals(lNumberOfStacks, lNumberOfOutputStacks.get());
+    }
+
+    assertTrue(lPipeline.close());
+
+    // the forwarded events contain the batches and stacks of the first round,
+    // and the stacks of the second:
+    assertPlaneOrder(lForwardedEvents,
+                     lNumberOfStacks,
+                     lDepth,
+                     lNumberOfPlanesPerBatch,
+                     2);
+    // the processor only sees the second round:
+    assertPlaneOrder(lProcessedEvents,
+                     lNumberOfStacks,
+                     lDepth,
+                     lNumberOfPlanesPerBatch,
+                     1);
+  }
+
+  private static void assertPlaneOrder(List<long[]> pEvents,
+                                       int pNumberOfStacks,
+                                       long pDepth,
+                                       long pNumberOfPlanesPerBatch,
+                                       int pNumberOfStacksPerIndex)
+  {
+    final long lNumberOfBatches = (pDepth + pNumberOfPlanesPerBatch - 1)
+                                  / pNumberOfPlanesPerBatch;
+    final long[] lNextPlaneIndex = new long[pNumberOfStacks];
+    final int[] lNumberOfStacks = new int[pNumberOfStacks];
+    for (final long[] lEvent : pEvents)
+    {
+      final int lStackIndex = (int) lEvent[0];
+      if (lEvent[1] < 0)
+      {
+        // a stack comes after all its batches:
+        if (lNumberOfStacks[lStackIndex]++ == 0)
+          assertEquals(lNumberOfBatches * pNumberOfPlanesPerBatch,
+                       lNextPlaneIndex[lStackIndex]);
+      }
+      else
+      {
+        assertEquals(lNextPlaneIndex[lStackIndex], lEvent[1]);
+        lNextPlaneIndex[lStackIndex] += pNumberOfPlanesPerBatch;
+      }
+    }
+    for (int i = 0; i < pNumberOfStacks; i++)
+      assertEquals(pNumberOfStacksPerIndex, lNumberOfStacks[i]);
+  }
 }
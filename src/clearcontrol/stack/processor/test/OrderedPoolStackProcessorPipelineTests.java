@@ -0,0 +1,285 @@
+package clearcontrol.stack.processor.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.variable.Variable;
+import clearcontrol.core.variable.VariableListener;
+import clearcontrol.microscope.stacks.StackRecyclerManager;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.processor.OrderedPoolStackProcessorPipeline;
+import clearcontrol.stack.processor.StackProcessorInterface;
+import coremem.recycling.BasicRecycler;
+import coremem.recycling.RecyclerInterface;
+
+import org.junit.Test;
+
+/**
+ * Ordered pool pipeline tests
+ *
+ * @author royer
+ */
+public class OrderedPoolStackProcessorPipelineTests
+{
+
+  /**
+   * Tests that stacks are emitted in the order in which they were received,
+   * even though processing times vary randomly between stacks.
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testOrdering() throws InterruptedException
+  {
+    testOrdering(false);
+  }
+
+  /**
+   * Tests that stacks sent to the pipeline through a variable that sends its
+   * updates to the pipeline input variable are processed and emitted in order.
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testSyncedInputVariable() throws InterruptedException
+  {
+    testOrdering(true);
+  }
+
+  /**
+   * Tests that a set blocked by backpressure blocks before the input variable's
+   * listeners are notified, and not inside one of them.
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testBackpressureBeforeListeners() throws InterruptedException
+  {
+    StackRecyclerManager lStackRecyclerManager =
+                                               new StackRecyclerManager();
+
+    // a single stack can be in flight:
+    final OrderedPoolStackProcessorPipeline lOrderedPoolStackProcessorPipeline =
+                                                                               new OrderedPoolStackProcessorPipeline("Test",
+                                                                                                                     lStackRecyclerManager,
+                                                                                                                     0,
+                                                                                                                     1);
+
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler0 =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     4);
+
+    final CountDownLatch lProcessingLatch = new CountDownLatch(1);
+    final StackProcessorInterface lStackProcessor =
+                                                  new StackProcessorInterface()
+                                                  {
+
+                                                    @Override
+                                                    public void setActive(boolean pIsActive)
+                                                    {
+
+                                                    }
+
+                                                    @Override
+                                                    public boolean isActive()
+                                                    {
+                                                      return true;
+                                                    }
+
+                                                    @Override
+                                                    public StackInterface process(StackInterface pStack,
+                                                                                  RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+                                                    {
+                                                      try
+                                                      {
+                                                        lProcessingLatch.await();
+                                                      }
+                                                      catch (InterruptedException e)
+                                                      {
+                                                        Thread.currentThread()
+                                                              .interrupt();
+                                                      }
+                                                      return pStack;
+                                                    }
+                                                  };
+
+    lOrderedPoolStackProcessorPipeline.addStackProcessor(lStackProcessor,
+                                                         "recycler",
+                                                         10,
+                                                         10);
+    assertTrue(lOrderedPoolStackProcessorPipeline.open());
+
+    lOrderedPoolStackProcessorPipeline.getOutputVariable()
+                                      .addSetListener((o, n) -> n.release());
+
+    final AtomicInteger lNumberOfInputEvents = new AtomicInteger();
+    lOrderedPoolStackProcessorPipeline.getInputVariable()
+                                      .addSetListener((o,
+                                                       n) -> lNumberOfInputEvents.incrementAndGet());
+
+    final StackRequest lStackRequest = StackRequest.build(12, 13, 14);
+    lOrderedPoolStackProcessorPipeline.getInputVariable()
+                                      .set(lRecycler0.getOrWait(100,
+                                                                TimeUnit.SECONDS,
+                                                                lStackRequest));
+    assertEquals(1, lNumberOfInputEvents.get());
+
+    final StackInterface lSecondStack = lRecycler0.getOrWait(100,
+                                                             TimeUnit.SECONDS,
+                                                             lStackRequest);
+    final Thread lProducerThread = new Thread(() -> {
+      lOrderedPoolStackProcessorPipeline.getInputVariable()
+                                        .set(lSecondStack);
+    });
+    lProducerThread.start();
+
+    // the producer is blocked, and listeners have not been notified yet:
+    lProducerThread.join(200);
+    assertTrue(lProducerThread.isAlive());
+    assertEquals(1, lNumberOfInputEvents.get());
+
+    lProcessingLatch.countDown();
+    lProducerThread.join(10000);
+    assertTrue(!lProducerThread.isAlive());
+    assertEquals(2, lNumberOfInputEvents.get());
+
+    assertTrue(lOrderedPoolStackProcessorPipeline.close());
+    assertEquals(2,
+                 lOrderedPoolStackProcessorPipeline.getNumberOfEmittedStacks());
+  }
+
+  private void testOrdering(boolean pThroughSyncedVariable) throws InterruptedException
+  {
+    final int lNumberOfStacks = 500;
+
+    StackRecyclerManager lStackRecyclerManager =
+                                               new StackRecyclerManager();
+
+    final OrderedPoolStackProcessorPipeline lOrderedPoolStackProcessorPipeline =
+                                                                               new OrderedPoolStackProcessorPipeline("Test",
+                                                                                                                     lStackRecyclerManager,
+                                                                                                                     4,
+                                                                                                                     4);
+
+    final ContiguousOffHeapPlanarStackFactory lOffHeapPlanarStackFactory =
+                                                                         new ContiguousOffHeapPlanarStackFactory();
+
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler0 =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(lOffHeapPlanarStackFactory,
+                                                                                                                     16);
+
+    final StackProcessorInterface lStackProcessor =
+                                                  new StackProcessorInterface()
+                                                  {
+
+                                                    @Override
+                                                    public void setActive(boolean pIsActive)
+                                                    {
+
+                                                    }
+
+                                                    @Override
+                                                    public boolean isActive()
+                                                    {
+                                                      return true;
+                                                    }
+
+                                                    @Override
+                                                    public StackInterface process(StackInterface pStack,
+                                                                                  RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+                                                    {
+                                                      try
+                                                      {
+                                                        Thread.sleep(ThreadLocalRandom.current()
+                                                                                      .nextInt(3));
+                                                      }
+                                                      catch (InterruptedException e)
+                                                      {
+                                                        Thread.currentThread()
+                                                              .interrupt();
+                                                      }
+                                                      return pStack;
+                                                    }
+                                                  };
+
+    lOrderedPoolStackProcessorPipeline.addStackProcessor(lStackProcessor,
+                                                         "recycler",
+                                                         10,
+                                                         10);
+
+    assertTrue(lOrderedPoolStackProcessorPipeline.open());
+
+    final AtomicInteger lNumberOfReceivedStacks = new AtomicInteger();
+    final AtomicInteger lNumberOfOutOfOrderStacks = new AtomicInteger();
+
+    lOrderedPoolStackProcessorPipeline.getOutputVariable()
+                                      .addListener(new VariableListener<StackInterface>()
+                                      {
+
+                                        @Override
+                                        public void setEvent(StackInterface pCurrentValue,
+                                                             StackInterface pNewValue)
+                                        {
+                                          byte lExpected =
+                                                         (byte) lNumberOfReceivedStacks.getAndIncrement();
+                                          if (pNewValue.getContiguousMemory()
+                                                       .getByteAligned(0) != lExpected)
+                                            lNumberOfOutOfOrderStacks.incrementAndGet();
+
+                                          pNewValue.release();
+                                        }
+
+                                        @Override
+                                        public void getEvent(StackInterface pCurrentValue)
+                                        {
+
+                                        }
+                                      });
+
+    final Variable<StackInterface> lInputVariable;
+    if (pThroughSyncedVariable)
+    {
+      lInputVariable = new Variable<StackInterface>("CameraStack");
+      lInputVariable.sendUpdatesTo(lOrderedPoolStackProcessorPipeline.getInputVariable());
+    }
+    else
+      lInputVariable = lOrderedPoolStackProcessorPipeline.getInputVariable();
+
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      final StackInterface lStack =
+                                  lRecycler0.getOrWait(100,
+                                                       TimeUnit.SECONDS,
+                                                       StackRequest.build(12,
+                                                                          13,
+                                                                          14));
+      lStack.getContiguousMemory().setByteAligned(0, (byte) i);
+
+      // blocks when too many stacks are in flight, propagated stacks are only
+      // bounded by the recycler:
+      lInputVariable.set(lStack);
+
+      assertTrue(lOrderedPoolStackProcessorPipeline.getNumberOfStacksInFlight() <= (pThroughSyncedVariable ? 16
+                                                                                                           : 8));
+    }
+
+    assertTrue(lOrderedPoolStackProcessorPipeline.close());
+
+    assertEquals(lNumberOfStacks, lNumberOfReceivedStacks.get());
+    assertEquals(0, lNumberOfOutOfOrderStacks.get());
+    assertEquals(lNumberOfStacks,
+                 lOrderedPoolStackProcessorPipeline.getNumberOfEmittedStacks());
+    assertEquals(lNumberOfStacks,
+                 lOrderedPoolStackProcessorPipeline.getStageNumberOfProcessedStacks(0));
+  }
+}
@@ -0,0 +1,332 @@
+package clearcontrol.stack.sourcesink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary stack index. This is a compact, fixed-record companion of the
+ * '.index.txt' and '.metadata.txt' files written by file stack sinks. Each
+ * stack is described by a record of fixed size, so that the record of a given
+ * stack index can be accessed in O(1) without parsing anything. The file is
+ * read through a read-only memory mapping.
+ *
+ * File layout: a header (magic number, version, record size) followed by
+ * records, in stack index order, each containing: stack index, time stamp in
+ * seconds, width, height, depth, byte offset of the stack data within the stack
+ * file, byte offset and length of the stack's line in the metadata file.
+ * Stack indices for which no stack could be written are covered by hole
+ * records (stack index field set to -1), so that the record of stack index i
+ * is always at position i and the number of records is the highest stack
+ * index plus one.
+ *
+ * Trailing incomplete records (for example while a sink is still writing) are
+ * ignored.
+ *
+ * @author royer
+ */
+public class BinaryStackIndex
+{
+  /**
+   * Extension of binary index files
+   */
+  public static final String cExtension = ".index.bin";
+
+  private static final long cMagic = 0x4343535441434B49L; // 'CCSTACKI'
+  private static final int cVersion = 1;
+
+  /**
+   * Header size in bytes
+   */
+  public static final int cHeaderSizeInBytes = 16;
+
+  /**
+   * Record size in bytes
+   */
+  public static final int cRecordSizeInBytes = 64;
+
+  private static final long cHoleIndex = -1;
+
+  private static final int cIndexOffset = 0;
+  private static final int cTimeStampOffset = 8;
+  private static final int cWidthOffset = 16;
+  private static final int cHeightOffset = 24;
+  private static final int cDepthOffset = 32;
+  private static final int cDataOffsetOffset = 40;
+  private static final int cMetaDataOffsetOffset = 48;
+  private static final int cMetaDataLengthOffset = 56;
+
+  private final MappedByteBuffer mMappedByteBuffer;
+  private final long mNumberOfRecords;
+
+  /**
+   * Returns a byte buffer containing the header of a binary index file.
+   *
+   * @return header
+   */
+  public static ByteBuffer createHeader()
+  {
+    ByteBuffer lByteBuffer = ByteBuffer.allocate(cHeaderSizeInBytes)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+    lByteBuffer.putLong(cMagic);
+    lByteBuffer.putInt(cVersion);
+    lByteBuffer.putInt(cRecordSizeInBytes);
+    lByteBuffer.flip();
+    return lByteBuffer;
+  }
+
+  /**
+   * Returns a byte buffer containing a single index record.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pTimeStampInSeconds
+   *          time stamp in seconds
+   * @param pDimensions
+   *          stack dimensions (width, height, depth)
+   * @param pDataOffset
+   *          byte offset of stack data within stack file
+   * @param pMetaDataOffset
+   *          byte offset of stack's line in the metadata file
+   * @param pMetaDataLength
+   *          length in bytes of stack's line in the metadata file
+   * @return record
+   */
+  public static ByteBuffer createRecord(long pStackIndex,
+                                        double pTimeStampInSeconds,
+                                        long[] pDimensions,
+                                        long pDataOffset,
+                                        long pMetaDataOffset,
+                                        long pMetaDataLength)
+  {
+    ByteBuffer lByteBuffer = ByteBuffer.allocate(cRecordSizeInBytes)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+    lByteBuffer.putLong(pStackIndex);
+    lByteBuffer.putDouble(pTimeStampInSeconds);
+    lByteBuffer.putLong(pDimensions[0]);
+    lByteBuffer.putLong(pDimensions.length > 1 ? pDimensions[1] : 1);
+    lByteBuffer.putLong(pDimensions.length > 2 ? pDimensions[2] : 1);
+    lByteBuffer.putLong(pDataOffset);
+    lByteBuffer.putLong(pMetaDataOffset);
+    lByteBuffer.putLong(pMetaDataLength);
+    lByteBuffer.flip();
+    return lByteBuffer;
+  }
+
+  /**
+   * Returns a byte buffer containing a hole record: a placeholder for a stack
+   * index for which no stack was written.
+   *
+   * @return hole record
+   */
+  public static ByteBuffer createHoleRecord()
+  {
+    return createRecord(cHoleIndex,
+                        Double.NaN,
+                        new long[]
+                        { 0, 0, 0 },
+                        0,
+                        0,
+                        0);
+  }
+
+  /**
+   * Appends a record to a given binary index file channel opened in append
+   * mode, the header is written first if the file is empty.
+   *
+   * @param pFileChannel
+   *          file channel
+   * @param pRecord
+   *          record
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public static void append(FileChannel pFileChannel,
+                            ByteBuffer pRecord) throws IOException
+  {
+    if (pFileChannel.size() == 0)
+    {
+      ByteBuffer lHeader = createHeader();
+      while (lHeader.hasRemaining())
+        pFileChannel.write(lHeader);
+    }
+    while (pRecord.hasRemaining())
+      pFileChannel.write(pRecord);
+  }
+
+  /**
+   * Opens a binary index file for reading. Returns null if the file does not
+   * exist or is not a valid binary index file.
+   *
+   * @param pFile
+   *          binary index file
+   * @return binary index or null
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public static BinaryStackIndex open(File pFile) throws IOException
+  {
+    if (!pFile.exists() || pFile.length() < cHeaderSizeInBytes)
+      return null;
+
+    try (FileChannel lFileChannel = FileChannel.open(pFile.toPath(),
+                                                     StandardOpenOption.READ))
+    {
+      long lSize = lFileChannel.size();
+      long lNumberOfRecords = (lSize - cHeaderSizeInBytes)
+                              / cRecordSizeInBytes;
+      long lMappedSize = cHeaderSizeInBytes
+                         + lNumberOfRecords * cRecordSizeInBytes;
+      if (lMappedSize > Integer.MAX_VALUE)
+        return null;
+
+      MappedByteBuffer lMappedByteBuffer =
+                                         lFileChannel.map(MapMode.READ_ONLY,
+                                                          0,
+                                                          lMappedSize);
+      lMappedByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      if (lMappedByteBuffer.getLong(0) != cMagic
+          || lMappedByteBuffer.getInt(8) != cVersion
+          || lMappedByteBuffer.getInt(12) != cRecordSizeInBytes)
+        return null;
+
+      return new BinaryStackIndex(lMappedByteBuffer, lNumberOfRecords);
+    }
+  }
+
+  private BinaryStackIndex(MappedByteBuffer pMappedByteBuffer,
+                           long pNumberOfRecords)
+  {
+    mMappedByteBuffer = pMappedByteBuffer;
+    mNumberOfRecords = pNumberOfRecords;
+  }
+
+  /**
+   * Returns the number of complete records in this index, hole records
+   * included. This is the highest stack index plus one.
+   *
+   * @return number of records
+   */
+  public long getNumberOfRecords()
+  {
+    return mNumberOfRecords;
+  }
+
+  /**
+   * Returns true if this index has a record for the given stack index, false
+   * if there is no record or only a hole record for it.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return true if a record exists
+   */
+  public boolean hasRecord(long pStackIndex)
+  {
+    return pStackIndex >= 0 && pStackIndex < mNumberOfRecords
+           && getLong(pStackIndex, cIndexOffset) == pStackIndex;
+  }
+
+  /**
+   * Returns the time stamp in seconds of a given stack
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return time stamp in seconds
+   */
+  public double getTimeStampInSeconds(long pStackIndex)
+  {
+    return mMappedByteBuffer.getDouble(getPosition(pStackIndex)
+                                       + cTimeStampOffset);
+  }
+
+  /**
+   * Returns the width of a given stack
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return width
+   */
+  public long getWidth(long pStackIndex)
+  {
+    return getLong(pStackIndex, cWidthOffset);
+  }
+
+  /**
+   * Returns the height of a given stack
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return height
+   */
+  public long getHeight(long pStackIndex)
+  {
+    return getLong(pStackIndex, cHeightOffset);
+  }
+
+  /**
+   * Returns the depth of a given stack
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return depth
+   */
+  public long getDepth(long pStackIndex)
+  {
+    return getLong(pStackIndex, cDepthOffset);
+  }
+
+  /**
+   * Returns the byte offset of the stack data within the stack file
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return data offset in bytes
+   */
+  public long getDataOffset(long pStackIndex)
+  {
+    return getLong(pStackIndex, cDataOffsetOffset);
+  }
+
+  /**
+   * Returns the byte offset of the stack's line within the metadata file
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return metadata offset in bytes
+   */
+  public long getMetaDataOffset(long pStackIndex)
+  {
+    return getLong(pStackIndex, cMetaDataOffsetOffset);
+  }
+
+  /**
+   * Returns the length in bytes of the stack's line within the metadata file
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return metadata length in bytes
+   */
+  public long getMetaDataLength(long pStackIndex)
+  {
+    return getLong(pStackIndex, cMetaDataLengthOffset);
+  }
+
+  private long getLong(long pStackIndex, int pFieldOffset)
+  {
+    return mMappedByteBuffer.getLong(getPosition(pStackIndex)
+                                     + pFieldOffset);
+  }
+
+  private static int getPosition(long pStackIndex)
+  {
+    return (int) (cHeaderSizeInBytes
+                  + pStackIndex * cRecordSizeInBytes);
+  }
+
+}
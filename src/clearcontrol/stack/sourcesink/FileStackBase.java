@@ -27,6 +27,8 @@ public abstract class FileStackBase extends StackServerBase
 
   protected ConcurrentHashMap<String, File> mChannelToIndexFileMap =
                                                                    new ConcurrentHashMap<>();
+  protected ConcurrentHashMap<String, File> mChannelToBinaryIndexFileMap =
+                                                                         new ConcurrentHashMap<>();
   protected ConcurrentHashMap<String, File> mChannelToMetadataFileMap =
                                                                       new ConcurrentHashMap<>();
 
@@ -107,6 +109,19 @@ public abstract class FileStackBase extends StackServerBase
     return lIndexFile;
   }
 
+  protected File getBinaryIndexFile(String pChannel)
+  {
+    File lBinaryIndexFile = mChannelToBinaryIndexFileMap.get(pChannel);
+    if (lBinaryIndexFile == null)
+    {
+      lBinaryIndexFile = new File(mFolder,
+                                  pChannel + BinaryStackIndex.cExtension);
+      lBinaryIndexFile.getParentFile().mkdirs();
+      mChannelToBinaryIndexFileMap.put(pChannel, lBinaryIndexFile);
+    }
+    return lBinaryIndexFile;
+  }
+
   protected File getMetadataFile(String pChannel)
   {
     File lMetadataFile = mChannelToMetadataFileMap.get(pChannel);
@@ -0,0 +1,208 @@
+package clearcontrol.stack.sourcesink.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+
+/**
+ * Stack catalog for a single channel. The catalog stores - per stack index -
+ * the stack's time stamp in a primitive column, and its request and metadata in
+ * compact reference columns. Lookups by stack index do not allocate.
+ *
+ * The catalog supports a single writer thread appending entries without locks
+ * and any number of concurrent reader threads. Columns grow by doubling: a
+ * grown column is fully populated before it is published, and the number of
+ * time stamps is published after the time stamp itself is written, so readers
+ * never observe partially written entries.
+ *
+ * Stack indices need not be set contiguously: a stack that failed to be
+ * written leaves a hole. Holes read as a NaN time stamp and null request and
+ * metadata, exactly like indices past the last stack.
+ *
+ * @author royer
+ */
+public class StackCatalog
+{
+  private static final int cInitialCapacity = 256;
+
+  private volatile double[] mTimeStampsInSeconds =
+                                                 newTimeStamps(new double[0],
+                                                               cInitialCapacity);
+  private volatile int mNumberOfTimeStamps = 0;
+
+  private volatile AtomicReferenceArray<StackRequest> mStackRequests =
+                                                                     new AtomicReferenceArray<>(cInitialCapacity);
+
+  private volatile AtomicReferenceArray<StackMetaData> mStackMetaData =
+                                                                      new AtomicReferenceArray<>(cInitialCapacity);
+
+  /**
+   * Instantiates an empty stack catalog
+   */
+  public StackCatalog()
+  {
+    super();
+  }
+
+  /**
+   * Returns the number of stacks in this catalog, i.e. one more than the
+   * highest stack index with a time stamp. Holes below that index are counted.
+   *
+   * @return number of stacks
+   */
+  public int getNumberOfStacks()
+  {
+    return mNumberOfTimeStamps;
+  }
+
+  /**
+   * Sets the time stamp in seconds for a given stack index. Only one thread may
+   * write to a catalog at a time.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pTimeStampInSeconds
+   *          time stamp in seconds
+   */
+  public void setTimeStampInSeconds(int pStackIndex,
+                                    double pTimeStampInSeconds)
+  {
+    double[] lTimeStampsInSeconds = mTimeStampsInSeconds;
+    if (pStackIndex >= lTimeStampsInSeconds.length)
+    {
+      lTimeStampsInSeconds =
+                           newTimeStamps(lTimeStampsInSeconds,
+                                         newCapacity(lTimeStampsInSeconds.length,
+                                                     pStackIndex));
+      mTimeStampsInSeconds = lTimeStampsInSeconds;
+    }
+
+    lTimeStampsInSeconds[pStackIndex] = pTimeStampInSeconds;
+
+    // the volatile write publishes the time stamp written above:
+    if (pStackIndex >= mNumberOfTimeStamps)
+      mNumberOfTimeStamps = pStackIndex + 1;
+  }
+
+  /**
+   * Returns the time stamp in seconds for a given stack index, or NaN if there
+   * is no such stack or the index is a hole.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return time stamp in seconds or NaN
+   */
+  public double getTimeStampInSeconds(int pStackIndex)
+  {
+    // the volatile read of the size comes first:
+    if (pStackIndex < 0 || pStackIndex >= mNumberOfTimeStamps)
+      return Double.NaN;
+    return mTimeStampsInSeconds[pStackIndex];
+  }
+
+  /**
+   * Sets the stack request for a given stack index. Only one thread may write
+   * to a catalog at a time.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pStackRequest
+   *          stack request
+   */
+  public void setStackRequest(int pStackIndex,
+                              StackRequest pStackRequest)
+  {
+    AtomicReferenceArray<StackRequest> lStackRequests = mStackRequests;
+    if (pStackIndex >= lStackRequests.length())
+    {
+      lStackRequests = grow(lStackRequests, pStackIndex);
+      mStackRequests = lStackRequests;
+    }
+    lStackRequests.set(pStackIndex, pStackRequest);
+  }
+
+  /**
+   * Returns the stack request for a given stack index, or null if there is no
+   * such request.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return stack request or null
+   */
+  public StackRequest getStackRequest(int pStackIndex)
+  {
+    AtomicReferenceArray<StackRequest> lStackRequests = mStackRequests;
+    if (pStackIndex < 0 || pStackIndex >= lStackRequests.length())
+      return null;
+    return lStackRequests.get(pStackIndex);
+  }
+
+  /**
+   * Sets the stack metadata for a given stack index. Only one thread may write
+   * to a catalog at a time.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pStackMetaData
+   *          stack metadata
+   */
+  public void setStackMetaData(int pStackIndex,
+                               StackMetaData pStackMetaData)
+  {
+    AtomicReferenceArray<StackMetaData> lStackMetaData = mStackMetaData;
+    if (pStackIndex >= lStackMetaData.length())
+    {
+      lStackMetaData = grow(lStackMetaData, pStackIndex);
+      mStackMetaData = lStackMetaData;
+    }
+    lStackMetaData.set(pStackIndex, pStackMetaData);
+  }
+
+  /**
+   * Returns the stack metadata for a given stack index, or null if there is no
+   * such metadata.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return stack metadata or null
+   */
+  public StackMetaData getStackMetaData(int pStackIndex)
+  {
+    AtomicReferenceArray<StackMetaData> lStackMetaData = mStackMetaData;
+    if (pStackIndex < 0 || pStackIndex >= lStackMetaData.length())
+      return null;
+    return lStackMetaData.get(pStackIndex);
+  }
+
+  private static <T> AtomicReferenceArray<T> grow(AtomicReferenceArray<T> pArray,
+                                                  int pStackIndex)
+  {
+    AtomicReferenceArray<T> lNewArray =
+                                      new AtomicReferenceArray<>(newCapacity(pArray.length(),
+                                                                             pStackIndex));
+    for (int i = 0; i < pArray.length(); i++)
+      lNewArray.set(i, pArray.get(i));
+    return lNewArray;
+  }
+
+  private static double[] newTimeStamps(double[] pTimeStampsInSeconds,
+                                        int pCapacity)
+  {
+    double[] lTimeStampsInSeconds = Arrays.copyOf(pTimeStampsInSeconds,
+                                                  pCapacity);
+    Arrays.fill(lTimeStampsInSeconds,
+                pTimeStampsInSeconds.length,
+                pCapacity,
+                Double.NaN);
+    return lTimeStampsInSeconds;
+  }
+
+  private static int newCapacity(int pCapacity, int pStackIndex)
+  {
+    long lNewCapacity = Math.max(2L * pCapacity, pStackIndex + 1L);
+    return (int) Math.min(lNewCapacity, Integer.MAX_VALUE - 8);
+  }
+
+}
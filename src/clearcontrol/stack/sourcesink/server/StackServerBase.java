@@ -7,12 +7,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
-import gnu.trove.list.array.TDoubleArrayList;
-
-import org.apache.commons.lang3.tuple.Pair;
 
 /**
- * Stack server base
+ * Stack server base. Time stamps, requests and metadata of stacks are kept -
+ * per channel - in stack catalogs (see {@link StackCatalog}).
  *
  * @author royer
  */
@@ -20,14 +18,8 @@ public abstract class StackServerBase implements
                                       StackSinkSourceInterface,
                                       AutoCloseable
 {
-  private final ConcurrentHashMap<String, TDoubleArrayList> mChannelIndexToTimeStampInSecondsMap =
-                                                                                                 new ConcurrentHashMap<>();
-
-  private final ConcurrentHashMap<Pair<String, Long>, StackRequest> mChannelIndexToStackRequestMap =
-                                                                                                   new ConcurrentHashMap<>();
-
-  private final ConcurrentHashMap<Pair<String, Long>, StackMetaData> mChannelIndexToMetaDataMap =
-                                                                                                new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, StackCatalog> mChannelToStackCatalogMap =
+                                                                               new ConcurrentHashMap<>();
 
   /**
    * Instantiates a stack server base
@@ -39,8 +31,31 @@ public abstract class StackServerBase implements
 
   protected void clear()
   {
-    mChannelIndexToTimeStampInSecondsMap.clear();
-    mChannelIndexToStackRequestMap.clear();
+    mChannelToStackCatalogMap.clear();
+  }
+
+  /**
+   * Returns the stack catalog for a given channel, or null if nothing has been
+   * recorded for that channel yet. Catalogs give allocation-free access to
+   * time stamps, requests and metadata.
+   * 
+   * @param pChannel
+   *          channel
+   * @return stack catalog or null
+   */
+  public StackCatalog getStackCatalog(String pChannel)
+  {
+    return mChannelToStackCatalogMap.get(pChannel);
+  }
+
+  private StackCatalog getOrCreateStackCatalog(String pChannel)
+  {
+    StackCatalog lStackCatalog = mChannelToStackCatalogMap.get(pChannel);
+    if (lStackCatalog == null)
+      lStackCatalog =
+                    mChannelToStackCatalogMap.computeIfAbsent(pChannel,
+                                                              (c) -> new StackCatalog());
+    return lStackCatalog;
   }
 
   /**
@@ -50,8 +65,7 @@ public abstract class StackServerBase implements
    */
   public long getNumberOfStacks()
   {
-    return mChannelIndexToTimeStampInSecondsMap.get(cDefaultChannel)
-                                               .size();
+    return getNumberOfStacks(cDefaultChannel);
   }
 
   /**
@@ -64,7 +78,10 @@ public abstract class StackServerBase implements
    */
   public long getNumberOfStacks(String pChannel)
   {
-    return mChannelIndexToTimeStampInSecondsMap.get(pChannel).size();
+    StackCatalog lStackCatalog = getStackCatalog(pChannel);
+    if (lStackCatalog == null)
+      return 0;
+    return lStackCatalog.getNumberOfStacks();
   }
 
   /**
@@ -82,17 +99,8 @@ public abstract class StackServerBase implements
                                          final long pStackIndex,
                                          double pTimeStampInSeconds)
   {
-    TDoubleArrayList lTimeStampList =
-                                    mChannelIndexToTimeStampInSecondsMap.get(pChannel);
-
-    if (lTimeStampList == null)
-    {
-      lTimeStampList = new TDoubleArrayList();
-      mChannelIndexToTimeStampInSecondsMap.put(pChannel,
-                                               lTimeStampList);
-    }
-
-    lTimeStampList.add(pTimeStampInSeconds);
+    getOrCreateStackCatalog(pChannel).setTimeStampInSeconds(toIntExact(pStackIndex),
+                                                            pTimeStampInSeconds);
   }
 
   /**
@@ -110,25 +118,52 @@ public abstract class StackServerBase implements
 
   /**
    * Returns - for a given channel and stack index - the stack's time stamp in
-   * seconds
+   * seconds, or null if there is no such stack. See
+   * {@link #getStackTimeStampInSecondsOrNaN(String, long)} for the
+   * allocation-free variant.
    * 
    * @param pChannel
    *          channel
    * 
    * @param pStackIndex
    *          stack index
-   * @return stack's time stamp in seconds
+   * @return stack's time stamp in seconds or null
    */
   public Double getStackTimeStampInSeconds(String pChannel,
                                            final long pStackIndex)
   {
-    TDoubleArrayList lTimeStampList =
-                                    mChannelIndexToTimeStampInSecondsMap.get(pChannel);
+    double lTimeStampInSeconds =
+                               getStackTimeStampInSecondsOrNaN(pChannel,
+                                                               pStackIndex);
 
-    if (lTimeStampList == null)
+    if (Double.isNaN(lTimeStampInSeconds))
       return null;
 
-    return new Double(lTimeStampList.get(toIntExact(pStackIndex)));
+    return lTimeStampInSeconds;
+  }
+
+  /**
+   * Returns - for a given channel and stack index - the stack's time stamp in
+   * seconds, or NaN if there is no such stack or the index is a hole. Unlike
+   * {@link #getStackTimeStampInSeconds(String, long)} the time stamp is not
+   * boxed.
+   * 
+   * @param pChannel
+   *          channel
+   * 
+   * @param pStackIndex
+   *          stack index
+   * @return stack's time stamp in seconds or NaN
+   */
+  public double getStackTimeStampInSecondsOrNaN(String pChannel,
+                                                final long pStackIndex)
+  {
+    StackCatalog lStackCatalog = getStackCatalog(pChannel);
+
+    if (lStackCatalog == null)
+      return Double.NaN;
+
+    return lStackCatalog.getTimeStampInSeconds(toIntExact(pStackIndex));
   }
 
   /**
@@ -145,8 +180,8 @@ public abstract class StackServerBase implements
                               final long pStackIndex,
                               StackRequest pStackRequest)
   {
-    mChannelIndexToStackRequestMap.put(Pair.of(pChannel, pStackIndex),
-                                       pStackRequest);
+    getOrCreateStackCatalog(pChannel).setStackRequest(toIntExact(pStackIndex),
+                                                      pStackRequest);
   }
 
   /**
@@ -162,9 +197,12 @@ public abstract class StackServerBase implements
   public StackRequest getStackRequest(String pChannel,
                                       final long pStackIndex)
   {
+    StackCatalog lStackCatalog = getStackCatalog(pChannel);
 
-    return mChannelIndexToStackRequestMap.get(Pair.of(pChannel,
-                                                      pStackIndex));
+    if (lStackCatalog == null)
+      return null;
+
+    return lStackCatalog.getStackRequest(toIntExact(pStackIndex));
   }
 
   /**
@@ -181,8 +219,8 @@ public abstract class StackServerBase implements
                                final long pStackIndex,
                                StackMetaData pStackMetaData)
   {
-    mChannelIndexToMetaDataMap.put(Pair.of(pChannel, pStackIndex),
-                                   pStackMetaData);
+    getOrCreateStackCatalog(pChannel).setStackMetaData(toIntExact(pStackIndex),
+                                                       pStackMetaData);
   }
 
   /**
@@ -197,9 +235,12 @@ public abstract class StackServerBase implements
   public StackMetaData getStackMetaData(String pChannel,
                                         final long pStackIndex)
   {
+    StackCatalog lStackCatalog = getStackCatalog(pChannel);
+
+    if (lStackCatalog == null)
+      return null;
 
-    return mChannelIndexToMetaDataMap.get(Pair.of(pChannel,
-                                                  pStackIndex));
+    return lStackCatalog.getStackMetaData(toIntExact(pStackIndex));
   }
 
 }
@@ -0,0 +1,28 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import clearcontrol.stack.StackPlaneBatch;
+
+/**
+ * Interface implemented by stack sinks that can append stacks plane by plane
+ * while they are being acquired. The plane batches of a stack must be appended
+ * in plane order, and the stack is appended once its last batch is. A stack
+ * appended plane by plane must not be appended again with appendStack.
+ *
+ * @author royer
+ */
+public interface PlaneStreamingStackSinkInterface extends
+                                                  StackSinkInterface
+{
+
+  /**
+   * Appends a batch of planes to this sink for a given channel
+   *
+   * @param pChannel
+   *          channel
+   * @param pPlaneBatch
+   *          plane batch
+   * @return true -> success
+   */
+  boolean appendPlanes(String pChannel, StackPlaneBatch pPlaneBatch);
+
+}
@@ -4,14 +4,17 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
 import clearcontrol.stack.sourcesink.FileStackBase;
 import clearcontrol.stack.sourcesink.FileStackInterface;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
@@ -20,11 +23,18 @@ import coremem.fragmented.FragmentedMemoryInterface;
 /**
  * Raw file stack sink
  *
+ * Stacks can also be appended plane by plane while being acquired (see
+ * {@link PlaneStreamingStackSinkInterface}): planes are written to the stack
+ * file as they arrive, and the index entries are written once the last plane
+ * has been written. A stack whose streaming is not completed is dropped, and
+ * its partial stack file deleted.
+ *
  * @author royer
  */
 public class RawFileStackSink extends FileStackBase implements
                               FileStackInterface,
                               FileStackSinkInterface,
+                              PlaneStreamingStackSinkInterface,
                               AutoCloseable
 {
 
@@ -32,6 +42,8 @@ public class RawFileStackSink extends FileStackBase implements
                                                               new AtomicLong();
   private final ConcurrentHashMap<String, AtomicLong> mNextFreeStackIndexMap =
                                                                              new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, StreamedStack> mStreamedStackMap =
+                                                                          new ConcurrentHashMap<>();
 
   /**
    * Instantiates a raw file stack sink.
@@ -58,14 +70,7 @@ public class RawFileStackSink extends FileStackBase implements
       AtomicLong lNextFreeStackIndex = getIndexForChannel(pChannel);
 
       writeStackData(lNextFreeStackIndex.get(), pChannel, pStack);
-      writeIndexFileEntry(lNextFreeStackIndex.get(),
-                          pChannel,
-                          pStack);
-      writeMetaDataFileEntry(pChannel, pStack);
-
-      setStackRequest(pChannel,
-                      lNextFreeStackIndex.get(),
-                      StackRequest.buildFrom(pStack));
+      writeStackEntries(lNextFreeStackIndex.get(), pChannel, pStack);
       lNextFreeStackIndex.incrementAndGet();
       return true;
     }
@@ -76,6 +81,117 @@ public class RawFileStackSink extends FileStackBase implements
     }
   }
 
+  @Override
+  public boolean appendPlanes(String pChannel,
+                              StackPlaneBatch pPlaneBatch)
+  {
+    final StackInterface lStack = pPlaneBatch.getStack();
+    StreamedStack lStreamedStack = mStreamedStackMap.get(pChannel);
+    try
+    {
+      if (pPlaneBatch.isFirstBatch())
+      {
+        if (lStreamedStack != null)
+        {
+          // the previous streamed stack was never completed, it is dropped:
+          mStreamedStackMap.remove(pChannel);
+          dropStreamedStack(lStreamedStack);
+        }
+        final long lIndex = getIndexForChannel(pChannel).get();
+        String lFileName =
+                         String.format(StackSinkSourceInterface.cFormat,
+                                       lIndex);
+        File lFile = new File(getChannelFolder(pChannel), lFileName);
+        FileChannel lFileChannel = getFileChannel(lFile, false);
+        // planes are appended, whatever the file held before is discarded:
+        lFileChannel.truncate(0);
+        lStreamedStack = new StreamedStack(lStack, lIndex, lFile, lFileChannel);
+        mStreamedStackMap.put(pChannel, lStreamedStack);
+      }
+      else if (lStreamedStack == null
+               || lStreamedStack.mStack != lStack
+               || lStreamedStack.mNextPlaneIndex != pPlaneBatch.getFirstPlaneIndex())
+      {
+        return false;
+      }
+
+      // planes are appended in order, so that the stack file has the same
+      // layout as when the whole stack is written at once:
+      final long lEndPlaneIndex = pPlaneBatch.getEndPlaneIndex();
+      for (long z = pPlaneBatch.getFirstPlaneIndex(); z < lEndPlaneIndex; z++)
+      {
+        final ByteBuffer lPlaneByteBuffer =
+                                          lStack.getContiguousMemory((int) z)
+                                                .getByteBuffer();
+        while (lPlaneByteBuffer.hasRemaining())
+          lStreamedStack.mFileChannel.write(lPlaneByteBuffer);
+      }
+      lStreamedStack.mNextPlaneIndex = lEndPlaneIndex;
+
+      if (pPlaneBatch.isLastBatch())
+      {
+        mStreamedStackMap.remove(pChannel);
+        lStreamedStack.mFileChannel.force(false);
+        lStreamedStack.mFileChannel.close();
+        writeStackEntries(lStreamedStack.mIndex, pChannel, lStack);
+        getIndexForChannel(pChannel).incrementAndGet();
+      }
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      if (lStreamedStack != null
+          && mStreamedStackMap.remove(pChannel, lStreamedStack))
+      {
+        try
+        {
+          dropStreamedStack(lStreamedStack);
+        }
+        catch (IOException e1)
+        {
+          e1.printStackTrace();
+        }
+      }
+      return false;
+    }
+  }
+
+  private void dropStreamedStack(StreamedStack pStreamedStack) throws IOException
+  {
+    pStreamedStack.mFileChannel.close();
+    Files.deleteIfExists(pStreamedStack.mFile.toPath());
+  }
+
+  /**
+   * Writes the index, metadata and binary index entries of a given stack whose
+   * data has already been written.
+   * 
+   * @param pIndex
+   *          stack index
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  protected void writeStackEntries(long pIndex,
+                                   String pChannel,
+                                   final StackInterface pStack) throws IOException
+  {
+    writeIndexFileEntry(pIndex, pChannel, pStack);
+    long lMetaDataOffset = getMetadataFile(pChannel).length();
+    long lMetaDataLength = writeMetaDataFileEntry(pChannel, pStack);
+    writeBinaryIndexFileEntry(pIndex,
+                              pChannel,
+                              pStack,
+                              lMetaDataOffset,
+                              lMetaDataLength);
+
+    setStackRequest(pChannel, pIndex, StackRequest.buildFrom(pStack));
+  }
+
   protected AtomicLong getIndexForChannel(String pChannel)
   {
     AtomicLong lNextFreeStackIndex =
@@ -96,6 +212,7 @@ public class RawFileStackSink extends FileStackBase implements
                                      pIndex);
     File lFile = new File(getChannelFolder(pChannel), lFileName);
     FileChannel lBinnaryFileChannel = getFileChannel(lFile, false);
+    lBinnaryFileChannel.truncate(0);
     FragmentedMemoryInterface lFragmentedMemory =
                                                 pStack.getFragmentedMemory();
 
@@ -109,15 +226,42 @@ public class RawFileStackSink extends FileStackBase implements
                                      String pChannel,
                                      final StackInterface pStack) throws IOException
   {
-    long[] lDimensions = pStack.getDimensions();
-
-    final String lDimensionsString = Arrays.toString(lDimensions);
-
     final FileChannel lIndexFileChannel =
                                         getFileChannel(getIndexFile(pChannel),
 
                                                        false);
 
+    final String lIndexLineString = getIndexFileEntry(pIndex,
+                                                      pChannel,
+                                                      pStack);
+    final byte[] lIndexLineStringBytes = lIndexLineString.getBytes();
+    final ByteBuffer lIndexLineStringByteBuffer =
+                                                ByteBuffer.wrap(lIndexLineStringBytes);
+    lIndexFileChannel.write(lIndexLineStringByteBuffer);
+    lIndexFileChannel.force(true);
+    lIndexFileChannel.close();
+  }
+
+  /**
+   * Registers the time stamp of a given stack for a given channel and index,
+   * and returns the corresponding index file line.
+   * 
+   * @param pIndex
+   *          stack index
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @return index file line (including the trailing new line)
+   */
+  protected String getIndexFileEntry(long pIndex,
+                                     String pChannel,
+                                     final StackInterface pStack)
+  {
+    long[] lDimensions = pStack.getDimensions();
+
+    final String lDimensionsString = Arrays.toString(lDimensions);
+
     long lTimeStampInNanoseconds;
 
     if (pStack.getMetaData() != null
@@ -143,36 +287,139 @@ public class RawFileStackSink extends FileStackBase implements
                                                 lDimensionsString.substring(1,
                                                                             lDimensionsString.length()
                                                                                - 1));
-    final byte[] lIndexLineStringBytes = lIndexLineString.getBytes();
-    final ByteBuffer lIndexLineStringByteBuffer =
-                                                ByteBuffer.wrap(lIndexLineStringBytes);
-    lIndexFileChannel.write(lIndexLineStringByteBuffer);
-    lIndexFileChannel.force(true);
-    lIndexFileChannel.close();
+    return lIndexLineString;
   }
 
-  protected void writeMetaDataFileEntry(String pChannel,
+  protected long writeMetaDataFileEntry(String pChannel,
                                         final StackInterface pStack) throws IOException
   {
     final FileChannel lMetaDataFileChannel =
                                            getFileChannel(getMetadataFile(pChannel),
                                                           false);
 
-    StackMetaData lMetaData = pStack.getMetaData();
-
-    final String lMetaDataString = lMetaData.toString() + "\n";
+    final String lMetaDataString = getMetaDataFileEntry(pStack);
     final byte[] lMetaDataStringBytes = lMetaDataString.getBytes();
     final ByteBuffer lMetaDataStringByteBuffer =
                                                ByteBuffer.wrap(lMetaDataStringBytes);
     lMetaDataFileChannel.write(lMetaDataStringByteBuffer);
     lMetaDataFileChannel.force(true);
     lMetaDataFileChannel.close();
+    return lMetaDataStringBytes.length;
+  }
+
+  /**
+   * Writes the binary index record of a given stack, this must be called once
+   * the stack's time stamp has been registered (see getIndexFileEntry).
+   * 
+   * @param pIndex
+   *          stack index
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @param pMetaDataOffset
+   *          byte offset of the stack's line in the metadata file
+   * @param pMetaDataLength
+   *          length in bytes of the stack's line in the metadata file
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  protected void writeBinaryIndexFileEntry(long pIndex,
+                                           String pChannel,
+                                           final StackInterface pStack,
+                                           long pMetaDataOffset,
+                                           long pMetaDataLength) throws IOException
+  {
+    final ByteBuffer lRecord = getBinaryIndexFileEntry(pIndex,
+                                                       pChannel,
+                                                       pStack,
+                                                       pMetaDataOffset,
+                                                       pMetaDataLength);
+
+    final FileChannel lBinaryIndexFileChannel =
+                                              getFileChannel(getBinaryIndexFile(pChannel),
+                                                             false);
+    BinaryStackIndex.append(lBinaryIndexFileChannel, lRecord);
+    lBinaryIndexFileChannel.force(true);
+    lBinaryIndexFileChannel.close();
+  }
+
+  /**
+   * Returns the binary index record of a given stack, this must be called once
+   * the stack's time stamp has been registered (see getIndexFileEntry).
+   * 
+   * @param pIndex
+   *          stack index
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @param pMetaDataOffset
+   *          byte offset of the stack's line in the metadata file
+   * @param pMetaDataLength
+   *          length in bytes of the stack's line in the metadata file
+   * @return binary index record
+   */
+  protected ByteBuffer getBinaryIndexFileEntry(long pIndex,
+                                               String pChannel,
+                                               final StackInterface pStack,
+                                               long pMetaDataOffset,
+                                               long pMetaDataLength)
+  {
+    return BinaryStackIndex.createRecord(pIndex,
+                                         getStackTimeStampInSecondsOrNaN(pChannel,
+                                                                         pIndex),
+                                         pStack.getDimensions(),
+                                         0,
+                                         pMetaDataOffset,
+                                         pMetaDataLength);
+  }
+
+  /**
+   * Returns the metadata file line for a given stack.
+   * 
+   * @param pStack
+   *          stack
+   * @return metadata file line (including the trailing new line)
+   */
+  protected String getMetaDataFileEntry(final StackInterface pStack)
+  {
+    StackMetaData lMetaData = pStack.getMetaData();
+
+    return lMetaData.toString() + "\n";
   }
 
   @Override
   public void close() throws IOException
   {
+    // stacks that are still being appended plane by plane are dropped:
+    for (StreamedStack lStreamedStack : mStreamedStackMap.values())
+      dropStreamedStack(lStreamedStack);
+    mStreamedStackMap.clear();
     super.close();
   }
 
+  /**
+   * Stack being appended plane by plane
+   */
+  private static class StreamedStack
+  {
+    final StackInterface mStack;
+    final long mIndex;
+    final File mFile;
+    final FileChannel mFileChannel;
+    long mNextPlaneIndex;
+
+    StreamedStack(StackInterface pStack,
+                  long pIndex,
+                  File pFile,
+                  FileChannel pFileChannel)
+    {
+      mStack = pStack;
+      mIndex = pIndex;
+      mFile = pFile;
+      mFileChannel = pFileChannel;
+    }
+  }
+
 }
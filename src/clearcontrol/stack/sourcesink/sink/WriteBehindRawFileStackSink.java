@@ -0,0 +1,672 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.fragmented.FragmentedMemoryInterface;
+
+/**
+ * Write-behind raw file stack sink. This sink produces exactly the same files
+ * as the {@link RawFileStackSink} but does not serialize disk latency into the
+ * calling thread: stack payloads are written by a dedicated pool of writer
+ * threads fed through a bounded queue, and the index and metadata files are
+ * kept open for the whole dataset with their entries batched. Entries are only
+ * committed - in stack index order - once the corresponding stack file has
+ * been completely written, entries of stacks that could not be written are
+ * left out of the text files and replaced by hole records in the binary index
+ * (see {@link BinaryStackIndex}), which is written alongside the text files. Durability is policy driven: committed entries
+ * are forced to disk every N stacks, every T milliseconds, and always on
+ * close.
+ *
+ * Stacks passed to this sink are owned by it until written, and - if
+ * configured so (default) - released to their recycler once the write has
+ * completed.
+ *
+ * @author royer
+ */
+public class WriteBehindRawFileStackSink extends RawFileStackSink
+                                         implements
+                                         AsynchronousExecutorFeature,
+                                         AsynchronousSchedulerFeature,
+                                         LoggingFeature
+{
+
+  private static final int cDefaultNumberOfWriterThreads = 2;
+  private static final int cDefaultMaxQueueLength = 4;
+  private static final int cDefaultFlushEveryNumberOfStacks = 16;
+  private static final long cDefaultFlushPeriodInMilliseconds = 1000;
+
+  private final int mNumberOfWriterThreads;
+  private final int mMaxQueueLength;
+  private final Semaphore mQueueSlots;
+
+  private volatile int mFlushEveryNumberOfStacks =
+                                                 cDefaultFlushEveryNumberOfStacks;
+  private volatile long mFlushPeriodInMilliseconds =
+                                                   cDefaultFlushPeriodInMilliseconds;
+  private volatile boolean mReleaseStacksAfterWrite = true;
+
+  private final ConcurrentHashMap<String, ChannelJournal> mChannelJournalMap =
+                                                                            new ConcurrentHashMap<>();
+
+  private final AtomicLong mNumberOfFailedWrites = new AtomicLong();
+
+  private volatile ThreadPoolExecutor mWriterExecutor;
+  private volatile WaitingScheduledFuture<?> mPeriodicFlushFuture;
+  private volatile boolean mClosed = false;
+
+  /**
+   * Instantiates a write-behind raw file stack sink with default number of
+   * writer threads and queue length.
+   */
+  public WriteBehindRawFileStackSink()
+  {
+    this(cDefaultNumberOfWriterThreads, cDefaultMaxQueueLength);
+  }
+
+  /**
+   * Instantiates a write-behind raw file stack sink with given number of writer
+   * threads and max queue length. When the queue is full, calls to appendStack
+   * block until a writer thread frees a slot.
+   *
+   * @param pNumberOfWriterThreads
+   *          number of writer threads
+   * @param pMaxQueueLength
+   *          max number of stacks queued for writing (not counting the stacks
+   *          currently being written)
+   */
+  public WriteBehindRawFileStackSink(int pNumberOfWriterThreads,
+                                     int pMaxQueueLength)
+  {
+    super();
+    mNumberOfWriterThreads = Math.max(1, pNumberOfWriterThreads);
+    mMaxQueueLength = Math.max(0, pMaxQueueLength);
+    mQueueSlots = new Semaphore(mNumberOfWriterThreads
+                                + mMaxQueueLength);
+  }
+
+  /**
+   * Sets the number of committed stacks after which the index and metadata
+   * files are forced to disk. Zero or negative values disable this trigger.
+   *
+   * @param pNumberOfStacks
+   *          number of stacks
+   */
+  public void setFlushEveryNumberOfStacks(int pNumberOfStacks)
+  {
+    mFlushEveryNumberOfStacks = pNumberOfStacks;
+  }
+
+  /**
+   * Returns the number of committed stacks after which the index and metadata
+   * files are forced to disk.
+   *
+   * @return number of stacks
+   */
+  public int getFlushEveryNumberOfStacks()
+  {
+    return mFlushEveryNumberOfStacks;
+  }
+
+  /**
+   * Sets the period at which the index and metadata files are forced to disk.
+   * Zero or negative values disable this trigger. This must be set before the
+   * first stack is appended.
+   *
+   * @param pPeriod
+   *          period
+   * @param pTimeUnit
+   *          period time unit
+   */
+  public void setFlushPeriod(long pPeriod, TimeUnit pTimeUnit)
+  {
+    mFlushPeriodInMilliseconds = pTimeUnit.toMillis(pPeriod);
+  }
+
+  /**
+   * Returns the period in milliseconds at which the index and metadata files
+   * are forced to disk.
+   *
+   * @return flush period in milliseconds
+   */
+  public long getFlushPeriodInMilliseconds()
+  {
+    return mFlushPeriodInMilliseconds;
+  }
+
+  /**
+   * Sets whether stacks should be released to their recycler once they have
+   * been written.
+   *
+   * @param pReleaseStacksAfterWrite
+   *          true -> stacks are released after write
+   */
+  public void setReleaseStacksAfterWrite(boolean pReleaseStacksAfterWrite)
+  {
+    mReleaseStacksAfterWrite = pReleaseStacksAfterWrite;
+  }
+
+  /**
+   * Returns the number of stacks waiting to be written or being written.
+   *
+   * @return number of pending stacks
+   */
+  public int getNumberOfPendingStacks()
+  {
+    return mNumberOfWriterThreads + mMaxQueueLength
+           - mQueueSlots.availablePermits();
+  }
+
+  /**
+   * Returns the number of stack writes that failed so far.
+   *
+   * @return number of failed writes
+   */
+  public long getNumberOfFailedWrites()
+  {
+    return mNumberOfFailedWrites.get();
+  }
+
+  @Override
+  public boolean appendStack(String pChannel,
+                             final StackInterface pStack)
+  {
+    if (mClosed)
+    {
+      severe("Cannot append stack, sink is closed!");
+      return false;
+    }
+
+    try
+    {
+      ensureStarted();
+
+      final ChannelJournal lChannelJournal =
+                                           getChannelJournal(pChannel);
+
+      // The queue slot is acquired before the stack index is allocated, so
+      // that waiting for a slot can fail without leaving an index behind:
+      mQueueSlots.acquire();
+      JournalEntry lAllocatedJournalEntry = null;
+      try
+      {
+        final JournalEntry lJournalEntry;
+        // Index allocation and entry formatting must happen in append order:
+        synchronized (lChannelJournal.mAppendLock)
+        {
+          AtomicLong lNextFreeStackIndex = getIndexForChannel(pChannel);
+          long lIndex = lNextFreeStackIndex.get();
+          lJournalEntry = new JournalEntry(lIndex,
+                                           getIndexFileEntry(lIndex,
+                                                             pChannel,
+                                                             pStack),
+                                           getMetaDataFileEntry(pStack).getBytes(),
+                                           getStackTimeStampInSecondsOrNaN(pChannel,
+                                                                           lIndex),
+                                           pStack.getDimensions().clone());
+          setStackRequest(pChannel,
+                          lIndex,
+                          StackRequest.buildFrom(pStack));
+          lNextFreeStackIndex.incrementAndGet();
+        }
+        lAllocatedJournalEntry = lJournalEntry;
+
+        mWriterExecutor.execute(() -> writeAndCommit(lChannelJournal,
+                                                     lJournalEntry,
+                                                     pChannel,
+                                                     pStack));
+      }
+      catch (Throwable e)
+      {
+        mQueueSlots.release();
+        // an allocated index that will never be written is skipped, otherwise
+        // no later entry of the channel would ever be committed:
+        if (lAllocatedJournalEntry != null)
+        {
+          mNumberOfFailedWrites.incrementAndGet();
+          lChannelJournal.commit(lAllocatedJournalEntry, false);
+        }
+        throw e;
+      }
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Stack data is already written behind the acquisition by this sink, plane
+   * batches are therefore not written individually: the stack is queued for
+   * writing once its last plane batch is appended.
+   */
+  @Override
+  public boolean appendPlanes(String pChannel,
+                              StackPlaneBatch pPlaneBatch)
+  {
+    if (!pPlaneBatch.isLastBatch())
+      return true;
+    return appendStack(pChannel, pPlaneBatch.getStack());
+  }
+
+  private void writeAndCommit(ChannelJournal pChannelJournal,
+                              JournalEntry pJournalEntry,
+                              String pChannel,
+                              StackInterface pStack)
+  {
+    boolean lWritten = false;
+    try
+    {
+      writeStackDataWithoutForce(pJournalEntry.mIndex,
+                                 pChannel,
+                                 pStack);
+      lWritten = true;
+    }
+    catch (Throwable e)
+    {
+      mNumberOfFailedWrites.incrementAndGet();
+      severe("Could not write stack %d of channel %s: %s",
+             pJournalEntry.mIndex,
+             pChannel,
+             e);
+      e.printStackTrace();
+    }
+    finally
+    {
+      try
+      {
+        // Entries of failed writes are not committed, but are skipped so that
+        // following entries are not blocked forever. Entries are committed
+        // before the stack is counted as written:
+        pChannelJournal.commit(pJournalEntry, lWritten);
+      }
+      finally
+      {
+        if (mReleaseStacksAfterWrite)
+          pStack.release();
+        mQueueSlots.release();
+      }
+    }
+  }
+
+  private void writeStackDataWithoutForce(long pIndex,
+                                          String pChannel,
+                                          final StackInterface pStack) throws IOException
+  {
+    String lFileName = String.format(StackSinkSourceInterface.cFormat,
+                                     pIndex);
+    File lFile = new File(getChannelFolder(pChannel), lFileName);
+    try (FileChannel lBinaryFileChannel = getFileChannel(lFile, false))
+    {
+      lBinaryFileChannel.truncate(0);
+      FragmentedMemoryInterface lFragmentedMemory =
+                                                  pStack.getFragmentedMemory();
+
+      lFragmentedMemory.writeBytesToFileChannel(lBinaryFileChannel, 0);
+    }
+  }
+
+  private void ensureStarted()
+  {
+    if (mWriterExecutor != null)
+      return;
+
+    synchronized (this)
+    {
+      if (mWriterExecutor != null)
+        return;
+
+      // The semaphore bounds the queue, the executor's queue is never full:
+      ThreadPoolExecutor lWriterExecutor =
+                                         initializeExecutor(mNumberOfWriterThreads
+                                                            + mMaxQueueLength,
+                                                            mNumberOfWriterThreads);
+
+      long lFlushPeriod = mFlushPeriodInMilliseconds;
+      if (lFlushPeriod > 0)
+        mPeriodicFlushFuture = scheduleAtFixedRate(() -> {
+          try
+          {
+            flush();
+          }
+          catch (Throwable e)
+          {
+            severe("Periodic flush failed: %s", e);
+          }
+        }, lFlushPeriod, lFlushPeriod, TimeUnit.MILLISECONDS);
+
+      mWriterExecutor = lWriterExecutor;
+    }
+  }
+
+  private ChannelJournal getChannelJournal(String pChannel)
+  {
+    return mChannelJournalMap.computeIfAbsent(pChannel,
+                                              (c) -> new ChannelJournal(getIndexFile(c),
+                                                                        getMetadataFile(c),
+                                                                        getBinaryIndexFile(c)));
+  }
+
+  /**
+   * Writes all committed index and metadata entries to their files and forces
+   * them to disk. Stacks still being written are not waited for.
+   *
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public void flush() throws IOException
+  {
+    for (ChannelJournal lChannelJournal : mChannelJournalMap.values())
+      lChannelJournal.flush();
+  }
+
+  /**
+   * Waits until all stacks appended so far have been written and committed.
+   *
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time unit
+   * @return true -> all pending stacks written, false -> timeout
+   * @throws InterruptedException
+   *           if interrupted
+   */
+  public boolean waitForPendingWrites(long pTimeOut,
+                                      TimeUnit pTimeUnit) throws InterruptedException
+  {
+    final int lAllSlots = mNumberOfWriterThreads + mMaxQueueLength;
+    if (!mQueueSlots.tryAcquire(lAllSlots, pTimeOut, pTimeUnit))
+      return false;
+    mQueueSlots.release(lAllSlots);
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (mClosed)
+      return;
+    mClosed = true;
+
+    try
+    {
+      waitForPendingWrites(Long.MAX_VALUE, TimeUnit.DAYS);
+
+      if (mPeriodicFlushFuture != null)
+      {
+        mPeriodicFlushFuture.cancel(false);
+        ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
+                                                                 ClearControlExecutors.getScheduledThreadPoolExecutor(this);
+        if (lScheduledThreadPoolExecutor != null)
+          lScheduledThreadPoolExecutor.shutdown();
+        ClearControlExecutors.resetScheduledThreadPoolExecutor(this);
+      }
+
+      if (mWriterExecutor != null)
+        resetThreadPoolAndWaitForCompletion(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for pending writes",
+                            e);
+    }
+    finally
+    {
+      IOException lException = null;
+      for (ChannelJournal lChannelJournal : mChannelJournalMap.values())
+        try
+        {
+          lChannelJournal.close();
+        }
+        catch (IOException e)
+        {
+          lException = e;
+        }
+      mChannelJournalMap.clear();
+      super.close();
+      if (lException != null)
+        throw lException;
+    }
+  }
+
+  /**
+   * Index and metadata entries of a stack waiting to be committed.
+   */
+  private static class JournalEntry
+  {
+    final long mIndex;
+    final String mIndexFileEntry;
+    final byte[] mMetaDataFileEntry;
+    final double mTimeStampInSeconds;
+    final long[] mDimensions;
+    boolean mWritten;
+
+    JournalEntry(long pIndex,
+                 String pIndexFileEntry,
+                 byte[] pMetaDataFileEntry,
+                 double pTimeStampInSeconds,
+                 long[] pDimensions)
+    {
+      mIndex = pIndex;
+      mIndexFileEntry = pIndexFileEntry;
+      mMetaDataFileEntry = pMetaDataFileEntry;
+      mTimeStampInSeconds = pTimeStampInSeconds;
+      mDimensions = pDimensions;
+    }
+  }
+
+  /**
+   * Per-channel journal: keeps the index and metadata channels open, reorders
+   * completed writes by stack index and batches the corresponding entries.
+   */
+  private class ChannelJournal
+  {
+    private final Object mAppendLock = new Object();
+    private final File mIndexFile, mMetaDataFile, mBinaryIndexFile;
+    private FileChannel mIndexFileChannel, mMetaDataFileChannel,
+        mBinaryIndexFileChannel;
+
+    private final TreeMap<Long, JournalEntry> mCompletedEntries =
+                                                                new TreeMap<>();
+    private long mNextIndexToCommit = 0;
+    private long mMetaDataFileLength;
+
+    private final StringBuilder mIndexBatch = new StringBuilder();
+    private final ByteArrayOutputStream mMetaDataBatch =
+                                                       new ByteArrayOutputStream();
+    private final ByteArrayOutputStream mBinaryIndexBatch =
+                                                          new ByteArrayOutputStream();
+    private int mNumberOfBatchedStacks = 0;
+
+    ChannelJournal(File pIndexFile,
+                   File pMetaDataFile,
+                   File pBinaryIndexFile)
+    {
+      mIndexFile = pIndexFile;
+      mMetaDataFile = pMetaDataFile;
+      mBinaryIndexFile = pBinaryIndexFile;
+      mMetaDataFileLength = pMetaDataFile.length();
+    }
+
+    void commit(JournalEntry pJournalEntry, boolean pWritten)
+    {
+      boolean lFlushNeeded;
+      synchronized (this)
+      {
+        pJournalEntry.mWritten = pWritten;
+        mCompletedEntries.put(pJournalEntry.mIndex, pJournalEntry);
+
+        JournalEntry lEntry;
+        while ((lEntry =
+                       mCompletedEntries.remove(mNextIndexToCommit)) != null)
+        {
+          mNextIndexToCommit++;
+          if (!lEntry.mWritten)
+          {
+            // keeps the binary index positional:
+            ByteBuffer lHoleRecord = BinaryStackIndex.createHoleRecord();
+            mBinaryIndexBatch.write(lHoleRecord.array(),
+                                    lHoleRecord.position(),
+                                    lHoleRecord.remaining());
+            continue;
+          }
+
+          mIndexBatch.append(lEntry.mIndexFileEntry);
+
+          ByteBuffer lRecord =
+                             BinaryStackIndex.createRecord(lEntry.mIndex,
+                                                           lEntry.mTimeStampInSeconds,
+                                                           lEntry.mDimensions,
+                                                           0,
+                                                           mMetaDataFileLength,
+                                                           lEntry.mMetaDataFileEntry.length);
+          mBinaryIndexBatch.write(lRecord.array(),
+                                  lRecord.position(),
+                                  lRecord.remaining());
+
+          mMetaDataBatch.write(lEntry.mMetaDataFileEntry,
+                               0,
+                               lEntry.mMetaDataFileEntry.length);
+          mMetaDataFileLength += lEntry.mMetaDataFileEntry.length;
+
+          mNumberOfBatchedStacks++;
+        }
+
+        int lFlushEvery = mFlushEveryNumberOfStacks;
+        lFlushNeeded = lFlushEvery > 0
+                       && mNumberOfBatchedStacks >= lFlushEvery;
+      }
+
+      if (lFlushNeeded)
+        try
+        {
+          flush();
+        }
+        catch (IOException e)
+        {
+          severe("Could not flush index and metadata files: %s", e);
+          e.printStackTrace();
+        }
+    }
+
+    synchronized void flush() throws IOException
+    {
+      if (mNumberOfBatchedStacks == 0 && mBinaryIndexBatch.size() == 0)
+        return;
+
+      if (mIndexFileChannel == null)
+        mIndexFileChannel = getFileChannel(mIndexFile, false);
+      if (mMetaDataFileChannel == null)
+        mMetaDataFileChannel = getFileChannel(mMetaDataFile, false);
+      if (mBinaryIndexFileChannel == null)
+        mBinaryIndexFileChannel = getFileChannel(mBinaryIndexFile,
+                                                 false);
+
+      // Batches are only cleared once written, partial writes are rolled back
+      // so that the next flush writes the same batches again:
+      if (mNumberOfBatchedStacks > 0)
+      {
+        final long lIndexFileSize = mIndexFileChannel.size();
+        final long lMetaDataFileSize = mMetaDataFileChannel.size();
+        try
+        {
+          write(mIndexFileChannel,
+                ByteBuffer.wrap(mIndexBatch.toString().getBytes()));
+          write(mMetaDataFileChannel,
+                ByteBuffer.wrap(mMetaDataBatch.toByteArray()));
+          mIndexFileChannel.force(true);
+          mMetaDataFileChannel.force(true);
+        }
+        catch (IOException e)
+        {
+          rollBack(mIndexFileChannel, lIndexFileSize, e);
+          rollBack(mMetaDataFileChannel, lMetaDataFileSize, e);
+          throw e;
+        }
+        mIndexBatch.setLength(0);
+        mMetaDataBatch.reset();
+        mNumberOfBatchedStacks = 0;
+      }
+
+      // the binary index comes last, it references the metadata file:
+      final long lBinaryIndexFileSize = mBinaryIndexFileChannel.size();
+      try
+      {
+        BinaryStackIndex.append(mBinaryIndexFileChannel,
+                                ByteBuffer.wrap(mBinaryIndexBatch.toByteArray()));
+        mBinaryIndexFileChannel.force(true);
+      }
+      catch (IOException e)
+      {
+        rollBack(mBinaryIndexFileChannel, lBinaryIndexFileSize, e);
+        throw e;
+      }
+      mBinaryIndexBatch.reset();
+    }
+
+    private void write(FileChannel pFileChannel,
+                       ByteBuffer pByteBuffer) throws IOException
+    {
+      while (pByteBuffer.hasRemaining())
+        pFileChannel.write(pByteBuffer);
+    }
+
+    private void rollBack(FileChannel pFileChannel,
+                          long pSize,
+                          IOException pException)
+    {
+      try
+      {
+        pFileChannel.truncate(pSize);
+      }
+      catch (IOException e)
+      {
+        pException.addSuppressed(e);
+      }
+    }
+
+    synchronized void close() throws IOException
+    {
+      try
+      {
+        flush();
+      }
+      finally
+      {
+        if (mIndexFileChannel != null)
+          mIndexFileChannel.close();
+        if (mMetaDataFileChannel != null)
+          mMetaDataFileChannel.close();
+        if (mBinaryIndexFileChannel != null)
+          mBinaryIndexFileChannel.close();
+        mIndexFileChannel = null;
+        mMetaDataFileChannel = null;
+        mBinaryIndexFileChannel = null;
+      }
+    }
+  }
+
+}
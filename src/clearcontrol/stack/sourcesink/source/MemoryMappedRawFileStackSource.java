@@ -0,0 +1,331 @@
+package clearcontrol.stack.sourcesink.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.ContiguousMemoryInterface;
+import coremem.enums.NativeTypeEnum;
+import coremem.offheap.OffHeapMemory;
+import coremem.recycling.BasicRecycler;
+import coremem.util.Size;
+
+/**
+ * Memory-mapped raw file stack source. Instead of copying each stack file into
+ * a recycled stack, this source maps the stack file into memory and wraps the
+ * mapped region directly as the stack's contiguous memory - no copy involved.
+ * Mappings are private (copy-on-write): processing code may modify the
+ * returned stacks in place without ever touching the files on disk.
+ *
+ * A sequential prefetcher maps and touches (loads into physical memory) the
+ * next K stacks of a channel ahead of the last requested stack, so that
+ * replaying or re-processing a dataset is limited by I/O and not by copies.
+ *
+ * Private mappings require files opened for writing. Datasets that are
+ * read-only (for example archived or mounted read-only) are detected on first
+ * access: their stacks are then mapped read-only and copied into fresh
+ * off-heap buffers - still on the prefetcher's threads.
+ *
+ * Stacks that do not fit in a single mapping (more than 2GB), or files that
+ * cannot be mapped, are read through the regular copying path of
+ * {@link RawFileStackSource} - which requires a stack recycler.
+ *
+ * Stacks returned by this source are not recycled: their mapping is released
+ * once they are garbage collected.
+ *
+ * @author royer
+ */
+public class MemoryMappedRawFileStackSource extends RawFileStackSource
+                                            implements
+                                            AsynchronousExecutorFeature,
+                                            LoggingFeature
+{
+  private static final int cDefaultNumberOfPrefetchedStacks = 2;
+  private static final NativeTypeEnum cDataType =
+                                                NativeTypeEnum.UnsignedShort;
+
+  private volatile int mNumberOfPrefetchedStacks =
+                                                 cDefaultNumberOfPrefetchedStacks;
+
+  private final ConcurrentHashMap<String, ConcurrentHashMap<Long, Future<ByteBuffer>>> mPrefetchedStacksMap =
+                                                                                                                 new ConcurrentHashMap<>();
+
+  private final AtomicBoolean mReadOnlyDataset = new AtomicBoolean();
+
+  /**
+   * Instantiates a memory-mapped raw file stack source. A stack recycler is
+   * only needed for stacks that cannot be mapped, it can be null.
+   *
+   * @param pStackRecycler
+   *          stack recycler used for stacks that cannot be mapped, can be null
+   */
+  public MemoryMappedRawFileStackSource(final BasicRecycler<StackInterface, StackRequest> pStackRecycler)
+  {
+    super(pStackRecycler);
+  }
+
+  /**
+   * Sets the number of stacks to prefetch ahead of the last requested stack.
+   * Zero disables prefetching.
+   *
+   * @param pNumberOfPrefetchedStacks
+   *          number of stacks to prefetch
+   */
+  public void setNumberOfPrefetchedStacks(int pNumberOfPrefetchedStacks)
+  {
+    mNumberOfPrefetchedStacks = Math.max(0, pNumberOfPrefetchedStacks);
+  }
+
+  /**
+   * Returns the number of stacks prefetched ahead of the last requested stack.
+   *
+   * @return number of stacks to prefetch
+   */
+  public int getNumberOfPrefetchedStacks()
+  {
+    return mNumberOfPrefetchedStacks;
+  }
+
+  @Override
+  public void setLocation(File pRootFolder, String pName)
+  {
+    mPrefetchedStacksMap.clear();
+    mReadOnlyDataset.set(false);
+    super.setLocation(pRootFolder, pName);
+  }
+
+  @Override
+  public StackInterface getStack(final String pChannel,
+                                 final long pStackIndex,
+                                 final long pTime,
+                                 final TimeUnit pTimeUnit)
+  {
+    try
+    {
+      final StackRequest lStackRequest = getStackRequest(pChannel,
+                                                         pStackIndex);
+      if (lStackRequest == null)
+        return null;
+
+      final long lSizeInBytes = getSizeInBytes(lStackRequest);
+      if (lSizeInBytes > Integer.MAX_VALUE)
+        return super.getStack(pChannel, pStackIndex, pTime, pTimeUnit);
+
+      final ConcurrentHashMap<Long, Future<ByteBuffer>> lPrefetchedStacks =
+                                                                                getPrefetchedStacks(pChannel);
+
+      ByteBuffer lByteBuffer = null;
+      Future<ByteBuffer> lFuture = lPrefetchedStacks.remove(pStackIndex);
+      if (lFuture != null)
+        try
+        {
+          lByteBuffer = lFuture.get();
+        }
+        catch (CancellationException | ExecutionException e)
+        {
+          // prefetch failed or was cancelled, we map the stack below
+        }
+      if (lByteBuffer == null)
+        lByteBuffer = map(pChannel, pStackIndex, lSizeInBytes);
+
+      prefetch(pChannel, pStackIndex, lPrefetchedStacks);
+
+      if (lByteBuffer == null)
+        return super.getStack(pChannel, pStackIndex, pTime, pTimeUnit);
+
+      final ContiguousMemoryInterface lContiguousMemory =
+                                                        OffHeapMemory.wrapBuffer(lByteBuffer);
+
+      final OffHeapPlanarStack lStack =
+                                      new OffHeapPlanarStack(lContiguousMemory,
+                                                             false,
+                                                             cDataType,
+                                                             1,
+                                                             lStackRequest.getWidth(),
+                                                             lStackRequest.getHeight(),
+                                                             lStackRequest.getDepth());
+
+      applyStackMetaData(pChannel, pStackIndex, lStack);
+
+      return lStack;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  private void prefetch(final String pChannel,
+                        final long pStackIndex,
+                        final ConcurrentHashMap<Long, Future<ByteBuffer>> pPrefetchedStacks)
+  {
+    final int lNumberOfPrefetchedStacks = mNumberOfPrefetchedStacks;
+    final long lLastIndex = Math.min(pStackIndex
+                                     + lNumberOfPrefetchedStacks,
+                                     getNumberOfStacks(pChannel) - 1);
+
+    // drop prefetched stacks that are outside of the read-ahead window, the
+    // cursor has moved (backwards or by a jump):
+    for (Map.Entry<Long, Future<ByteBuffer>> lEntry : pPrefetchedStacks.entrySet())
+    {
+      long lIndex = lEntry.getKey();
+      if (lIndex <= pStackIndex || lIndex > lLastIndex)
+      {
+        lEntry.getValue().cancel(false);
+        pPrefetchedStacks.remove(lIndex);
+      }
+    }
+
+    if (lNumberOfPrefetchedStacks == 0)
+      return;
+
+    ThreadPoolExecutor lExecutor =
+                                 ClearControlExecutors.getThreadPoolExecutor(this);
+    if (lExecutor == null)
+      lExecutor = initializeSerialExecutor();
+
+    for (long lIndex = pStackIndex + 1; lIndex <= lLastIndex; lIndex++)
+    {
+      if (pPrefetchedStacks.containsKey(lIndex))
+        continue;
+
+      final StackRequest lStackRequest = getStackRequest(pChannel,
+                                                         lIndex);
+      if (lStackRequest == null)
+        continue;
+
+      final long lIndexToPrefetch = lIndex;
+      final long lSizeInBytes = getSizeInBytes(lStackRequest);
+      if (lSizeInBytes > Integer.MAX_VALUE)
+        continue;
+
+      // We don't use the executor's submit method here, the completing
+      // executor would keep references to the futures, and thus to the
+      // mappings:
+      FutureTask<ByteBuffer> lFutureTask =
+                                         new FutureTask<>(() -> {
+                                           ByteBuffer lByteBuffer =
+                                                                  map(pChannel,
+                                                                      lIndexToPrefetch,
+                                                                      lSizeInBytes);
+                                           if (lByteBuffer instanceof MappedByteBuffer)
+                                             ((MappedByteBuffer) lByteBuffer).load();
+                                           return lByteBuffer;
+                                         });
+      pPrefetchedStacks.put(lIndexToPrefetch, lFutureTask);
+      lExecutor.execute(lFutureTask);
+    }
+  }
+
+  private ByteBuffer map(final String pChannel,
+                         final long pStackIndex,
+                         final long pSizeInBytes)
+  {
+    File lFile = getStackFile(pChannel, pStackIndex);
+    long lDataOffset = getStackDataOffset(pChannel, pStackIndex);
+    if (!lFile.exists() || lFile.length() < pSizeInBytes + lDataOffset)
+      return null;
+
+    try
+    {
+      if (!mReadOnlyDataset.get())
+        try (FileChannel lFileChannel =
+                                      FileChannel.open(lFile.toPath(),
+                                                       StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE))
+        {
+          // the mapping stays valid after the channel is closed:
+          return lFileChannel.map(MapMode.PRIVATE,
+                                  lDataOffset,
+                                  pSizeInBytes);
+        }
+        catch (AccessDeniedException e)
+        {
+          if (mReadOnlyDataset.compareAndSet(false, true))
+            info("Dataset of stack file %s is read-only, stacks are copied from read-only mappings",
+                 lFile);
+        }
+
+      try (FileChannel lFileChannel =
+                                    FileChannel.open(lFile.toPath(),
+                                                     StandardOpenOption.READ))
+      {
+        MappedByteBuffer lMappedByteBuffer =
+                                           lFileChannel.map(MapMode.READ_ONLY,
+                                                            lDataOffset,
+                                                            pSizeInBytes);
+        // returned stacks are writable, read-only mappings are copied:
+        ByteBuffer lByteBuffer =
+                               ByteBuffer.allocateDirect((int) pSizeInBytes);
+        lByteBuffer.put(lMappedByteBuffer);
+        lByteBuffer.clear();
+        return lByteBuffer;
+      }
+    }
+    catch (IOException e)
+    {
+      warning("Could not map stack file %s, falling back to copy: %s",
+              lFile,
+              e);
+      return null;
+    }
+  }
+
+  private ConcurrentHashMap<Long, Future<ByteBuffer>> getPrefetchedStacks(String pChannel)
+  {
+    return mPrefetchedStacksMap.computeIfAbsent(pChannel,
+                                                (c) -> new ConcurrentHashMap<>());
+  }
+
+  private static long getSizeInBytes(StackRequest pStackRequest)
+  {
+    return pStackRequest.getWidth() * pStackRequest.getHeight()
+           * pStackRequest.getDepth()
+           * Size.of(cDataType);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    for (ConcurrentHashMap<Long, Future<ByteBuffer>> lPrefetchedStacks : mPrefetchedStacksMap.values())
+      for (Future<ByteBuffer> lFuture : lPrefetchedStacks.values())
+        lFuture.cancel(false);
+    mPrefetchedStacksMap.clear();
+
+    ThreadPoolExecutor lExecutor =
+                                 ClearControlExecutors.getThreadPoolExecutor(this);
+    if (lExecutor != null)
+      try
+      {
+        resetThreadPoolAndWaitForCompletion(1, TimeUnit.MINUTES);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+
+    super.close();
+  }
+
+}
@@ -3,22 +3,27 @@ package clearcontrol.stack.sourcesink.source;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
 import clearcontrol.stack.sourcesink.FileStackBase;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
 import coremem.recycling.BasicRecycler;
 import coremem.recycling.RecyclerInterface;
 
 /**
- * Raw file stack source
+ * Raw file stack source. The stack index of each channel is read from the
+ * binary index file when available (see {@link BinaryStackIndex}), and from the
+ * text index and metadata files for legacy datasets.
  *
  * @author royer
  */
@@ -29,6 +34,11 @@ public class RawFileStackSource extends FileStackBase implements
 
   private RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
 
+  private final ConcurrentHashMap<String, BinaryStackIndex> mChannelToBinaryIndexMap =
+                                                                                     new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FileChannel> mChannelToMetaDataFileChannelMap =
+                                                                                        new ConcurrentHashMap<>();
+
   /**
    * Instantiates a raw file stack source
    * 
@@ -89,10 +99,7 @@ public class RawFileStackSource extends FileStackBase implements
                                                            pTimeUnit,
                                                            lStackRequest);
 
-      String lFileName =
-                       String.format(StackSinkSourceInterface.cFormat,
-                                     pStackIndex);
-      File lFile = new File(getChannelFolder(pChannel), lFileName);
+      File lFile = getStackFile(pChannel, pStackIndex);
 
       if (!lFile.exists())
         return null;
@@ -102,23 +109,19 @@ public class RawFileStackSource extends FileStackBase implements
       if (lStack.getContiguousMemory() != null)
         lStack.getContiguousMemory()
               .readBytesFromFileChannel(lBinnaryFileChannel,
-                                        0,
+                                        getStackDataOffset(pChannel,
+                                                           pStackIndex),
                                         lStack.getSizeInBytes());
       else
         lStack.getFragmentedMemory()
               .readBytesFromFileChannel(lBinnaryFileChannel,
-                                        0,
+                                        getStackDataOffset(pChannel,
+                                                           pStackIndex),
                                         lStack.getSizeInBytes());
 
-      final double lTimeStampInSeconds =
-                                       getStackTimeStampInSeconds(pChannel,
-                                                                  pStackIndex);
-      lStack.getMetaData()
-            .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lTimeStampInSeconds));
-      lStack.getMetaData().setIndex(pStackIndex);
+      lBinnaryFileChannel.close();
 
-      lStack.getMetaData()
-            .addAll(getStackMetaData(pChannel, pStackIndex));
+      applyStackMetaData(pChannel, pStackIndex, lStack);
 
       return lStack;
     }
@@ -130,30 +133,237 @@ public class RawFileStackSource extends FileStackBase implements
 
   }
 
+  /**
+   * Returns the file holding the raw data of a stack of given channel and
+   * index.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @return stack file
+   */
+  protected File getStackFile(final String pChannel,
+                              final long pStackIndex)
+  {
+    String lFileName = String.format(StackSinkSourceInterface.cFormat,
+                                     pStackIndex);
+    return new File(getChannelFolder(pChannel), lFileName);
+  }
+
+  /**
+   * Sets the time stamp, index and stored metadata of a stack of given channel
+   * and index.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @param pStack
+   *          stack to apply the metadata to
+   */
+  protected void applyStackMetaData(final String pChannel,
+                                    final long pStackIndex,
+                                    final StackInterface pStack)
+  {
+    final double lTimeStampInSeconds =
+                                     getStackTimeStampInSecondsOrNaN(pChannel,
+                                                                     pStackIndex);
+    pStack.getMetaData()
+          .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lTimeStampInSeconds));
+    pStack.getMetaData().setIndex(pStackIndex);
+
+    StackMetaData lStackMetaData = getStackMetaData(pChannel,
+                                                    pStackIndex);
+    if (lStackMetaData != null)
+      pStack.getMetaData().addAll(lStackMetaData);
+  }
+
   @Override
   public boolean update()
   {
     try
     {
       clear();
+      mChannelToBinaryIndexMap.clear();
+      closeMetaDataFileChannels();
 
       ArrayList<String> lChannelList = getChannelList();
 
       for (String lChannel : lChannelList)
       {
-        readIndexFile(lChannel);
-        readMetaDataFile(lChannel);
+        BinaryStackIndex lBinaryStackIndex =
+                                           BinaryStackIndex.open(getBinaryIndexFile(lChannel));
+        if (lBinaryStackIndex != null)
+        {
+          mChannelToBinaryIndexMap.put(lChannel, lBinaryStackIndex);
+        }
+        else
+        {
+          // legacy dataset without binary index:
+          readIndexFile(lChannel);
+          readMetaDataFile(lChannel);
+        }
       }
 
       return true;
     }
-    catch (final FileNotFoundException e)
+    catch (final IOException e)
     {
       e.printStackTrace();
       return false;
     }
   }
 
+  /**
+   * Returns the binary index for a given channel, or null if this channel's
+   * index was read from the (legacy) text files.
+   * 
+   * @param pChannel
+   *          channel
+   * @return binary index or null
+   */
+  protected BinaryStackIndex getBinaryStackIndex(String pChannel)
+  {
+    return mChannelToBinaryIndexMap.get(pChannel);
+  }
+
+  @Override
+  public long getNumberOfStacks()
+  {
+    return getNumberOfStacks(cDefaultChannel);
+  }
+
+  @Override
+  public long getNumberOfStacks(String pChannel)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryStackIndex(pChannel);
+    if (lBinaryStackIndex != null)
+      return lBinaryStackIndex.getNumberOfRecords();
+    return super.getNumberOfStacks(pChannel);
+  }
+
+  @Override
+  public double getStackTimeStampInSecondsOrNaN(String pChannel,
+                                                long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryStackIndex(pChannel);
+    if (lBinaryStackIndex != null)
+    {
+      if (!lBinaryStackIndex.hasRecord(pStackIndex))
+        return Double.NaN;
+      return lBinaryStackIndex.getTimeStampInSeconds(pStackIndex);
+    }
+    return super.getStackTimeStampInSecondsOrNaN(pChannel, pStackIndex);
+  }
+
+  @Override
+  public StackRequest getStackRequest(String pChannel, long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryStackIndex(pChannel);
+    if (lBinaryStackIndex != null)
+    {
+      if (!lBinaryStackIndex.hasRecord(pStackIndex))
+        return null;
+      return StackRequest.build(lBinaryStackIndex.getWidth(pStackIndex),
+                                lBinaryStackIndex.getHeight(pStackIndex),
+                                lBinaryStackIndex.getDepth(pStackIndex));
+    }
+    return super.getStackRequest(pChannel, pStackIndex);
+  }
+
+  @Override
+  public StackMetaData getStackMetaData(String pChannel,
+                                        long pStackIndex)
+  {
+    StackMetaData lStackMetaData = super.getStackMetaData(pChannel,
+                                                          pStackIndex);
+    BinaryStackIndex lBinaryStackIndex = getBinaryStackIndex(pChannel);
+    if (lStackMetaData != null || lBinaryStackIndex == null
+        || !lBinaryStackIndex.hasRecord(pStackIndex))
+      return lStackMetaData;
+
+    // metadata is parsed lazily, only for the stacks actually requested. It
+    // is not stored in the stack catalog, which has a single writer - the
+    // thread reading the index - while stacks are requested from any thread:
+    try
+    {
+      int lLength =
+                  (int) lBinaryStackIndex.getMetaDataLength(pStackIndex);
+      ByteBuffer lByteBuffer = ByteBuffer.allocate(lLength);
+      FileChannel lMetaDataFileChannel =
+                                       getMetaDataFileChannel(pChannel);
+      long lPosition = lBinaryStackIndex.getMetaDataOffset(pStackIndex);
+      while (lByteBuffer.hasRemaining())
+        if (lMetaDataFileChannel.read(lByteBuffer,
+                                      lPosition
+                                                   + lByteBuffer.position()) < 0)
+          return null;
+
+      lStackMetaData = new StackMetaData();
+      lStackMetaData.fromString(new String(lByteBuffer.array()).trim());
+      return lStackMetaData;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the byte offset of the stack data within a stack's file
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @return data offset in bytes
+   */
+  protected long getStackDataOffset(String pChannel, long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryStackIndex(pChannel);
+    if (lBinaryStackIndex != null
+        && lBinaryStackIndex.hasRecord(pStackIndex))
+      return lBinaryStackIndex.getDataOffset(pStackIndex);
+    return 0;
+  }
+
+  private FileChannel getMetaDataFileChannel(String pChannel) throws IOException
+  {
+    FileChannel lFileChannel = mChannelToMetaDataFileChannelMap.get(pChannel);
+    if (lFileChannel == null)
+    {
+      synchronized (mChannelToMetaDataFileChannelMap)
+      {
+        lFileChannel = mChannelToMetaDataFileChannelMap.get(pChannel);
+        if (lFileChannel == null)
+        {
+          lFileChannel = getFileChannel(getMetadataFile(pChannel), true);
+          mChannelToMetaDataFileChannelMap.put(pChannel, lFileChannel);
+        }
+      }
+    }
+    return lFileChannel;
+  }
+
+  private void closeMetaDataFileChannels()
+  {
+    synchronized (mChannelToMetaDataFileChannelMap)
+    {
+      for (FileChannel lFileChannel : mChannelToMetaDataFileChannelMap.values())
+        try
+        {
+          lFileChannel.close();
+        }
+        catch (IOException e)
+        {
+          e.printStackTrace();
+        }
+      mChannelToMetaDataFileChannelMap.clear();
+    }
+  }
+
   protected void readMetaDataFile(String lChannel) throws FileNotFoundException
   {
     final Scanner lMetaDataFileScanner =
@@ -212,7 +422,7 @@ public class RawFileStackSource extends FileStackBase implements
   @Override
   public void close() throws IOException
   {
-
+    closeMetaDataFileChannels();
   }
 
 }
@@ -1,16 +1,27 @@
 package clearcontrol.stack.sourcesink.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackPlaneBatch;
 import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
 import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+import clearcontrol.stack.sourcesink.sink.WriteBehindRawFileStackSink;
+import clearcontrol.stack.sourcesink.source.MemoryMappedRawFileStackSource;
 import clearcontrol.stack.sourcesink.source.RawFileStackSource;
 import coremem.ContiguousMemoryInterface;
 import coremem.buffers.ContiguousBuffer;
@@ -225,6 +236,150 @@ public class RawFileStackTests
                    lLocalFileStackSource.getStack(0).getHeight());
       assertEquals(cSizeZ,
                    lLocalFileStackSource.getStack(0).getDepth());
+      assertEquals(cSizeX,
+                   lLocalFileStackSource.getStack(1).getWidth());
+
+      lLocalFileStackSource.close();
+    }
+
+    {
+      // legacy datasets have no binary index, text index files are used:
+      File lBinaryIndexFile = new File(new File(lRootFolder, "testSink"),
+                                       "default"
+                                                                       + BinaryStackIndex.cExtension);
+      assertTrue(lBinaryIndexFile.exists());
+      assertTrue(lBinaryIndexFile.delete());
+
+      final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                       new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                       cMaximalNumberOfAvailableStacks);
+
+      final RawFileStackSource lLocalFileStackSource =
+                                                     new RawFileStackSource(lStackRecycler);
+
+      lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+
+      assertEquals(cNumberOfStacks,
+                   lLocalFileStackSource.getNumberOfStacks());
+      assertEquals(cSizeY,
+                   lLocalFileStackSource.getStack(1).getHeight());
+
+      lLocalFileStackSource.close();
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+
+  }
+
+  /**
+   * test write-behind sink and source
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testWriteBehindSinkAndSource() throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+    System.out.println(lRootFolder);
+
+    final int lNumberOfStacks = 10;
+
+    {
+      final ContiguousOffHeapPlanarStackFactory lOffHeapPlanarStackFactory =
+                                                                           new ContiguousOffHeapPlanarStackFactory();
+
+      final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                       new BasicRecycler<StackInterface, StackRequest>(lOffHeapPlanarStackFactory,
+                                                                                                                       cMaximalNumberOfAvailableStacks);
+
+      final WriteBehindRawFileStackSink lWriteBehindSink =
+                                                         new WriteBehindRawFileStackSink(2,
+                                                                                         2);
+      lWriteBehindSink.setFlushEveryNumberOfStacks(3);
+      final ArrayList<StackInterface> lAppendedStacks =
+                                                      new ArrayList<>();
+      lWriteBehindSink.setLocation(lRootFolder, "testSink");
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        final StackInterface lStack =
+                                    lStackRecycler.getOrWait(1,
+                                                             TimeUnit.SECONDS,
+                                                             StackRequest.build(cSizeX,
+                                                                                cSizeY,
+                                                                                cSizeZ));
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        while (lContiguousBuffer.hasRemainingShort())
+          lContiguousBuffer.writeShort((short) i);
+
+        // an interrupted append fails without using up a stack index, and
+        // does not block the commit of later stacks:
+        if (i == lNumberOfStacks / 2)
+        {
+          Thread.currentThread().interrupt();
+          assertFalse(lWriteBehindSink.appendStack(lStack));
+          Thread.interrupted();
+        }
+
+        assertTrue(lWriteBehindSink.appendStack(lStack));
+        lAppendedStacks.add(lStack);
+        assertTrue(lWriteBehindSink.getNumberOfPendingStacks() <= 4);
+      }
+
+      assertEquals(lNumberOfStacks,
+                   lWriteBehindSink.getNumberOfStacks());
+
+      lWriteBehindSink.close();
+
+      assertEquals(0, lWriteBehindSink.getNumberOfPendingStacks());
+      assertEquals(0, lWriteBehindSink.getNumberOfFailedWrites());
+
+      // all stacks have been released back to the recycler after write:
+      for (StackInterface lStack : lAppendedStacks)
+        assertTrue(lStack.isReleased());
+    }
+
+    {
+      final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                       new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                       cMaximalNumberOfAvailableStacks);
+
+      final RawFileStackSource lLocalFileStackSource =
+                                                     new RawFileStackSource(lStackRecycler);
+
+      lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+
+      assertEquals(lNumberOfStacks,
+                   lLocalFileStackSource.getNumberOfStacks());
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        StackInterface lStack = lLocalFileStackSource.getStack(i);
+        assertEquals(cSizeZ, lStack.getDepth());
+        assertEquals(i, lStack.getMetaData().getIndex().longValue());
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        assertEquals(i, lContiguousBuffer.readShort());
+        lStack.release();
+      }
 
       lLocalFileStackSource.close();
     }
@@ -236,6 +391,390 @@ public class RawFileStackTests
     catch (Exception e)
     {
     }
+  }
 
+  /**
+   * test that hole records keep the binary index positional
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testBinaryIndexHoles() throws Exception
+  {
+    final File lBinaryIndexFile =
+                                File.createTempFile("test",
+                                                    BinaryStackIndex.cExtension);
+
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(lBinaryIndexFile.toPath(),
+                                                   StandardOpenOption.WRITE,
+                                                   StandardOpenOption.APPEND))
+    {
+      for (int i = 0; i < 4; i++)
+      {
+        // stack 1 could not be written:
+        ByteBuffer lRecord =
+                           i == 1 ? BinaryStackIndex.createHoleRecord()
+                                  : BinaryStackIndex.createRecord(i,
+                                                                  i,
+                                                                  new long[]
+                                                                  { cSizeX,
+                                                                    cSizeY,
+                                                                    cSizeZ },
+                                                                  0,
+                                                                  0,
+                                                                  0);
+        BinaryStackIndex.append(lFileChannel, lRecord);
+      }
+    }
+
+    final BinaryStackIndex lBinaryStackIndex =
+                                             BinaryStackIndex.open(lBinaryIndexFile);
+    assertEquals(4, lBinaryStackIndex.getNumberOfRecords());
+    assertTrue(lBinaryStackIndex.hasRecord(0));
+    assertFalse(lBinaryStackIndex.hasRecord(1));
+    assertTrue(lBinaryStackIndex.hasRecord(2));
+    assertTrue(lBinaryStackIndex.hasRecord(3));
+    assertEquals(3, lBinaryStackIndex.getTimeStampInSeconds(3), 0);
+    assertFalse(lBinaryStackIndex.hasRecord(4));
+
+    lBinaryIndexFile.delete();
+  }
+
+  /**
+   * test streaming stacks plane by plane to the sinks
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testPlaneStreaming() throws Exception
+  {
+    testPlaneStreaming(new RawFileStackSink(), true);
+    // the write-behind sink writes streamed stacks once complete:
+    testPlaneStreaming(new WriteBehindRawFileStackSink(2, 2), false);
+  }
+
+  private void testPlaneStreaming(RawFileStackSink pSink,
+                                  boolean pWritesPlanes) throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+
+    final int lNumberOfStacks = 3;
+    final long lNumberOfPlanesPerBatch = 10;
+    final String lChannel = StackSinkSourceInterface.cDefaultChannel;
+
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+
+    {
+      pSink.setLocation(lRootFolder, "testSink");
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        final StackInterface lStack =
+                                    lStackRecycler.getOrWait(1,
+                                                             TimeUnit.SECONDS,
+                                                             StackRequest.build(cSizeX,
+                                                                                cSizeY,
+                                                                                cSizeZ));
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+
+        for (long z = 0; z < cSizeZ; z++)
+        {
+          ContiguousBuffer lContiguousBuffer =
+                                             ContiguousBuffer.wrap(lStack.getContiguousMemory((int) z));
+          while (lContiguousBuffer.hasRemainingShort())
+            lContiguousBuffer.writeShort((short) (i * cSizeZ + z));
+        }
+
+        // the middle stack is appended at once, the others plane by plane:
+        if (i == 1)
+        {
+          assertTrue(pSink.appendStack(lChannel, lStack));
+          continue;
+        }
+
+        for (long z = 0; z < cSizeZ; z += lNumberOfPlanesPerBatch)
+        {
+          final StackPlaneBatch lPlaneBatch =
+                                            new StackPlaneBatch(lStack,
+                                                                z,
+                                                                Math.min(lNumberOfPlanesPerBatch,
+                                                                         cSizeZ - z));
+          // batches out of order are rejected:
+          if (pWritesPlanes && z > 0)
+            assertFalse(pSink.appendPlanes(lChannel,
+                                           new StackPlaneBatch(lStack,
+                                                               z + 1,
+                                                               1)));
+          assertTrue(pSink.appendPlanes(lChannel, lPlaneBatch));
+        }
+      }
+
+      pSink.close();
+      assertEquals(lNumberOfStacks, pSink.getNumberOfStacks());
+    }
+
+    {
+      final RawFileStackSource lLocalFileStackSource =
+                                                     new RawFileStackSource(lStackRecycler);
+
+      lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+
+      assertEquals(lNumberOfStacks,
+                   lLocalFileStackSource.getNumberOfStacks());
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        StackInterface lStack = lLocalFileStackSource.getStack(i);
+        assertEquals(cSizeZ, lStack.getDepth());
+        assertEquals(i, lStack.getMetaData().getIndex().longValue());
+        for (long z = 0; z < cSizeZ; z++)
+        {
+          ContiguousBuffer lContiguousBuffer =
+                                             ContiguousBuffer.wrap(lStack.getContiguousMemory((int) z));
+          while (lContiguousBuffer.hasRemainingShort())
+            assertEquals((short) (i * cSizeZ + z),
+                         lContiguousBuffer.readShort());
+        }
+        lStack.release();
+      }
+
+      lLocalFileStackSource.close();
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  /**
+   * Tests that a stack streamed plane by plane that is dropped before its last
+   * plane does not corrupt the stack written next at the same index.
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testDroppedPlaneStream() throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+
+    final long lNumberOfPlanesPerBatch = 10;
+    final String lChannel = StackSinkSourceInterface.cDefaultChannel;
+
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+
+    final RawFileStackSink lSink = new RawFileStackSink();
+    lSink.setLocation(lRootFolder, "testSink");
+    final File lStackFile =
+                          new File(new File(lSink.getDataFolder(),
+                                            lChannel),
+                                   String.format(StackSinkSourceInterface.cFormat,
+                                                 0));
+
+    final StackInterface[] lStacks = new StackInterface[2];
+    for (int i = 0; i < lStacks.length; i++)
+    {
+      lStacks[i] = lStackRecycler.getOrWait(1,
+                                            TimeUnit.SECONDS,
+                                            StackRequest.build(cSizeX,
+                                                               cSizeY,
+                                                               cSizeZ));
+      lStacks[i].getMetaData().setIndex(i);
+      lStacks[i].getMetaData()
+                .setTimeStampInNanoseconds(System.nanoTime());
+      ContiguousBuffer lContiguousBuffer =
+                                         ContiguousBuffer.wrap(lStacks[i].getContiguousMemory());
+      while (lContiguousBuffer.hasRemainingShort())
+        lContiguousBuffer.writeShort((short) (i + 1));
+    }
+
+    // the first stack is dropped after its first batch of planes:
+    assertTrue(lSink.appendPlanes(lChannel,
+                                  new StackPlaneBatch(lStacks[0],
+                                                      0,
+                                                      lNumberOfPlanesPerBatch)));
+    assertTrue(lStackFile.exists());
+
+    // the second stack reuses the same stack index and file:
+    for (long z = 0; z < cSizeZ; z += lNumberOfPlanesPerBatch)
+      assertTrue(lSink.appendPlanes(lChannel,
+                                    new StackPlaneBatch(lStacks[1],
+                                                        z,
+                                                        Math.min(lNumberOfPlanesPerBatch,
+                                                                 cSizeZ - z))));
+    lSink.close();
+
+    assertEquals(1, lSink.getNumberOfStacks());
+    assertEquals(lStacks[1].getVolume() * lStacks[1].getBytesPerVoxel(),
+                 lStackFile.length());
+
+    final RawFileStackSource lLocalFileStackSource =
+                                                   new RawFileStackSource(lStackRecycler);
+    lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+    assertEquals(1, lLocalFileStackSource.getNumberOfStacks());
+    StackInterface lStack = lLocalFileStackSource.getStack(0);
+    ContiguousBuffer lContiguousBuffer =
+                                       ContiguousBuffer.wrap(lStack.getContiguousMemory());
+    while (lContiguousBuffer.hasRemainingShort())
+      assertEquals((short) 2, lContiguousBuffer.readShort());
+    lStack.release();
+    lLocalFileStackSource.close();
+
+    for (StackInterface lAppendedStack : lStacks)
+      lAppendedStack.release();
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  /**
+   * test memory-mapped source
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testMemoryMappedSource() throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+    System.out.println(lRootFolder);
+
+    final int lNumberOfStacks = 6;
+
+    {
+      final RawFileStackSink lLocalFileStackSink =
+                                                 new RawFileStackSink();
+      lLocalFileStackSink.setLocation(lRootFolder, "testSink");
+
+      final OffHeapPlanarStack lStack =
+                                      OffHeapPlanarStack.createStack(cSizeX,
+                                                                     cSizeY,
+                                                                     cSizeZ);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        while (lContiguousBuffer.hasRemainingShort())
+          lContiguousBuffer.writeShort((short) i);
+
+        assertTrue(lLocalFileStackSink.appendStack(lStack));
+      }
+
+      lLocalFileStackSink.close();
+      lStack.free();
+    }
+
+    {
+      final MemoryMappedRawFileStackSource lMemoryMappedSource =
+                                                               new MemoryMappedRawFileStackSource(null);
+      lMemoryMappedSource.setNumberOfPrefetchedStacks(2);
+      lMemoryMappedSource.setLocation(lRootFolder, "testSink");
+
+      assertEquals(lNumberOfStacks,
+                   lMemoryMappedSource.getNumberOfStacks());
+
+      // sequential read, with prefetching, followed by a backwards jump:
+      int[] lIndices = new int[]
+      { 0, 1, 2, 3, 4, 5, 1 };
+      for (int i : lIndices)
+      {
+        StackInterface lStack = lMemoryMappedSource.getStack(i);
+        assertEquals(cSizeX, lStack.getWidth());
+        assertEquals(cSizeZ, lStack.getDepth());
+        assertEquals(i, lStack.getMetaData().getIndex().longValue());
+
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        assertEquals(i, lContiguousBuffer.readShort());
+
+        // in-place modifications never reach the files:
+        lContiguousBuffer.rewind();
+        lContiguousBuffer.writeShort((short) -1);
+      }
+
+      assertEquals(1,
+                   ContiguousBuffer.wrap(lMemoryMappedSource.getStack(1)
+                                                            .getContiguousMemory())
+                                   .readShort());
+
+      lMemoryMappedSource.close();
+    }
+
+    {
+      // read-only datasets can't be mapped privately, stacks are copied:
+      for (File lFile : FileUtils.listFiles(lRootFolder, null, true))
+        lFile.setWritable(false);
+
+      final MemoryMappedRawFileStackSource lMemoryMappedSource =
+                                                               new MemoryMappedRawFileStackSource(null);
+      lMemoryMappedSource.setLocation(lRootFolder, "testSink");
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        StackInterface lStack = lMemoryMappedSource.getStack(i);
+        assertEquals(cSizeX * cSizeY * cSizeZ * cBytesPerVoxel,
+                     lStack.getSizeInBytes());
+
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        assertEquals(i, lContiguousBuffer.readShort());
+        lContiguousBuffer.rewind();
+        lContiguousBuffer.writeShort((short) -1);
+      }
+
+      lMemoryMappedSource.close();
+
+      for (File lFile : FileUtils.listFiles(lRootFolder, null, true))
+        lFile.setWritable(true);
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
   }
 }
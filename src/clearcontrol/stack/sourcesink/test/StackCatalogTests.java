@@ -0,0 +1,114 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.server.StackCatalog;
+
+import org.junit.Test;
+
+/**
+ * Stack catalog tests
+ *
+ * @author royer
+ */
+public class StackCatalogTests
+{
+
+  /**
+   * Tests basic set and get
+   */
+  @Test
+  public void testSetAndGet()
+  {
+    StackCatalog lStackCatalog = new StackCatalog();
+
+    assertEquals(0, lStackCatalog.getNumberOfStacks());
+    assertTrue(Double.isNaN(lStackCatalog.getTimeStampInSeconds(0)));
+    assertNull(lStackCatalog.getStackRequest(0));
+    assertNull(lStackCatalog.getStackMetaData(1000));
+
+    for (int i = 0; i < 10000; i++)
+    {
+      lStackCatalog.setTimeStampInSeconds(i, 0.5 * i);
+      lStackCatalog.setStackRequest(i, StackRequest.build(i, 2, 3));
+    }
+
+    assertEquals(10000, lStackCatalog.getNumberOfStacks());
+    assertEquals(0.5 * 777,
+                 lStackCatalog.getTimeStampInSeconds(777),
+                 0);
+    assertEquals(777, lStackCatalog.getStackRequest(777).getWidth());
+    assertTrue(Double.isNaN(lStackCatalog.getTimeStampInSeconds(10000)));
+  }
+
+  /**
+   * Tests that indices skipped by the writer read as holes
+   */
+  @Test
+  public void testHoles()
+  {
+    StackCatalog lStackCatalog = new StackCatalog();
+
+    lStackCatalog.setTimeStampInSeconds(0, 1);
+    lStackCatalog.setTimeStampInSeconds(2, 3);
+    lStackCatalog.setTimeStampInSeconds(1000, 4);
+
+    assertEquals(1001, lStackCatalog.getNumberOfStacks());
+    assertEquals(3, lStackCatalog.getTimeStampInSeconds(2), 0);
+    assertTrue(Double.isNaN(lStackCatalog.getTimeStampInSeconds(1)));
+    assertTrue(Double.isNaN(lStackCatalog.getTimeStampInSeconds(500)));
+    assertNull(lStackCatalog.getStackRequest(1));
+  }
+
+  /**
+   * Tests one writer and concurrent readers: readers must never see a stack
+   * without its time stamp.
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testConcurrentReaders() throws InterruptedException
+  {
+    final int lNumberOfStacks = 1000000;
+    final StackCatalog lStackCatalog = new StackCatalog();
+    final AtomicBoolean lStop = new AtomicBoolean(false);
+    final AtomicLong lErrors = new AtomicLong();
+
+    Runnable lReader = () -> {
+      while (!lStop.get())
+      {
+        int lNumberOfStacksSeen = lStackCatalog.getNumberOfStacks();
+        if (lNumberOfStacksSeen == 0)
+          continue;
+        int lIndex = lNumberOfStacksSeen - 1;
+        if (lStackCatalog.getTimeStampInSeconds(lIndex) != lIndex + 1)
+          lErrors.incrementAndGet();
+      }
+    };
+
+    Thread[] lReaders = new Thread[4];
+    for (int i = 0; i < lReaders.length; i++)
+    {
+      lReaders[i] = new Thread(lReader);
+      lReaders[i].start();
+    }
+
+    for (int i = 0; i < lNumberOfStacks; i++)
+      lStackCatalog.setTimeStampInSeconds(i, i + 1);
+
+    lStop.set(true);
+    for (Thread lThread : lReaders)
+      lThread.join();
+
+    assertEquals(lNumberOfStacks, lStackCatalog.getNumberOfStacks());
+    assertEquals(0, lErrors.get());
+  }
+
+}